@@ -0,0 +1,39 @@
+package ch.ethz.acl.ngen.bench;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.profile.LinuxPerfNormProfiler;
+import org.openjdk.jmh.profile.ProfilerException;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//
+// Runs the benchmarks whose names match the given regular expressions, or
+// all of them. Allocation rates are reported by the GC profiler and, when
+// perf is available, cycles and instructions per operation by perfnorm.
+// Results are written in JSON to target/jmh-result.json.
+//
+public class BenchRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        new File("target").mkdirs();
+        ChainedOptionsBuilder options = new OptionsBuilder()
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result("target/jmh-result.json");
+        try {
+            new LinuxPerfNormProfiler("");
+            options.addProfiler(LinuxPerfNormProfiler.class);
+        } catch (ProfilerException e) {
+            System.err.println("perfnorm profiler is not available: " + e.getMessage());
+        }
+        for (String include : args) {
+            options.include(include);
+        }
+        new Runner(options.build()).run();
+    }
+}
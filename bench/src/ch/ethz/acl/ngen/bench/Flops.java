@@ -0,0 +1,25 @@
+package ch.ethz.acl.ngen.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+//
+// Counts the floating point operations performed by a benchmark. JMH
+// reports the counter as a rate, i.e. in flops per second of measured
+// time. Combined with the cycles/op of the perfnorm profiler, this gives
+// flops per cycle without relying on the nominal frequency of the CPU.
+//
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Flops {
+
+    public long flops;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        flops = 0;
+    }
+}
@@ -0,0 +1,76 @@
+package ch.ethz.acl.ngen.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.acl.commons.util.DebuggingConfig;
+import ch.ethz.acl.commons.util.OffHeap;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Baselines isolating the cost of a JNI call from the cost of the kernel.
+// Each native function has an empty body, such that the measured time is
+// the transition itself and the binding of its arguments. The array size
+// shows whether pinning depends on the size of the array.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JNIBench {
+
+    @Param({"64", "65536", "4194304"})
+    public int size;
+
+    private NEmpty     nEmpty;
+    private float []   a, b, c;
+    private ByteBuffer direct;
+
+    @Setup
+    public void setup() {
+        DebuggingConfig.verbosity_$eq(0);
+        nEmpty = new NEmpty();
+        a = new float[size];
+        b = new float[size];
+        c = new float[size];
+        direct = OffHeap.allocateFloats(size, OffHeap.defaultAlignment());
+    }
+
+    //
+    // A JVM method that cannot be inlined, the cost of a plain call
+    //
+    @CompilerControl(CompilerControl.Mode.DONT_INLINE)
+    private static void jvmEmpty(float [] a, int n) {}
+
+    @Benchmark
+    public void jvmCall() {
+        jvmEmpty(a, size);
+    }
+
+    @Benchmark
+    public void jniEmpty() {
+        nEmpty.empty(size);
+    }
+
+    @Benchmark
+    public void jniCriticalArray() {
+        nEmpty.emptyArray(a, size);
+    }
+
+    @Benchmark
+    public void jniCriticalArrays3() {
+        nEmpty.emptyArrays(a, b, c, size);
+    }
+
+    @Benchmark
+    public void jniDirectBuffer() {
+        nEmpty.emptyDirect(direct, size);
+    }
+
+    @Benchmark
+    public float jniResult() {
+        return nEmpty.emptyResult(a, size);
+    }
+}
@@ -0,0 +1,67 @@
+package ch.ethz.acl.ngen.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.acl.commons.util.DebuggingConfig;
+import ch.ethz.acl.commons.util.OffHeap;
+import ch.ethz.acl.ngen.mmm.MMM;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Blocked MMM of n x n matrices on the JVM and generated with LMS, the
+// latter both on heap arrays and on off-heap buffers. Each call performs
+// 2 * n^3 flops, counted in Flops.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MMMBench {
+
+    @Param({"64", "256", "512", "1024"})
+    public int n;
+
+    private float []   a, b, c;
+    private ByteBuffer da, db, dc;
+
+    @Setup
+    public void setup() {
+        DebuggingConfig.verbosity_$eq(0);
+        Random rng = new Random(7919);
+        a = new float[n * n];
+        b = new float[n * n];
+        c = new float[n * n];
+        for (int i = 0; i < n * n; i++) {
+            a[i] = rng.nextFloat() * 3.0f;
+            b[i] = rng.nextFloat() * 3.0f;
+        }
+        da = OffHeap.copy(a, OffHeap.allocateFloats(n * n, OffHeap.defaultAlignment()));
+        db = OffHeap.copy(b, OffHeap.allocateFloats(n * n, OffHeap.defaultAlignment()));
+        dc = OffHeap.allocateFloats(n * n, OffHeap.defaultAlignment());
+        if (!MMM.nMMM().tier().await()) {
+            throw new IllegalStateException("Native MMM failed to compile", NEmpty.failure(MMM.nMMM().tier()));
+        }
+    }
+
+    @Benchmark
+    public void jMMM(Flops f) {
+        MMM.jMMM().blocked(a, b, c, n);
+        f.flops += 2L * n * n * n;
+    }
+
+    @Benchmark
+    public void nMMM(Flops f) {
+        MMM.nMMM().blocked(a, b, c, n);
+        f.flops += 2L * n * n * n;
+    }
+
+    @Benchmark
+    public void nMMMDirect(Flops f) {
+        MMM.nMMM().blockedDirect(da, db, dc, n);
+        f.flops += 2L * n * n * n;
+    }
+}
@@ -0,0 +1,43 @@
+package ch.ethz.acl.ngen.bench
+
+import java.nio.ByteBuffer
+
+import ch.ethz.acl.commons.cir.{IntrinsicsIR, NativeTier}
+import com.github.dwickern.macros.NameOf._
+
+object NEmpty {
+  //
+  // Cause of a failed native compilation, or null, for use from Java
+  //
+  def failure (tier: NativeTier): Throwable = tier.getFailure.orNull
+}
+
+//
+// Native functions with an empty body. Calling them measures the cost of
+// a JNI transition, and of pinning or resolving each kind of argument,
+// which is paid by every kernel on top of the kernel itself.
+//
+class NEmpty {
+
+  @native def empty       (n: Int): Unit
+  @native def emptyArray  (a: Array[Float], n: Int): Unit
+  @native def emptyArrays (a: Array[Float], b: Array[Float], c: Array[Float], n: Int): Unit
+  @native def emptyDirect (a: ByteBuffer, n: Int): Unit
+  @native def emptyResult (a: Array[Float], n: Int): Float
+
+  val cIR = new IntrinsicsIR
+  import cIR._
+
+  def empty_staged  (n: Rep[Int]): Rep[Unit] = unit(())
+  def array_staged  (a: Rep[Array[Float]], n: Rep[Int]): Rep[Unit] = unit(())
+  def arrays_staged (a: Rep[Array[Float]], b: Rep[Array[Float]], c: Rep[Array[Float]], n: Rep[Int]): Rep[Unit] = unit(())
+  def result_staged (a: Rep[Array[Float]], n: Rep[Int]): Rep[Float] = unit(0.0f)
+
+  compileUnit(this) {
+    compile(empty_staged  _, this, nameOf(empty _))
+    compile(array_staged  _, this, nameOf(emptyArray _))
+    compile(arrays_staged _, this, nameOf(emptyArrays _))
+    compile(array_staged  _, this, nameOf(emptyDirect _))
+    compile(result_staged _, this, nameOf(emptyResult _))
+  }
+}
@@ -0,0 +1,77 @@
+package ch.ethz.acl.ngen.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.acl.commons.util.DebuggingConfig;
+import ch.ethz.acl.ngen.precison.*;
+import org.openjdk.jmh.annotations.*;
+
+//
+// Dot products of 32, 16, 8 and 4-bit vectors on the JVM (JVector) and
+// generated with LMS (QVector). Each call performs 2 * size flops or
+// integer operations, counted in Flops.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrecisionBench {
+
+    @Param({"128", "4096", "131072", "4194304"})
+    public int size;
+
+    private QVector32 qa32, qb32;
+    private QVector16 qa16, qb16;
+    private QVector8  qa8,  qb8;
+    private QVector4  qa4,  qb4;
+
+    private JVector32 ja32, jb32;
+    private JVector16 ja16, jb16;
+    private JVector8  ja8,  jb8;
+    private JVector4  ja4,  jb4;
+
+    @Setup
+    public void setup() {
+        DebuggingConfig.verbosity_$eq(0);
+        Random rng = new Random(7919);
+        float [] a = new float[size];
+        float [] b = new float[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = rng.nextFloat() * 3.0f;
+            b[i] = rng.nextFloat() * 3.0f;
+        }
+
+        qa32 = new QVector32(size); qa32.quantize(a);
+        qb32 = new QVector32(size); qb32.quantize(b);
+        qa16 = new QVector16(size); qa16.quantize(a);
+        qb16 = new QVector16(size); qb16.quantize(b);
+        qa8  = new QVector8 (size); qa8 .quantize(a);
+        qb8  = new QVector8 (size); qb8 .quantize(b);
+        qa4  = new QVector4 (size); qa4 .quantize(a);
+        qb4  = new QVector4 (size); qb4 .quantize(b);
+        //
+        // The JVM vectors share the quantized values of the generated ones
+        //
+        ja32 = new JVector32(qa32.size_pad()); ja32.values = qa32.values();
+        jb32 = new JVector32(qb32.size_pad()); jb32.values = qb32.values();
+        ja16 = new JVector16(size); ja16.quantize(a);
+        jb16 = new JVector16(size); jb16.quantize(b);
+        ja8  = new JVector8 (qa8.size_pad()); ja8.values = qa8.values(); ja8.scale = qa8.scale();
+        jb8  = new JVector8 (qb8.size_pad()); jb8.values = qb8.values(); jb8.scale = qb8.scale();
+        ja4  = new JVector4 (qa4.size_pad()); ja4.values = qa4.values(); ja4.scale = qa4.scale();
+        jb4  = new JVector4 (qb4.size_pad()); jb4.values = qb4.values(); jb4.scale = qb4.scale();
+    }
+
+    @Benchmark public float jVector32(Flops f) { f.flops += 2L * size; return ja32.dot(jb32); }
+    @Benchmark public float jVector16(Flops f) { f.flops += 2L * size; return ja16.dot(jb16); }
+    @Benchmark public float jVector8 (Flops f) { f.flops += 2L * size; return ja8 .dot(jb8 ); }
+    @Benchmark public float jVector4 (Flops f) { f.flops += 2L * size; return ja4 .dot(jb4 ); }
+
+    @Benchmark public float qVector32(Flops f) { f.flops += 2L * size; return qa32.dot(qb32); }
+    @Benchmark public float qVector16(Flops f) { f.flops += 2L * size; return qa16.dot(qb16); }
+    @Benchmark public float qVector8 (Flops f) { f.flops += 2L * size; return qa8 .dot(qb8 ); }
+    @Benchmark public float qVector4 (Flops f) { f.flops += 2L * size; return qa4 .dot(qb4 ); }
+}
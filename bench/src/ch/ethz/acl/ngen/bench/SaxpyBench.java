@@ -0,0 +1,87 @@
+package ch.ethz.acl.ngen.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.acl.commons.util.DebuggingConfig;
+import ch.ethz.acl.ngen.multisaxpy.MultiSaxpy;
+import ch.ethz.acl.ngen.saxpy.Saxpy;
+import org.openjdk.jmh.annotations.*;
+
+//
+// SAXPY on the JVM, generated with LMS, generated in batches of 64 floats
+// per native call, and generated for each available ISA (MultiSaxpy).
+// Each call performs 2 * size flops, counted in Flops.
+//
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SaxpyBench {
+
+    @Param({"64", "1024", "16384", "262144", "4194304"})
+    public int size;
+
+    private static final int batch = 64;
+
+    private float [] a, b;
+    private float    scalar;
+    private int   [] offsets, ns;
+    private float [] scalars;
+    private int      count;
+
+    @Setup
+    public void setup() {
+        DebuggingConfig.verbosity_$eq(0);
+        Random rng = new Random(7919);
+        a = new float[size];
+        b = new float[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = rng.nextFloat() * 3.0f;
+            b[i] = rng.nextFloat() * 3.0f;
+        }
+        scalar  = rng.nextFloat();
+        count   = (size + batch - 1) / batch;
+        offsets = new int  [count];
+        ns      = new int  [count];
+        scalars = new float[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = i * batch;
+            ns     [i] = Math.min(batch, size - i * batch);
+            scalars[i] = scalar;
+        }
+        //
+        // Measure the native code, not the JVM fallback used while compiling
+        //
+        if (!Saxpy.nSaxpy().tier().await()) {
+            throw new IllegalStateException("Native SAXPY failed to compile", NEmpty.failure(Saxpy.nSaxpy().tier()));
+        }
+        MultiSaxpy.nSaxpy();
+    }
+
+    @Benchmark
+    public void jSaxpy(Flops f) {
+        Saxpy.jSaxpy().apply(a, b, scalar, size);
+        f.flops += 2L * size;
+    }
+
+    @Benchmark
+    public void nSaxpy(Flops f) {
+        Saxpy.nSaxpy().apply(a, b, scalar, size);
+        f.flops += 2L * size;
+    }
+
+    @Benchmark
+    public void nSaxpyBatched(Flops f) {
+        Saxpy.nSaxpy().applyBatch(a, offsets, b, offsets, scalars, ns, count);
+        f.flops += 2L * size;
+    }
+
+    @Benchmark
+    public void nMultiSaxpy(Flops f) {
+        MultiSaxpy.nSaxpy().apply(a, b, scalar, size);
+        f.flops += 2L * size;
+    }
+}
@@ -1,6 +1,8 @@
 package model;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 public class CPUID {
@@ -151,7 +153,7 @@ public class CPUID {
             cpuid_0x1_ecx = cpuid_0x1[2];
             cpuid_0x7_ebx = cpuid_0x7[1];
             cpuid_0x80000001_ecx = cpuid_0x80000001[2];
-            cpuid_0x80000001_ecx = cpuid_0x80000001[3];
+            cpuid_0x80000001_edx = cpuid_0x80000001[3];
             return true;
         } else {
             return false;
@@ -277,6 +279,31 @@ public class CPUID {
         return info[0] & 0xf;
     }
 
+    /**
+     * Deterministic cache parameters of leaf 4, one entry per cache: { level, type, size in bytes, line size,
+     * ways, number of logical processors sharing the cache }. The type is 1 for data, 2 for instruction and
+     * 3 for unified caches. Processors without leaf 4 report no caches.
+     */
+    public static int[][] getCaches()
+    {
+        List<int[]> caches = new ArrayList<int[]>();
+        if (cpuid(0, 0)[0] >= 4) {
+            for (int i = 0; ; i += 1) {
+                int[] info = cpuid(4, i);
+                int type = info[0] & 0x1f;
+                if (type == 0) break;
+                int level      = (info[0] >>  5) & 0x7;
+                int sharing    = ((info[0] >> 14) & 0xfff) + 1;
+                int ways       = ((info[1] >> 22) & 0x3ff) + 1;
+                int partitions = ((info[1] >> 12) & 0x3ff) + 1;
+                int line       = (info[1] & 0xfff) + 1;
+                int sets       = info[2] + 1;
+                caches.add(new int[] { level, type, ways * partitions * line * sets, line, ways, sharing });
+            }
+        }
+        return caches.toArray(new int[caches.size()][]);
+    }
+
 //    static int getEDXCPUFlags()
 //    {
 //        int[] info = cpuid(1, 0);
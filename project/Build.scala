@@ -12,6 +12,12 @@ object NGenBuild extends Build with BuildUtil {
 
   lazy val NGenProject = Project("NGen", file("."), settings = Defaults.defaultSettings)
     .dependsOn(ProjectsDependencies.lms)
+
+  //
+  // JMH benchmarks of the NGen kernels, configured in bench/build.sbt
+  //
+  lazy val NGenBench = Project("NGen-bench", file("bench"), settings = Defaults.defaultSettings)
+    .dependsOn(NGenProject)
 }
 
 trait BuildUtil {
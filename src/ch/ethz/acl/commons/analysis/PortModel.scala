@@ -0,0 +1,170 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.analysis
+
+import ch.ethz.acl.commons.compiler.UArch
+import ch.ethz.acl.commons.compiler.UArch.UArch
+
+/**
+  * Classes of operations distinguished by the throughput model. Each staged operation is mapped to one or more
+  * classes, see ThroughputModel.classify.
+  */
+object OpClass extends Enumeration {
+  type OpClass = Value
+  val Load, Store, FpAdd, FpMul, Fma, Divide, Shuffle, VecAlu, IntMul, ScalarAlu, ScalarMul, Branch = Value
+}
+
+import OpClass._
+
+/**
+  * Cost of a single operation on a micro-architecture.
+  *
+  * @param ports      Execution ports able to run the operation, as a bit mask (bit p stands for port p)
+  * @param latency    Latency in cycles
+  * @param occupancy  Cycles during which one of the ports is busy with the operation, 1 for pipelined operations
+  */
+case class OpCost (ports: Int, latency: Double, occupancy: Double) {
+  def portList: List[Int] = (0 until 32).filter(p => (ports & (1 << p)) != 0).toList
+}
+
+/**
+  * Latency and throughput tables of a micro-architecture, after the Intel optimization manual and Agner Fog's
+  * instruction tables. The tables are coarse: each class of operations has a single cost, which depends only on the
+  * vector width. They are meant to rank variants of a kernel, not to predict cycle-accurate runtimes.
+  *
+  * @param name   Name of the micro-architecture
+  * @param ports  Number of execution ports
+  * @param table  Cost of a class of operations on vectors of the given width in bytes
+  */
+class PortModel (val name: String, val ports: Int, table: (OpClass, Int) => OpCost) {
+  def cost (op: OpClass, width: Int): OpCost = table(op, width)
+}
+
+object PortModel {
+
+  private def p (ports: Int*): Int = ports.foldLeft(0)((mask, port) => mask | (1 << port))
+
+  /**
+    * Nehalem and Westmere, 128-bit vectors only
+    */
+  val nehalem = new PortModel("Nehalem", 6, (op, width) => op match {
+    case Load      => OpCost(p(2), 4, 1)
+    case Store     => OpCost(p(4), 1, 1)
+    case FpAdd     => OpCost(p(1), 3, 1)
+    case FpMul     => OpCost(p(0), 4, 1)
+    case Fma       => OpCost(p(0, 1), 7, 2)
+    case Divide    => OpCost(p(0), 14, 14)
+    case Shuffle   => OpCost(p(5), 1, 1)
+    case VecAlu    => OpCost(p(0, 1, 5), 1, 1)
+    case IntMul    => OpCost(p(0), 5, 1)
+    case ScalarAlu => OpCost(p(0, 1, 5), 1, 1)
+    case ScalarMul => OpCost(p(1), 3, 1)
+    case Branch    => OpCost(p(5), 1, 1)
+  })
+
+  /**
+    * Sandy Bridge and Ivy Bridge. 256-bit loads and stores occupy their ports for two cycles, and FMA is executed as
+    * a multiplication followed by an addition.
+    */
+  def sandyBridge (ivy: Boolean) = new PortModel(if (ivy) "IvyBridge" else "SandyBridge", 6, (op, width) => op match {
+    case Load      => OpCost(p(2, 3), if (width >= 32) 7 else 5, if (width >= 32) 2 else 1)
+    case Store     => OpCost(p(4), 1, if (width >= 32) 2 else 1)
+    case FpAdd     => OpCost(p(1), 3, 1)
+    case FpMul     => OpCost(p(0), 5, 1)
+    case Fma       => OpCost(p(0, 1), 8, 2)
+    case Divide    => (ivy, width >= 32) match {
+      case (false, true)  => OpCost(p(0), 29, 28)
+      case (false, false) => OpCost(p(0), 14, 14)
+      case (true,  true)  => OpCost(p(0), 21, 14)
+      case (true,  false) => OpCost(p(0), 13, 7)
+    }
+    case Shuffle   => OpCost(p(5), 1, 1)
+    case VecAlu    => OpCost(p(0, 1, 5), 1, 1)
+    case IntMul    => OpCost(p(0), 5, 1)
+    case ScalarAlu => OpCost(p(0, 1, 5), 1, 1)
+    case ScalarMul => OpCost(p(1), 3, 1)
+    case Branch    => OpCost(p(5), 1, 1)
+  })
+
+  /**
+    * Haswell and Broadwell. Broadwell has a faster multiplier and divider.
+    */
+  def haswell (broadwell: Boolean) = new PortModel(if (broadwell) "Broadwell" else "Haswell", 8, (op, width) => op match {
+    case Load      => OpCost(p(2, 3), if (width >= 32) 7 else 5, 1)
+    case Store     => OpCost(p(4), 1, 1)
+    case FpAdd     => OpCost(p(1), 3, 1)
+    case FpMul     => OpCost(p(0, 1), if (broadwell) 3 else 5, 1)
+    case Fma       => OpCost(p(0, 1), 5, 1)
+    case Divide    => (broadwell, width >= 32) match {
+      case (false, true)  => OpCost(p(0), 19, 13)
+      case (false, false) => OpCost(p(0), 13, 7)
+      case (true,  true)  => OpCost(p(0), 17, 10)
+      case (true,  false) => OpCost(p(0), 11, 4)
+    }
+    case Shuffle   => OpCost(p(5), if (width >= 32) 3 else 1, 1)
+    case VecAlu    => OpCost(p(0, 1, 5), 1, 1)
+    case IntMul    => OpCost(p(0), 5, 1)
+    case ScalarAlu => OpCost(p(0, 1, 5, 6), 1, 1)
+    case ScalarMul => OpCost(p(1), 3, 1)
+    case Branch    => OpCost(p(0, 6), 1, 1)
+  })
+
+  /**
+    * Skylake, Kaby Lake and Skylake-SP. On Skylake-SP, 512-bit operations run on port 0 (fused with port 1) and on
+    * port 5.
+    */
+  val skylake = new PortModel("Skylake", 8, (op, width) => {
+    val vec = if (width >= 64) p(0, 5) else p(0, 1)
+    op match {
+      case Load      => OpCost(p(2, 3), if (width >= 32) 7 else 5, 1)
+      case Store     => OpCost(p(4), 1, 1)
+      case FpAdd     => OpCost(vec, 4, 1)
+      case FpMul     => OpCost(vec, 4, 1)
+      case Fma       => OpCost(vec, 4, 1)
+      case Divide    => if (width >= 64) OpCost(p(0), 18, 10) else if (width >= 32) OpCost(p(0), 11, 5) else OpCost(p(0), 11, 3)
+      case Shuffle   => OpCost(p(5), if (width >= 32) 3 else 1, 1)
+      case VecAlu    => OpCost(if (width >= 64) p(0, 5) else p(0, 1, 5), 1, 1)
+      case IntMul    => OpCost(vec, 5, 1)
+      case ScalarAlu => OpCost(p(0, 1, 5, 6), 1, 1)
+      case ScalarMul => OpCost(p(1), 3, 1)
+      case Branch    => OpCost(p(0, 6), 1, 1)
+    }
+  })
+
+  /**
+    * The port model of a micro-architecture. Micro-architectures without tables use the Haswell tables.
+    */
+  def apply (uarch: UArch): PortModel = uarch match {
+    case UArch.Nehalem | UArch.Westmere | UArch.CoreI7           => nehalem
+    case UArch.SandyBridge | UArch.CoreI7_AVX                    => sandyBridge(false)
+    case UArch.IvyBridge | UArch.Core_AVX_I                      => sandyBridge(true)
+    case UArch.Broadwell                                         => haswell(true)
+    case UArch.Skylake | UArch.Kabylake | UArch.Skylake_AVX512   => skylake
+    case _                                                       => haswell(false)
+  }
+}
@@ -0,0 +1,398 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.analysis
+
+import ch.ethz.acl.commons.analysis.OpClass._
+import ch.ethz.acl.commons.cir.CIR
+import ch.ethz.acl.commons.compiler.UArch.UArch
+import com.typesafe.config.ConfigFactory
+
+import scala.lms.internal.NestedBlockTraversal
+
+/**
+  * Bottleneck of a loop: the execution ports, a loop-carried dependency chain, or the memory bandwidth
+  */
+object Bottleneck extends Enumeration {
+  type Bottleneck = Value
+  val Ports, Latency, Bandwidth = Value
+}
+
+import Bottleneck.Bottleneck
+
+/**
+  * Estimate of a single iteration of a loop.
+  *
+  * @param id             Id of the symbol of the loop
+  * @param parent         Id of the innermost enclosing loop, if any
+  * @param increment      Constant increment of the loop index, i.e. elements per iteration, if known
+  * @param trips          Iterations per execution of the loop: exact when its bounds differ by a constant, otherwise
+  *                       ThroughputModel.elements over the increment
+  * @param uops           Number of operations of each class per iteration, including the loop overhead
+  * @param bytes          Bytes loaded and stored per iteration
+  * @param portCycles     Cycles per iteration imposed by the most contended set of execution ports
+  * @param criticalPorts  The most contended set of execution ports
+  * @param latencyCycles  Cycles per iteration imposed by the longest loop-carried dependency chain
+  * @param memoryCycles   Cycles per iteration imposed by the memory bandwidth, when streaming from memory
+  */
+case class LoopEstimate (
+  id            : Int,
+  parent        : Option[Int],
+  increment     : Option[Int],
+  trips         : Double,
+  uops          : Map[OpClass, Int],
+  bytes         : Long,
+  portCycles    : Double,
+  criticalPorts : List[Int],
+  latencyCycles : Double,
+  memoryCycles  : Double
+) {
+
+  def cycles: Double = List(portCycles, latencyCycles, memoryCycles).max
+
+  def bottleneck: Bottleneck = {
+    if (cycles == portCycles) Bottleneck.Ports else if (cycles == latencyCycles) Bottleneck.Latency else Bottleneck.Bandwidth
+  }
+
+  def cyclesPerElement: Option[Double] = increment.filter(_ > 0).map(cycles / _)
+
+  def summary: String = {
+    val bound = bottleneck match {
+      case Bottleneck.Ports => "ports p" + criticalPorts.mkString
+      case b => b.toString.toLowerCase
+    }
+    "%.2f cycles/iteration, %s bound, %d bytes".format(cycles, bound, bytes) +
+      cyclesPerElement.map(c => ", %.3f cycles/element".format(c)).getOrElse("")
+  }
+
+  override def toString: String = {
+    "x" + id + ": " + summary + " (ports %.2f, latency %.2f, bandwidth %.2f, %.0f trips)".format(portCycles, latencyCycles, memoryCycles, trips)
+  }
+}
+
+/**
+  * Estimate of all the loops of a staged function
+  *
+  * @param uarch  Name of the micro-architecture of the port model
+  * @param loops  Estimates of the loops, in program order
+  */
+case class KernelEstimate (uarch: String, loops: List[LoopEstimate]) {
+
+  def loop (id: Int): Option[LoopEstimate] = loops.find(_.id == id)
+
+  /**
+    * Loops directly nested in the given loop, or the outermost loops of the function
+    */
+  def nested (parent: Option[Int]): List[LoopEstimate] = loops.filter(_.parent == parent)
+
+  /**
+    * Cycles of a single execution of a loop, including all of its iterations and its nested loops
+    */
+  def total (l: LoopEstimate): Double = l.trips * (l.cycles + nested(Some(l.id)).map(total).sum)
+
+  /**
+    * Number of times the body of a loop is executed by the function
+    */
+  def executions (l: LoopEstimate): Double = l.trips * l.parent.flatMap(loop).map(executions).getOrElse(1.0)
+
+  /**
+    * The main loop of the function, spending the largest number of cycles in its own iterations
+    */
+  def main: Option[LoopEstimate] = if (loops.isEmpty) None else Some(loops.maxBy(l => executions(l) * l.cycles))
+
+  /**
+    * Cycles of the function, summing the nested loops weighted by their trip counts
+    */
+  def cycles: Double = nested(None).map(total).sum
+
+  /**
+    * Cycles of the function per element of ThroughputModel.elements. Used to rank variants.
+    */
+  def cyclesPerElement: Double = cycles / ThroughputModel.elements
+
+  override def toString: String = (("Throughput model of " + uarch) :: loops.map("  " + _.toString)).mkString("\n")
+}
+
+/**
+  * The throughput model is configured in the settings.model section of ch.ethz.acl.settings.conf
+  */
+object ThroughputModel {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  /**
+    * Sustained memory bandwidth of a single core, in bytes per cycle
+    */
+  var bandwidth: Double = config.getDouble("settings.model.bandwidth")
+
+  /**
+    * Nominal number of elements processed by a loop whose bounds are only known at runtime
+    */
+  var elements: Long = config.getLong("settings.model.elements")
+}
+
+/**
+  * Static throughput model of the loops of a staged function, in the spirit of IACA and llvm-mca, but over the staged
+  * IR instead of the generated assembly. Each loop is estimated separately, and its cycles per iteration are the
+  * maximum of three bounds:
+  *
+  * - ports: the operations of an iteration are mapped to execution ports using the PortModel of the
+  *   micro-architecture, and the bound is the largest load of any set of ports, divided by the size of the set;
+  * - latency: the longest chain of dependent operations from a read of a variable to its assignment, i.e. the
+  *   loop-carried dependencies of accumulators. Dependencies through memory are ignored;
+  * - bandwidth: the bytes loaded and stored per iteration, over ThroughputModel.bandwidth.
+  *
+  * Intrinsics are classified by name (e.g. MM256_FMADD_PS is a 32-byte Fma), and scalar arithmetic by operator and
+  * type. Operations of nested loops are attributed to the nested loop only, while both branches of a conditional
+  * are counted in full. The cycles of the whole function sum the loops weighted by their trip counts, such that
+  * variants tiling or unrolling their loops differently are ranked by all of their loops, not by a single one.
+  */
+trait ThroughputModel extends NestedBlockTraversal {
+
+  val IR: CIR
+  import IR._
+
+  private def strip (d: Def[Any]): Def[Any] = d match {
+    case Reflect(x, _, _) => x
+    case x => x
+  }
+
+  private def bytesOf (e: Exp[Any]): Int = e.tp.erasure match {
+    case c if c == classOf[Double] || c == classOf[Long] => 8
+    case c if c == classOf[Float] || c == classOf[Int] => 4
+    case c if c == classOf[Short] || c == classOf[Char] => 2
+    case c if c == classOf[Byte] || c == classOf[Boolean] => 1
+    case _ => 8
+  }
+
+  private def isFloating (e: Exp[Any]): Boolean = e.tp.erasure == classOf[Float] || e.tp.erasure == classOf[Double]
+
+  /**
+    * Classifies an intrinsic by its name, such as MM256_FMADD_PS, as a list of (class, width in bytes)
+    */
+  private def intrinsic (name: String): List[(OpClass, Int)] = {
+    val width = if (name.startsWith("MM512_")) 64 else if (name.startsWith("MM256_")) 32 else 16
+    val op = name.substring(name.indexOf('_') + 1)
+    val fp = List("_PS", "_PD", "_SS", "_SD").exists(op.endsWith)
+    def is (prefixes: String*) = prefixes.exists(op.startsWith)
+    val ops = op match {
+      case _ if is("CAST", "SETZERO", "UNDEFINED")                       => Nil
+      case _ if is("BROADCAST_SS")                                       => return List((Load, 4))
+      case _ if is("BROADCAST_SD")                                       => return List((Load, 8))
+      case _ if op.contains("GATHER")                                    => return List.fill(width / 4)((Load, 4))
+      case _ if is("LOAD", "LDDQU", "STREAM_LOAD", "MASKLOAD")           => List(Load)
+      case _ if is("STORE", "STREAM", "MASKSTORE")                       => List(Store)
+      case _ if is("FMADD", "FMSUB", "FNMADD", "FNMSUB")                 => List(Fma)
+      case _ if is("HADD", "HSUB")                                       => List(Shuffle, Shuffle, if (fp) FpAdd else VecAlu)
+      case _ if is("DIV", "SQRT")                                        => List(Divide)
+      case _ if is("MULLO_EPI32")                                        => List(IntMul, IntMul)
+      case _ if is("MUL", "MADD")                                        => List(if (fp) FpMul else IntMul)
+      case _ if is("RCP", "RSQRT")                                       => List(FpMul)
+      case _ if is("CVTEP", "CVTEPU")                                    => List(Shuffle)
+      case _ if is("CVTSS", "CVTSD", "CVTSI", "MOVEMASK")                => List(VecAlu)
+      case _ if is("CVT")                                                => List(FpAdd)
+      case _ if fp && is("ADD", "SUB", "MIN", "MAX", "CMP", "ROUND")     => List(FpAdd)
+      case _ if is("SHUFFLE", "PERMUTE", "UNPACK", "EXTRACT", "INSERT",
+                   "PACK", "ALIGNR", "BROADCAST", "SET", "BSLLI",
+                   "BSRLI", "SLLI_SI", "SRLI_SI", "MOVEHDUP", "MOVELDUP")  => List(Shuffle)
+      case _                                                             => List(VecAlu)
+    }
+    ops.map(c => (c, width))
+  }
+
+  /**
+    * Classifies a staged operation as a list of (class, width in bytes). Bookkeeping nodes, such as variables,
+    * constants and casts, cost nothing.
+    */
+  def classify (sym: Sym[Any], rhs: Def[Any]): List[(OpClass, Int)] = strip(rhs) match {
+    case ArrayApply(_, _)                         => List((Load, bytesOf(sym)))
+    case ArrayUpdate(_, _, x)                     => List((Store, bytesOf(x)))
+    case ReadVar(_) | Assign(_, _) | Reify(_, _, _) => Nil
+    case VarPlusEquals(_, x)                      => List((if (isFloating(x)) FpAdd else ScalarAlu, bytesOf(x)))
+    case d => d.getClass.getSimpleName match {
+      case name if name.startsWith("MM")          => intrinsic(name)
+      case name if name.startsWith("IfThenElse")  => List((Branch, 8))
+      case name if name.endsWith("Plus") || name.endsWith("Minus") || name.startsWith("MathMin") ||
+                   name.startsWith("MathMax") || name.startsWith("MathAbs") =>
+        List((if (isFloating(sym)) FpAdd else ScalarAlu, bytesOf(sym)))
+      case name if name.endsWith("Times")         => List((if (isFloating(sym)) FpMul else ScalarMul, bytesOf(sym)))
+      case name if name.endsWith("Divide") || name.endsWith("Mod") || name.startsWith("MathSqrt") =>
+        List((Divide, bytesOf(sym)))
+      case name if name.startsWith("Ordering") || name.contains("Equal") || name.startsWith("Boolean") ||
+                   name.startsWith("IntShift") || name.startsWith("IntBitwise") =>
+        List((ScalarAlu, bytesOf(sym)))
+      case _ => Nil
+    }
+  }
+
+  /**
+    * Describes the cost of a staged operation on a micro-architecture, e.g. "Fma 4c p01", or "" if it is free
+    */
+  def describe (sym: Sym[Any], rhs: Def[Any], model: PortModel): String = classify(sym, rhs).map({ case (op, width) =>
+    val cost = model.cost(op, width)
+    op + " " + cost.latency.toInt + "c p" + cost.portList.mkString
+  }).mkString(", ")
+
+  private def levelOf (block: Block[Any]): List[Stm] = {
+    var stms = List.empty[Stm]
+    focusBlock(block) {
+      focusExactScope(block) { levelScope =>
+        stms = levelScope
+      }
+    }
+    stms
+  }
+
+  private def isLoop (d: Def[Any]): Boolean = strip(d) match {
+    case ForLoop(_, _, _, _, _) | While(_, _) => true
+    case _ => false
+  }
+
+  //
+  // Statements executed in each iteration of a loop body: nested loops are opaque, while the statements of other
+  // nested blocks, such as conditionals, are included
+  //
+  private def iteration (block: Block[Any]): List[Stm] = levelOf(block).flatMap({
+    case stm@TP(_, d) if isLoop(d) => List(stm)
+    case stm@TP(_, d) => stm :: blocks(strip(d)).flatMap(b => iteration(b))
+    case _ => Nil
+  })
+
+  private def bitCount (mask: Int): Int = Integer.bitCount(mask)
+
+  //
+  // Constant difference of the bounds of a loop, also when the upper bound is start + c or min(start + c, x),
+  // as in tiled loops
+  //
+  private def extent (start: Exp[Int], end: Exp[Int]): Option[Int] = (start, end) match {
+    case (Const(a: Int), Const(b: Int)) => Some(b - a)
+    case (_, Def(IntPlus(x, Const(c: Int)))) if x == start => Some(c)
+    case (_, Def(MathMin(x, y))) => (extent(start, x.asInstanceOf[Exp[Int]]) ++ extent(start, y.asInstanceOf[Exp[Int]])).reduceOption(_ min _)
+    case _ => None
+  }
+
+  private def trips (start: Exp[Int], end: Exp[Int], increment: Option[Int]): Double = {
+    val inc = increment.filter(_ > 0).getOrElse(1)
+    extent(start, end) match {
+      case Some(e) => Math.max(0, (e + inc - 1) / inc).toDouble
+      case None => ThroughputModel.elements.toDouble / inc
+    }
+  }
+
+  private def estimateLoop (id: Int, parent: Option[Int], increment: Option[Int], trips: Double, stms: List[Stm], model: PortModel): LoopEstimate = {
+    val ops = stms.flatMap({
+      case TP(s, d) if !isLoop(d) => classify(s, d)
+      case _ => Nil
+    }) ++ List((ScalarAlu, 4), (Branch, 4))
+
+    //
+    // Port pressure: for each set of ports, the occupancy of all operations restricted to the set
+    //
+    val pressure = ops.map({ case (op, width) => model.cost(op, width) }).groupBy(_.ports).mapValues(_.map(_.occupancy).sum)
+    val (portCycles, critical) = (1 until (1 << model.ports)).map(set => {
+      val load = pressure.collect({ case (ports, occupancy) if (ports & ~set) == 0 => occupancy }).sum
+      (load / bitCount(set), set)
+    }).maxBy(_._1)
+
+    //
+    // Loop-carried dependencies: for each statement, the longest latency from a read of each variable assigned in
+    // the loop, and for each such variable, the longest latency until its assignment
+    //
+    val assigned = stms.flatMap({
+      case TP(_, d) => strip(d) match {
+        case Assign(Variable(v), _) => List(v: Exp[Any])
+        case VarPlusEquals(Variable(v), _) => List(v: Exp[Any])
+        case _ => Nil
+      }
+      case _ => Nil
+    }).toSet
+    var dist = Map.empty[Exp[Any], Map[Exp[Any], Double]]
+    var chains = Map.empty[Exp[Any], Double]
+    def chain (v: Exp[Any], latency: Double): Unit = chains += v -> Math.max(latency, chains.getOrElse(v, 0.0))
+    stms.foreach({
+      case TP(s, d) if !isLoop(d) => strip(d) match {
+        case ReadVar(Variable(v)) if assigned.contains(v) => dist += s -> Map((v: Exp[Any]) -> 0.0)
+        case Assign(Variable(v), x) => dist.get(x).flatMap(_.get(v)).foreach(l => chain(v, l))
+        case VarPlusEquals(Variable(v), x) =>
+          chain(v, classify(s, d).map({ case (op, width) => model.cost(op, width).latency }).sum)
+        case x =>
+          val inputs = syms(x).flatMap(i => dist.getOrElse(i, Map.empty[Exp[Any], Double]).toList)
+          if (inputs.nonEmpty) {
+            val latency = classify(s, d).map({ case (op, width) => model.cost(op, width).latency }).sum
+            dist += s -> inputs.groupBy(_._1).map({ case (v, ls) => v -> (ls.map(_._2).max + latency) })
+          }
+      }
+      case _ =>
+    })
+    val latencyCycles = if (chains.isEmpty) 0.0 else chains.values.max
+
+    val bytes = ops.collect({ case (op, width) if op == Load || op == Store => width.toLong }).sum
+    LoopEstimate(
+      id            = id,
+      parent        = parent,
+      increment     = increment,
+      trips         = trips,
+      uops          = ops.groupBy(_._1).mapValues(_.size).map(identity),
+      bytes         = bytes,
+      portCycles    = portCycles,
+      criticalPorts = (0 until model.ports).filter(p => (critical & (1 << p)) != 0).toList,
+      latencyCycles = latencyCycles,
+      memoryCycles  = bytes / ThroughputModel.bandwidth
+    )
+  }
+
+  /**
+    * Estimates each loop of a staged function on the given micro-architecture
+    *
+    * @param block  The staged function
+    * @param uarch  Target micro-architecture, selecting the PortModel
+    * @return       The estimates of the loops
+    */
+  def analyze[A] (block: Block[A], uarch: UArch): KernelEstimate = {
+    val model = PortModel(uarch)
+    var loops = List.empty[LoopEstimate]
+    def visit (b: Block[Any], parent: Option[Int]): Unit = levelOf(b).foreach({
+      case TP(s, d) => strip(d) match {
+        case ForLoop(start, end, _, inc, body) =>
+          val increment = inc match {
+            case Const(c: Int) => Some(c)
+            case _ => None
+          }
+          loops ::= estimateLoop(s.id, parent, increment, trips(start.asInstanceOf[Exp[Int]], end.asInstanceOf[Exp[Int]], increment), iteration(body), model)
+          visit(body, Some(s.id))
+        case While(c, body) =>
+          loops ::= estimateLoop(s.id, parent, None, ThroughputModel.elements.toDouble, iteration(c) ++ iteration(body), model)
+          visit(c, Some(s.id))
+          visit(body, Some(s.id))
+        case x => blocks(x).foreach(b => visit(b, parent))
+      }
+      case _ =>
+    })
+    visit(block, None)
+    KernelEstimate(model.name, loops.reverse)
+  }
+}
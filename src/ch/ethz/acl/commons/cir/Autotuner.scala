@@ -0,0 +1,233 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir
+
+import java.io.{File, FileInputStream, FileOutputStream}
+import java.util.Properties
+
+import ch.ethz.acl.commons.compiler.CompilerFlags
+import ch.ethz.acl.commons.compiler.CompilerFlags.CompilerFlags
+import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.commons.util.Debugging
+import com.typesafe.config.ConfigFactory
+import org.bridj.{DynamicFunction, Pointer}
+
+/**
+  * A single configuration of a tunable kernel: a value for each of the kernel parameters (block sizes, unroll
+  * factors, number of accumulators, ...) as well as additional compiler flags.
+  */
+case class TuningVariant (params: Map[String, Int], flags: List[CompilerFlags] = Nil) {
+
+  def apply (name: String): Int = params(name)
+
+  def serialize (): String = {
+    params.toList.sortBy(_._1).map({ case (k, v) => k + "=" + v }).mkString(",") + ";" + flags.mkString(",")
+  }
+}
+
+object TuningVariant {
+  def deserialize (str: String): TuningVariant = {
+    val (p, f) = str.split(";", -1) match {
+      case Array(p, f) => (p, f)
+      case Array(p)    => (p, "")
+    }
+    val params = p.split(",").toList.filter(_.contains("=")).map(kv => {
+      val Array(k, v) = kv.split("=")
+      k.trim -> v.trim.toInt
+    }).toMap
+    val flags = f.split(",").toList.filter(_.trim.nonEmpty).map(s => CompilerFlags.withName(s.trim))
+    TuningVariant(params, flags)
+  }
+}
+
+/**
+  * The search space of a tunable kernel. The first value of each parameter, together with the first set of flags,
+  * defines the default variant, used whenever tuning is disabled. The default flags preserve the IEEE semantics of
+  * the kernel, and kernels tolerating reassociated and non-IEEE arithmetic opt into -Ofast with withFastMath.
+  *
+  * @param params Candidate values of each parameter
+  * @param flags  Candidate sets of additional compiler flags
+  */
+case class TuningSpace (params: List[(String, List[Int])], flags: List[List[CompilerFlags]] = TuningSpace.defaultFlags) {
+
+  def default: TuningVariant = TuningVariant(params.map({ case (k, vs) => k -> vs.head }).toMap, flags.head)
+
+  def variants: List[TuningVariant] = {
+    val combinations = params.foldLeft(List(Map.empty[String, Int]))({ case (acc, (k, vs)) =>
+      for (m <- acc; v <- vs) yield m + (k -> v)
+    })
+    for (f <- flags; m <- combinations) yield TuningVariant(m, f)
+  }
+
+  /**
+    * The same space, extended with the variants compiled with -Ofast
+    */
+  def withFastMath: TuningSpace = copy(flags = flags :+ List(CompilerFlags.Ofast))
+
+  def contains (variant: TuningVariant): Boolean = {
+    flags.contains(variant.flags) && params.map(_._1).toSet == variant.params.keySet &&
+      params.forall({ case (k, vs) => vs.contains(variant(k)) })
+  }
+}
+
+object TuningSpace {
+  val defaultFlags = List(Nil, List(CompilerFlags.O2))
+}
+
+/**
+  * Autotuner selects the fastest variant of a kernel on the local machine. Each variant is staged, compiled through
+  * Make as a BridJ function, and timed on representative inputs. The selected variants are recorded per
+  * micro-architecture, such that tuning is performed only once on each machine.
+  *
+  * The autotuner is configured in the settings.autotune section of ch.ethz.acl.settings.conf. When tuning is
+  * disabled, recorded variants are still used, and kernels without a record use their default variant. Variants are
+  * never measured while LocalSystem emulates another micro-architecture, as they may not run on the local machine.
+  *
+  * With the "model" method, variants are ranked by the ThroughputModel instead of being compiled and timed, which is
+  * also possible for an emulated micro-architecture. Its picks are recorded in a separate file, such that they never
+  * stand in for measured variants, while measured variants are used by both methods.
+  */
+object Autotuner extends Debugging {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  var enabled     : Boolean = config.getBoolean("settings.autotune.enabled")
+  var warmup      : Int     = config.getInt("settings.autotune.warmup")
+  var repetitions : Int     = config.getInt("settings.autotune.repetitions")
+  var method      : String  = config.getString("settings.autotune.method")
+  var directory   : File    = config.getString("settings.autotune.directory").trim match {
+    case "" => new File(System.getProperty("user.home") + File.separator + ".ngen" + File.separator + "autotune")
+    case d  => new File(d)
+  }
+
+  //
+  // Records of a tuning method, e.g. Haswell.properties for measured variants and Haswell.model.properties
+  // for the variants ranked by the model
+  //
+  private def recordFile (method: String): File = {
+    new File(directory, LocalSystem.getUArch().toString + (if (method == "model") ".model" else "") + ".properties")
+  }
+
+  private def loadRecords (method: String): Properties = {
+    val records = new Properties()
+    val file = recordFile(method)
+    if (file.isFile) {
+      val in = new FileInputStream(file)
+      try records.load(in) finally in.close()
+    }
+    records
+  }
+
+  /**
+    * Returns the recorded variant of a kernel, if it exists and belongs to the search space. Measured variants are
+    * preferred, and the variants ranked by the model are only used with the "model" method.
+    */
+  def lookup (kernel: String, space: TuningSpace): Option[TuningVariant] = synchronized {
+    val methods = if (method == "model") List("measure", "model") else List("measure")
+    methods.view.flatMap(m => Option(loadRecords(m).getProperty(kernel)) flatMap (str => {
+      try {
+        Some(TuningVariant.deserialize(str)).filter(space.contains)
+      } catch {
+        case e: Exception => printDebug0("Ignoring malformed tuning record of " + kernel + ": " + str); None
+      }
+    })).headOption
+  }
+
+  /**
+    * Records the selected variant of a kernel for the local micro-architecture, under the current method
+    */
+  def record (kernel: String, variant: TuningVariant): Unit = synchronized {
+    val records = loadRecords(method)
+    records.setProperty(kernel, variant.serialize())
+    directory.mkdirs()
+    val out = new FileOutputStream(recordFile(method))
+    try records.store(out, "NGen " + method + " autotuning records for " + LocalSystem.getUArch()) finally out.close()
+  }
+
+  /**
+    * Selects the variant of a kernel. Recorded variants are used directly. Otherwise, if tuning is enabled, each
+    * variant in the search space is measured and the fastest one is recorded. Variants failing to compile or run
+    * are skipped.
+    *
+    * @param kernel   Unique name of the kernel
+    * @param space    Search space of the kernel
+    * @param measure  Returns the runtime of a variant in nanoseconds, or its estimated cost with the "model" method
+    * @return         The selected variant
+    */
+  def select (kernel: String, space: TuningSpace)(measure: TuningVariant => Double): TuningVariant = lookup(kernel, space) match {
+    case Some(variant) =>
+      printDebug2("Using recorded variant of " + kernel + ": " + variant.serialize())
+      variant
+    case None if enabled && (method == "model" || !LocalSystem.isEmulated) =>
+      val timings = space.variants.map(variant => {
+        val time = try measure(variant) catch {
+          case e: Exception =>
+            printDebug0("Variant " + variant.serialize() + " of " + kernel + " failed: " + e.getMessage)
+            Double.MaxValue
+        }
+        printDebug2(kernel + " " + variant.serialize() + " : " + time + (if (method == "model") " cycles/element" else " ns"))
+        (variant, time)
+      })
+      val (best, time) = timings.minBy(_._2)
+      if (time == Double.MaxValue) space.default else {
+        printDebug1("Selected variant of " + kernel + ": " + best.serialize())
+        record(kernel, best)
+        best
+      }
+    case None => space.default
+  }
+
+  /**
+    * Converts JVM arguments into BridJ arguments. Arrays are copied into native memory.
+    */
+  def toBridJ (arg: Any): AnyRef = arg match {
+    case a: Array[Double] => Pointer.pointerToDoubles(a: _*)
+    case a: Array[Float]  => Pointer.pointerToFloats(a: _*)
+    case a: Array[Long]   => Pointer.pointerToLongs(a: _*)
+    case a: Array[Int]    => Pointer.pointerToInts(a: _*)
+    case a: Array[Short]  => Pointer.pointerToShorts(a: _*)
+    case a: Array[Byte]   => Pointer.pointerToBytes(a: _*)
+    case x => x.asInstanceOf[AnyRef]
+  }
+
+  /**
+    * Measures the median runtime of a BridJ function in nanoseconds
+    *
+    * @param func Function to be measured
+    * @param args Arguments of the function, already converted to BridJ arguments
+    */
+  def time (func: DynamicFunction[_], args: Seq[AnyRef]): Double = {
+    (0 until warmup).foreach(_ => func.apply(args: _*))
+    val timings = (0 until repetitions).map(_ => {
+      val t0 = System.nanoTime()
+      func.apply(args: _*)
+      (System.nanoTime() - t0).toDouble
+    }).sorted
+    timings(timings.size / 2)
+  }
+}
@@ -27,15 +27,22 @@
 
 package ch.ethz.acl.commons.cir
 
-import ch.ethz.acl.commons.cir.codegen.CCodegen
+import ch.ethz.acl.commons.analysis.{KernelEstimate, ThroughputModel}
+import ch.ethz.acl.commons.cir.codegen.{CCodegen, JNIBinding, MultiVersion}
+import ch.ethz.acl.commons.cir.codegen.JNIBinding.JNIBinding
 import ch.ethz.acl.commons.cir.extensions._
 import ch.ethz.acl.commons.extensions._
+import ch.ethz.acl.commons.transformers.LoopFusionTransformer
 import ch.ethz.acl.commons.types.{TheTyp, TypeIR}
+import ch.ethz.acl.commons.system.LocalSystem
 import ch.ethz.acl.commons.util.Debugging
-import ch.ethz.acl.commons.compiler.{CompileVM, Make}
+import ch.ethz.acl.commons.compiler.{CompileVM, CompilerFlags, KernelBundles, Make}
+import ch.ethz.acl.commons.compiler.ISA.ISA
+import ch.ethz.acl.commons.compiler.UArch.UArch
 import ch.ethz.acl.commons.util.{DSLUtils, Utilities}
 import scala.lms.common._
 import java.io._
+import java.util.concurrent.locks.ReentrantLock
 
 import org.bridj.DynamicFunction
 
@@ -50,6 +57,7 @@ trait CIR extends BaseFatExp
   with ExceptionOpsExp
   with ArrayOpsExpOptExtra
   with ForLoopExpOpt
+  with ParallelLoopExp
 
   with CNumericExpOpt
   with NumericMathOpsExp
@@ -64,6 +72,7 @@ trait CIR extends BaseFatExp
   with WhileExp with WhileMirror
   with VariablesExpOpt
   with HeapArrayExpOpt
+  with AlignmentExp
 
   with DSLUtils
   with Debugging
@@ -82,6 +91,47 @@ trait CIR extends BaseFatExp
     implicit def numericToNumericRep[T:Numeric:Typ](x: T): Rep[T] = unit(x)
   }
 
+  /* ================================================================================================================ */
+  /* Optimizations                                                                                                    */
+  /* ================================================================================================================ */
+
+  private lazy val loopFusion = new LoopFusionTransformer { val IR: self.type = self }
+
+  /**
+    * Transformations applied to each staged function before code generation, see LoopFusionTransformer
+    *
+    * @param block  The staged function
+    * @param isas   ISAs available to the generated code
+    */
+  def optimize[B](block: Block[B], isas: List[ISA] = LocalSystem.getISAs()): Block[B] = {
+    if (LoopFusionTransformer.enabled) loopFusion.fuseLoops(block) else block
+  }
+
+  /**
+    * Global settings that change the generated code, part of the fingerprint of the bundled kernels (see KernelBundles).
+    * These are the configured values, which do not depend on the machine: a thread count or a streaming threshold of 0
+    * is resolved by the generated code at runtime.
+    */
+  protected def codegenSettings: List[String] = List(
+    "fusion="          + LoopFusionTransformer.enabled,
+    "instrumentation=" + KernelMetrics.enabled,
+    "threads="         + Parallelism.threads,
+    "grain="           + Parallelism.grain,
+    "stream="          + Streaming.threshold
+  )
+
+  lazy val throughputModel: ThroughputModel { val IR: self.type } = new ThroughputModel { val IR: self.type = self }
+
+  /**
+    * Estimates the cycles of each loop of a staged function without compiling it, see ThroughputModel
+    *
+    * @param block  The staged function
+    * @param uarch  Target micro-architecture
+    */
+  def estimate[B](block: Block[B], uarch: UArch = LocalSystem.getUArch()): KernelEstimate = {
+    throughputModel.analyze(optimize(block), uarch)
+  }
+
   /* ================================================================================================================ */
   /* BridJ Compilation                                                                                                  */
   /* ================================================================================================================ */
@@ -111,11 +161,13 @@ trait CIR extends BaseFatExp
   }
 
   def compileBridJ[B](inputs: List[Sym[Any]], block: Block[B], makefile: Make): (DynamicFunction[B], String) = {
-    val cApp = codegen.generateApplication(inputs, block, "staged")
-    val codeFile = Utilities.dumpCode(cApp.generateSingleFile(), "staged")
+    val (codeFile, flags) = staging {
+      val cApp = codegen.generateApplication(inputs, optimize(block), "staged")
+      (Utilities.dumpCode(cApp.generateSingleFile(), "staged"), cApp.getCompilerFlags())
+    }
     val mA = TheTyp.toManifest(self)(block.tp)
     val mT = inputs.map(s => TheTyp.toManifest(self)(s.tp))
-    CompileVM.compileFilesBridJ[B](List(codeFile), makefile)(mA, mT)
+    CompileVM.compileFilesBridJ[B](List(codeFile), makefile.withFlags(flags))(mA, mT)
   }
 
 
@@ -123,7 +175,48 @@ trait CIR extends BaseFatExp
   /* JNI Compilation                                                                                                  */
   /* ================================================================================================================ */
 
-  var compiledJNIFunctions = Set.empty[String]
+  /**
+    * Stages body under the lock of this IR. LMS keeps the graph being staged in the IR, such that kernel classes
+    * sharing an IR are staged one at a time, while kernel classes having their own IR are staged concurrently.
+    */
+  def staging[T] (body: => T): T = {
+    stagingLock.lock()
+    try body finally stagingLock.unlock()
+  }
+
+  private val stagingLock = new ReentrantLock()
+
+  /**
+    * Evaluates body without the lock of this IR, taking it back afterwards, for work that stages nothing, such as
+    * compiling and timing a kernel. The lock is kept while the calling thread holds claims of a compilation unit, as
+    * another thread may await them while holding the lock (see stageOnce).
+    */
+  protected def unstaged[T] (body: => T): T = {
+    val holds = if (pendingUnit.get.exists(_.claims.nonEmpty)) 0 else stagingLock.getHoldCount
+    (0 until holds).foreach(_ => stagingLock.unlock())
+    try body finally (0 until holds).foreach(_ => stagingLock.lock())
+  }
+
+  /**
+    * Stages and compiles the JNI function nativeName, unless it is already compiled, or being compiled by another
+    * thread (see KernelRegistry). Within a compilation unit, the function is marked as loaded only once the library
+    * of the unit is loaded. The lock of this IR is taken first, and a function compiled by another thread may be
+    * awaited while holding it. This never deadlocks, as that thread either holds the lock itself, or is compiling
+    * and loading its unit, which does not take the lock.
+    */
+  protected def stageOnce (nativeName: String)(body: => Unit): Unit = staging {
+    pendingUnit.get match {
+      case Some(unit) => KernelRegistry.claim(nativeName) foreach { claim =>
+        try body catch {
+          case e: Throwable =>
+            claim.complete(Some(e))
+            throw e
+        }
+        unit.claims ::= claim
+      }
+      case None => KernelRegistry.once(nativeName)(body)
+    }
+  }
 
   /**
     * Compilation of a function with 1 argument, and a default JNI Makefile
@@ -134,12 +227,12 @@ trait CIR extends BaseFatExp
     * @tparam R       Return type
     */
   def compile[A:Typ, R:Typ](f: Exp[A] => Exp[R], inst: AnyRef, funName: String): Unit = {
-    val nativeName = inst.getClass.getName.replace('.', '_') + "_" + funName
-    if (!compiledJNIFunctions.contains(nativeName)) {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
       val arg0 = fresh[A]
       val block = reifyEffects[R](f(arg0))
-      compile(List(arg0), block, nativeName, CompileVM.getDefaultJNIMakefile())
-      compiledJNIFunctions += nativeName
+      val inputs = List(arg0)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, inputs))
     }
   }
 
@@ -153,13 +246,13 @@ trait CIR extends BaseFatExp
     * @tparam R       Return type
     */
   def compile[A:Typ, B:Typ, R:Typ](f: (Exp[A], Exp[B]) => Exp[R], inst: AnyRef, funName: String): Unit = {
-    val nativeName = inst.getClass.getName.replace('.', '_') + "_" + funName
-    if (!compiledJNIFunctions.contains(nativeName)) {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
       val arg0 = fresh[A]
       val arg1 = fresh[B]
       val block = reifyEffects[R](f(arg0, arg1))
-      compile(List(arg0, arg1), block, nativeName, CompileVM.getDefaultJNIMakefile())
-      compiledJNIFunctions += nativeName
+      val inputs = List(arg0, arg1)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, inputs))
     }
   }
 
@@ -174,14 +267,14 @@ trait CIR extends BaseFatExp
     * @tparam R       Return type
     */
   def compile[A:Typ, B:Typ, C:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String): Unit = {
-    val nativeName = inst.getClass.getName.replace('.', '_') + "_" + funName
-    if (!compiledJNIFunctions.contains(nativeName)) {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
       val arg0 = fresh[A]
       val arg1 = fresh[B]
       val arg2 = fresh[C]
       val block = reifyEffects[R](f(arg0, arg1, arg2))
-      compile(List(arg0, arg1, arg2), block, nativeName, CompileVM.getDefaultJNIMakefile())
-      compiledJNIFunctions += nativeName
+      val inputs = List(arg0, arg1, arg2)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, inputs))
     }
   }
 
@@ -197,15 +290,15 @@ trait CIR extends BaseFatExp
     * @tparam R       Return type
     */
   def compile[A:Typ, B:Typ, C:Typ, D:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String): Unit = {
-    val nativeName = inst.getClass.getName.replace('.', '_') + "_" + funName
-    if (!compiledJNIFunctions.contains(nativeName)) {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
       val arg0 = fresh[A]
       val arg1 = fresh[B]
       val arg2 = fresh[C]
       val arg3 = fresh[D]
       val block = reifyEffects[R](f(arg0, arg1, arg2, arg3))
-      compile(List(arg0, arg1, arg2, arg3), block, nativeName, CompileVM.getDefaultJNIMakefile())
-      compiledJNIFunctions += nativeName
+      val inputs = List(arg0, arg1, arg2, arg3)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, inputs))
     }
   }
 
@@ -222,23 +315,818 @@ trait CIR extends BaseFatExp
     * @tparam R       Return type
     */
   def compile[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E]) => Exp[R], inst: AnyRef, funName: String): Unit = {
-    val nativeName = inst.getClass.getName.replace('.', '_') + "_" + funName
-    if (!compiledJNIFunctions.contains(nativeName)) {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
       val arg0 = fresh[A]
       val arg1 = fresh[B]
       val arg2 = fresh[C]
       val arg3 = fresh[D]
       val arg4 = fresh[E]
       val block = reifyEffects[R](f(arg0, arg1, arg2, arg3, arg4))
-      compile(List(arg0, arg1, arg2, arg3, arg4), block, nativeName, CompileVM.getDefaultJNIMakefile())
-      compiledJNIFunctions += nativeName
+      val inputs = List(arg0, arg1, arg2, arg3, arg4)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, inputs))
+    }
+  }
+
+  /**
+    * Compilation of a function with 6 arguments, and a default JNI Makefile
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the function
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam D       Input type of arg3
+    * @tparam E       Input type of arg4
+    * @tparam F       Input type of arg5
+    * @tparam R       Return type
+    */
+  def compile[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, F:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E], Exp[F]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val arg2 = fresh[C]
+      val arg3 = fresh[D]
+      val arg4 = fresh[E]
+      val arg5 = fresh[F]
+      val block = reifyEffects[R](f(arg0, arg1, arg2, arg3, arg4, arg5))
+      val inputs = List(arg0, arg1, arg2, arg3, arg4, arg5)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, inputs))
     }
   }
 
+  /**
+    * Name of the JNI function implementing the native method funName, declared in the class of inst
+    */
+  protected def jniName (inst: AnyRef, funName: String): String = inst.getClass.getName.replace('.', '_') + "_" + funName
+
+  /**
+    * Infers how each of the inputs is bound to the arguments of the native method, see JNIBinding
+    *
+    * @param inst     Instance declaring the native method
+    * @param funName  Name of the native method
+    * @param inputs   Inputs of the staged function
+    * @return         Bindings of each input
+    */
+  protected def jniBindings (inst: AnyRef, funName: String, inputs: List[Sym[Any]]): List[JNIBinding] = {
+    JNIBinding.infer(inst.getClass, funName, inputs.map(_.tp.erasure.isArray))
+  }
+
   def compile[B](inputs: List[Sym[Any]], block: Block[B], funName: String, makefile: Make): Unit = {
-    val cApp = codegen.generateJNIApplication(inputs, block, funName)
-    val codeFile = Utilities.dumpCode(cApp.generateSingleFile(), funName)
-    CompileVM.compileFilesJNI(List(codeFile), funName, makefile)
+    compile(inputs, block, funName, makefile, codegen.defaultJNIBindings(inputs))
+  }
+
+  def compile[B](inputs: List[Sym[Any]], block: Block[B], funName: String, makefile: Make, bindings: List[JNIBinding]): Unit = staging {
+    val cApp = codegen.generateJNIApplication(inputs, optimize(block), funName, bindings)
+    compileCodeJNI(cApp.generateSingleFile(), funName, makefile.withFlags(cApp.getCompilerFlags()))
+  }
+
+  /* ================================================================================================================ */
+  /* Batched JNI Compilation                                                                                          */
+  /* ================================================================================================================ */
+
+  /**
+    * Batched compilation of a function with 1 argument, and a default JNI Makefile. The native method must follow
+    * the signature described in JNICodegen.generateJNIBatchApplication.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the batched native function
+    * @tparam A       Input type of arg0
+    * @tparam R       Return type
+    */
+  def compileBatch[A:Typ, R:Typ](f: Exp[A] => Exp[R], inst: AnyRef, funName: String): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val arg0 = fresh[A]
+      val block = Parallelism.sequential(reifyEffects[R](f(arg0)))
+      val inputs = List(arg0)
+      val bindings = JNIBinding.inferBatch(inst.getClass, funName, inputs.map(_.tp.erasure.isArray))
+      compileBatch(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), bindings)
+    }
+  }
+
+  /**
+    * Batched compilation of a function with 2 arguments, and a default JNI Makefile. The native method must follow
+    * the signature described in JNICodegen.generateJNIBatchApplication.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the batched native function
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam R       Return type
+    */
+  def compileBatch[A:Typ, B:Typ, R:Typ](f: (Exp[A], Exp[B]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val block = Parallelism.sequential(reifyEffects[R](f(arg0, arg1)))
+      val inputs = List(arg0, arg1)
+      val bindings = JNIBinding.inferBatch(inst.getClass, funName, inputs.map(_.tp.erasure.isArray))
+      compileBatch(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), bindings)
+    }
+  }
+
+  /**
+    * Batched compilation of a function with 3 arguments, and a default JNI Makefile. The native method must follow
+    * the signature described in JNICodegen.generateJNIBatchApplication.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the batched native function
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam R       Return type
+    */
+  def compileBatch[A:Typ, B:Typ, C:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val arg2 = fresh[C]
+      val block = Parallelism.sequential(reifyEffects[R](f(arg0, arg1, arg2)))
+      val inputs = List(arg0, arg1, arg2)
+      val bindings = JNIBinding.inferBatch(inst.getClass, funName, inputs.map(_.tp.erasure.isArray))
+      compileBatch(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), bindings)
+    }
+  }
+
+  /**
+    * Batched compilation of a function with 4 arguments, and a default JNI Makefile. The native method must follow
+    * the signature described in JNICodegen.generateJNIBatchApplication.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the batched native function
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam D       Input type of arg3
+    * @tparam R       Return type
+    */
+  def compileBatch[A:Typ, B:Typ, C:Typ, D:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val arg2 = fresh[C]
+      val arg3 = fresh[D]
+      val block = Parallelism.sequential(reifyEffects[R](f(arg0, arg1, arg2, arg3)))
+      val inputs = List(arg0, arg1, arg2, arg3)
+      val bindings = JNIBinding.inferBatch(inst.getClass, funName, inputs.map(_.tp.erasure.isArray))
+      compileBatch(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), bindings)
+    }
+  }
+
+  /**
+    * Batched compilation of a function with 5 arguments, and a default JNI Makefile. The native method must follow
+    * the signature described in JNICodegen.generateJNIBatchApplication.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the batched native function
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam D       Input type of arg3
+    * @tparam E       Input type of arg4
+    * @tparam R       Return type
+    */
+  def compileBatch[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val arg2 = fresh[C]
+      val arg3 = fresh[D]
+      val arg4 = fresh[E]
+      val block = Parallelism.sequential(reifyEffects[R](f(arg0, arg1, arg2, arg3, arg4)))
+      val inputs = List(arg0, arg1, arg2, arg3, arg4)
+      val bindings = JNIBinding.inferBatch(inst.getClass, funName, inputs.map(_.tp.erasure.isArray))
+      compileBatch(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile(), bindings)
+    }
+  }
+
+  def compileBatch[B](inputs: List[Sym[Any]], block: Block[B], funName: String, makefile: Make, bindings: List[JNIBinding]): Unit = {
+    val cApp = codegen.generateJNIBatchApplication(inputs, optimize(block), funName, bindings)
+    compileCodeJNI(cApp.generateSingleFile(), funName, makefile.withFlags(cApp.getCompilerFlags()))
+  }
+
+  /* ================================================================================================================ */
+  /* Multi-versioned JNI Compilation                                                                                  */
+  /* ================================================================================================================ */
+
+  /*
+   * A multi-versioned function is staged once for each of the given ISA tiers (see MultiVersion), and all versions
+   * are compiled into a single library together with a cpuid-based dispatcher. The library is compiled for the
+   * baseline ISA, i.e. without xHost, such that it can be executed on any x86_64 machine, while the best version
+   * is selected on the executing CPU. The scalar tier is always included.
+   */
+
+  /**
+    * Multi-versioned compilation of a function with 1 argument, see compileMultiVersion above.
+    *
+    * @param f        Staged function f, parameterized by the ISA tier
+    * @param funName  Name of the native function
+    * @param isas     ISA tiers for which a version is generated
+    * @tparam A       Input type of arg0
+    * @tparam R       Return type
+    */
+  def compileMultiVersion[A:Typ, R:Typ](f: ISA => Exp[A] => Exp[R], inst: AnyRef, funName: String, isas: List[ISA]): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val versions = MultiVersion.versions(isas).map(isa => {
+        val arg0 = fresh[A]
+        val block = reifyEffects[R](f(isa)(arg0))
+        (isa, List[Sym[Any]](arg0), block)
+      })
+      compileMultiVersion(versions, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, versions.head._2))
+    }
+  }
+
+  /**
+    * Multi-versioned compilation of a function with 2 arguments, see compileMultiVersion above.
+    *
+    * @param f        Staged function f, parameterized by the ISA tier
+    * @param funName  Name of the native function
+    * @param isas     ISA tiers for which a version is generated
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam R       Return type
+    */
+  def compileMultiVersion[A:Typ, B:Typ, R:Typ](f: ISA => (Exp[A], Exp[B]) => Exp[R], inst: AnyRef, funName: String, isas: List[ISA]): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val versions = MultiVersion.versions(isas).map(isa => {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val block = reifyEffects[R](f(isa)(arg0, arg1))
+        (isa, List[Sym[Any]](arg0, arg1), block)
+      })
+      compileMultiVersion(versions, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, versions.head._2))
+    }
+  }
+
+  /**
+    * Multi-versioned compilation of a function with 3 arguments, see compileMultiVersion above.
+    *
+    * @param f        Staged function f, parameterized by the ISA tier
+    * @param funName  Name of the native function
+    * @param isas     ISA tiers for which a version is generated
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam R       Return type
+    */
+  def compileMultiVersion[A:Typ, B:Typ, C:Typ, R:Typ](f: ISA => (Exp[A], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String, isas: List[ISA]): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val versions = MultiVersion.versions(isas).map(isa => {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val arg2 = fresh[C]
+        val block = reifyEffects[R](f(isa)(arg0, arg1, arg2))
+        (isa, List[Sym[Any]](arg0, arg1, arg2), block)
+      })
+      compileMultiVersion(versions, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, versions.head._2))
+    }
+  }
+
+  /**
+    * Multi-versioned compilation of a function with 4 arguments, see compileMultiVersion above.
+    *
+    * @param f        Staged function f, parameterized by the ISA tier
+    * @param funName  Name of the native function
+    * @param isas     ISA tiers for which a version is generated
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam D       Input type of arg3
+    * @tparam R       Return type
+    */
+  def compileMultiVersion[A:Typ, B:Typ, C:Typ, D:Typ, R:Typ](f: ISA => (Exp[A], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String, isas: List[ISA]): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val versions = MultiVersion.versions(isas).map(isa => {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val arg2 = fresh[C]
+        val arg3 = fresh[D]
+        val block = reifyEffects[R](f(isa)(arg0, arg1, arg2, arg3))
+        (isa, List[Sym[Any]](arg0, arg1, arg2, arg3), block)
+      })
+      compileMultiVersion(versions, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, versions.head._2))
+    }
+  }
+
+  /**
+    * Multi-versioned compilation of a function with 5 arguments, see compileMultiVersion above.
+    *
+    * @param f        Staged function f, parameterized by the ISA tier
+    * @param funName  Name of the native function
+    * @param isas     ISA tiers for which a version is generated
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam D       Input type of arg3
+    * @tparam E       Input type of arg4
+    * @tparam R       Return type
+    */
+  def compileMultiVersion[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, R:Typ](f: ISA => (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E]) => Exp[R], inst: AnyRef, funName: String, isas: List[ISA]): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val versions = MultiVersion.versions(isas).map(isa => {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val arg2 = fresh[C]
+        val arg3 = fresh[D]
+        val arg4 = fresh[E]
+        val block = reifyEffects[R](f(isa)(arg0, arg1, arg2, arg3, arg4))
+        (isa, List[Sym[Any]](arg0, arg1, arg2, arg3, arg4), block)
+      })
+      compileMultiVersion(versions, nativeName, CompileVM.getDefaultJNIMakefile(), jniBindings(inst, funName, versions.head._2))
+    }
+  }
+
+  def compileMultiVersion[B](versions: List[(ISA, List[Sym[Any]], Block[B])], funName: String, makefile: Make, bindings: List[JNIBinding]): Unit = staging {
+    val optimized = versions.map({ case (isa, inputs, block) => (isa, inputs, optimize(block, MultiVersion.isas(isa))) })
+    val cApp = codegen.generateJNIMultiVersionApplication(optimized, funName, bindings)
+    val make = makefile.withoutFlags(List(CompilerFlags.xHost)).withFlags(cApp.getCompilerFlags())
+    compileCodeJNI(cApp.generateSingleFile(), funName, make)
+  }
+
+  /* ================================================================================================================ */
+  /* Compilation Units                                                                                                */
+  /* ================================================================================================================ */
+
+  /**
+    * Code of the functions staged into a compilation unit, and their claims in KernelRegistry
+    */
+  private final class PendingUnit {
+    var units  = List.empty[(String, String, Make)]
+    var claims = List.empty[KernelRegistry.Claim]
+  }
+
+  private val pendingUnit = new ThreadLocal[Option[PendingUnit]] {
+    override def initialValue () = None
+  }
+
+  /**
+    * Compiles all JNI functions staged by body into a single shared library, loaded into the JVM at once. Each
+    * function is kept in a separate translation unit, and the units are compiled in parallel. Functions requiring
+    * different compiler configurations are linked into one library per configuration. Nested units join the
+    * enclosing unit. Kernel classes having a bundle for the local micro-architecture (see KernelBundles) load the
+    * bundled libraries instead, and body is not evaluated.
+    *
+    * A unit is compiled once per JVM, concurrent callers wait for it (see KernelRegistry). Only the staging of body
+    * holds the lock of this IR; the C compiler runs and the library is loaded outside of it, such that units of
+    * different kernel classes compile concurrently. Variants autotuned by body before it claims any function are
+    * also compiled and timed outside of the lock.
+    *
+    * @param inst     Instance of the kernel class, naming the library
+    * @param body     Stages and compiles the JNI functions of the unit
+    */
+  def compileUnit (inst: AnyRef)(body: => Unit): Unit = pendingUnit.get match {
+    case Some(_) => body
+    case None =>
+      val unitName = inst.getClass.getName.replace('.', '_')
+      KernelRegistry.once(unitName) {
+        if (!KernelBundles.load(inst.getClass, codegenSettings.mkString(","))) {
+          val unit = new PendingUnit
+          try {
+            staging {
+              pendingUnit.set(Some(unit))
+              try body finally pendingUnit.set(None)
+            }
+            val libs = unit.units.reverse.groupBy(_._3.signature()).values.toList.map(group => {
+              CompileVM.compileUnitJNI(group.map(u => (u._1, u._2)), unitName, group.head._3)
+            })
+            KernelBundles.record(inst.getClass, libs, codegenSettings.mkString(","))
+          } catch {
+            case e: Throwable =>
+              // The functions of the unit are staged again by the next attempt
+              unit.claims.foreach(_.complete(Some(e)))
+              throw e
+          }
+          unit.claims.foreach(_.complete(None))
+        }
+      }
+  }
+
+  /**
+    * Compiles and loads the code of a JNI function, or adds it to the pending compilation unit of this thread
+    */
+  protected def compileCodeJNI (code: String, funName: String, makefile: Make): Unit = pendingUnit.get match {
+    case Some(unit) => unit.units ::= ((code, funName, makefile))
+    case None => CompileVM.compileCodeJNI(code, funName, makefile)
+  }
+
+  /* ================================================================================================================ */
+  /* Tiered Compilation                                                                                               */
+  /* ================================================================================================================ */
+
+  /**
+    * Stages and compiles the native methods of a kernel class, in the background if tiered execution is enabled (see
+    * TieredCompilation), into a single library (see compileUnit). Kernel classes are compiled by a pool of threads;
+    * staging holds the lock of this IR, as an IR can be shared among several kernel classes.
+    *
+    * @param inst     Instance of the kernel class
+    * @param body     Compiles all native methods of the kernel class
+    * @return         The tier of the kernel class
+    */
+  def tiered (inst: AnyRef)(body: => Unit): NativeTier = {
+    TieredCompilation.submit(inst.getClass.getName)(compileUnit(inst)(body))
+  }
+
+  /* ================================================================================================================ */
+  /* Value Specialization                                                                                             */
+  /* ================================================================================================================ */
+
+  /**
+    * Runtime value specialization of a function with 2 arguments, whose first argument, an Int such as the size, is
+    * specialized. Each version is staged with the value as a constant, compiled into a C function, and invoked through
+    * the native method declared by compileDispatch. The native method funName keeps the generic version.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the native method of the generic version
+    * @tparam B       Input type of arg1
+    * @tparam R       Return type
+    * @return         The specialization, mapping a value to the address of its version, see Specialization
+    */
+  def specialize[B:Typ, R:Typ](f: (Exp[Int], Exp[B]) => Exp[R], inst: AnyRef, funName: String): Specialization = {
+    specialize(f, inst, funName, 0)
+  }
+
+  /**
+    * Runtime value specialization of a function with 3 arguments, see specialize above
+    */
+  def specialize[B:Typ, C:Typ, R:Typ](f: (Exp[Int], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String): Specialization = {
+    specialize(f, inst, funName, 0)
+  }
+
+  /**
+    * Runtime value specialization of a function with 4 arguments, see specialize above
+    */
+  def specialize[B:Typ, C:Typ, D:Typ, R:Typ](f: (Exp[Int], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String): Specialization = {
+    specialize(f, inst, funName, 0)
+  }
+
+  /**
+    * Runtime value specialization of a function with 2 arguments, whose argument at the given index is the
+    * specialized Int, such as a size passed after the arrays. See specialize above.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the native method of the generic version
+    * @param index    Index of the specialized argument, which must be an Int
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam R       Return type
+    * @return         The specialization, mapping a value to the address of its version, see Specialization
+    */
+  def specialize[A:Typ, B:Typ, R:Typ](f: (Exp[A], Exp[B]) => Exp[R], inst: AnyRef, funName: String, index: Int): Specialization = {
+    specializeAt[R](inst, funName, index, List(fresh[A], fresh[B])) { a =>
+      f(a(0).asInstanceOf[Exp[A]], a(1).asInstanceOf[Exp[B]])
+    }
+  }
+
+  /**
+    * Runtime value specialization of a function with 3 arguments at the given index, see specialize above
+    */
+  def specialize[A:Typ, B:Typ, C:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String, index: Int): Specialization = {
+    specializeAt[R](inst, funName, index, List(fresh[A], fresh[B], fresh[C])) { a =>
+      f(a(0).asInstanceOf[Exp[A]], a(1).asInstanceOf[Exp[B]], a(2).asInstanceOf[Exp[C]])
+    }
+  }
+
+  /**
+    * Runtime value specialization of a function with 4 arguments at the given index, see specialize above
+    */
+  def specialize[A:Typ, B:Typ, C:Typ, D:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String, index: Int): Specialization = {
+    specializeAt[R](inst, funName, index, List(fresh[A], fresh[B], fresh[C], fresh[D])) { a =>
+      f(a(0).asInstanceOf[Exp[A]], a(1).asInstanceOf[Exp[B]], a(2).asInstanceOf[Exp[C]], a(3).asInstanceOf[Exp[D]])
+    }
+  }
+
+  /**
+    * Runtime value specialization of a function with 5 arguments at the given index, see specialize above
+    */
+  def specialize[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E]) => Exp[R], inst: AnyRef, funName: String, index: Int): Specialization = {
+    specializeAt[R](inst, funName, index, List(fresh[A], fresh[B], fresh[C], fresh[D], fresh[E])) { a =>
+      f(a(0).asInstanceOf[Exp[A]], a(1).asInstanceOf[Exp[B]], a(2).asInstanceOf[Exp[C]], a(3).asInstanceOf[Exp[D]], a(4).asInstanceOf[Exp[E]])
+    }
+  }
+
+  /**
+    * Stages each version of funName with the input at index replaced by the value of the version. The C function of a
+    * version keeps all the inputs, such that the dispatching native method passes the arguments unchanged.
+    */
+  private def specializeAt[R:Typ](inst: AnyRef, funName: String, index: Int, inputs: => List[Sym[Any]])(f: List[Exp[Any]] => Exp[R]): Specialization = {
+    val nativeName = jniName(inst, funName)
+    Specialization(nativeName)(value => specialize(nativeName + "_n" + value, {
+      val args = inputs
+      require(args.isDefinedAt(index) && args(index).tp == typ[Int], s"Argument $index of $funName is not an Int")
+      (args, reifyEffects[R](f(args.updated(index, unit(value)))))
+    }))
+  }
+
+  /**
+    * Stages a specialized version under the lock of this IR, and compiles it outside of it
+    *
+    * @param cName    Name of the C function of the version
+    * @param staged   Inputs of the version, and the version staged with its value as a constant
+    * @return         Address of the C function
+    */
+  protected def specialize[B](cName: String, staged: => (List[Sym[Any]], Block[B])): Long = {
+    val cApp = staging {
+      val (inputs, block) = staged
+      codegen.generateApplication(inputs, optimize(block), cName)
+    }
+    val make = CompileVM.getDefaultJNIMakefile().withFlags(cApp.getCompilerFlags())
+    CompileVM.compileCodeSymbol(cApp.generateSingleFile(), cName, make)
+  }
+
+  /**
+    * Compiles the native method funName, invoking the specialized versions of a function with 2 arguments. The
+    * native method takes the address of a version, as returned by the Specialization, followed by the arguments of
+    * the function, whichever of them is specialized. f only provides the signature, and is not staged.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the dispatching native method
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam R       Return type
+    */
+  def compileDispatch[A:Typ, B:Typ, R:Typ](f: (Exp[A], Exp[B]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    compileDispatch(inst, funName, List(fresh[A], fresh[B]), typ[R])
+  }
+
+  /**
+    * Compiles the native method funName, invoking the specialized versions of a function with 3 arguments
+    */
+  def compileDispatch[A:Typ, B:Typ, C:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    compileDispatch(inst, funName, List(fresh[A], fresh[B], fresh[C]), typ[R])
+  }
+
+  /**
+    * Compiles the native method funName, invoking the specialized versions of a function with 4 arguments
+    */
+  def compileDispatch[A:Typ, B:Typ, C:Typ, D:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    compileDispatch(inst, funName, List(fresh[A], fresh[B], fresh[C], fresh[D]), typ[R])
+  }
+
+  /**
+    * Compiles the native method funName, invoking the specialized versions of a function with 5 arguments
+    */
+  def compileDispatch[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, R:Typ](f: (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E]) => Exp[R], inst: AnyRef, funName: String): Unit = {
+    compileDispatch(inst, funName, List(fresh[A], fresh[B], fresh[C], fresh[D], fresh[E]), typ[R])
+  }
+
+  protected def compileDispatch[R](inst: AnyRef, funName: String, inputs: => List[Sym[Any]], result: Typ[R]): Unit = {
+    val nativeName = jniName(inst, funName)
+    stageOnce(nativeName) {
+      val kernel = fresh[Long]
+      val args = inputs
+      val bindings = jniBindings(inst, funName, kernel :: args)
+      val cApp = codegen.generateJNIDispatchApplication(kernel, args, result, nativeName, bindings)
+      compileCodeJNI(cApp.generateSingleFile(), nativeName, CompileVM.getDefaultJNIMakefile().withFlags(cApp.getCompilerFlags()))
+    }
+  }
+
+  /* ================================================================================================================ */
+  /* Autotuning                                                                                                       */
+  /* ================================================================================================================ */
+
+  var tunedVariants = Map.empty[String, TuningVariant]
+
+  /**
+    * The variant selected for the function nativeName, tuning it by Autotuner on first use. Each variant is staged
+    * under the lock of this IR by measure, and compiled and timed outside of it (see measureVariant).
+    */
+  private def tuned (nativeName: String, space: TuningSpace)(measure: TuningVariant => Double): TuningVariant = {
+    staging { tunedVariants.get(nativeName) } getOrElse {
+      val selected = Autotuner.select(nativeName, space)(measure)
+      staging { tunedVariants += nativeName -> selected }
+      selected
+    }
+  }
+
+  /**
+    * Compiles a variant of a staged function as a BridJ function, and measures its runtime on the given arguments.
+    * With the "model" method of Autotuner, the variant is ranked by the cycles per element of all of its loops
+    * estimated by the ThroughputModel instead, and neither compiled nor run. Variants differing only in their
+    * compiler flags have the same estimate, and the first of them in the search space is selected.
+    *
+    * @param inputs   Inputs of the staged function
+    * @param block    The staged function
+    * @param variant  Variant of the function, providing the additional compiler flags
+    * @param args     Representative arguments of the function, evaluated only when measuring
+    * @return         Median runtime in nanoseconds, or estimated cycles per element
+    */
+  protected def measureVariant[R](inputs: List[Sym[Any]], block: Block[R], variant: TuningVariant, args: => Seq[Any]): Double = {
+    if (Autotuner.method == "model") {
+      staging { estimate(block).cyclesPerElement }
+    } else unstaged {
+      val (func, libFileName) = compileBridJ(inputs, block, CompileVM.getDefaultJNIMakefile().withFlags(variant.flags))
+      try {
+        Autotuner.time(func, args map Autotuner.toBridJ)
+      } finally {
+        CompileVM.unloadProgram(libFileName)
+      }
+    }
+  }
+
+  /**
+    * Autotuning of a function with 1 argument. The fastest variant in the search space is selected by Autotuner,
+    * and compiled using a default JNI Makefile extended with the flags of the variant.
+    *
+    * @param f        Staged function f, parameterized by a variant
+    * @param funName  Name of the function
+    * @param space    Search space of the function
+    * @param args     Representative arguments, evaluated only when tuning is performed
+    * @tparam A       Input type of arg0
+    * @tparam R       Return type
+    * @return         The selected variant
+    */
+  def autotune[A:Typ, R:Typ](f: TuningVariant => Exp[A] => Exp[R], inst: AnyRef, funName: String, space: TuningSpace, args: => Seq[Any]): TuningVariant = {
+    val nativeName = jniName(inst, funName)
+    lazy val arguments = args
+    val selected = tuned(nativeName, space)(variant => {
+      val (inputs, block) = staging {
+        val arg0 = fresh[A]
+        val block = reifyEffects[R](f(variant)(arg0))
+        (List(arg0), block)
+      }
+      measureVariant(inputs, block, variant, arguments)
+    })
+    stageOnce(nativeName) {
+      val variant = selected
+      val arg0 = fresh[A]
+      val block = reifyEffects[R](f(variant)(arg0))
+      val inputs = List(arg0)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile().withFlags(variant.flags), jniBindings(inst, funName, inputs))
+    }
+    selected
+  }
+
+  /**
+    * Autotuning of a function with 2 arguments. The fastest variant in the search space is selected by Autotuner,
+    * and compiled using a default JNI Makefile extended with the flags of the variant.
+    *
+    * @param f        Staged function f, parameterized by a variant
+    * @param funName  Name of the function
+    * @param space    Search space of the function
+    * @param args     Representative arguments, evaluated only when tuning is performed
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam R       Return type
+    * @return         The selected variant
+    */
+  def autotune[A:Typ, B:Typ, R:Typ](f: TuningVariant => (Exp[A], Exp[B]) => Exp[R], inst: AnyRef, funName: String, space: TuningSpace, args: => Seq[Any]): TuningVariant = {
+    val nativeName = jniName(inst, funName)
+    lazy val arguments = args
+    val selected = tuned(nativeName, space)(variant => {
+      val (inputs, block) = staging {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val block = reifyEffects[R](f(variant)(arg0, arg1))
+        (List(arg0, arg1), block)
+      }
+      measureVariant(inputs, block, variant, arguments)
+    })
+    stageOnce(nativeName) {
+      val variant = selected
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val block = reifyEffects[R](f(variant)(arg0, arg1))
+      val inputs = List(arg0, arg1)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile().withFlags(variant.flags), jniBindings(inst, funName, inputs))
+    }
+    selected
+  }
+
+  /**
+    * Autotuning of a function with 3 arguments. The fastest variant in the search space is selected by Autotuner,
+    * and compiled using a default JNI Makefile extended with the flags of the variant.
+    *
+    * @param f        Staged function f, parameterized by a variant
+    * @param funName  Name of the function
+    * @param space    Search space of the function
+    * @param args     Representative arguments, evaluated only when tuning is performed
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam R       Return type
+    * @return         The selected variant
+    */
+  def autotune[A:Typ, B:Typ, C:Typ, R:Typ](f: TuningVariant => (Exp[A], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String, space: TuningSpace, args: => Seq[Any]): TuningVariant = {
+    val nativeName = jniName(inst, funName)
+    lazy val arguments = args
+    val selected = tuned(nativeName, space)(variant => {
+      val (inputs, block) = staging {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val arg2 = fresh[C]
+        val block = reifyEffects[R](f(variant)(arg0, arg1, arg2))
+        (List(arg0, arg1, arg2), block)
+      }
+      measureVariant(inputs, block, variant, arguments)
+    })
+    stageOnce(nativeName) {
+      val variant = selected
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val arg2 = fresh[C]
+      val block = reifyEffects[R](f(variant)(arg0, arg1, arg2))
+      val inputs = List(arg0, arg1, arg2)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile().withFlags(variant.flags), jniBindings(inst, funName, inputs))
+    }
+    selected
+  }
+
+  /**
+    * Autotuning of a function with 4 arguments. The fastest variant in the search space is selected by Autotuner,
+    * and compiled using a default JNI Makefile extended with the flags of the variant.
+    *
+    * @param f        Staged function f, parameterized by a variant
+    * @param funName  Name of the function
+    * @param space    Search space of the function
+    * @param args     Representative arguments, evaluated only when tuning is performed
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam D       Input type of arg3
+    * @tparam R       Return type
+    * @return         The selected variant
+    */
+  def autotune[A:Typ, B:Typ, C:Typ, D:Typ, R:Typ](f: TuningVariant => (Exp[A], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String, space: TuningSpace, args: => Seq[Any]): TuningVariant = {
+    val nativeName = jniName(inst, funName)
+    lazy val arguments = args
+    val selected = tuned(nativeName, space)(variant => {
+      val (inputs, block) = staging {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val arg2 = fresh[C]
+        val arg3 = fresh[D]
+        val block = reifyEffects[R](f(variant)(arg0, arg1, arg2, arg3))
+        (List(arg0, arg1, arg2, arg3), block)
+      }
+      measureVariant(inputs, block, variant, arguments)
+    })
+    stageOnce(nativeName) {
+      val variant = selected
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val arg2 = fresh[C]
+      val arg3 = fresh[D]
+      val block = reifyEffects[R](f(variant)(arg0, arg1, arg2, arg3))
+      val inputs = List(arg0, arg1, arg2, arg3)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile().withFlags(variant.flags), jniBindings(inst, funName, inputs))
+    }
+    selected
+  }
+
+  /**
+    * Autotuning of a function with 5 arguments. The fastest variant in the search space is selected by Autotuner,
+    * and compiled using a default JNI Makefile extended with the flags of the variant.
+    *
+    * @param f        Staged function f, parameterized by a variant
+    * @param funName  Name of the function
+    * @param space    Search space of the function
+    * @param args     Representative arguments, evaluated only when tuning is performed
+    * @tparam A       Input type of arg0
+    * @tparam B       Input type of arg1
+    * @tparam C       Input type of arg2
+    * @tparam D       Input type of arg3
+    * @tparam E       Input type of arg4
+    * @tparam R       Return type
+    * @return         The selected variant
+    */
+  def autotune[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, R:Typ](f: TuningVariant => (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E]) => Exp[R], inst: AnyRef, funName: String, space: TuningSpace, args: => Seq[Any]): TuningVariant = {
+    val nativeName = jniName(inst, funName)
+    lazy val arguments = args
+    val selected = tuned(nativeName, space)(variant => {
+      val (inputs, block) = staging {
+        val arg0 = fresh[A]
+        val arg1 = fresh[B]
+        val arg2 = fresh[C]
+        val arg3 = fresh[D]
+        val arg4 = fresh[E]
+        val block = reifyEffects[R](f(variant)(arg0, arg1, arg2, arg3, arg4))
+        (List(arg0, arg1, arg2, arg3, arg4), block)
+      }
+      measureVariant(inputs, block, variant, arguments)
+    })
+    stageOnce(nativeName) {
+      val variant = selected
+      val arg0 = fresh[A]
+      val arg1 = fresh[B]
+      val arg2 = fresh[C]
+      val arg3 = fresh[D]
+      val arg4 = fresh[E]
+      val block = reifyEffects[R](f(variant)(arg0, arg1, arg2, arg3, arg4))
+      val inputs = List(arg0, arg1, arg2, arg3, arg4)
+      compile(inputs, block, nativeName, CompileVM.getDefaultJNIMakefile().withFlags(variant.flags), jniBindings(inst, funName, inputs))
+    }
+    selected
   }
 
   def emitBlock[B] (
@@ -27,14 +27,19 @@
 
 package ch.ethz.acl.commons.cir
 
-import ch.ethz.acl.commons.cir.codegen.{CApplication, CCodegen}
+import ch.ethz.acl.commons.cir.codegen.{CApplication, CCodegen, JavaVectorCodegen}
+import ch.ethz.acl.commons.cir.codegen.JNIBinding.JNIBinding
 import ch.ethz.acl.commons.cir.extensions.IntrinsicsHeapArrays
+import ch.ethz.acl.commons.compiler.CompileJava
+import ch.ethz.acl.commons.compiler.ISA.ISA
+import ch.ethz.acl.commons.transformers.VectorizeTransformer
 import ch.ethz.acl.intrinsics._
 
 /**
   * Intrinsics IR class, contains CIR internally and all SIMD intrinsics
   * starting from MMX all the way to AVX2 + FMA. Note that this class
-  * does not include AVX512, KNC and other IRs.
+  * does not include AVX512, KNC and other IRs. AVX512 is available in
+  * AVX512IntrinsicsIR.
   */
 class IntrinsicsIR extends CIR
   with IntrinsicsArrays
@@ -52,7 +57,11 @@ class IntrinsicsIR extends CIR
   with Other
 { self =>
 
-  val codegen = new CCodegen
+  /**
+    * Code generator of all intrinsics up to AVX2 + FMA. Subclasses including
+    * further ISAs extend it with the corresponding generators.
+    */
+  class IntrinsicsCodegen extends CCodegen
     with CGenMMX
     with CGenSSE
     with CGenSSE2
@@ -66,13 +75,165 @@ class IntrinsicsIR extends CIR
     with CGenOther
   {
     val IR: self.type = self
-    override def generateJNIApplication[B](
+    override def generateApplication[B](
       syms: List[Sym[Any]], block: Block[B], fName: String
     ): CApplication = {
-      val cApp = super.generateJNIApplication[B](syms, block, fName)
+      val cApp = super.generateApplication[B](syms, block, fName)
+      getIntrinsicsHeaders.foreach(h => cApp.addSystemHeader(h))
+      cApp
+    }
+    override def generateJNIApplication[B](
+      syms: List[Sym[Any]], block: Block[B], fName: String, bindings: List[JNIBinding]
+    ): CApplication = {
+      val cApp = super.generateJNIApplication[B](syms, block, fName, bindings)
       getIntrinsicsHeaders.foreach(h => cApp.addSystemHeader(h))
       cApp
     }
+    override def generateJNIBatchApplication[B](
+      syms: List[Sym[Any]], block: Block[B], fName: String, bindings: List[JNIBinding]
+    ): CApplication = {
+      val cApp = super.generateJNIBatchApplication[B](syms, block, fName, bindings)
+      getIntrinsicsHeaders.foreach(h => cApp.addSystemHeader(h))
+      cApp
+    }
+    override def generateJNIMultiVersionApplication[B](
+      versions: List[(ISA, List[Sym[Any]], Block[B])], fName: String, bindings: List[JNIBinding]
+    ): CApplication = {
+      val cApp = super.generateJNIMultiVersionApplication[B](versions, fName, bindings)
+      getIntrinsicsHeaders.foreach(h => cApp.addSystemHeader(h))
+      cApp
+    }
+  }
+
+  val codegen: IntrinsicsCodegen = new IntrinsicsCodegen
+
+  lazy val javaCodegen = new JavaVectorCodegen { val IR: self.type = self }
+
+  private lazy val vectorizer = new VectorizeTransformer { val IR: self.type = self }
+
+  /**
+    * Vectorizes the scalar loops after the optimizations of CIR, see VectorizeTransformer
+    */
+  override def optimize[B](block: Block[B], isas: List[ISA]): Block[B] = {
+    val optimized = super.optimize(block, isas)
+    if (VectorizeTransformer.enabled) vectorizer.vectorizeLoops(optimized, isas) else optimized
+  }
+
+  override protected def codegenSettings: List[String] = {
+    super.codegenSettings :+ ("vectorize=" + VectorizeTransformer.enabled)
+  }
+
+  /* ================================================================================================================ */
+  /* Java Compilation                                                                                                 */
+  /* ================================================================================================================ */
+
+  var compiledJavaKernels = Map.empty[String, JavaKernel[_]]
+
+  /**
+    * Compilation of a function with 1 argument into Java code using the Vector API, see JavaVectorCodegen. The
+    * function is bound to a JavaKernel rather than to the native method funName, whose name it shares, and is
+    * called through the single abstract method of the interface iface, which must have the signature of f.
+    *
+    * @param f        Staged function f
+    * @param funName  Name of the native method implemented by f
+    * @param iface    Interface implemented by the compiled function
+    * @tparam A       Input type of arg0
+    * @tparam R       Return type
+    * @tparam T       The interface
+    * @return         The compiled function
+    */
+  def compileJava[A:Typ, R:Typ, T](f: Exp[A] => Exp[R], inst: AnyRef, funName: String, iface: Class[T]): JavaKernel[T] = {
+    javaKernel(inst, funName, iface, {
+      val arg0 = fresh[A]
+      (List(arg0), reifyEffects[R](f(arg0)))
+    })
+  }
+
+  /**
+    * Java compilation of a function with 2 arguments, see compileJava above
+    */
+  def compileJava[A:Typ, B:Typ, R:Typ, T](f: (Exp[A], Exp[B]) => Exp[R], inst: AnyRef, funName: String, iface: Class[T]): JavaKernel[T] = {
+    javaKernel(inst, funName, iface, {
+      val (arg0, arg1) = (fresh[A], fresh[B])
+      (List(arg0, arg1), reifyEffects[R](f(arg0, arg1)))
+    })
+  }
+
+  /**
+    * Java compilation of a function with 3 arguments, see compileJava above
+    */
+  def compileJava[A:Typ, B:Typ, C:Typ, R:Typ, T](f: (Exp[A], Exp[B], Exp[C]) => Exp[R], inst: AnyRef, funName: String, iface: Class[T]): JavaKernel[T] = {
+    javaKernel(inst, funName, iface, {
+      val (arg0, arg1, arg2) = (fresh[A], fresh[B], fresh[C])
+      (List(arg0, arg1, arg2), reifyEffects[R](f(arg0, arg1, arg2)))
+    })
+  }
+
+  /**
+    * Java compilation of a function with 4 arguments, see compileJava above
+    */
+  def compileJava[A:Typ, B:Typ, C:Typ, D:Typ, R:Typ, T](f: (Exp[A], Exp[B], Exp[C], Exp[D]) => Exp[R], inst: AnyRef, funName: String, iface: Class[T]): JavaKernel[T] = {
+    javaKernel(inst, funName, iface, {
+      val (arg0, arg1, arg2, arg3) = (fresh[A], fresh[B], fresh[C], fresh[D])
+      (List(arg0, arg1, arg2, arg3), reifyEffects[R](f(arg0, arg1, arg2, arg3)))
+    })
+  }
+
+  /**
+    * Java compilation of a function with 5 arguments, see compileJava above
+    */
+  def compileJava[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, R:Typ, T](f: (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E]) => Exp[R], inst: AnyRef, funName: String, iface: Class[T]): JavaKernel[T] = {
+    javaKernel(inst, funName, iface, {
+      val (arg0, arg1, arg2, arg3, arg4) = (fresh[A], fresh[B], fresh[C], fresh[D], fresh[E])
+      (List(arg0, arg1, arg2, arg3, arg4), reifyEffects[R](f(arg0, arg1, arg2, arg3, arg4)))
+    })
+  }
+
+  /**
+    * Java compilation of a function with 6 arguments, see compileJava above
+    */
+  def compileJava[A:Typ, B:Typ, C:Typ, D:Typ, E:Typ, F:Typ, R:Typ, T](f: (Exp[A], Exp[B], Exp[C], Exp[D], Exp[E], Exp[F]) => Exp[R], inst: AnyRef, funName: String, iface: Class[T]): JavaKernel[T] = {
+    javaKernel(inst, funName, iface, {
+      val (arg0, arg1, arg2, arg3, arg4, arg5) = (fresh[A], fresh[B], fresh[C], fresh[D], fresh[E], fresh[F])
+      (List(arg0, arg1, arg2, arg3, arg4, arg5), reifyEffects[R](f(arg0, arg1, arg2, arg3, arg4, arg5)))
+    })
+  }
+
+  private def javaKernel[B, T](inst: AnyRef, funName: String, iface: Class[T], staged: => (List[Sym[Any]], Block[B])): JavaKernel[T] = {
+    val className = jniName(inst, funName) + "_java"
+    staging {
+      compiledJavaKernels.getOrElse(className, {
+        val (inputs, block) = staged
+        val kernel = compileJava(inputs, block, className, iface)
+        compiledJavaKernels += className -> kernel
+        kernel
+      }).asInstanceOf[JavaKernel[T]]
+    }
   }
 
+  /**
+    * Generates, compiles and loads the Java class implementing a staged function through the interface iface. The
+    * vectorizer is not applied, as the HotSpot compiler vectorizes the scalar loops itself.
+    */
+  def compileJava[B, T](inputs: List[Sym[Any]], block: Block[B], className: String, iface: Class[T]): JavaKernel[T] = {
+    val source = javaCodegen.generateJavaClass(inputs, optimize(block, Nil), className, Some(iface))
+    val cls = CompileJava.compile(className, source, List(iface))
+    new JavaKernel(className, iface.cast(cls.newInstance()))
+  }
+
+}
+
+/**
+  * Intrinsics IR class, containing all SIMD intrinsics of IntrinsicsIR and
+  * the AVX512 intrinsics. Code using AVX512 intrinsics requires an AVX512
+  * capable CPU, and is typically staged as one of the versions of a
+  * multi-versioned function (see CIR.compileMultiVersion).
+  */
+class AVX512IntrinsicsIR extends IntrinsicsIR
+  with AVX512
+{
+
+  override val codegen: IntrinsicsCodegen with CGenAVX512 = new IntrinsicsCodegen
+    with CGenAVX512
+
 }
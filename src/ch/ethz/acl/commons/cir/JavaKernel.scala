@@ -0,0 +1,81 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir
+
+import java.lang.reflect.{Method, Modifier}
+
+import ch.ethz.acl.commons.compiler.CompileJava
+import ch.ethz.acl.commons.system.LocalSystem
+import com.typesafe.config.ConfigFactory
+
+/**
+  * Selection of the backend of the kernels, read from the settings.backend section of ch.ethz.acl.settings.conf.
+  * The jni backend compiles C code with the detected C compiler into native methods. The java backend compiles Java
+  * code using the Vector API in-process (see JavaVectorCodegen and CompileJava). The auto backend selects the java
+  * backend only on hosts without a C compiler.
+  */
+object JavaBackend {
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  var target: String = config.getString("settings.backend.target")
+
+  /**
+    * Returns true if the kernels should be compiled by the java backend
+    */
+  def selected: Boolean = target match {
+    case "java" => true
+    case "auto" => LocalSystem.getCompiler().isEmpty && CompileJava.isAvailable
+    case _      => false
+  }
+}
+
+/**
+  * A staged function compiled by the java backend, implemented by an instance of a generated class implementing the
+  * interface T. The single abstract method of T has the signature of the staged function, such that the function is
+  * called without boxing its arguments, and the arrays are passed by reference, neither copied nor pinned.
+  *
+  * @param name      Name of the generated class
+  * @param function  Instance of the generated class
+  */
+final class JavaKernel[T] (val name: String, val function: T) {
+  override def toString: String = name
+}
+
+object JavaKernel {
+
+  /**
+    * The single abstract method of an interface, implemented by a generated class
+    */
+  def method (iface: Class[_]): Method = {
+    require(iface.isInterface, iface.getName + " is not an interface")
+    iface.getMethods.filter(m => Modifier.isAbstract(m.getModifiers)) match {
+      case Array(m) => m
+      case _ => throw new IllegalArgumentException(iface.getName + " must declare a single abstract method")
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+package ch.ethz.acl.commons.cir
+
+import java.nio.ByteBuffer
+
+import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.commons.util.OffHeap
+import com.typesafe.config.ConfigFactory
+
+/**
+  * Counters of an instrumented kernel. The counters are kept off-heap and updated by the generated code on every
+  * call, see JNICodegen.generateJNIApplication. Reading them is a plain memory read, without any JNI call.
+  *
+  * The first Int argument of each call is taken as its number of elements, and the bytes of the call are the elements
+  * times the sizes of the element types of the array arguments. Kernels without an Int argument, or taking direct
+  * buffers, count the extent of their arrays and buffers instead, an upper bound of the bytes they touch. Kernels
+  * whose traffic differs from one element of each array, e.g. writing back one of their inputs, declare their bytes
+  * per element through KernelMetrics.setTraffic.
+  */
+final class KernelCounters private[cir] (val name: String, buffer: ByteBuffer) {
+
+  /**
+    * Native address of the counters: calls, total cycles, maximum cycles, bytes and elements, as 5 consecutive uint64_t
+    */
+  val address: Long = OffHeap.address(buffer)
+
+  /**
+    * Expected operational intensity of the kernel, in flops per byte, NaN if unknown
+    */
+  @volatile var intensity: Double = Double.NaN
+
+  /**
+    * Bytes moved by the kernel per element, overriding the bytes recorded by the generated code, NaN if undeclared
+    */
+  @volatile var bytesPerElement: Double = Double.NaN
+
+  def calls     : Long = buffer.getLong(0)
+  def cycles    : Long = buffer.getLong(8)
+  def maxCycles : Long = buffer.getLong(16)
+  def elements  : Long = buffer.getLong(32)
+
+  def bytes: Long = {
+    val perElement = bytesPerElement
+    if (perElement.isNaN) buffer.getLong(24) else Math.round(elements * perElement)
+  }
+
+  def meanCycles    : Double = if (calls == 0) 0.0 else cycles.toDouble / calls
+  def bytesPerCycle : Double = if (cycles == 0) 0.0 else bytes.toDouble / cycles
+  def flopsPerCycle : Double = intensity * bytesPerCycle
+
+  /**
+    * Achieved bandwidth in GB/s, assuming that the time stamp counter runs at the nominal frequency
+    */
+  def gbPerSecond: Double = bytesPerCycle * LocalSystem.getFreq() / 1000.0
+
+  /**
+    * Fraction of the roofline bound achieved by the kernel, given the peak performance and bandwidth of the machine.
+    * The bound is min(peak, intensity * bandwidth), and a kernel well below 1.0 has fallen off its roofline.
+    *
+    * @param peakFlopsPerCycle  Peak performance in flops per cycle
+    * @param peakBytesPerCycle  Peak bandwidth in bytes per cycle
+    */
+  def rooflineFraction (peakFlopsPerCycle: Double, peakBytesPerCycle: Double): Double = {
+    flopsPerCycle / Math.min(peakFlopsPerCycle, intensity * peakBytesPerCycle)
+  }
+
+  /**
+    * Clears the counters. Calls in flight while resetting might be partially recorded.
+    */
+  def reset (): Unit = (0 until 5).foreach(i => buffer.putLong(i * 8, 0L))
+
+  override def toString: String = "%-60s %12d %14.1f %12d %10.3f %10.3f".format(
+    name, calls, meanCycles, maxCycles, flopsPerCycle, gbPerSecond
+  )
+}
+
+/**
+  * Registry of the instrumented kernels. When enabled, every JNI function generated afterwards is wrapped with rdtscp
+  * time stamps, and records its number of calls, total and maximum cycles, and bytes into its KernelCounters.
+  *
+  * Instrumentation is configured in the settings.instrumentation section of ch.ethz.acl.settings.conf.
+  */
+object KernelMetrics {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  var enabled: Boolean = config.getBoolean("settings.instrumentation.enabled")
+
+  //
+  // Each kernel owns a cache line, such that concurrent kernels do not share counters
+  //
+  private val counterBytes = 64
+
+  private var registry    = Map.empty[String, KernelCounters]
+  private var intensities = Map.empty[String, Double]
+  private var traffic     = Map.empty[String, Double]
+
+  /**
+    * Returns the counters of the given JNI function, allocating them at the first call
+    */
+  def register (name: String): KernelCounters = synchronized {
+    registry.getOrElse(name, {
+      val counters = new KernelCounters(name, OffHeap.allocate(counterBytes))
+      intensities.foreach({ case (n, i) => if (name.contains(n)) counters.intensity = i })
+      traffic.foreach({ case (n, b) => if (name.contains(n)) counters.bytesPerElement = b })
+      registry += name -> counters
+      counters
+    })
+  }
+
+  /**
+    * Native address of the counters of the given JNI function, called by the instrumented code on its first call
+    */
+  def address (name: String): Long = register(name).address
+
+  def get (name: String): Option[KernelCounters] = synchronized { registry.get(name) }
+
+  def kernels: List[KernelCounters] = synchronized { registry.values.toList.sortBy(_.name) }
+
+  /**
+    * Sets the expected operational intensity in flops per byte of all kernels whose name contains the given string,
+    * including kernels registered later on
+    */
+  def setIntensity (name: String, flopsPerByte: Double): Unit = synchronized {
+    intensities += name -> flopsPerByte
+    registry.values.filter(_.name.contains(name)).foreach(_.intensity = flopsPerByte)
+  }
+
+  /**
+    * Sets the bytes moved per element, the element count being the first Int argument, of all kernels whose name
+    * contains the given string, including kernels registered later on
+    */
+  def setTraffic (name: String, bytesPerElement: Double): Unit = synchronized {
+    traffic += name -> bytesPerElement
+    registry.values.filter(_.name.contains(name)).foreach(_.bytesPerElement = bytesPerElement)
+  }
+
+  def reset (): Unit = kernels.foreach(_.reset())
+
+  def report (): String = {
+    val header = "%-60s %12s %14s %12s %10s %10s".format("Kernel", "Calls", "Mean cycles", "Max cycles", "F/C", "GB/s")
+    (header :: kernels.map(_.toString)).mkString("\n")
+  }
+}
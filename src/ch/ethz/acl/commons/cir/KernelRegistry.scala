@@ -0,0 +1,116 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir
+
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch}
+
+import scala.collection.JavaConverters._
+
+/**
+  * Registry of the kernels staged and loaded by this JVM, keyed by native function or compilation unit name. Each
+  * name is staged and compiled at most once (single-flight): the first caller performs the work, while concurrent
+  * callers of the same name block until it is done. Once a name is loaded, lookups are a single read of a
+  * concurrent map and never lock. Failed compilations are removed from the registry, such that later callers retry.
+  */
+object KernelRegistry {
+
+  private final class Entry (val owner: Thread) {
+    @volatile var done    = false
+    @volatile var failure = Option.empty[Throwable]
+    val latch = new CountDownLatch(1)
+  }
+
+  /**
+    * Exclusive right to load a kernel, held by the thread that claimed it until the kernel is loaded or has failed
+    */
+  final class Claim private[KernelRegistry] (val name: String, entry: Entry) {
+
+    /**
+      * Marks the kernel as loaded, or as failed given the error, and releases the waiting callers
+      */
+    def complete (error: Option[Throwable]): Unit = {
+      entry.failure = error
+      if (error.isDefined) entries.remove(name, entry)
+      entry.done = true
+      entry.latch.countDown()
+    }
+  }
+
+  private val entries = new ConcurrentHashMap[String, Entry]()
+
+  /**
+    * Returns true if the kernel of the given name is loaded
+    */
+  def isLoaded (name: String): Boolean = {
+    val entry = entries.get(name)
+    entry != null && entry.done && entry.failure.isEmpty
+  }
+
+  /**
+    * Names of the loaded kernels
+    */
+  def loaded: Set[String] = entries.asScala.collect({ case (name, e) if e.done && e.failure.isEmpty => name }).toSet
+
+  /**
+    * Claims the kernel of the given name. Returns None if the kernel is loaded, or being loaded by the calling thread
+    * (reentrant calls). If another thread is loading it, waits until it is done, and fails if that thread fails.
+    * Otherwise returns the claim, which must be completed by the caller.
+    *
+    * @param name   Unique name of the kernel
+    */
+  def claim (name: String): Option[Claim] = {
+    val existing = entries.get(name)
+    if (existing != null && existing.done && existing.failure.isEmpty) None else {
+      val entry = new Entry(Thread.currentThread())
+      val winner = entries.putIfAbsent(name, entry)
+      if (winner == null) Some(new Claim(name, entry)) else {
+        if (winner.owner ne Thread.currentThread()) {
+          winner.latch.await()
+          winner.failure.foreach(e => throw new IllegalStateException("Compilation of " + name + " failed", e))
+        }
+        None
+      }
+    }
+  }
+
+  /**
+    * Performs load, unless the kernel of the given name is loaded or being loaded, see claim. The kernel is marked
+    * as loaded once load returns.
+    *
+    * @param name   Unique name of the kernel
+    * @param load   Stages, compiles and loads the kernel
+    */
+  def once (name: String)(load: => Unit): Unit = claim(name) foreach { c =>
+    try load catch {
+      case e: Throwable =>
+        c.complete(Some(e))
+        throw e
+    }
+    c.complete(None)
+  }
+}
@@ -0,0 +1,174 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import ch.ethz.acl.commons.util.Debugging
+import com.typesafe.config.ConfigFactory
+
+/**
+  * Runtime value specialization of a kernel, see CIR.specialize. The kernel counts the values of its specialized
+  * argument, typically the size. Once a value is seen threshold times, a version of the kernel having the value as a
+  * constant is staged and compiled by the compiler threads of TieredCompilation, even if tiered execution is disabled,
+  * such that a hot call never waits for the C compiler, and the loops of the version can be fully unrolled and its
+  * remainders removed. Calls dispatch through a polymorphic cache of at most cacheSize versions. If
+  * the cache is full, a version that has not been used recently is evicted (clock replacement).
+  *
+  * All instances of a kernel class share the specialization of a kernel. Evicted versions stay loaded, as another
+  * thread may still execute them, and are installed again without being recompiled once their value gets hot again.
+  * Dispatch is a scan of the cache, and never locks.
+  *
+  * Value specialization is configured in the settings.specialize section of ch.ethz.acl.settings.conf.
+  */
+final class Specialization private (val name: String, compile: Int => Long) extends Debugging {
+
+  import Specialization._
+
+  private final class Cache (val values: Array[Int], val kernels: Array[Long], val used: Array[Boolean])
+
+  // Versions the calls dispatch to, replaced as a whole on every change
+  @volatile private var cache = new Cache(Array.empty, Array.empty, Array.empty)
+
+  // Position of the clock hand in the cache, guarded by this
+  private var hand = 0
+
+  // Calls of each value not in the cache
+  private val calls = new ConcurrentHashMap[Int, AtomicInteger]()
+
+  // Addresses of all compiled versions, including the evicted ones
+  private val compiled = new ConcurrentHashMap[Int, java.lang.Long]()
+
+  // Compilation of the version of each promoted value
+  private val versions = new ConcurrentHashMap[Int, NativeTier]()
+
+  /**
+    * Returns the address of the version specialized for the given value, or 0 if the generic kernel must be called
+    */
+  def apply (value: Int): Long = if (!enabled) 0L else {
+    val c = cache
+    var i = 0
+    while (i < c.values.length) {
+      if (c.values(i) == value) {
+        if (!c.used(i)) c.used(i) = true
+        return c.kernels(i)
+      }
+      i += 1
+    }
+    record(value)
+    0L
+  }
+
+  /**
+    * The values having a specialized version in the cache
+    */
+  def values: Seq[Int] = cache.values.toSeq
+
+  /**
+    * Blocks until the version of a promoted value is compiled, returns true if it was compiled and installed. Returns
+    * false at once if the value has not been promoted.
+    */
+  def await (value: Int): Boolean = Option(versions.get(value)).exists(_.await())
+
+  private def record (value: Int): Unit = if (value >= 0 && cacheSize > 0) {
+    var count = calls.get(value)
+    if (count == null) {
+      // Bound the memory of kernels called with many distinct values
+      if (calls.size >= maxTracked) calls.clear()
+      val created = new AtomicInteger()
+      val existing = calls.putIfAbsent(value, created)
+      count = if (existing == null) created else existing
+    }
+    if (count.incrementAndGet() == threshold) promote(value)
+  }
+
+  private def promote (value: Int): Unit = try {
+    val tier = TieredCompilation.submit(name + "_" + value, background = true) {
+      compiled.put(value, compile(value))
+      install(value)
+    }
+    versions.put(value, tier)
+    // A version evicted earlier is compiled already, and installed at once
+    if (tier.isNative) install(value)
+  } catch {
+    case e: Throwable =>
+      printDebug0("Specialization of " + name + " for " + value + " failed, staying generic: " + e.getMessage)
+  }
+
+  private def install (value: Int): Unit = synchronized {
+    val c = cache
+    if (!c.values.contains(value)) {
+      val kernel: Long = compiled.get(value)
+      val slot = if (c.values.length < cacheSize) c.values.length else {
+        while (c.used(hand)) {
+          c.used(hand) = false
+          hand = (hand + 1) % c.values.length
+        }
+        val victim = hand
+        hand = (hand + 1) % c.values.length
+        printDebug1("Evicting the version of " + name + " specialized for " + c.values(victim))
+        victim
+      }
+      val size = Math.max(c.values.length, slot + 1)
+      val next = new Cache(c.values.padTo(size, 0), c.kernels.padTo(size, 0L), c.used.padTo(size, false))
+      next.values(slot)  = value
+      next.kernels(slot) = kernel
+      next.used(slot)    = true
+      calls.remove(value)
+      cache = next
+      printDebug1("Version of " + name + " specialized for " + value + " is ready")
+    }
+  }
+}
+
+object Specialization {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  var enabled   : Boolean = config.getBoolean("settings.specialize.enabled")
+  var threshold : Int     = config.getInt("settings.specialize.threshold")
+  var cacheSize : Int     = config.getInt("settings.specialize.cacheSize")
+
+  // Distinct values counted by a kernel before its counts are reset
+  val maxTracked = 1024
+
+  private val kernels = new ConcurrentHashMap[String, Specialization]()
+
+  /**
+    * The specialization of the kernel of the given name, created on first use
+    *
+    * @param name     Unique name of the kernel
+    * @param compile  Stages and compiles the version of a value, returning its address
+    */
+  def apply (name: String)(compile: Int => Long): Specialization = {
+    val created = new Specialization(name, compile)
+    val existing = kernels.putIfAbsent(name, created)
+    if (existing == null) created else existing
+  }
+}
@@ -0,0 +1,154 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir
+
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch, Executors, ThreadFactory}
+
+import ch.ethz.acl.commons.util.Debugging
+import com.typesafe.config.ConfigFactory
+
+/**
+  * State of the native implementation of a kernel class. Until the native library is compiled and loaded, the kernel
+  * calls its JVM implementation. Checking the state is a single volatile read, such that the hot path never locks.
+  */
+final class NativeTier (val name: String) {
+
+  @volatile private var native  = false
+  @volatile private var failure = Option.empty[Throwable]
+  private val done = new CountDownLatch(1)
+
+  /**
+    * Returns true once the native library is loaded, and the native methods can be invoked
+    */
+  def isNative: Boolean = native
+
+  /**
+    * Returns the error that caused the compilation to fail, in which case the kernel stays on the JVM
+    */
+  def getFailure: Option[Throwable] = failure
+
+  /**
+    * Blocks until the compilation is finished, returns true if the native methods can be invoked
+    */
+  def await (): Boolean = {
+    if (!native) done.await()
+    native
+  }
+
+  private[cir] def complete (error: Option[Throwable]): Unit = {
+    failure = error
+    native  = error.isEmpty
+    done.countDown()
+  }
+}
+
+/**
+  * Tiered execution of the kernels. When enabled, the staging and compilation of a kernel class is performed by a
+  * pool of background compiler threads, and the constructor of the kernel returns immediately. Kernels call their JVM
+  * implementation until NativeTier.isNative holds. When disabled, kernels are compiled in the constructor as before.
+  *
+  * Tiered execution is configured in the settings.tiered section of ch.ethz.acl.settings.conf.
+  */
+object TieredCompilation extends Debugging {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  var enabled: Boolean = config.getBoolean("settings.tiered.enabled")
+
+  var threads: Int = config.getInt("settings.tiered.threads") match {
+    case 0 => Runtime.getRuntime.availableProcessors()
+    case n => n
+  }
+
+  //
+  // Tiers of the kernel classes. Looking up the tier of a compiled class is a
+  // single read of a concurrent map, such that constructing kernels from many
+  // threads never locks (see KernelRegistry).
+  //
+  private val tiers = new ConcurrentHashMap[String, NativeTier]()
+
+  //
+  // Kernel classes are compiled concurrently. Kernels sharing an IR are still
+  // staged one at a time (see CIR.staging), but invoke the C compiler and load
+  // their libraries in parallel.
+  //
+  private lazy val executor = Executors.newFixedThreadPool(threads, new ThreadFactory {
+    def newThread (r: Runnable): Thread = {
+      val t = new Thread(r, "ngen-compiler")
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  /**
+    * Compiles a kernel class, in the background if tiered execution is enabled. A kernel class is compiled only
+    * once, and all instances of the class share its tier. Failed tiers are evicted: the instances created so far stay
+    * on the JVM (see NativeTier.getFailure), while the next instance retries the compilation.
+    *
+    * @param name     Unique name of the kernel class
+    * @param compile  Stages, compiles and links all native methods of the kernel class
+    * @return         The tier of the kernel class
+    */
+  def submit (name: String)(compile: => Unit): NativeTier = submit(name, enabled)(compile)
+
+  /**
+    * Compiles a kernel class by the compiler threads if background holds, regardless of whether tiered execution is
+    * enabled, and on the calling thread otherwise, see submit above
+    */
+  def submit (name: String, background: Boolean)(compile: => Unit): NativeTier = {
+    val existing = tiers.get(name)
+    if (existing != null) existing else {
+      val tier = new NativeTier(name)
+      val winner = tiers.putIfAbsent(name, tier)
+      if (winner != null) winner else {
+        compileTier(tier, background)(compile)
+        tier
+      }
+    }
+  }
+
+  private def compileTier (tier: NativeTier, background: Boolean)(compile: => Unit): Unit = {
+    val task = new Runnable {
+      def run (): Unit = try {
+        compile
+        printDebug1("Native tier of " + tier.name + " is ready")
+        tier.complete(None)
+      } catch {
+        case e: Throwable =>
+          printDebug0("Compilation of " + tier.name + " failed, staying on the JVM: " + e.getMessage)
+          // The next instance of the kernel class compiles it again
+          tiers.remove(tier.name, tier)
+          tier.complete(Some(e))
+      }
+    }
+    if (background) executor.execute(task) else {
+      task.run()
+      tier.getFailure.foreach(e => throw e)
+    }
+  }
+}
@@ -27,6 +27,7 @@
 
 package ch.ethz.acl.commons.cir.codegen
 
+import ch.ethz.acl.commons.compiler.CompilerFlags.CompilerFlags
 import ch.ethz.acl.commons.util.Utilities
 import com.sun.org.apache.bcel.internal.classfile.LineNumber
 
@@ -37,6 +38,7 @@ class CApplication (name: String) {
   private var systemHeaders        = List.empty[String]
   private var systemLibraries      = List.empty[String]
   private var registeredStructures = List.empty[CStructure]
+  private var compilerFlags        = List.empty[CompilerFlags]
 
 
   def addSystemHeader(headerName: String) = {
@@ -51,6 +53,14 @@ class CApplication (name: String) {
     }
   }
 
+  def addCompilerFlag(flag: CompilerFlags) = {
+    if (!compilerFlags.contains(flag)) {
+      compilerFlags :+= flag
+    }
+  }
+
+  def getCompilerFlags () = compilerFlags
+
   def addStructure (structure: CStructure): Unit = {
     registeredStructures.find(s => s.getName.equals(structure.getName)) match {
       case Some(x) => assert(x == structure)
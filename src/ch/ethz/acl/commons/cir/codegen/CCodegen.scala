@@ -28,7 +28,7 @@
 package ch.ethz.acl.commons.cir.codegen
 
 import ch.ethz.acl.commons.cir.CIR
-import ch.ethz.acl.commons.cir.extensions.{CGenArrayOpsExpOptExtra, CGenHeapArray, GenComment}
+import ch.ethz.acl.commons.cir.extensions.{CGenAlignment, CGenArrayOpsExpOptExtra, CGenHeapArray, GenComment}
 import ch.ethz.acl.commons.extensions._
 import ch.ethz.acl.commons.types.CGenTypeIR
 
@@ -44,6 +44,7 @@ trait CCodegen extends JNICodegen
   with CGenArrayOpsExpOptExtra
   with CGenPrimitiveOpsExt
   with CGenForOps
+  with CGenParallelLoop
 
   with CGenPrimitiveOps
   with CLikeGenNumericOps
@@ -57,6 +58,7 @@ trait CCodegen extends JNICodegen
   with CGenIfThenElseOpt
   with CGenWhileMirror
   with CGenHeapArray
+  with CGenAlignment
 {
   val IR: CIR
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir.codegen
+
+import java.lang.reflect.Modifier
+
+/**
+  * JNIBinding defines how an argument of a JNI function is mapped to the argument of the staged function:
+  *
+  * ByValue      - primitive values, passed as they are
+  * Critical     - JVM arrays, pinned using GetPrimitiveArrayCritical for the duration of the call
+  * DirectBuffer - direct java.nio buffers, accessed in place using GetDirectBufferAddress
+  * Address      - raw off-heap addresses passed as long, cast to the pointer type of the staged array
+  */
+object JNIBinding extends Enumeration {
+
+  type JNIBinding = Value
+
+  val ByValue      = Value("ByValue")
+  val Critical     = Value("Critical")
+  val DirectBuffer = Value("DirectBuffer")
+  val Address      = Value("Address")
+
+  /**
+    * Binding used when the JVM signature is unknown: arrays are pinned, everything else is passed by value.
+    */
+  def default (isArray: Boolean): JNIBinding = if (isArray) Critical else ByValue
+
+  /**
+    * Infers the bindings of each argument from the JVM declaration of the native method. Direct buffers are bound
+    * as DirectBuffer, and long arguments that correspond to staged arrays are bound as Address.
+    *
+    * @param cls      Class declaring the native method
+    * @param funName  Name of the native method
+    * @param isArray  For each argument of the staged function, whether it is an array
+    * @return         Bindings of each argument
+    */
+  def infer (cls: Class[_], funName: String, isArray: List[Boolean]): List[JNIBinding] = {
+    natives(cls, funName).find(_.getParameterTypes.length == isArray.length) match {
+      case Some(method) => (method.getParameterTypes.toList zip isArray) map { case (c, a) => bindingOf(c, a) }
+      case None => isArray map default
+    }
+  }
+
+  /**
+    * Infers the bindings of each argument of a batched JNI function, see JNICodegen.generateJNIBatchApplication.
+    * Each array argument is followed by its offsets, and each scalar argument is passed as an array.
+    *
+    * @param cls      Class declaring the native method
+    * @param funName  Name of the batched native method
+    * @param isArray  For each argument of the staged function, whether it is an array
+    * @return         Bindings of each argument
+    */
+  def inferBatch (cls: Class[_], funName: String, isArray: List[Boolean]): List[JNIBinding] = {
+    val positions = isArray.scanLeft(0)((p, a) => if (a) p + 2 else p + 1).init
+    natives(cls, funName).find(_.getParameterTypes.length > positions.lastOption.getOrElse(0)) match {
+      case Some(method) => (positions zip isArray) map {
+        case (p, true) => bindingOf(method.getParameterTypes()(p), true)
+        case (_, false) => Critical
+      }
+      case None => isArray map (_ => Critical)
+    }
+  }
+
+  private def bindingOf (c: Class[_], isArray: Boolean): JNIBinding = (c, isArray) match {
+    case (_, true) if classOf[java.nio.Buffer].isAssignableFrom(c) => DirectBuffer
+    case (_, true) if c == java.lang.Long.TYPE => Address
+    case (_, a) => default(a)
+  }
+
+  private def natives (c: Class[_], funName: String): List[java.lang.reflect.Method] = if (c == null) Nil else {
+    c.getDeclaredMethods.toList.filter(m => Modifier.isNative(m.getModifiers) && m.getName == funName) ::: natives(c.getSuperclass, funName)
+  }
+}
@@ -29,6 +29,11 @@ package ch.ethz.acl.commons.cir.codegen
 
 import java.io.{PrintWriter, StringWriter}
 
+import ch.ethz.acl.commons.cir.KernelMetrics
+import ch.ethz.acl.commons.cir.codegen.JNIBinding.JNIBinding
+import ch.ethz.acl.commons.compiler.ISA
+import ch.ethz.acl.commons.compiler.ISA.ISA
+import ch.ethz.acl.commons.system.LocalSystem
 import ch.ethz.acl.commons.types.TheTyp
 import ch.ethz.acl.passera.unsigned.{UByte, UInt, ULong, UShort}
 
@@ -70,33 +75,172 @@ trait JNICodegen extends CUnparser {
     case _ => throw new RuntimeException("JNI can only handle primitive types for now")
   }
 
+  def remapJNI[T](m: Typ[T], binding: JNIBinding): String = binding match {
+    case JNIBinding.DirectBuffer => "jobject"
+    case JNIBinding.Address      => "jlong"
+    case _                       => remapJNI(m)
+  }
+
   def quoteJNI (e: Exp[Any]): String = "jni_" + quote(e)
 
-  def getJNIPrimitives (arg: Sym[Any]): String = {
+  def defaultJNIBindings (syms: List[Sym[Any]]): List[JNIBinding] = {
+    syms.map(s => JNIBinding.default(s.tp.erasure.isArray))
+  }
+
+  def getJNIPrimitives (arg: Sym[Any], binding: JNIBinding): String = {
     val typ  = remap(arg.tp)
     val sym  = quote(arg)
     val jsym = quoteJNI(arg)
-    if (arg.tp.erasure.isArray) {
-      s"""
+    binding match {
+      case JNIBinding.Critical => s"""
         |jboolean isCopy_$sym;
         |// jsize len_$sym  = (*env)->GetArrayLength(env, $jsym);
         |$typ $sym = ($typ) (*env)->GetPrimitiveArrayCritical(env, $jsym, &isCopy_$sym);
       """.stripMargin
-    } else {
-      s"$typ $sym = ($typ) $jsym;"
+      case JNIBinding.DirectBuffer =>
+        s"$typ $sym = ($typ) (*env)->GetDirectBufferAddress(env, $jsym);"
+      case JNIBinding.Address =>
+        s"$typ $sym = ($typ) (intptr_t) $jsym;"
+      case _ =>
+        s"$typ $sym = ($typ) $jsym;"
     }
   }.trim
 
-  def releaseJNIPrimitives (arg: Sym[Any]): String = {
-    if (arg.tp.erasure.isArray) {
-      s"""
-         |(*env)->ReleasePrimitiveArrayCritical(env, ${ quoteJNI(arg) }, (jbyte *) ${ quote(arg) }, 0);
+  /**
+    * Binds the arguments of a JNI function returning returnType. Direct buffers and addresses are resolved before any
+    * array is pinned, as no JNI function may be called while an array is pinned. If a direct buffer argument has no
+    * address, i.e. it is not a direct buffer, an IllegalArgumentException is thrown and the JNI function returns.
+    */
+  def getJNIArguments (fName: String, args: List[(Sym[Any], JNIBinding)], returnType: String): String = {
+    val (pinned, resolved) = args.partition(_._2 == JNIBinding.Critical)
+    val bail = if (returnType == "void") "return;" else "return 0;"
+    val checks = args.collect({ case (m, JNIBinding.DirectBuffer) => s"""
+      |if (${ quote(m) } == NULL) {
+      |    jclass iae = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+      |    if (iae != NULL) (*env)->ThrowNew(env, iae, "A buffer argument of $fName is not a direct buffer");
+      |    $bail
+      |}
+    """.stripMargin.trim })
+    (resolved.map({ case (m, b) => getJNIPrimitives(m, b) }) ++ checks ++ pinned.map({ case (m, b) => getJNIPrimitives(m, b) })).mkString("\n")
+  }
+
+  def releaseJNIPrimitives (arg: Sym[Any], binding: JNIBinding): String = binding match {
+    case JNIBinding.Critical => s"""
+       |(*env)->ReleasePrimitiveArrayCritical(env, ${ quoteJNI(arg) }, (jbyte *) ${ quote(arg) }, 0);
       """.stripMargin.trim
-    } else ""
+    case _ => ""
   }
 
+  /* ================================================================================================================ */
+  /* Instrumentation, see KernelMetrics                                                                               */
+  /* ================================================================================================================ */
+
+  private val metricsRecordFunction = CFunction(
+    "static inline void ngen_metrics_record (uint64_t* metrics, uint64_t cycles, uint64_t bytes, uint64_t elements)",
+    """{
+      |    __atomic_fetch_add(&metrics[0], 1, __ATOMIC_RELAXED);
+      |    __atomic_fetch_add(&metrics[1], cycles, __ATOMIC_RELAXED);
+      |    __atomic_fetch_add(&metrics[3], bytes, __ATOMIC_RELAXED);
+      |    __atomic_fetch_add(&metrics[4], elements, __ATOMIC_RELAXED);
+      |    uint64_t max = __atomic_load_n(&metrics[2], __ATOMIC_RELAXED);
+      |    while (cycles > max && !__atomic_compare_exchange_n(&metrics[2], &max, cycles, true, __ATOMIC_RELAXED, __ATOMIC_RELAXED));
+      |}
+    """.stripMargin)
+
+  /**
+    * Resolves the counters of a kernel through KernelMetrics.address, such that the generated code holds no address
+    * of the JVM that generated it, and cached or bundled libraries can be loaded by any process. If KernelMetrics can
+    * not be reached, the calls are recorded into counters that are never read.
+    */
+  private val metricsResolveFunction = CFunction(
+    "static uint64_t* ngen_metrics_resolve (JNIEnv *env, const char* name)",
+    """{
+      |    static uint64_t unreachable[8];
+      |    jclass cls = (*env)->FindClass(env, "ch/ethz/acl/commons/cir/KernelMetrics");
+      |    jmethodID mid = cls == NULL ? NULL : (*env)->GetStaticMethodID(env, cls, "address", "(Ljava/lang/String;)J");
+      |    jstring str = mid == NULL ? NULL : (*env)->NewStringUTF(env, name);
+      |    uint64_t* metrics = str == NULL ? NULL : (uint64_t*) (intptr_t) (*env)->CallStaticLongMethod(env, cls, mid, str);
+      |    if ((*env)->ExceptionCheck(env) || metrics == NULL) {
+      |        (*env)->ExceptionClear(env);
+      |        metrics = unreachable;
+      |    }
+      |    if (str != NULL) (*env)->DeleteLocalRef(env, str);
+      |    if (cls != NULL) (*env)->DeleteLocalRef(env, cls);
+      |    return metrics;
+      |}
+    """.stripMargin)
+
+  private def hasRdtscp: Boolean = LocalSystem.getISAs().contains(ISA.RDTSCP)
+
+  /**
+    * Reads the time stamp counter. rdtscp waits for all previous instructions to complete, CPUs without rdtscp fall
+    * back to a fenced rdtsc.
+    */
+  protected def metricsTimestamp (): String = if (hasRdtscp) {
+    "__rdtscp(&metrics_aux)"
+  } else {
+    "(_mm_lfence(), __rdtsc())"
+  }
+
+  /**
+    * Resolves the counters of the kernel, and computes the bytes of the call. The first Int argument is taken as the
+    * number of elements processed by the call, and each element accounts for one element of every array argument.
+    * Kernels without an Int argument, or with direct buffers whose element type is unknown, fall back to the extent
+    * in bytes of their arrays and buffers, an upper bound of the bytes they touch. The extents are read before any
+    * array is pinned, as no JNI function can be called while an array is pinned.
+    */
+  protected def metricsBytes (fName: String, args: List[(Sym[Any], JNIBinding)]): String = {
+    cApp.addSystemHeader("x86intrin.h")
+    cApp.addStructure(metricsResolveFunction)
+    cApp.addStructure(metricsRecordFunction)
+    KernelMetrics.register(fName)
+    val size = args.collectFirst({ case (m, JNIBinding.ByValue) if m.tp <:< typ[Int] => quoteJNI(m) })
+    val elements = size match {
+      case Some(n) => s"uint64_t metrics_elements = (uint64_t) ($n > 0 ? $n : 0);"
+      case None    => "uint64_t metrics_elements = 0;"
+    }
+    val traffic = if (size.isDefined && !args.exists(_._2 == JNIBinding.DirectBuffer)) {
+      args.collect({ case (m, JNIBinding.Critical) =>
+        s"metrics_bytes += metrics_elements * sizeof(*((${ remap(m.tp) }) 0));"
+      })
+    } else {
+      args.collect({
+        case (m, JNIBinding.Critical) =>
+          s"metrics_bytes += (uint64_t) (*env)->GetArrayLength(env, ${ quoteJNI(m) }) * sizeof(*((${ remap(m.tp) }) 0));"
+        case (m, JNIBinding.DirectBuffer) =>
+          s"metrics_bytes += (uint64_t) (*env)->GetDirectBufferCapacity(env, ${ quoteJNI(m) });"
+      })
+    }
+    val counters = s"""
+      |static uint64_t* metrics_counters = NULL;
+      |uint64_t* metrics = __atomic_load_n(&metrics_counters, __ATOMIC_ACQUIRE);
+      |if (metrics == NULL) {
+      |    metrics = ngen_metrics_resolve(env, "$fName");
+      |    __atomic_store_n(&metrics_counters, metrics, __ATOMIC_RELEASE);
+      |}
+    """.stripMargin.trim
+    val aux = if (hasRdtscp) List("unsigned int metrics_aux;") else Nil
+    (counters :: aux ::: elements :: "uint64_t metrics_bytes = 0;" :: traffic).mkString("\n")
+  }
+
+  /**
+    * Records the call into the counters of the kernel, allocated off-heap by KernelMetrics and resolved on the first
+    * call. The counters outlive the library, as the registry keeps them reachable.
+    */
+  protected def metricsRecord (fName: String): String = {
+    s"""
+      |uint64_t metrics_cycles = ${ metricsTimestamp() } - metrics_start;
+      |ngen_metrics_record(metrics, metrics_cycles, metrics_bytes, metrics_elements);
+    """.stripMargin.trim
+  }
+
+  /**
+    * Generates the JNI function of a staged function, binding each of its inputs as given by bindings. When
+    * KernelMetrics is enabled, the body of the function is wrapped with time stamps, and each call is recorded into
+    * the counters of the function.
+    */
   def generateJNIApplication [B] (
-    syms: List[Sym[Any]], block: Block[B], fName: String
+    syms: List[Sym[Any]], block: Block[B], fName: String, bindings: List[JNIBinding]
   ): CApplication = {
 
     cApp = new CApplication(fName)
@@ -109,12 +253,17 @@ trait JNICodegen extends CUnparser {
 
     withStream(stringWriter) {
       val returnType = remapJNI(getBlockResult(block).tp)
-      val arguments = syms.map(m => remapJNI(m.tp) + " " +  quoteJNI(m)).mkString(", ")
+      val args = syms zip bindings
+      val arguments = args.map({ case (m, b) => remapJNI(m.tp, b) + " " +  quoteJNI(m) }).mkString(", ")
+      val instrument = KernelMetrics.enabled
       emitGlobalNodes (block)
       stream.println(s"JNIEXPORT $returnType JNICALL Java_$fName (JNIEnv *env, jobject obj, $arguments) {")
-      stream.println((syms map getJNIPrimitives).mkString("\n"))
+      if (instrument) stream.println(metricsBytes(fName, args))
+      stream.println(getJNIArguments(fName, args, returnType))
+      if (instrument) stream.println(s"uint64_t metrics_start = ${ metricsTimestamp() };")
       emitBlock(block)
-      stream.println((syms map releaseJNIPrimitives).mkString("\n"))
+      if (instrument) stream.println(metricsRecord(fName))
+      stream.println(args.map({ case (m, b) => releaseJNIPrimitives(m, b) }).mkString("\n"))
       val returnValue = getBlockResult(block)
       if ( !(returnValue.tp <:< typ[Unit]) )
         stream.println("return (" + remapJNI(returnValue.tp) + ") " + quote(returnValue) + ";")
@@ -124,4 +273,203 @@ trait JNICodegen extends CUnparser {
     cApp
   }
 
+  def generateJNIApplication [B] (
+    syms: List[Sym[Any]], block: Block[B], fName: String
+  ): CApplication = generateJNIApplication(syms, block, fName, defaultJNIBindings(syms))
+
+  /**
+    * Generates a batched JNI function, that executes the staged function count times in a single native call. The
+    * staged function is emitted as a static function, and the JNI function takes the following arguments for each
+    * input of the staged function:
+    *
+    * array  - the array (bound as given by bindings), followed by a jintArray of element offsets, one per call
+    * scalar - an array of scalars, one per call
+    *
+    * followed by the jint count of calls, and for non-Unit functions, an output array storing the result of each
+    * call. All JVM arrays are pinned once for the whole batch. As the kernel runs once per call, CIR.compileBatch
+    * stages it with sequential parallel loops (see Parallelism.sequential).
+    */
+  def generateJNIBatchApplication [B] (
+    syms: List[Sym[Any]], block: Block[B], fName: String, bindings: List[JNIBinding]
+  ): CApplication = {
+
+    cApp = new CApplication(fName)
+    cApp.addSystemHeader("stdint.h")
+    cApp.addSystemHeader("stdbool.h")
+    cApp.addSystemHeader("jni.h")
+
+    val stringOutput = new StringWriter()
+    val stringWriter = new PrintWriter(stringOutput)
+
+    def pin (jarray: String, cType: String, cName: String): String =
+      s"$cType* $cName = ($cType*) (*env)->GetPrimitiveArrayCritical(env, $jarray, NULL);"
+    def unpin (jarray: String, cName: String): String =
+      s"(*env)->ReleasePrimitiveArrayCritical(env, $jarray, (void *) $cName, 0);"
+
+    withStream(stringWriter) {
+      val returnValue = getBlockResult(block)
+      val hasResult   = !(returnValue.tp <:< typ[Unit])
+      val kernelName  = fName + "_kernel"
+      val args        = syms zip bindings
+      //
+      // Emit the staged function as a static C function
+      //
+      emitGlobalNodes (block)
+      val kernelArgs = syms.map(m => remap(m.tp) + " " + quote(m)).mkString(", ")
+      stream.println(s"static ${ remap(returnValue.tp) } $kernelName ($kernelArgs) {")
+      emitBlock(block)
+      if (hasResult) stream.println("return " + quote(returnValue) + ";")
+      stream.println("}")
+      //
+      // Emit the JNI function, pin all the arrays and invoke the kernel count times
+      //
+      val arguments = args.flatMap({
+        case (m, b) if m.tp.erasure.isArray => List(remapJNI(m.tp, b) + " " + quoteJNI(m), "jintArray " + quoteJNI(m) + "_offsets")
+        case (m, _) => List(remapJNI(m.tp) + "Array " + quoteJNI(m))
+      }) ::: List("jint count") ::: (if (hasResult) List(remapJNI(returnValue.tp) + "Array jni_results") else Nil)
+      stream.println(s"JNIEXPORT void JNICALL Java_$fName (JNIEnv *env, jobject obj, ${ arguments.mkString(", ") }) {")
+      stream.println(getJNIArguments(fName, args.filter(_._1.tp.erasure.isArray), "void"))
+      args.foreach({
+        case (m, b) if m.tp.erasure.isArray =>
+          stream.println(pin(quoteJNI(m) + "_offsets", "jint", quote(m) + "_offsets"))
+        case (m, _) =>
+          stream.println(pin(quoteJNI(m), remap(m.tp), quote(m) + "_values"))
+      })
+      if (hasResult) stream.println(pin("jni_results", remap(returnValue.tp), "results"))
+      val callArgs = syms.map(m => if (m.tp.erasure.isArray) {
+        quote(m) + " + " + quote(m) + "_offsets[b]"
+      } else {
+        quote(m) + "_values[b]"
+      }).mkString(", ")
+      stream.println("for (jint b = 0; b < count; b += 1) {")
+      if (hasResult) {
+        stream.println(s"results[b] = $kernelName($callArgs);")
+      } else {
+        stream.println(s"$kernelName($callArgs);")
+      }
+      stream.println("}")
+      if (hasResult) stream.println(unpin("jni_results", "results"))
+      args.reverse.foreach({
+        case (m, b) if m.tp.erasure.isArray =>
+          stream.println(unpin(quoteJNI(m) + "_offsets", quote(m) + "_offsets"))
+          stream.println(releaseJNIPrimitives(m, b))
+        case (m, _) =>
+          stream.println(unpin(quoteJNI(m), quote(m) + "_values"))
+      })
+      stream.println("}")
+    }
+    cApp.setGeneratedCode(stringOutput.toString)
+    cApp
+  }
+
+  /**
+    * Generates a multi-versioned JNI function. Each version of the staged function, given as its ISA tier, inputs and
+    * block, is emitted as a static C function with the target attribute of its tier (see MultiVersion). The JNI
+    * function selects the most specific version supported by the CPU at its first invocation, using cpuid through
+    * __builtin_cpu_supports, and calls the selected version through a function pointer afterwards.
+    *
+    * All versions must have the same signature. Versions must be ordered from the most to the least specific tier,
+    * and the last version must run on any x86_64 CPU.
+    */
+  def generateJNIMultiVersionApplication [B] (
+    versions: List[(ISA, List[Sym[Any]], Block[B])], fName: String, bindings: List[JNIBinding]
+  ): CApplication = {
+
+    cApp = new CApplication(fName)
+    cApp.addSystemHeader("stdint.h")
+    cApp.addSystemHeader("stdbool.h")
+    cApp.addSystemHeader("jni.h")
+
+    val stringOutput = new StringWriter()
+    val stringWriter = new PrintWriter(stringOutput)
+
+    withStream(stringWriter) {
+      val (_, syms, block) = versions.head
+      val returnValue = getBlockResult(block)
+      val returnType  = remap(returnValue.tp)
+      val hasResult   = !(returnValue.tp <:< typ[Unit])
+      val kernelType  = fName + "_kernel_t"
+      val kernelPtr   = fName + "_kernel"
+      val select      = fName + "_select"
+      //
+      // Emit each version as a static C function, targeting its ISA tier
+      //
+      stream.println(s"typedef $returnType (*$kernelType) (${ syms.map(m => remap(m.tp)).mkString(", ") });")
+      versions.foreach({ case (isa, vSyms, vBlock) =>
+        val target = MultiVersion.target(isa).map(t => "__attribute__((target(\"" + t + "\"))) ").getOrElse("")
+        val vArgs  = vSyms.map(m => remap(m.tp) + " " + quote(m)).mkString(", ")
+        emitGlobalNodes (vBlock)
+        stream.println(s"static $target$returnType ${ fName }_${ MultiVersion.suffix(isa) } ($vArgs) {")
+        emitBlock(vBlock)
+        if (hasResult) stream.println("return " + quote(getBlockResult(vBlock)) + ";")
+        stream.println("}")
+      })
+      //
+      // Emit the dispatcher, checking the tiers from the most to the least specific one
+      //
+      stream.println(s"static $kernelType $kernelPtr = NULL;")
+      stream.println(s"static $kernelType $select (void) {")
+      stream.println("__builtin_cpu_init();")
+      versions.foreach({ case (isa, _, _) =>
+        val name = fName + "_" + MultiVersion.suffix(isa)
+        MultiVersion.features(isa) match {
+          case Nil => stream.println(s"return $name;")
+          case fs  => stream.println("if (" + fs.map(f => "__builtin_cpu_supports(\"" + f + "\")").mkString(" && ") + s") return $name;")
+        }
+      })
+      stream.println("}")
+      //
+      // Emit the JNI function, invoking the selected version
+      //
+      val args = syms zip bindings
+      val arguments = args.map({ case (m, b) => remapJNI(m.tp, b) + " " +  quoteJNI(m) }).mkString(", ")
+      stream.println(s"JNIEXPORT ${ remapJNI(returnValue.tp) } JNICALL Java_$fName (JNIEnv *env, jobject obj, $arguments) {")
+      stream.println(s"if ($kernelPtr == NULL) $kernelPtr = $select();")
+      stream.println(getJNIArguments(fName, args, remapJNI(returnValue.tp)))
+      val call = s"$kernelPtr(${ syms.map(m => quote(m)).mkString(", ") })"
+      if (hasResult) stream.println(s"$returnType result = $call;") else stream.println(call + ";")
+      stream.println(args.map({ case (m, b) => releaseJNIPrimitives(m, b) }).mkString("\n"))
+      if (hasResult) stream.println("return (" + remapJNI(returnValue.tp) + ") result;")
+      stream.println("}")
+    }
+    cApp.setGeneratedCode(stringOutput.toString)
+    cApp
+  }
+
+  /**
+    * Generates a JNI function calling a C function through a pointer. The first argument of the JNI function is the
+    * address of the C function as a jlong, followed by the arguments of the C function, having the types of syms.
+    * Used to invoke the value specializations of a staged function, see CIR.specialize.
+    */
+  def generateJNIDispatchApplication [R] (
+    kernel: Sym[Any], syms: List[Sym[Any]], result: Typ[R], fName: String, bindings: List[JNIBinding]
+  ): CApplication = {
+
+    cApp = new CApplication(fName)
+    cApp.addSystemHeader("stdint.h")
+    cApp.addSystemHeader("stdbool.h")
+    cApp.addSystemHeader("jni.h")
+
+    val stringOutput = new StringWriter()
+    val stringWriter = new PrintWriter(stringOutput)
+
+    withStream(stringWriter) {
+      val returnType = remap(result)
+      val hasResult  = !(result <:< typ[Unit])
+      val kernelType = fName + "_kernel_t"
+      stream.println(s"typedef $returnType (*$kernelType) (${ syms.map(m => remap(m.tp)).mkString(", ") });")
+      val args = (kernel :: syms) zip bindings
+      val arguments = args.map({ case (m, b) => remapJNI(m.tp, b) + " " +  quoteJNI(m) }).mkString(", ")
+      stream.println(s"JNIEXPORT ${ remapJNI(result) } JNICALL Java_$fName (JNIEnv *env, jobject obj, $arguments) {")
+      stream.println(getJNIArguments(fName, args, remapJNI(result)))
+      val call = s"(($kernelType) (intptr_t) ${ quote(kernel) })(${ syms.map(m => quote(m)).mkString(", ") })"
+      if (hasResult) stream.println(s"$returnType result = $call;") else stream.println(call + ";")
+      stream.println(args.map({ case (m, b) => releaseJNIPrimitives(m, b) }).mkString("\n"))
+      if (hasResult) stream.println("return (" + remapJNI(result) + ") result;")
+      stream.println("}")
+    }
+    cApp.setGeneratedCode(stringOutput.toString)
+    cApp
+  }
+
 }
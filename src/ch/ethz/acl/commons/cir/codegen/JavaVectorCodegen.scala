@@ -0,0 +1,294 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir.codegen
+
+import java.io.{PrintWriter, StringWriter}
+
+import ch.ethz.acl.commons.cir.{IntrinsicsIR, JavaKernel}
+import ch.ethz.acl.commons.cir.extensions.{CGenArrayOpsExpOptExtra, GenComment}
+import ch.ethz.acl.commons.extensions._
+import ch.ethz.acl.commons.types.TheTyp
+
+import scala.lms.common._
+import scala.lms.internal.GenerationFailedException
+
+/**
+  * Code generator of pure Java code, using the Java Vector API (jdk.incubator.vector). It covers the scalar subset of
+  * CIR (loops, arrays, variables, conditionals and arithmetic) and maps the 256-bit AVX, AVX2 and FMA intrinsics on
+  * floats and 32-bit integers to FloatVector and IntVector operations on SPECIES_256. Shuffles with constant control
+  * operands become rearranges by constant VectorShuffles, and the 128-bit float intrinsics of horizontal reductions
+  * operate on SPECIES_128. Staged functions using any other node fail with a GenerationFailedException, and are left
+  * to their JVM implementation.
+  *
+  * Differences with the C code:
+  *  - parallel loops are executed by the calling thread as a single chunk,
+  *  - Java arrays have no address, such that align_peel is 0 and aligned loads are unaligned loads,
+  *  - non-temporal stores are regular stores, and fences are omitted.
+  */
+trait JavaVectorCodegen extends CUnparser
+  with GenCast
+  with GenComment
+  with CGenArrayOpsExpOptExtra
+  with CGenForOps
+  with CGenPrimitiveOps
+  with CLikeGenNumericOps
+  with CLikeGenEqual
+  with CLikeGenOrderingOps
+  with CLikeGenBooleanOps
+  with CLikeGenVariablesRename
+  with CGenIfThenElseOpt
+  with CGenWhileMirror
+{
+  val IR: IntrinsicsIR
+  import IR._
+
+  private val jMath = "java.lang.Math"
+
+  override def remap[A](m: Typ[A]): String = {
+    if (m.erasure == classOf[Variable[Any]]) {
+      remap(m.typeArguments.head)
+    } else if (m.erasure.isArray) {
+      remap(m.typeArguments.head) + "[]"
+    } else m match {
+      case _ if m <:< TheTyp.toTyp[IR.type, Unit](IR)    => "void"
+      case _ if m <:< TheTyp.toTyp[IR.type, Double](IR)  => "double"
+      case _ if m <:< TheTyp.toTyp[IR.type, Float](IR)   => "float"
+      case _ if m <:< TheTyp.toTyp[IR.type, Char](IR)    => "char"
+      case _ if m <:< TheTyp.toTyp[IR.type, Boolean](IR) => "boolean"
+      case _ if m <:< TheTyp.toTyp[IR.type, Long](IR)    => "long"
+      case _ if m <:< TheTyp.toTyp[IR.type, Int](IR)     => "int"
+      case _ if m <:< TheTyp.toTyp[IR.type, Short](IR)   => "short"
+      case _ if m <:< TheTyp.toTyp[IR.type, Byte](IR)    => "byte"
+      case _ => m.erasure.getSimpleName match {
+        case "__m256"  => "FloatVector"
+        case "__m128"  => "FloatVector"
+        case "__m256i" => "IntVector"
+        case name => throw new GenerationFailedException("No Java type for " + name)
+      }
+    }
+  }
+
+  override def isPrimitiveType(tpe: String): Boolean = tpe match {
+    case "double" | "float" | "char" | "boolean" | "long" | "int" | "short" | "byte" => true
+    case _ => super.isPrimitiveType(tpe)
+  }
+
+  override def quote(x: Exp[Any]): String = x match {
+    case Const(l: Long)   => l.toString + "L"
+    case Const(c: Char)   => "((char) " + c.toInt + ")"
+    case _ => super.quote(x)
+  }
+
+  private def intArray (a: Exp[Any]): Boolean = remap(a.tp) == "int[]"
+
+  // Constant shuffles of the generated class, by species and source lanes
+  private val shuffles = scala.collection.mutable.LinkedHashMap.empty[String, String]
+
+  /**
+    * Name of the constant shuffle of the given float species and source lanes. In a rearrange of two vectors, the
+    * lanes from the number of lanes of the species up select the lanes of the second vector.
+    */
+  private def shuffle (species: String, lanes: Seq[Int]): String = {
+    shuffles.getOrElseUpdate(species + ", " + lanes.mkString(", "), "S" + shuffles.size)
+  }
+
+  private def immediate (x: Exp[Int]): Int = x match {
+    case Const(i) => i
+    case _ => throw new GenerationFailedException("No Java implementation of a variable immediate operand " + x)
+  }
+
+  // Lanes of the selector of each 128-bit half of _mm256_permute2f128_ps, zeroing a half being unsupported
+  private def half (imm: Int): Seq[Int] = {
+    if ((imm & 8) != 0) throw new GenerationFailedException("No Java implementation of a zeroed half")
+    (0 until 4).map(_ + 4 * (imm & 3))
+  }
+
+  // Mask of the lanes whose most significant bit is set, as used by the masked loads and stores
+  private def lanes (m: Exp[Any]): String = quote(m) + ".lt(0).cast(F256)"
+
+  override def emitNode(sym: Sym[Any], rhs: Def[Any]) = rhs match {
+
+    //
+    // CIR nodes having a C specific implementation
+    //
+    case ParallelThreads() => emitValDef(sym, "1")
+    case ParallelChunks(start, end, _, _, _, tid, lo, hi, body) =>
+      stream.println("{")
+      stream.println(src"int $tid = 0;")
+      stream.println(src"int $lo = $start;")
+      stream.println(src"int $hi = $end;")
+      emitBlock(body)
+      stream.println("}")
+    case While(c, b) =>
+      stream.println("while (true) {")
+      emitBlock(c)
+      stream.println("if (!" + quote(getBlockResult(c)) + ") break;")
+      emitBlock(b)
+      stream.println("}")
+    case d@ArrayNew(n)                => emitValDef(sym, "new " + remap(d.m) + "[" + quote(n) + "]")
+    case IntShiftRightLogical(a, b)   => emitValDef(sym, src"$a >>> $b")
+    case ReinterpretCast(_)           => throw new GenerationFailedException("No Java implementation of " + rhs)
+    case AlignPeel(_, _, _)           => emitValDef(sym, "0")
+    case StreamThreshold(_)           => emitValDef(sym, "Integer.MAX_VALUE")
+    case MathMin(a, b)                => emitValDef(sym, src"$jMath.min($a, $b)")
+    case MathMax(a, b)                => emitValDef(sym, src"$jMath.max($a, $b)")
+    case MathAbs(a)                   => emitValDef(sym, src"$jMath.abs($a)")
+    case MathSqrt(a)                  => emitValDef(sym, "(" + remap(sym.tp) + ") " + src"$jMath.sqrt($a)")
+
+    //
+    // 256-bit float intrinsics
+    //
+    case MM256_LOADU_PS(a, i)         => emitValDef(sym, src"FloatVector.fromArray(F256, $a, $i)")
+    case MM256_LOAD_PS(a, i)          => emitValDef(sym, src"FloatVector.fromArray(F256, $a, $i)")
+    case MM256_STOREU_PS(a, v, i)     => stream.println(src"$v.intoArray($a, $i);")
+    case MM256_STORE_PS(a, v, i)      => stream.println(src"$v.intoArray($a, $i);")
+    case MM256_STREAM_PS(a, v, i)     => stream.println(src"$v.intoArray($a, $i);")
+    case MM256_SET1_PS(x)             => emitValDef(sym, src"FloatVector.broadcast(F256, $x)")
+    case MM256_SETZERO_PS()           => emitValDef(sym, src"FloatVector.zero(F256)")
+    case MM256_ADD_PS(a, b)           => emitValDef(sym, src"$a.add($b)")
+    case MM256_SUB_PS(a, b)           => emitValDef(sym, src"$a.sub($b)")
+    case MM256_MUL_PS(a, b)           => emitValDef(sym, src"$a.mul($b)")
+    case MM256_DIV_PS(a, b)           => emitValDef(sym, src"$a.div($b)")
+    case MM256_MIN_PS(a, b)           => emitValDef(sym, src"$a.min($b)")
+    case MM256_MAX_PS(a, b)           => emitValDef(sym, src"$a.max($b)")
+    case MM256_SQRT_PS(a)             => emitValDef(sym, src"$a.lanewise(VectorOperators.SQRT)")
+    case MM256_FMADD_PS(a, b, c)      => emitValDef(sym, src"$a.fma($b, $c)")
+    case MM256_FMSUB_PS(a, b, c)      => emitValDef(sym, src"$a.fma($b, $c.neg())")
+    case MM256_FNMADD_PS(a, b, c)     => emitValDef(sym, src"$a.neg().fma($b, $c)")
+    case MM256_ANDNOT_PS(a, b)        => emitValDef(sym, src"$b.reinterpretAsInts().and($a.reinterpretAsInts().not()).reinterpretAsFloats()")
+    case MM256_MASKLOAD_PS(a, m, i)   => emitValDef(sym, src"FloatVector.fromArray(F256, $a, $i, " + lanes(m) + ")")
+    case MM256_MASKSTORE_PS(a, m, v, i) => stream.println(src"$v.intoArray($a, $i, " + lanes(m) + ");")
+    case MM256_UNPACKLO_PS(a, b)      => emitValDef(sym, src"$a.rearrange(" + shuffle("F256", Seq(0, 8, 1, 9, 4, 12, 5, 13)) + src", $b)")
+    case MM256_UNPACKHI_PS(a, b)      => emitValDef(sym, src"$a.rearrange(" + shuffle("F256", Seq(2, 10, 3, 11, 6, 14, 7, 15)) + src", $b)")
+    case MM256_SHUFFLE_PS(a, b, imm8) =>
+      val imm = immediate(imm8)
+      val control = Seq(0, 4).flatMap(l => Seq(l + (imm & 3), l + ((imm >> 2) & 3), 8 + l + ((imm >> 4) & 3), 8 + l + ((imm >> 6) & 3)))
+      emitValDef(sym, src"$a.rearrange(" + shuffle("F256", control) + src", $b)")
+    case MM256_PERMUTE2F128_PS(a, b, imm8) =>
+      val imm = immediate(imm8)
+      emitValDef(sym, src"$a.rearrange(" + shuffle("F256", half(imm) ++ half(imm >> 4)) + src", $b)")
+
+    //
+    // 128-bit float intrinsics, as used by the horizontal reductions
+    //
+    case MM256_EXTRACTF128_PS(a, imm8) => emitValDef(sym, src"((FloatVector) $a.reinterpretShape(F128, " + (immediate(imm8) & 1) + "))")
+    case MM256_CASTPS256_PS128(a)     => emitValDef(sym, src"((FloatVector) $a.reinterpretShape(F128, 0))")
+    case MM_ADD_PS(a, b)              => emitValDef(sym, src"$a.add($b)")
+    case MM_MAX_PS(a, b)              => emitValDef(sym, src"$a.max($b)")
+    case MM_HADD_PS(a, b)             =>
+      val (even, odd) = (shuffle("F128", Seq(0, 2, 4, 6)), shuffle("F128", Seq(1, 3, 5, 7)))
+      emitValDef(sym, src"$a.rearrange($even, $b).add($a.rearrange($odd, $b))")
+    case MM_MOVEHL_PS(a, b)           => emitValDef(sym, src"$b.rearrange(" + shuffle("F128", Seq(2, 3, 6, 7)) + src", $a)")
+    case MM_PERMUTE_PS(a, imm8)       =>
+      val imm = immediate(imm8)
+      emitValDef(sym, src"$a.rearrange(" + shuffle("F128", (0 until 4).map(k => (imm >> (2 * k)) & 3)) + ")")
+    case MM_CVTSS_F32(a)              => emitValDef(sym, src"$a.lane(0)")
+
+    //
+    // 256-bit integer intrinsics, on arrays of 32-bit integers only
+    //
+    case MM256_LOADU_SI256(a, i) if intArray(a)    => emitValDef(sym, src"IntVector.fromArray(I256, $a, $i)")
+    case MM256_LOAD_SI256(a, i) if intArray(a)     => emitValDef(sym, src"IntVector.fromArray(I256, $a, $i)")
+    case MM256_STOREU_SI256(a, v, i) if intArray(a) => stream.println(src"$v.intoArray($a, $i);")
+    case MM256_STORE_SI256(a, v, i) if intArray(a)  => stream.println(src"$v.intoArray($a, $i);")
+    case MM256_SET1_EPI32(x)          => emitValDef(sym, src"IntVector.broadcast(I256, $x)")
+    case MM256_SETZERO_SI256()        => emitValDef(sym, src"IntVector.zero(I256)")
+    case MM256_ADD_EPI32(a, b)        => emitValDef(sym, src"$a.add($b)")
+    case MM256_SUB_EPI32(a, b)        => emitValDef(sym, src"$a.sub($b)")
+    case MM256_MULLO_EPI32(a, b)      => emitValDef(sym, src"$a.mul($b)")
+    case MM256_MIN_EPI32(a, b)        => emitValDef(sym, src"$a.min($b)")
+    case MM256_MAX_EPI32(a, b)        => emitValDef(sym, src"$a.max($b)")
+    case MM256_CMPGT_EPI32(a, b)      => emitValDef(sym, src"((IntVector) $a.compare(VectorOperators.GT, $b).toVector())")
+    case MM256_SETR_EPI32(e0, e1, e2, e3, e4, e5, e6, e7) =>
+      emitValDef(sym, "IntVector.fromArray(I256, new int[] {" + List(e0, e1, e2, e3, e4, e5, e6, e7).map(quote).mkString(", ") + "}, 0)")
+
+    //
+    // Ordering of the non-temporal stores is irrelevant, as they are regular stores
+    //
+    case MM_SFENCE()                  =>
+
+    case _ => super.emitNode(sym, rhs)
+  }
+
+  /**
+    * Generates a Java class with a static method kernel, implementing the staged function. If an interface is given,
+    * the class also implements its single abstract method by calling kernel, such that an instance of the class is
+    * called through the interface without boxing the arguments.
+    *
+    * @param syms       Inputs of the staged function, the arguments of kernel
+    * @param block      The staged function
+    * @param className  Name of the generated class
+    * @param iface      Interface implemented by the class, if any
+    * @return           The Java source of the class
+    */
+  def generateJavaClass[B](syms: List[Sym[Any]], block: Block[B], className: String, iface: Option[Class[_]] = None): String = {
+    // The C generators mixed in register headers, which are irrelevant to Java
+    cApp = new CApplication(className)
+    shuffles.clear()
+    val returnType = remap(getBlockResult(block).tp)
+    val arguments = syms.map(m => remap(m.tp) + " " + quote(m)).mkString(", ")
+    //
+    // The body is generated first, collecting the shuffles declared by the class
+    //
+    val bodyOutput = new StringWriter()
+    withStream(new PrintWriter(bodyOutput)) {
+      emitBlock(block)
+      val returnValue = getBlockResult(block)
+      if (!(returnValue.tp <:< typ[Unit]))
+        stream.println("return " + quote(returnValue) + ";")
+    }
+    val stringOutput = new StringWriter()
+    val stringWriter = new PrintWriter(stringOutput)
+    withStream(stringWriter) {
+      val void = getBlockResult(block).tp <:< typ[Unit]
+      stream.println("import jdk.incubator.vector.*;")
+      stream.println()
+      stream.println(s"public final class $className" + iface.map(" implements " + _.getCanonicalName).getOrElse("") + " {")
+      stream.println()
+      stream.println("private static final VectorSpecies<Float>   F256 = FloatVector.SPECIES_256;")
+      stream.println("private static final VectorSpecies<Float>   F128 = FloatVector.SPECIES_128;")
+      stream.println("private static final VectorSpecies<Integer> I256 = IntVector.SPECIES_256;")
+      shuffles.foreach { case (values, name) =>
+        stream.println(s"private static final VectorShuffle<Float> $name = VectorShuffle.fromValues($values);")
+      }
+      stream.println()
+      stream.println(s"public static $returnType kernel ($arguments) {")
+      stream.print(bodyOutput.toString)
+      stream.println("}")
+      iface.foreach(i => {
+        val call = "kernel(" + syms.map(quote).mkString(", ") + ");"
+        stream.println()
+        stream.println(s"public $returnType ${JavaKernel.method(i).getName} ($arguments) {")
+        stream.println(if (void) call else "return " + call)
+        stream.println("}")
+      })
+      stream.println("}")
+    }
+    stringOutput.toString
+  }
+}
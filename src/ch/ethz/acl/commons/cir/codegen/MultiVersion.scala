@@ -0,0 +1,100 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir.codegen
+
+import ch.ethz.acl.commons.compiler.ISA
+import ch.ethz.acl.commons.compiler.ISA.ISA
+
+/**
+  * Describes the versions of a multi-versioned kernel. Each version is a body of the kernel staged for one ISA tier,
+  * emitted as a C function with a target attribute, such that all versions reside in a single library compiled for
+  * the baseline x86_64 ISA. At the first call, a cpuid-based dispatcher selects the most specific version supported
+  * by the executing CPU.
+  *
+  * The supported tiers, from the most to the least specific, are:
+  *
+  * AVX512 - AVX-512 F, CD, BW, DQ and VL, including AVX2 and FMA
+  * AVX2   - AVX2 and FMA
+  * AVX    - AVX without FMA
+  * SSE42  - SSE up to SSE4.2
+  * None   - scalar code, running on any x86_64 CPU
+  */
+object MultiVersion {
+
+  val tiers: List[ISA] = List(ISA.AVX512, ISA.AVX2, ISA.AVX, ISA.SSE42, ISA.None)
+
+  /**
+    * Orders the given ISAs from the most to the least specific tier, and makes sure the scalar tier is included
+    */
+  def versions (isas: List[ISA]): List[ISA] = {
+    isas.foreach(isa => if (!tiers.contains(isa)) throw new IllegalArgumentException(s"$isa is not a dispatch tier"))
+    tiers.filter(isa => isa == ISA.None || isas.contains(isa))
+  }
+
+  /**
+    * Suffix of the C function implementing the version of the given tier
+    */
+  def suffix (isa: ISA): String = isa match {
+    case ISA.None => "scalar"
+    case _ => isa.toString.toLowerCase
+  }
+
+  /**
+    * Value of the GCC / Clang target attribute of the given tier
+    */
+  def target (isa: ISA): Option[String] = isa match {
+    case ISA.AVX512 => Some("avx512f,avx512cd,avx512bw,avx512dq,avx512vl,avx2,fma")
+    case ISA.AVX2   => Some("avx2,fma")
+    case ISA.AVX    => Some("avx")
+    case ISA.SSE42  => Some("sse4.2")
+    case _ => None
+  }
+
+  /**
+    * ISAs available to the version of the given tier
+    */
+  def isas (isa: ISA): List[ISA] = isa match {
+    case ISA.AVX512 => List(ISA.AVX512, ISA.AVX2, ISA.FMA, ISA.AVX, ISA.SSE42)
+    case ISA.AVX2   => List(ISA.AVX2, ISA.FMA, ISA.AVX, ISA.SSE42)
+    case ISA.AVX    => List(ISA.AVX, ISA.SSE42)
+    case ISA.SSE42  => List(ISA.SSE42)
+    case _ => Nil
+  }
+
+  /**
+    * CPU features, as named by __builtin_cpu_supports, that must be present to execute the given tier
+    */
+  def features (isa: ISA): List[String] = isa match {
+    case ISA.AVX512 => List("avx512f", "avx512cd", "avx512bw", "avx512dq", "avx512vl")
+    case ISA.AVX2   => List("avx2", "fma")
+    case ISA.AVX    => List("avx")
+    case ISA.SSE42  => List("sse4.2")
+    case _ => Nil
+  }
+
+}
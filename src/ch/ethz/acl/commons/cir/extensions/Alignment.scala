@@ -0,0 +1,152 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.cir.extensions
+
+import ch.ethz.acl.commons.cir.codegen.{CFunction, CUnparser}
+import ch.ethz.acl.commons.compiler.OSType
+import ch.ethz.acl.commons.system.LocalSystem
+import com.typesafe.config.ConfigFactory
+
+import scala.lms.common._
+import scala.reflect.SourceContext
+
+/**
+  * Global settings of the streaming (non-temporal) stores, read from the settings.stream section of
+  * ch.ethz.acl.settings.conf. Outputs larger than the threshold do not fit in the last level cache, and are written
+  * with non-temporal stores to avoid the read-for-ownership of each written cache line.
+  */
+object Streaming {
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+  /**
+    * Size in bytes above which outputs are streamed. 0 stands for the size of the last level cache of the machine
+    * running the kernel, looked up by the generated code on its first call.
+    */
+  var threshold: Long = config.getLong("settings.stream.threshold")
+}
+
+trait AlignmentOps extends Base {
+
+  /** align_peel computes the number of elements between a(offset) and the next address of a, that is a multiple of
+    * alignment. Loops starting at offset can execute that many scalar iterations, before continuing with aligned
+    * vector loads and stores of a.
+    *
+    * @param a          Array, whose elements are aligned to their size
+    * @param offset     Index of the first element of the loop
+    * @param alignment  Alignment in bytes, must be a power of 2
+    * @return           Number of elements in [0, alignment / sizeof(T))
+    */
+  def align_peel[T:Typ](a: Rep[Array[T]], offset: Rep[Int], alignment: Int)(implicit pos: SourceContext): Rep[Int]
+
+  /** stream_threshold computes the number of elements above which an output is written with non-temporal stores,
+    * see Streaming. A configured threshold is staged as a constant, while the size of the last level cache is looked
+    * up at runtime, such that the generated code does not depend on the caches of the staging machine.
+    *
+    * @param elementSize  Size of the elements of the output in bytes
+    * @return             Number of elements
+    */
+  def stream_threshold(elementSize: Int)(implicit pos: SourceContext): Rep[Int]
+}
+
+trait AlignmentExp extends AlignmentOps with EffectExp {
+
+  case class AlignPeel[T:Typ](a: Exp[Array[T]], offset: Exp[Int], alignment: Int) extends Def[Int] {
+    val m = manifest[T]
+  }
+
+  case class StreamThreshold(elementSize: Int) extends Def[Int]
+
+  def align_peel[T:Typ](a: Exp[Array[T]], offset: Exp[Int], alignment: Int)(implicit pos: SourceContext): Exp[Int] = {
+    require(alignment > 0 && (alignment & (alignment - 1)) == 0, "Alignment must be a power of 2: " + alignment)
+    AlignPeel(a, offset, alignment)
+  }
+
+  def stream_threshold(elementSize: Int)(implicit pos: SourceContext): Exp[Int] = Streaming.threshold match {
+    case 0 => StreamThreshold(elementSize)
+    case t => Const(scala.math.min(t / elementSize, Int.MaxValue.toLong).toInt)
+  }
+
+  override def mirror[A:Typ](e: Def[A], f: Transformer)(implicit pos: SourceContext): Exp[A] = (e match {
+    case StreamThreshold(elementSize) => toAtom(StreamThreshold(elementSize))
+    case c@AlignPeel(a, offset, alignment) => align_peel(f(a), f(offset), alignment)(c.m, pos)
+    case Reflect(c@AlignPeel(a, offset, alignment), u, es) =>
+      reflectMirrored(Reflect(AlignPeel(f(a), f(offset), alignment)(c.m), mapOver(f,u), f(es)))(mtype(manifest[A]), pos)
+    case _ => super.mirror(e,f)
+  }).asInstanceOf[Exp[A]]
+}
+
+trait CGenAlignment extends CUnparser {
+
+  val IR: AlignmentExp
+  import IR._
+
+  /**
+    * Number of elements of the given size that fit in the last level cache, looked up once per library. Machines
+    * reporting no cache size default to 8 MB.
+    */
+  private val streamThresholdFunction = CFunction(
+    "static int32_t ngen_stream_threshold (int64_t elementSize)",
+    """{
+      |    static int64_t llc = 0;
+      |    int64_t size = __atomic_load_n(&llc, __ATOMIC_RELAXED);
+      |    if (size == 0) {
+      |#if defined(_SC_LEVEL3_CACHE_SIZE)
+      |        size = sysconf(_SC_LEVEL3_CACHE_SIZE);
+      |        if (size <= 0) size = sysconf(_SC_LEVEL2_CACHE_SIZE);
+      |#elif defined(__APPLE__)
+      |        size_t length = sizeof(size);
+      |        if (sysctlbyname("hw.l3cachesize", &size, &length, NULL, 0) != 0 || size <= 0) {
+      |            length = sizeof(size);
+      |            if (sysctlbyname("hw.l2cachesize", &size, &length, NULL, 0) != 0) size = 0;
+      |        }
+      |#endif
+      |        if (size <= 0) size = 8 << 20;
+      |        __atomic_store_n(&llc, size, __ATOMIC_RELAXED);
+      |    }
+      |    return size / elementSize < INT32_MAX ? (int32_t) (size / elementSize) : INT32_MAX;
+      |}
+    """.stripMargin)
+
+  override def emitNode(sym: Sym[Any], rhs: Def[Any]) = rhs match {
+    case StreamThreshold(elementSize) => {
+      cApp.addSystemHeader("stdint.h")
+      cApp.addSystemHeader("unistd.h")
+      if (LocalSystem.getOS() == OSType.MAC) {
+        cApp.addSystemHeader("sys/types.h")
+        cApp.addSystemHeader("sys/sysctl.h")
+      }
+      cApp.addStructure(streamThresholdFunction)
+      emitValDef(sym, s"ngen_stream_threshold($elementSize)")
+    }
+    case AlignPeel(a, offset, alignment) => {
+      cApp.addSystemHeader("stdint.h")
+      val mask = alignment - 1
+      emitValDef(sym, src"(int) ((($alignment - ((uintptr_t) ($a + $offset) & $mask)) & $mask) / sizeof(*$a))")
+    }
+    case _ => super.emitNode(sym, rhs)
+  }
+}
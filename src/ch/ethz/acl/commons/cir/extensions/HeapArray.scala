@@ -27,7 +27,7 @@
 
 package ch.ethz.acl.commons.cir.extensions
 
-import ch.ethz.acl.commons.cir.codegen.CUnparser
+import ch.ethz.acl.commons.cir.codegen.{CFunction, CUnparser}
 import ch.ethz.acl.commons.extensions.{CastExp, CastExpOpt}
 import ch.ethz.acl.commons.types.TheTyp
 import scala.collection.mutable
@@ -298,6 +298,36 @@ trait CGenHeapArray extends CUnparser { self =>
   val IR: HeapArrayExp
   import IR._
 
+  /**
+    * Heap arrays are aligned to a cache line, such that vector loads and stores from the start of the array are
+    * aligned, and no cache line is shared with other allocations. The alignment is implemented on top of malloc, as
+    * posix_memalign and aligned_alloc are not declared in C99. The address returned by malloc is stored just before
+    * the aligned array, and released by ngen_aligned_free.
+    */
+  val heapArrayAlignment = 64
+
+  private lazy val alignedMallocFunction = CFunction(
+    "static inline void* ngen_aligned_malloc (size_t bytes)",
+    s"""{
+      |    void* raw = malloc(bytes + sizeof(void*) + $heapArrayAlignment - 1);
+      |    if (raw == NULL) {
+      |        return NULL;
+      |    }
+      |    uintptr_t ptr = ((uintptr_t) raw + sizeof(void*) + $heapArrayAlignment - 1) & ~((uintptr_t) $heapArrayAlignment - 1);
+      |    ((void**) ptr)[-1] = raw;
+      |    return (void*) ptr;
+      |}
+    """.stripMargin)
+
+  private lazy val alignedFreeFunction = CFunction(
+    "static inline void ngen_aligned_free (void* ptr)",
+    """{
+      |    if (ptr != NULL) {
+      |        free(((void**) ptr)[-1]);
+      |    }
+      |}
+    """.stripMargin)
+
   override def remap[T](m: Typ[T]): String = m match {
     case _ if m <:< ManifestTyp(manifest[HeapArray[Any]]) => {
       remap(m.typeArguments.head) + "*"
@@ -312,14 +342,17 @@ trait CGenHeapArray extends CUnparser { self =>
     }
     case HeapArrayFree  (arr) => {
       cApp.addSystemHeader("stdlib.h")
-      stream.println("free(" + quote(arr) + ");")
+      cApp.addStructure(alignedFreeFunction)
+      stream.println("ngen_aligned_free(" + quote(arr) + ");")
     }
     case HeapArrayCast(a) => emitValDef(sym, "(" + remap(sym.tp) + ") " + quote(a))
     case HeapArrayApply (arr, n) => emitValDef(sym, quote(arr) + "[" + quote(n) + "]")
     case HeapArrayUpdate(arr, n, y) => stream.println(quote(arr) + "[" + quote(n) + "] = " + quote(y) + ";")
     case ref@HeapArrayAlloc (arr, n) => {
       cApp.addSystemHeader("stdlib.h")
-      val malloc = "malloc (sizeof(" + remap(ref.mT) + ") * " + quote(n) + ");"
+      cApp.addSystemHeader("stdint.h")
+      cApp.addStructure(alignedMallocFunction)
+      val malloc = "ngen_aligned_malloc (sizeof(" + remap(ref.mT) + ") * " + quote(n) + ");"
       stream.println(quote(arr) + " = " + "(" + remap(ref.mU.arrayTyp) + ") " + malloc)
     }
     case Reflect(c@HeapArraySwap(src, dst), u, es) => {
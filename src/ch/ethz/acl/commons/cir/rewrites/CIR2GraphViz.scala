@@ -29,7 +29,9 @@ package ch.ethz.acl.commons.cir.rewrites
 
 import java.io.PrintWriter
 
+import ch.ethz.acl.commons.analysis.{KernelEstimate, PortModel}
 import ch.ethz.acl.commons.cir.CIR
+import ch.ethz.acl.commons.system.LocalSystem
 
 import scala.collection.mutable
 import scala.lms.internal.{GraphTraversal, NestedBlockTraversal}
@@ -46,6 +48,11 @@ trait CIR2GraphViz extends GraphTraversal  {  self =>
   var adds = -1
   var muls = -1
 
+  // Annotate loops and operations with the estimates of the ThroughputModel
+  var annotate = true
+  private var estimate: Option[KernelEstimate] = None
+  private var portModel: PortModel = null
+
   def quote(x: Any) = "\""+x+"\""
 
   var noSym: IR.Sym[Any] = null // fresh[Any]
@@ -95,10 +102,17 @@ trait CIR2GraphViz extends GraphTraversal  {  self =>
         case _ => (rhs.toString(), "\"#ffffff\"", "black", 14.0, "Mrecord")
       }
 
+      val cost = rhs match {
+        case _ if estimate.isEmpty => ""
+        case Reflect(ForLoop(_, _, _, _, _), _, _) => estimate.flatMap(_.loop(sym.id)).map(_.summary).getOrElse("")
+        case _ => IR.throughputModel.describe(sym, rhs, portModel)
+      }
+      val label = toGraphVizSaveString(sign) + (if (cost.isEmpty) "" else "\\n" + toGraphVizSaveString(cost))
+
       if (!landscape)
-        stream.print(" label=" + quote("{ <sign> " + toGraphVizSaveString(sign) + "|<sym> x" + sym.id + "}"))
+        stream.print(" label=" + quote("{ <sign> " + label + "|<sym> x" + sym.id + "}"))
       else
-        stream.print(" label=" + quote("<sign> " + toGraphVizSaveString(sign) + "|<sym> x" + sym.id))
+        stream.print(" label=" + quote("<sign> " + label + "|<sym> x" + sym.id))
 
       val constNodesList = rhs match {
         case e@NumericPlus(Const(x),Const(y))   => List((x, e.aev), (y, e.aev))
@@ -347,6 +361,7 @@ trait CIR2GraphViz extends GraphTraversal  {  self =>
 
     stream.println("labelloc=\"b\"")
     stream.print("label=\"\\n" + title + "\\n" + this.adds.toString + " additions, " + this.muls + " multiplications" + " \\n ");
+    estimate.foreach(e => stream.print(e.toString.replace("\n", "\\n") + " \\n "))
     if (printConstants)
       printConstants(stream)
     stream.println("\"");
@@ -374,6 +389,8 @@ trait CIR2GraphViz extends GraphTraversal  {  self =>
     val stream = new java.io.PrintWriter(new java.io.FileOutputStream(file))
     nodeShape = new mutable.HashMap[Sym[Any], String]()
     arrayDeps = List.empty[(Sym[Any], Sym[Any], String)]
+    portModel = PortModel(LocalSystem.getUArch())
+    estimate = if (annotate) Some(IR.throughputModel.analyze(Block(f), LocalSystem.getUArch())) else None
     emitDepGraph(f, stream, landscape)
   }
 }
@@ -52,6 +52,7 @@ abstract class AbstractCompiler {
 
   def getFlag(flag: CompilerFlags): List[String] = flag match {
     case CompilerFlags.cstd => List("std=c99")
+    case CompilerFlags.openmp => List("fopenmp")
     case _ => List(flag.toString())
   }
 
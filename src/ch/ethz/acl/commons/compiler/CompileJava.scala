@@ -0,0 +1,116 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.compiler
+
+import java.io.{ByteArrayOutputStream, File, OutputStream}
+import java.net.URI
+import javax.tools.JavaFileObject.Kind
+import javax.tools._
+
+import ch.ethz.acl.commons.util.Debugging
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+  * CompileJava compiles generated Java sources in-process, using the system Java compiler (javax.tools), and loads
+  * the resulting classes into the running JVM. No file is written, and no C compiler is required. Sources using the
+  * Java Vector API are compiled with the jdk.incubator.vector module, which must also be added to the running JVM
+  * (--add-modules jdk.incubator.vector).
+  */
+object CompileJava extends Debugging {
+
+  private lazy val compiler = ToolProvider.getSystemJavaCompiler
+
+  private lazy val vectorModule = try {
+    Class.forName("jdk.incubator.vector.FloatVector")
+    true
+  } catch {
+    case _: Throwable => false
+  }
+
+  /**
+    * Returns true if the JVM provides a Java compiler (a JDK rather than a JRE) and the Vector API module
+    */
+  def isAvailable: Boolean = compiler != null && vectorModule
+
+  /**
+    * Compiles a single Java source in memory and loads the class it declares
+    *
+    * @param className     Name of the public class declared in the source, without a package
+    * @param source        The Java source
+    * @param dependencies  Classes referenced by the source, such as the interfaces it implements, whose locations
+    *                      are added to the class path of the compiler
+    * @return              The loaded class
+    */
+  def compile (className: String, source: String, dependencies: List[Class[_]] = Nil): Class[_] = {
+    if (!isAvailable) {
+      throw new RuntimeException("Java compilation is impossible. A JDK with the jdk.incubator.vector module is required.")
+    }
+    printDebug3("Compiling " + className + " ...")
+
+    val classes = mutable.Map.empty[String, ByteArrayOutputStream]
+    val fileManager = new ForwardingJavaFileManager[StandardJavaFileManager](compiler.getStandardFileManager(null, null, null)) {
+      override def getJavaFileForOutput (location: JavaFileManager.Location, name: String, kind: Kind, sibling: FileObject): JavaFileObject = {
+        new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+          override def openOutputStream (): OutputStream = {
+            val bytes = new ByteArrayOutputStream()
+            classes.synchronized { classes.update(name, bytes) }
+            bytes
+          }
+        }
+      }
+    }
+    val input = new SimpleJavaFileObject(URI.create("string:///" + className + Kind.SOURCE.extension), Kind.SOURCE) {
+      override def getCharContent (ignoreEncodingErrors: Boolean): CharSequence = source
+    }
+    val diagnostics = new DiagnosticCollector[JavaFileObject]
+    val classpath = dependencies.map(c => new File(c.getProtectionDomain.getCodeSource.getLocation.toURI).getPath).distinct
+    val options = List("--add-modules", "jdk.incubator.vector", "-nowarn", "-g:none") ++
+      (if (classpath.isEmpty) Nil else List("-classpath", classpath.mkString(File.pathSeparator)))
+    val success = try {
+      compiler.getTask(null, fileManager, diagnostics, options.asJava, null, List(input).asJava).call()
+    } finally {
+      fileManager.close()
+    }
+    if (!success) {
+      val errors = diagnostics.getDiagnostics.asScala.map(d => "line " + d.getLineNumber + ": " + d.getMessage(null))
+      throw new RuntimeException("Java compilation of " + className + " failed:\n" + errors.mkString("\n"))
+    }
+
+    val loader = new ClassLoader(getClass.getClassLoader) {
+      override def findClass (name: String): Class[_] = classes.get(name) match {
+        case Some(bytes) =>
+          val code = bytes.toByteArray
+          defineClass(name, code, 0, code.length)
+        case None => super.findClass(name)
+      }
+    }
+    loader.loadClass(className)
+  }
+}
@@ -31,14 +31,18 @@ import java.io._
 
 import ch.ethz.acl.commons.system.LocalSystem
 import ch.ethz.acl.passera.unsigned.{UByte, UInt, ULong, UShort}
-import ch.ethz.acl.commons.util.Debugging
+import ch.ethz.acl.commons.util.{Debugging, Utilities}
 import org.bridj._
 
-import scala.collection.mutable.HashMap
+import scala.collection.concurrent.TrieMap
 
 object CompileVM extends Debugging {
 
-  protected var funcToLib = new HashMap[String, (String, NativeLibrary, DynamicFunction[Any])]()
+  //
+  // Libraries loaded through BridJ. Kernels are compiled by several threads at
+  // once, such that the map is concurrent and never locked.
+  //
+  protected val funcToLib = TrieMap.empty[String, (String, NativeLibrary, DynamicFunction[Any])]
 
   /**
    * compileFiles compiles each file in the list specified by files, using compiler flags, include and library paths
@@ -65,9 +69,7 @@ object CompileVM extends Debugging {
 
     printDebug3("Create dynamic function ...");
     val func = createBridJDynamicFunction[B](library, funcName)
-    synchronized {
-      funcToLib.update(libFileName, (libFileName, library, func.asInstanceOf[DynamicFunction[Any]]))
-    }
+    funcToLib.update(libFileName, (libFileName, library, func.asInstanceOf[DynamicFunction[Any]]))
     (func, libFileName)
   }
 
@@ -94,11 +96,8 @@ object CompileVM extends Debugging {
    * Unloads a single native library, referenced by the function name stored into that library
    * @param programFileName Name of the function that is about to be release from the JVM
    */
-  def unloadProgram(programFileName: String) = funcToLib.get(programFileName) match {
-    case Some((libFileName,libFile,_)) => synchronized {
-      funcToLib.remove(programFileName)
-      BridJ.releaseLibrary(libFileName)
-    }
+  def unloadProgram(programFileName: String) = funcToLib.remove(programFileName) match {
+    case Some((libFileName,libFile,_)) => BridJ.releaseLibrary(libFileName)
     case None => printDebug0("Library could not be released: " + programFileName)
   }
 
@@ -107,10 +106,7 @@ object CompileVM extends Debugging {
    */
   def reset = {
     printDebug3("Releasing all libraries attached by BridJ")
-    synchronized {
-      funcToLib.foreach(m => BridJ.releaseLibrary(m._2._1))
-      funcToLib = new HashMap()
-    }
+    funcToLib.keys.foreach(name => funcToLib.remove(name).foreach(m => BridJ.releaseLibrary(m._1)))
   }
 
   /**
@@ -180,4 +176,76 @@ object CompileVM extends Debugging {
     printDebug3("Link the library to the JVM ... " + libFileName );
     System.load(libFileName)
   }
+
+  /**
+   * compileCodeJNI compiles the generated code into a shared library and loads it into the JVM. Before invoking the
+   * compiler, the KernelCache is consulted, and whenever a library built from the same code, using the same compiler
+   * configuration on the same micro-architecture exists, the cached library is loaded instead.
+   *
+   * @param code      Generated C code, containing the JNI functions
+   * @param funcName  The function name that is about to be linked to the VM
+   * @param make      Make class that compiles the code into a shared library
+   */
+  def compileCodeJNI(code: String, funcName: String, make: Make): Unit =
+  {
+    compileUnitJNI(List((code, funcName)), funcName, make)
+  }
+
+  /**
+   * compileUnitJNI compiles several translation units, each given by its generated code and the name of its function,
+   * into a single shared library and loads it into the JVM at once. Object files of the units are compiled in
+   * parallel. The whole library is stored in the KernelCache, as in compileCodeJNI.
+   *
+   * @param units     Generated C code of each unit, together with the name of its function
+   * @param unitName  Name of the library, used for diagnostics
+   * @param make      Make class that compiles the units into a shared library
+   * @return          The loaded shared library
+   */
+  def compileUnitJNI(units: List[(String, String)], unitName: String, make: Make): File =
+  {
+    val key = KernelCache.key(units.map(_._1).mkString("\n"), make)
+    val cached = KernelCache.lookup(key) flatMap (libFile => {
+      printDebug3("Kernel cache hit for " + unitName + " ... " + libFile.getAbsolutePath)
+      try {
+        System.load(libFile.getAbsolutePath); Some(libFile)
+      } catch {
+        case e: UnsatisfiedLinkError =>
+          printDebug0("Cached kernel can not be loaded, recompiling: " + e.getMessage)
+          KernelCache.invalidate(key); None
+      }
+    })
+    cached getOrElse {
+      val codeFiles = units.map({ case (code, funcName) => Utilities.dumpCode(code, funcName) })
+      printDebug3("Creating the library file of " + codeFiles.size + " unit(s) ...")
+      val libFile = KernelCache.store(key, make.makeSharedLib(codeFiles))
+      printDebug3("Link the library to the JVM ... " + libFile.getAbsolutePath)
+      System.load(libFile.getAbsolutePath)
+      libFile
+    }
+  }
+
+  /**
+   * compileCodeSymbol compiles the generated code into a shared library, loads it through BridJ, and returns the
+   * address of the C function funcName. The KernelCache is consulted as in compileCodeJNI. The library is never
+   * released, such that the address remains valid for the lifetime of the JVM.
+   *
+   * @param code      Generated C code, containing the exported function funcName
+   * @param funcName  The function whose address is returned
+   * @param make      Make class that compiles the code into a shared library
+   * @return          Address of the function
+   */
+  def compileCodeSymbol(code: String, funcName: String, make: Make): Long =
+  {
+    val key = KernelCache.key(code, make)
+    val libFile = KernelCache.lookup(key) getOrElse {
+      printDebug3("Creating the library file of " + funcName + " ...")
+      KernelCache.store(key, make.makeSharedLib(List(Utilities.dumpCode(code, funcName))))
+    }
+    printDebug3("Link the library to bridJ ... " + libFile.getAbsolutePath)
+    val symbol = BridJ.getNativeLibrary(libFile.getAbsolutePath).getSymbolPointer(funcName)
+    if (symbol == null) {
+      throw new UnsatisfiedLinkError("Function " + funcName + " not found in " + libFile.getAbsolutePath)
+    }
+    symbol.getPeer
+  }
 }
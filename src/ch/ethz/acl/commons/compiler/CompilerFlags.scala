@@ -56,6 +56,8 @@ object CompilerFlags extends Enumeration {
  val fma = Value
  val noFMA = Value
 
+ val openmp = Value
+
   // Other options:
  val noMultibyteChars = Value
  val noFormat = Value
@@ -65,6 +65,8 @@ class ICC (exec: Option[String] = None, os: OSType = getOS()) extends AbstractCo
     case (LINUX, CompilerFlags.noFMA)            => List("no-fma")
     case (MAC, CompilerFlags.shared)             => List("dynamiclib")
     case (WINDOWS, CompilerFlags.xHost)          => List("QxHost")
+    case (WINDOWS, CompilerFlags.openmp)         => List("Qopenmp")
+    case (_, CompilerFlags.openmp)               => List("qopenmp")
     case (WINDOWS, CompilerFlags.noVec)          => List("Qvec-")
     case (LINUX, CompilerFlags.noVec)            => List("no-vec")
     case _ => super.getFlag(flag)
@@ -0,0 +1,238 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.compiler
+
+import java.io.{File, FileOutputStream}
+import java.nio.file.{Files, StandardCopyOption}
+import java.security.MessageDigest
+import java.util.Properties
+import java.util.jar.JarFile
+
+import ch.ethz.acl.commons.compiler.UArch.{UArch, value2MicroArchValue}
+import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.commons.util.Debugging
+import com.typesafe.config.ConfigFactory
+import org.apache.commons.io.{FileUtils, FilenameUtils, IOUtils}
+
+import scala.collection.JavaConverters._
+
+/**
+  * KernelBundles are shared libraries of kernel classes, compiled ahead of time for a set of micro-architectures and
+  * packaged as resources of the jar, in the same way as the cpuid library in com.intel.intrinsics. The libraries of
+  * each target are stored under /ch.ethz.acl.kernels/<os>/<uarch>/, together with an index.properties file that maps
+  * each kernel class to its libraries and to a fingerprint. The fingerprint covers all classes of the jar holding the
+  * kernel class, as the staging code spans companion objects, traits, CIR and the transformers, together with the
+  * settings that change the generated code (see CIR.codegenSettings).
+  *
+  * At runtime, CIR.compileUnit first looks for the bundle of the kernel class matching the detected micro-architecture.
+  * On a hit, the libraries are extracted into a temporary directory and loaded, and the kernel is neither staged nor
+  * compiled. A bundle is ignored, and the kernel staged as usual, when the micro-architecture is not bundled, when the
+  * classes or the settings have changed since the bundle was built, or when the library can not be loaded.
+  *
+  * Bundles are built by staging the kernels within KernelBundles.build, while LocalSystem emulates the target
+  * micro-architecture. Bundles are configured in the settings.bundles section of ch.ethz.acl.settings.conf.
+  */
+object KernelBundles extends Debugging {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  /**
+    * Enable or disable loading of the bundled kernels
+    */
+  var enabled: Boolean = config.getBoolean("settings.bundles.enabled")
+
+  /**
+    * Micro-architectures for which the bundles are built
+    */
+  var targets: List[UArch] = config.getStringList("settings.bundles.targets").asScala.toList.map(UArch.fromString)
+
+  /**
+    * Resource directory receiving the bundles, packaged into the jar by the build
+    */
+  var directory: File = new File(config.getString("settings.bundles.directory"))
+
+  private val root = "ch.ethz.acl.kernels"
+
+  private def bundlePath (uarch: UArch): String = {
+    root + "/" + LocalSystem.getOS().toString.toLowerCase + "/" + uarch.convertToString()
+  }
+
+  private def unitName (cls: Class[_]): String = cls.getName.replace('.', '_')
+
+  private def hex (digest: Array[Byte]): String = digest.map("%02x".format(_)).mkString
+
+  private var digests = Map.empty[File, String]
+
+  /**
+    * Digest of the classes of the jar or class directory holding cls, computed once per JVM. Resources are left out,
+    * such that the digest is the same before and after the bundles are packaged into the jar.
+    */
+  private def classesDigest (cls: Class[_]): String = synchronized {
+    Option(cls.getProtectionDomain.getCodeSource).map(s => new File(s.getLocation.toURI)) match {
+      case None => "UNKNOWN"
+      case Some(location) => digests.getOrElse(location, {
+        val md = MessageDigest.getInstance("SHA-256")
+        def add (name: String, bytes: Array[Byte]) = { md.update(name.getBytes("UTF-8")); md.update(bytes) }
+        if (location.isDirectory) {
+          val files = FileUtils.listFiles(location, Array("class"), true).asScala.toList
+          files.map(f => (location.toPath.relativize(f.toPath).toString.replace(File.separatorChar, '/'), f))
+            .sortBy(_._1).foreach({ case (name, f) => add(name, FileUtils.readFileToByteArray(f)) })
+        } else {
+          val jar = new JarFile(location)
+          try {
+            jar.entries().asScala.filter(_.getName.endsWith(".class")).toList.sortBy(_.getName).foreach(e => {
+              val in = jar.getInputStream(e)
+              try add(e.getName, IOUtils.toByteArray(in)) finally in.close()
+            })
+          } finally jar.close()
+        }
+        val digest = hex(md.digest())
+        digests += location -> digest
+        digest
+      })
+    }
+  }
+
+  private def fingerprint (cls: Class[_], settings: String): String = {
+    val sources = List(classesDigest(cls), classesDigest(getClass)).distinct
+    hex(MessageDigest.getInstance("SHA-256").digest((cls.getName :: settings :: sources).mkString("\n").getBytes("UTF-8")))
+  }
+
+  /* ================================================================================================================ */
+  /* Loading of the bundled kernels                                                                                   */
+  /* ================================================================================================================ */
+
+  private var loaded = Map.empty[String, Boolean]
+
+  private lazy val index: Option[Properties] = Option(getClass.getResourceAsStream(
+    "/" + bundlePath(LocalSystem.getUArch()) + "/index.properties"
+  )) map (in => {
+    val properties = new Properties()
+    try properties.load(in) finally in.close()
+    properties
+  })
+
+  private lazy val extractDir: File = {
+    val dir = Files.createTempDirectory("ngen-kernels").toFile
+    dir.deleteOnExit()
+    dir
+  }
+
+  private def extract (file: String): File = {
+    val lib = new File(extractDir, file)
+    val in = getClass.getResourceAsStream("/" + bundlePath(LocalSystem.getUArch()) + "/" + file)
+    if (in == null) throw new UnsatisfiedLinkError("Missing bundled library " + file)
+    try Files.copy(in, lib.toPath, StandardCopyOption.REPLACE_EXISTING) finally in.close()
+    lib.deleteOnExit()
+    lib
+  }
+
+  /**
+    * Loads the bundled libraries of a kernel class, built for the micro-architecture of the local machine.
+    *
+    * @param cls        The kernel class
+    * @param settings   Settings of the code generation, see CIR.codegenSettings
+    * @return           True if the kernel class has been loaded from its bundle, false if it must be staged
+    */
+  def load (cls: Class[_], settings: String): Boolean = enabled && !LocalSystem.isEmulated && synchronized {
+    val name = unitName(cls)
+    loaded.get(name) match {
+      case Some(hit) => hit
+      case None =>
+        val hit = index.flatMap(p => Option(p.getProperty(name)).map(files => (files, p.getProperty(name + ".fingerprint")))) match {
+          case Some((_, print)) if print != fingerprint(cls, settings) =>
+            printDebug1("Bundle of " + name + " is outdated, staging the kernel instead")
+            false
+          case Some((files, _)) =>
+            try {
+              files.split(",").map(_.trim).filter(_.nonEmpty).foreach(file => {
+                val lib = extract(file)
+                printDebug3("Link the bundled library to the JVM ... " + lib.getAbsolutePath)
+                System.load(lib.getAbsolutePath)
+              })
+              true
+            } catch {
+              case e: UnsatisfiedLinkError =>
+                printDebug0("Bundle of " + name + " can not be loaded, staging the kernel instead: " + e.getMessage)
+                false
+            }
+          case None => false
+        }
+        loaded += name -> hit
+        hit
+    }
+  }
+
+  /* ================================================================================================================ */
+  /* Building of the bundles                                                                                          */
+  /* ================================================================================================================ */
+
+  private var recording = Option.empty[(File, Properties)]
+
+  /**
+    * Records the libraries of a kernel class, while a bundle is being built. Invoked by CIR.compileUnit.
+    *
+    * @param cls        The kernel class
+    * @param libs       Libraries produced by the compilation unit of the kernel class
+    * @param settings   Settings of the code generation, see CIR.codegenSettings
+    */
+  def record (cls: Class[_], libs: List[File], settings: String): Unit = synchronized {
+    recording foreach { case (dir, properties) if libs.nonEmpty =>
+      val name = unitName(cls)
+      val files = libs.zipWithIndex.map({ case (lib, i) =>
+        val file = name + "." + i + "." + FilenameUtils.getExtension(lib.getName)
+        FileUtils.copyFile(lib, new File(dir, file))
+        file
+      })
+      printDebug1("Bundled " + name + " : " + files.mkString(", "))
+      properties.setProperty(name, files.mkString(","))
+      properties.setProperty(name + ".fingerprint", fingerprint(cls, settings))
+    case _ =>
+    }
+  }
+
+  /**
+    * Builds the bundle of a micro-architecture. The kernels staged by body are compiled for the target and stored,
+    * together with the index of the bundle, in directory. Any previous bundle of the target is replaced.
+    *
+    * @param uarch  Target micro-architecture
+    * @param body   Stages the kernel classes to be bundled
+    * @return       The directory of the bundle
+    */
+  def build (uarch: UArch)(body: => Unit): File = {
+    val dir = new File(directory, bundlePath(uarch))
+    FileUtils.deleteQuietly(dir)
+    dir.mkdirs()
+    val properties = new Properties()
+    synchronized { recording = Some((dir, properties)) }
+    try LocalSystem.emulate(uarch)(body) finally synchronized { recording = None }
+    val out = new FileOutputStream(new File(dir, "index.properties"))
+    try properties.store(out, "NGen kernel bundle for " + uarch) finally out.close()
+    dir
+  }
+}
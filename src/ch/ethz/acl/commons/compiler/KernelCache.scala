@@ -0,0 +1,187 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+package ch.ethz.acl.commons.compiler
+
+import java.io.File
+import java.nio.file.{Files, StandardCopyOption}
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+
+import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.commons.util.Debugging
+import com.typesafe.config.ConfigFactory
+import org.apache.commons.io.FilenameUtils
+
+/**
+  * KernelCache is a persistent, content-addressed store of compiled native kernels. Each shared library is stored
+  * under a key that is computed as a SHA-256 hash over the generated C code, the Make configuration (compiler,
+  * version, flags, paths and libraries), as well as the micro-architecture and the ISAs of the local machine.
+  * Therefore, a hit in the cache guarantees that the stored library is identical to the one that would have been
+  * produced by the compiler, and the compilation can be safely skipped.
+  *
+  * The cache is configured in the settings.kernelcache section of ch.ethz.acl.settings.conf. Libraries that have
+  * not been used for longer than maxAge are evicted, and whenever the cache grows larger than maxSize, the least
+  * recently used libraries are evicted first.
+  */
+object KernelCache extends Debugging {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  /**
+    * Enable or disable the cache globally
+    */
+  var enabled: Boolean = config.getBoolean("settings.kernelcache.enabled")
+
+  /**
+    * Directory holding the cached libraries. Defaults to ~/.ngen/kernels
+    */
+  var directory: File = config.getString("settings.kernelcache.directory").trim match {
+    case "" => new File(System.getProperty("user.home") + File.separator + ".ngen" + File.separator + "kernels")
+    case d  => new File(d)
+  }
+
+  /**
+    * Maximum size of the cache in bytes
+    */
+  var maxSize: Long = config.getBytes("settings.kernelcache.maxSize")
+
+  /**
+    * Maximum time in milliseconds a library can stay in the cache without being used
+    */
+  var maxAge: Long = config.getDuration("settings.kernelcache.maxAge", TimeUnit.MILLISECONDS)
+
+  private def libExtension (): String = LocalSystem.getOS() match {
+    case OSType.WINDOWS => "dll"
+    case OSType.MAC     => "dylib"
+    case _              => "so"
+  }
+
+  private def sha256 (parts: List[String]): String = {
+    val md = MessageDigest.getInstance("SHA-256")
+    parts.foreach(p => {
+      md.update(p.getBytes("UTF-8"))
+      md.update(0.toByte)
+    })
+    md.digest().map("%02x".format(_)).mkString
+  }
+
+  private def libFile (key: String): File = new File(directory, key + "." + libExtension())
+
+  private def cachedLibs (): List[File] = Option(directory.listFiles()) match {
+    case Some(files) => files.toList.filter(f => f.isFile && FilenameUtils.getExtension(f.getName) == libExtension())
+    case None => Nil
+  }
+
+  /**
+    * Computes the key of a kernel, compiled with the given Make on the local machine.
+    *
+    * @param code   Generated C code of the kernel
+    * @param make   Make instance used to compile the kernel
+    * @return       Hex encoded SHA-256 key
+    */
+  def key (code: String, make: Make): String = {
+    val version = LocalSystem.getCompilerVersion(make.compiler).getOrElse("UNKNOWN")
+    sha256(List(code, make.signature(), version, LocalSystem.getUArch().toString, LocalSystem.getISAs().mkString(",")))
+  }
+
+  /**
+    * Looks up a library in the cache. On a hit, the library is marked as recently used.
+    *
+    * @param key  Key of the kernel, as computed by KernelCache.key
+    * @return     The cached library, if it exists
+    */
+  def lookup (key: String): Option[File] = if (enabled) {
+    val lib = libFile(key)
+    if (lib.isFile) {
+      lib.setLastModified(System.currentTimeMillis())
+      Some(lib)
+    } else None
+  } else None
+
+  /**
+    * Stores a freshly compiled library into the cache. The library is first copied into the cache directory under a
+    * temporary name and then atomically moved in place, such that concurrent JVMs never observe a partial library.
+    *
+    * @param key  Key of the kernel, as computed by KernelCache.key
+    * @param lib  The shared library produced by Make
+    * @return     The cached library, or lib itself if the cache is disabled or can not be written
+    */
+  def store (key: String, lib: File): File = if (enabled) {
+    try {
+      directory.mkdirs()
+      val target = libFile(key)
+      val tmp = File.createTempFile(key, ".tmp", directory)
+      Files.copy(lib.toPath, tmp.toPath, StandardCopyOption.REPLACE_EXISTING)
+      Files.move(tmp.toPath, target.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+      printDebug3("Kernel stored in the cache: " + target.getAbsolutePath)
+      evict(key)
+      target
+    } catch {
+      case e: Exception =>
+        printDebug0("Kernel cache can not be written: " + e.getMessage)
+        lib
+    }
+  } else lib
+
+  /**
+    * Removes a single library from the cache, e.g. when it can not be loaded into the JVM.
+    *
+    * @param key  Key of the kernel, as computed by KernelCache.key
+    */
+  def invalidate (key: String): Unit = libFile(key).delete()
+
+  /**
+    * Evicts all libraries older than maxAge, and then the least recently used libraries until the cache size drops
+    * below maxSize.
+    *
+    * @param keep Key of a library that must not be evicted
+    */
+  def evict (keep: String = ""): Unit = synchronized {
+    val now = System.currentTimeMillis()
+    val (expired, alive) = cachedLibs().partition(f => now - f.lastModified() > maxAge)
+    expired.foreach(f => {
+      printDebug3("Evicting expired kernel: " + f.getName)
+      f.delete()
+    })
+    var size = alive.map(_.length()).sum
+    alive.sortBy(_.lastModified()).foreach(f => {
+      if (size > maxSize && FilenameUtils.getBaseName(f.getName) != keep) {
+        printDebug3("Evicting kernel: " + f.getName)
+        size -= f.length()
+        f.delete()
+      }
+    })
+  }
+
+  /**
+    * Removes all libraries from the cache
+    */
+  def clear (): Unit = synchronized {
+    cachedLibs().foreach(_.delete())
+  }
+
+}
@@ -70,6 +70,43 @@ abstract class Make extends Executable {
 
   protected lazy val compilerFile: File = new File(compiler.getCompilerExec())
 
+  /**
+    * Compiler flags that must be passed to the linker as well
+    */
+  protected val linkerFlags = List(CompilerFlags.openmp)
+
+  /**
+    * Creates a Make that is identical to this one, with the additional compiler flags
+    *
+    * @param flags  Additional compiler flags, e.g. required by the generated code
+    * @return       A Make including the flags
+    */
+  def withFlags (flags: List[CompilerFlags]): Make = if (flags.forall(compilerFlags.contains)) this else {
+    withCompilerFlags((compilerFlags ::: flags).distinct)
+  }
+
+  /**
+    * Creates a Make that is identical to this one, without the given compiler flags
+    *
+    * @param flags  Compiler flags to be removed, e.g. xHost for binaries that must run on other machines
+    * @return       A Make excluding the flags
+    */
+  def withoutFlags (flags: List[CompilerFlags]): Make = if (!flags.exists(compilerFlags.contains)) this else {
+    withCompilerFlags(compilerFlags.filterNot(flags.contains))
+  }
+
+  private def withCompilerFlags (flags: List[CompilerFlags]): Make = {
+    val parent = this
+    new Make () {
+      val compiler         = parent.compiler
+      val compilerFlags    = flags
+      val incPaths         = parent.incPaths
+      val libPaths         = parent.libPaths
+      val dynamicLibraries = parent.dynamicLibraries
+      val staticLibraries  = parent.staticLibraries
+    }
+  }
+
   def execOpts (objFileNames: List[String], outputFile: String): List[String] = {
     val (iPaths, lPaths, dLibs, sLibs) = getAllLibs(); import ch.ethz.acl.commons.compiler.CompilerFlags._
     (compilerFlags map getFlag) ::: iPaths ::: lPaths ::: List(getFlag(o), outputFile) ::: objFileNames ::: dLibs ::: sLibs
@@ -77,7 +114,8 @@ abstract class Make extends Executable {
 
   def sharedLibraryOpts (objFileNames: List[String], outputFile: String): List[String] = {
     val (iPaths, lPaths, dLibs, sLibs) = getAllLibs(); import ch.ethz.acl.commons.compiler.CompilerFlags._
-    iPaths ::: lPaths ::: List(getFlag(shared), getFlag(o), outputFile) ::: objFileNames ::: dLibs ::: sLibs
+    val lFlags = compilerFlags.filter(f => linkerFlags.contains(f)).map(getFlag)
+    lFlags ::: iPaths ::: lPaths ::: List(getFlag(shared), getFlag(o), outputFile) ::: objFileNames ::: dLibs ::: sLibs
   }
 
   def objectFileOpts(fPIC: Boolean = false): List[String] = {
@@ -89,8 +127,12 @@ abstract class Make extends Executable {
     cFlags ::: iPaths ::: (List(CompilerFlags.c, CompilerFlags.o) map getFlag)
   }
 
+  /**
+    * Compiles each file into an object file, and links all object files into a shared library. Object files are
+    * compiled in parallel.
+    */
   def makeSharedLib (files: List[File]): File = {
-    val objFiles = files.map(file => compileObjectFile(file, true)).toList
+    val objFiles = files.par.map(file => compileObjectFile(file, true)).toList
     val ext = getOS () match {
       case OSType.WINDOWS => "dll"
       case OSType.MAC => "dylib"
@@ -133,6 +175,16 @@ abstract class Make extends Executable {
     }
   }
 
+  /**
+    * Textual description of the complete compiler configuration used by this Make. Two Make instances having the
+    * same signature produce identical binaries for identical sources.
+    */
+  def signature (): String = {
+    val (iPaths, lPaths, dLibs, sLibs) = getAllLibs()
+    val cFlags = compilerFlags map getFlag
+    (compiler.getCompilerName() :: compiler.getCompilerExec() :: compiler.uArch.toString :: cFlags ::: iPaths ::: lPaths ::: dLibs ::: sLibs).mkString(" ")
+  }
+
   private def compile(params: List[String]): Boolean = {
     val c = compilerFile.getAbsolutePath
     execute((c :: params).toSeq) match {
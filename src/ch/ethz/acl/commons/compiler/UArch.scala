@@ -349,6 +349,9 @@ object UArch extends Enumeration {
       case SandyBridge    => List(MMX, SSE, SSE2, SSE3, SSSE3, SSE41, SSE42, AVX, AES, FXSR, PCLMULQDQ, POPCNT, TSC, XSAVE, XSAVEOPT)
       case IvyBridge      => List(MMX, SSE, SSE2, SSE3, SSSE3, SSE41, SSE42, AVX, RDRAND, AES, FP16C, FSGSBASE, FXSR, PCLMULQDQ, POPCNT, TSC, XSAVE, XSAVEOPT)
       case Haswell        => List(MMX, SSE, SSE2, SSE3, SSSE3, SSE41, SSE42, AVX, AVX2, RDRAND, AES, BMI1, BMI2, FMA, FP16C, FSGSBASE, FXSR, INVPCID, PCLMULQDQ, POPCNT, TSC, XSAVE, XSAVEOPT)
+      case Broadwell      => List(MMX, SSE, SSE2, SSE3, SSSE3, SSE41, SSE42, AVX, AVX2, RDRAND, RDSEED, ADX, AES, BMI1, BMI2, FMA, FP16C, FSGSBASE, FXSR, INVPCID, PCLMULQDQ, POPCNT, TSC, XSAVE, XSAVEOPT)
+      case Skylake        => List(MMX, SSE, SSE2, SSE3, SSSE3, SSE41, SSE42, AVX, AVX2, RDRAND, RDSEED, ADX, AES, BMI1, BMI2, FMA, FP16C, FSGSBASE, FXSR, INVPCID, MPX, CLFLUSHOPT, PCLMULQDQ, POPCNT, TSC, XSAVE, XSAVEC, XSAVEOPT)
+      case Skylake_AVX512 => List(MMX, SSE, SSE2, SSE3, SSSE3, SSE41, SSE42, AVX, AVX2, AVX512, RDRAND, RDSEED, ADX, AES, BMI1, BMI2, FMA, FP16C, FSGSBASE, FXSR, INVPCID, MPX, CLFLUSHOPT, CLWB, PCLMULQDQ, POPCNT, TSC, XSAVE, XSAVEC, XSAVEOPT)
       case _              => List.empty[ISA]
     }
 
@@ -359,6 +362,7 @@ object UArch extends Enumeration {
       case SandyBridge    => AVX
       case IvyBridge      => AVX
       case Haswell        => AVX2
+      case Broadwell      => AVX2
       case Skylake        => AVX2
       case Skylake_AVX512 => AVX512
     }
@@ -0,0 +1,235 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.extensions
+
+import ch.ethz.acl.commons.cir.codegen.CUnparser
+import ch.ethz.acl.commons.compiler.CompilerFlags
+import com.typesafe.config.ConfigFactory
+
+import scala.reflect.SourceContext
+import scala.lms.common._
+import scala.lms.internal.GenericNestedCodegen
+
+/**
+  * Global settings of the parallel loops, read from the settings.parallel section of ch.ethz.acl.settings.conf.
+  * Parallel loops are opt-in: with 1 thread, the default, plain sequential code is generated. Otherwise, the number of
+  * threads is taken at runtime from OpenMP, such that the generated code does not depend on the staging machine.
+  */
+object Parallelism {
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+  /**
+    * Maximum number of threads used by a parallel loop. 1 generates sequential code, 0 stands for the number of
+    * threads given by OpenMP at runtime (omp_get_max_threads, set by OMP_NUM_THREADS or omp_set_num_threads).
+    */
+  var threads: Int = config.getInt("settings.parallel.threads")
+  /**
+    * Default minimum number of iterations assigned to a single thread.
+    */
+  var grain: Int = config.getInt("settings.parallel.grain")
+
+  /**
+    * Number of threads a parallel loop uses on the local machine, given enough iterations
+    */
+  def runtimeThreads: Int = threads match {
+    case 0 => Runtime.getRuntime.availableProcessors()
+    case t => t
+  }
+
+  private val serial = new ThreadLocal[Boolean] {
+    override def initialValue () = false
+  }
+
+  /**
+    * Stages body with sequential parallel loops, for staged functions invoked many times within a native call
+    */
+  def sequential[T] (body: => T): T = {
+    val previous = serial.get
+    serial.set(true)
+    try body finally serial.set(previous)
+  }
+
+  /**
+    * Threads setting in effect for the staging thread
+    */
+  def staged: Int = if (serial.get) 1 else threads
+}
+
+trait ParallelLoopOps extends ForLoopOps {
+
+  /** parallel_chunks splits the range [start, end) into contiguous chunks, one chunk per thread, and executes the
+    * function f on each of the chunks in parallel. Each chunk, except for the last one, is a multiple of align, such
+    * that staged code inside f can safely use a vectorized main loop followed by a scalar tail. At runtime, at most
+    * parallel_threads threads are used, and each thread processes at least grain iterations.
+    *
+    * @param start  The lower bound of the range
+    * @param end    The upper bound of the range
+    * @param align  Alignment of each chunk, in number of iterations
+    * @param grain  Minimum number of iterations per thread
+    * @param f      The function (thread id, chunk lower bound, chunk upper bound) executed by each thread
+    * @return       Returns a staged ParallelChunks node
+    */
+  def parallel_chunks(start: Rep[Int], end: Rep[Int], align: Int, grain: Int, f: (Rep[Int], Rep[Int], Rep[Int]) => Rep[Unit]): Rep[Unit]
+
+  /** parallel_threads is the maximum number of threads of a parallel loop, known at runtime. The thread ids given
+    * by parallel_chunks are smaller than this number, which can thus size per-thread buffers.
+    *
+    * @return       Returns 1 for sequential code, the configured threads or omp_get_max_threads() otherwise
+    */
+  def parallel_threads(): Rep[Int]
+
+  /** parallel_forloop is the parallel counterpart of forloop. Iterations are distributed across threads in
+    * contiguous chunks, therefore the body of the loop must not carry any dependencies between iterations.
+    *
+    * @param start  The lower bound of the loop
+    * @param end    The upper bound of the loop
+    * @param inc    The increment of the loop
+    * @param f      The function that describes the loop
+    * @param grain  Minimum number of iterations per thread
+    * @return       Returns a staged parallel loop
+    */
+  def parallel_forloop(start: Rep[Int], end: Rep[Int], inc: Int, f: Rep[Int] => Rep[Unit], grain: Int = 1): Rep[Unit]
+
+  /** parallel_reduce computes a partial result for each of the chunks given by parallel_chunks, and combines the
+    * partial results sequentially once all the threads have finished. The function combine must be associative
+    * and zero must be its neutral element.
+    *
+    * @param start    The lower bound of the range
+    * @param end      The upper bound of the range
+    * @param align    Alignment of each chunk, in number of iterations
+    * @param grain    Minimum number of iterations per thread
+    * @param zero     Neutral element of combine
+    * @param f        The function computing the partial result of the chunk [lo, hi)
+    * @param combine  Associative function combining two partial results
+    * @tparam R       The type of the result
+    * @return         Returns the combined result
+    */
+  def parallel_reduce[R:Typ](start: Rep[Int], end: Rep[Int], align: Int, grain: Int, zero: Rep[R], f: (Rep[Int], Rep[Int]) => Rep[R], combine: (Rep[R], Rep[R]) => Rep[R]): Rep[R]
+}
+
+trait ParallelLoopExp extends ParallelLoopOps with ForLoopExp with ArrayOpsExp with PrimitiveOpsExp {
+
+  case class ParallelThreads() extends Def[Int]
+
+  case class ParallelChunks(start: Exp[Int], end: Exp[Int], align: Int, threads: Exp[Int], grain: Int, tid: Sym[Int], lo: Sym[Int], hi: Sym[Int], body: Block[Unit]) extends Def[Unit]
+
+  override def boundSyms(e: Any): List[Sym[Any]] = e match {
+    case ParallelChunks(_, _, _, _, _, tid, lo, hi, y) => tid :: lo :: hi :: effectSyms(y)
+    case _ => super.boundSyms(e)
+  }
+
+  override def mirrorDef[A:Typ](e: Def[A], f: Transformer)(implicit pos: SourceContext): Def[A] = (e match {
+    case ParallelChunks(start, end, align, threads, grain, tid, lo, hi, y) =>
+      ParallelChunks(f(start), f(end), align, f(threads), grain, f(tid).asInstanceOf[Sym[Int]], f(lo).asInstanceOf[Sym[Int]], f(hi).asInstanceOf[Sym[Int]], f(y))
+    case _ => super.mirrorDef(e,f)
+  }).asInstanceOf[Def[A]]
+
+  override def mirror[A:Typ](e: Def[A], f: Transformer)(implicit pos: SourceContext): Exp[A] = (e match {
+    case ParallelThreads() => toAtom(ParallelThreads())
+    case ParallelChunks(start, end, align, threads, grain, tid, lo, hi, y) =>
+      toAtom(ParallelChunks(f(start), f(end), align, f(threads), grain, f(tid).asInstanceOf[Sym[Int]], f(lo).asInstanceOf[Sym[Int]], f(hi).asInstanceOf[Sym[Int]], f(y)))
+    case _ => super.mirror(e,f)
+  }).asInstanceOf[Exp[A]]
+
+  def parallel_threads(): Exp[Int] = Parallelism.staged match {
+    case 0 => ParallelThreads()
+    case t => Const(t)
+  }
+
+  def parallel_chunks(start: Exp[Int], end: Exp[Int], align: Int, grain: Int, f: (Exp[Int], Exp[Int], Exp[Int]) => Exp[Unit]): Exp[Unit] = {
+    val threads = parallel_threads()
+    val (tid, lo, hi) = (fresh[Int], fresh[Int], fresh[Int])
+    val a = reifyEffects(f(tid, lo, hi))
+    reflectEffect(ParallelChunks(start, end, align, threads, grain, tid, lo, hi, a), summarizeEffects(a).star)
+  }
+
+  def parallel_forloop(start: Exp[Int], end: Exp[Int], inc: Int, f: Exp[Int] => Exp[Unit], grain: Int): Exp[Unit] = {
+    parallel_chunks(start, end, inc, grain, (tid, lo, hi) => forloop(lo, hi, fresh[Int], Const(inc), f))
+  }
+
+  def parallel_reduce[R:Typ](start: Exp[Int], end: Exp[Int], align: Int, grain: Int, zero: Exp[R], f: (Exp[Int], Exp[Int]) => Exp[R], combine: (Exp[R], Exp[R]) => Exp[R]): Exp[R] = {
+    parallel_threads() match {
+      case Const(1) => f(start, end)
+      case threads =>
+        //
+        // Each thread stores its partial result in a stack allocated array. Threads
+        // that are not spawned at runtime leave the neutral element in their slot.
+        //
+        val partials = array_obj_new[R](threads)
+        forloop(Const(0), threads, fresh[Int], Const(1), (t: Exp[Int]) => array_update(partials, t, zero))
+        parallel_chunks(start, end, align, grain, (tid, lo, hi) => array_update(partials, tid, f(lo, hi)))
+        forloop(Const(1), threads, fresh[Int], Const(1), (t: Exp[Int]) => {
+          array_update(partials, Const(0), combine(array_apply(partials, Const(0)), array_apply(partials, t)))
+        })
+        array_apply(partials, Const(0))
+    }
+  }
+}
+
+trait CGenParallelLoop extends CGenEffect with GenericNestedCodegen with CUnparser {
+
+  val IR: ParallelLoopExp
+  import IR._
+
+  override def emitNode(sym: Sym[Any], rhs: Def[Any]) = rhs match {
+    case ParallelThreads() =>
+      cApp.addSystemHeader("omp.h")
+      cApp.addCompilerFlag(CompilerFlags.openmp)
+      emitValDef(sym, "omp_get_max_threads()")
+    case ParallelChunks(qstart, qend, align, qthreads, grain, qtid, qlo, qhi, body) =>
+      val start   = quote(qstart)
+      val end     = quote(qend)
+      val threads = quote(qthreads)
+      val tid     = quote(qtid)
+      val lo      = quote(qlo)
+      val hi      = quote(qhi)
+      if (qthreads != Const(1)) {
+        cApp.addSystemHeader("omp.h")
+        cApp.addCompilerFlag(CompilerFlags.openmp)
+        val work = s"${tid}_work"
+        stream.println(s"int32_t $work = ($end) > ($start) ? ($end) - ($start) : 0;")
+        stream.println(s"#pragma omp parallel num_threads($work / $grain < 1 ? 1 : ($work / $grain < $threads ? $work / $grain : $threads))")
+        stream.println("{")
+        stream.println(s"int32_t $tid = omp_get_thread_num();")
+        stream.println(s"int32_t ${tid}_nt = omp_get_num_threads();")
+        stream.println(s"int32_t ${tid}_blocks = ($work / $align + ${tid}_nt - 1) / ${tid}_nt;")
+        stream.println(s"int32_t $lo = ($start) + $tid * ${tid}_blocks * $align;")
+        stream.println(s"int32_t $hi = $lo + ${tid}_blocks * $align;")
+        stream.println(s"if ($lo > ($start) + $work) $lo = ($start) + $work;")
+        stream.println(s"if ($hi > ($start) + $work || $tid == ${tid}_nt - 1) $hi = ($start) + $work;")
+      } else {
+        stream.println("{")
+        stream.println(s"int32_t $tid = 0;")
+        stream.println(s"int32_t $lo = $start;")
+        stream.println(s"int32_t $hi = $end;")
+      }
+      emitBlock(body)
+      stream.println("}")
+
+    case _ => super.emitNode(sym, rhs)
+  }
+}
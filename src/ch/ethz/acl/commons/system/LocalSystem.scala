@@ -1,14 +1,17 @@
 package ch.ethz.acl.commons.system
 
-import java.io.{File, PrintWriter, StringWriter}
+import java.io.{File, FileInputStream, FileOutputStream, PrintWriter, StringWriter}
 import java.nio.file.Paths
 import java.util
+import java.util.Properties
 
 import ch.ethz.acl.commons.compiler.ArchType.ArchType
 import ch.ethz.acl.commons.compiler.ISA.ISA
 import ch.ethz.acl.commons.compiler._
 import ch.ethz.acl.commons.compiler.OSType.OSType
+import ch.ethz.acl.commons.compiler.UArch.value2MicroArchValue
 import ch.ethz.acl.commons.util.{Debugging, Utilities}
+import com.typesafe.config.ConfigFactory
 import org.apache.commons.io.FileUtils
 import org.hyperic.sigar.{Sigar, SigarLoader}
 import model.CPUID
@@ -16,6 +19,23 @@ import org.hyperic.jni.ArchName
 
 object LocalSystem extends Debugging {
 
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  /**
+    * Persist the detected system profile, such that later runs skip the detection
+    */
+  var profileEnabled: Boolean = config.getBoolean("settings.system.profile")
+
+  /**
+    * File holding the system profile. Defaults to ~/.ngen/system.properties
+    */
+  var profileFile: File = config.getString("settings.system.file").trim match {
+    case "" => new File(System.getProperty("user.home") + File.separator + ".ngen" + File.separator + "system.properties")
+    case f  => new File(f)
+  }
+
+  private val profileVersion = "1"
+
   private var systemDetected = false
 
   private var systemOS: OSType         = OSType.UNKNOWN
@@ -31,6 +51,8 @@ object LocalSystem extends Debugging {
   private var cpuModelN : Int = -1
   private var cpuISAs         = List.empty[ISA]
   private var cpuMicroArch    = UArch.UNKNOWN
+  private var emulatedUArch   = Option.empty[UArch.UArch]
+  private var cpuTopology     = Option.empty[Topology]
 
   private var gccCompiler  : Option[String]   = None
   private var gccVersion   : Option[String]   = None
@@ -44,12 +66,35 @@ object LocalSystem extends Debugging {
 
   private var processEnv : Option[Map[String, String]] = None
 
-  private def detectGCC (): Unit = {
-    val gcc = if (systemOS == OSType.WINDOWS) {
-      Utilities.findExec("gcc.exe")
+  private def findGCC (): File = if (systemOS == OSType.WINDOWS) {
+    Utilities.findExec("gcc.exe")
+  } else {
+    Utilities.findExec("gcc")
+  }
+
+  private def findLLVM (): File = if (systemOS == OSType.WINDOWS) {
+    Utilities.findExec("clang.exe")
+  } else {
+    Utilities.findExec("clang")
+  }
+
+  private def findICC (): File = if (systemOS == OSType.WINDOWS) {
+    Utilities.findExec("icl.exe")
+  } else {
+    Utilities.findExec("icc")
+  }
+
+  private def findJavaC (): File = {
+    val javaHome = Paths.get(System.getProperty("java.home")).getParent.resolve("bin").toString
+    if (systemOS == OSType.WINDOWS) {
+      Utilities.findExec("javac.exe", javaHome)
     } else {
-      Utilities.findExec("gcc")
+      Utilities.findExec("javac", javaHome)
     }
+  }
+
+  private def detectGCC (): Unit = {
+    val gcc = findGCC()
     if (gcc != null) {
       val (_, v1, v2) = (new Executable).execute(gcc.getAbsolutePath + " -v")
       gccCompiler = Some(gcc.getAbsolutePath)
@@ -58,11 +103,7 @@ object LocalSystem extends Debugging {
   }
 
   private def detectLLVM (): Unit = {
-    val llvm = if (systemOS == OSType.WINDOWS) {
-      Utilities.findExec("clang.exe")
-    } else {
-      Utilities.findExec("clang")
-    }
+    val llvm = findLLVM()
     if (llvm != null) {
       val (_, v1, v2) = (new Executable).execute(llvm.getAbsolutePath + " -v")
       llvmCompiler = Some(llvm.getAbsolutePath)
@@ -71,11 +112,7 @@ object LocalSystem extends Debugging {
   }
 
   private def detectICC (): Unit = {
-    val icc = if (systemOS == OSType.WINDOWS) {
-      Utilities.findExec("icl.exe")
-    } else {
-      Utilities.findExec("icc")
-    }
+    val icc = findICC()
     if (icc != null) {
       val (_, v1, v2) = (new Executable).execute(icc.getAbsolutePath + " -v")
       iccCompiler = Some(icc.getAbsolutePath)
@@ -85,12 +122,7 @@ object LocalSystem extends Debugging {
 
 
   private def detectJavaC (): Unit = {
-    val javaHome = Paths.get(System.getProperty("java.home")).getParent.resolve("bin").toString
-    val javac = if (systemOS == OSType.WINDOWS) {
-      Utilities.findExec("javac.exe", javaHome)
-    } else {
-      Utilities.findExec("javac", javaHome)
-    }
+    val javac = findJavaC()
     if (javac != null) {
       val (_, v1, v2) = (new Executable).execute(javac.getAbsolutePath + " -version")
       javacCompiler = Some(javac.getAbsolutePath)
@@ -106,11 +138,7 @@ object LocalSystem extends Debugging {
   def checkSigar (): Unit = {
 
     val libraryPath  = System.getProperty("java.library.path")
-    val sigarLibrary = getClass.getResource(s"/org.hyperic.sigar/") // .toExternalForm
-    val tmpFile = FileUtils.getTempDirectory
-    val sigarPath = tmpFile.getAbsolutePath + File.separator + "sigar" + System.currentTimeMillis
-    val sigarFile = new File(sigarPath)
-    FileUtils.copyDirectory(new File(sigarLibrary.toURI), sigarFile)
+    val sigarPath    = extractLibraries("org.hyperic.sigar")
 
     val path = libraryPath + File.pathSeparator + sigarPath
     System.setProperty("java.library.path", path)
@@ -134,16 +162,28 @@ object LocalSystem extends Debugging {
     }
 
     System.setProperty("java.library.path", libraryPath)
-    System.gc()
+  }
+
+  //
+  // Copies a resource directory of native libraries into the temp directory,
+  // once for all JVMs of the user. The name of the copy identifies the
+  // content of the resources, such that updated libraries are copied again.
+  //
+  private def extractLibraries (resource: String): String = {
+    val source = new File(getClass.getResource("/" + resource + "/").toURI)
+    val id = source.listFiles().map(f => f.getName + ":" + f.length).sorted.mkString(",").hashCode
+    val target = new File(FileUtils.getTempDirectory, "ngen-" + System.getProperty("user.name") + File.separator + resource + "-" + Integer.toHexString(id))
+    if (!target.isDirectory) {
+      val tmp = new File(target.getPath + "." + System.nanoTime)
+      FileUtils.copyDirectory(source, tmp)
+      if (!tmp.renameTo(target)) FileUtils.deleteQuietly(tmp)
+    }
+    target.getAbsolutePath
   }
 
   def detectCPU (): Unit = {
 
-    val cpuidLibrary = getClass.getResource(s"/com.intel.intrinsics/") // .toExternalForm
-    val tmpFile = FileUtils.getTempDirectory
-    val cpuidPath = tmpFile.getAbsolutePath + File.separator + "cpuid" + System.currentTimeMillis
-    val cpuidFile = new File(cpuidPath)
-    FileUtils.copyDirectory(new File(cpuidLibrary.toURI), cpuidFile)
+    val cpuidPath = extractLibraries("com.intel.intrinsics")
 
     {
       CPUID.load(cpuidPath)
@@ -198,19 +238,124 @@ object LocalSystem extends Debugging {
       cpuISAs = cpuISAs.reverse
 
     }
-    System.gc()
 
   }
 
-  def detect (): Unit = if (!systemDetected)
+  //
+  // Detects the cores, NUMA nodes and caches. cpuid is used only when sysfs
+  // is not available, and requires detectCPU.
+  //
+  private def detectTopology (): Unit = {
+    cpuTopology = Some(Topology.detect(try CPUID.getCaches catch { case e: Throwable => Array.empty[Array[Int]] }))
+  }
+
+  //
+  // Cheap properties of the machine and the JVM, such as the CPU model and
+  // the modification times of the compilers. The stored profile is valid
+  // only as long as they remain the same.
+  //
+  private def fingerprint (): String = {
+    val cpuinfo = new File("/proc/cpuinfo")
+    val brand = if (cpuinfo.isFile) {
+      FileUtils.readLines(cpuinfo).toArray.map(_.toString).find(_.startsWith("model name")).getOrElse("")
+    } else ""
+    val execs = List(findGCC(), findLLVM(), findICC(), findJavaC()).map(f =>
+      if (f == null) "-" else f.getAbsolutePath + "@" + f.lastModified()
+    )
+    val props = List("os.name", "os.version", "os.arch", "java.home", "java.version", "user.name").map(System.getProperty)
+    (profileVersion :: brand :: Runtime.getRuntime.availableProcessors().toString :: props ::: execs).mkString("|")
+  }
+
+  private def storeProfile (): Unit = try {
+    val p = new Properties()
+    def set (key: String, value: Option[String]) = value.foreach(v => p.setProperty(key, v))
+    p.setProperty("fingerprint", fingerprint())
+    p.setProperty("os", systemOS.toString)
+    set("jdk.home", jdkHome)
+    p.setProperty("cpu.freq", cpuFreq.toString)
+    p.setProperty("cpu.model", cpuModel)
+    p.setProperty("cpu.vendor", cpuVendor)
+    p.setProperty("cpu.brand", cpuBrand)
+    p.setProperty("cpu.family", cpuFamily.toString)
+    p.setProperty("cpu.modelN", cpuModelN.toString)
+    p.setProperty("cpu.uarch", cpuMicroArch.toString)
+    p.setProperty("cpu.isas", cpuISAs.mkString(","))
+    cpuTopology.foreach(_.store(p))
+    set("gcc", gccCompiler)
+    set("gcc.version", gccVersion)
+    set("icc", iccCompiler)
+    set("icc.version", iccVersion)
+    set("llvm", llvmCompiler)
+    set("llvm.version", llvmVersion)
+    set("javac", javacCompiler)
+    set("javac.version", javacVersion)
+    set("jvm.arch", jvmArch.map(_.toString))
+    profileFile.getParentFile.mkdirs()
+    val tmp = File.createTempFile("system", ".tmp", profileFile.getParentFile)
+    val out = new FileOutputStream(tmp)
+    try p.store(out, "NGen system profile") finally out.close()
+    if (!tmp.renameTo(profileFile)) {
+      profileFile.delete()
+      tmp.renameTo(profileFile)
+    }
+  } catch {
+    case e: Exception => printDebug0("System profile can not be written: " + e.getMessage)
+  }
+
+  //
+  // Restores the detected system from the stored profile, if it is still valid
+  //
+  private def loadProfile (): Boolean = profileFile.isFile && (try {
+    val p = new Properties()
+    val in = new FileInputStream(profileFile)
+    try p.load(in) finally in.close()
+    def get (key: String) = Option(p.getProperty(key))
+    if (get("fingerprint") != Some(fingerprint())) {
+      printDebug2("System profile is outdated: " + profileFile.getAbsolutePath)
+      false
+    } else {
+      systemOS      = OSType.withName(p.getProperty("os"))
+      jdkHome       = get("jdk.home")
+      cpuFreq       = p.getProperty("cpu.freq").toInt
+      cpuModel      = p.getProperty("cpu.model")
+      cpuVendor     = p.getProperty("cpu.vendor")
+      cpuBrand      = p.getProperty("cpu.brand")
+      cpuFamily     = p.getProperty("cpu.family").toInt
+      cpuModelN     = p.getProperty("cpu.modelN").toInt
+      cpuMicroArch  = UArch.withName(p.getProperty("cpu.uarch"))
+      cpuISAs       = p.getProperty("cpu.isas").split(",").toList.filter(_.nonEmpty).map(ISA.withName)
+      cpuTopology   = Some(Topology.load(p))
+      gccCompiler   = get("gcc")
+      gccVersion    = get("gcc.version")
+      iccCompiler   = get("icc")
+      iccVersion    = get("icc.version")
+      llvmCompiler  = get("llvm")
+      llvmVersion   = get("llvm.version")
+      javacCompiler = get("javac")
+      javacVersion  = get("javac.version")
+      jvmArch       = get("jvm.arch").map(ArchType.withName)
+      printDebug2("System profile loaded: " + profileFile.getAbsolutePath)
+      true
+    }
+  } catch {
+    case e: Exception =>
+      printDebug0("System profile can not be read: " + e.getMessage)
+      false
+  })
+
+  def detect (): Unit = synchronized { if (!systemDetected)
   {
     detectOS()
-    detectJavaC()
-    checkSigar()
-    detectCPU()
-    detectICC()
-    detectGCC()
-    detectLLVM()
+    if (!profileEnabled || !loadProfile()) {
+      detectJavaC()
+      checkSigar()
+      detectCPU()
+      detectTopology()
+      detectICC()
+      detectGCC()
+      detectLLVM()
+      if (profileEnabled) storeProfile()
+    }
 
     val runtime = Runtime.getRuntime()
 
@@ -230,6 +375,8 @@ object LocalSystem extends Debugging {
          |CPU Model   : ${cpuModelN}
          |CPU uArch   : ${cpuMicroArch}
          |CPU ISAs    : ${cpuISAs.mkString(", ")}
+         |CPU Caches  : ${(1 to 3).map(l => "L" + l + " " + Utilities.humanReadableByteCount(cpuTopology.map(_.cache(l).size).getOrElse(Topology.defaultSizes(l)))).mkString(", ")}
+         |Topology    : ${cpuTopology.getOrElse("UNKNOWN")}
          |
          |Compilers:
          |---------------------------------------------------
@@ -257,7 +404,7 @@ object LocalSystem extends Debugging {
     printDebug3(report)
 
     systemDetected = true
-  }
+  }}
 
   def getOS () = {
     detect()
@@ -267,7 +414,8 @@ object LocalSystem extends Debugging {
   def getCompiler (): Option[AbstractCompiler] = {
     detect()
     iccCompiler match {
-      case Some(_) => Some(new ICC(iccCompiler, getOS()))
+      // ICC targets the host with -xHost, and can not generate code for an emulated micro-architecture
+      case Some(_) if emulatedUArch.isEmpty => Some(new ICC(iccCompiler, getOS()))
       case _ => gccCompiler match {
         case Some(_) => Some(new GCC(gccCompiler, getOS(), getUArch()))
         case _ => llvmCompiler match {
@@ -278,6 +426,19 @@ object LocalSystem extends Debugging {
     }
   }
 
+  def getCompilerVersion (compiler: AbstractCompiler): Option[String] = {
+    detect()
+    val exec = new File(compiler.getCompilerExec()).getAbsolutePath
+    val versions = List((iccCompiler, iccVersion), (gccCompiler, gccVersion), (llvmCompiler, llvmVersion))
+    versions.collectFirst({ case (Some(c), v) if c == exec => v }).flatten match {
+      case Some(v) => Some(v)
+      case None =>
+        // The compiler has not been detected, use the timestamp of the executable instead
+        val f = Utilities.findExec(compiler.getCompilerExec())
+        if (f != null) Some(f.getAbsolutePath + "@" + f.lastModified()) else None
+    }
+  }
+
   def getFreq(): Int = {
     detect()
     cpuFreq
@@ -290,12 +451,45 @@ object LocalSystem extends Debugging {
 
   def getUArch (): UArch.UArch = {
     detect()
-    cpuMicroArch
+    emulatedUArch.getOrElse(cpuMicroArch)
+  }
+
+  /**
+    * Evaluates body as if the local machine had the given micro-architecture, such that getUArch and getISAs return
+    * the values of the target, and the compilers generate code for it. Used to stage kernels ahead of time for other
+    * machines (see KernelBundles). Cache sizes and the number of cores remain the ones of the local machine, which is
+    * why the generated code takes them at runtime (see Parallelism, Streaming and NGemm).
+    */
+  def emulate[T] (uarch: UArch.UArch)(body: => T): T = {
+    detect()
+    val previous = emulatedUArch
+    emulatedUArch = Some(uarch)
+    try body finally emulatedUArch = previous
   }
 
+  def isEmulated: Boolean = emulatedUArch.isDefined
+
+  /**
+    * Topology of the local machine: cores, sockets, NUMA nodes and caches
+    */
+  def getTopology (): Topology = {
+    detect()
+    cpuTopology.getOrElse(Topology.detect(Array.empty[Array[Int]]))
+  }
+
+  /**
+    * Size in bytes of the data (or unified) cache of the given level, as seen by a single core
+    */
+  def getCacheSize (level: Int): Long = getTopology().cache(level).size
+
+  /**
+    * Bytes of the cache of the given level available to each of the given number of threads
+    */
+  def getCacheShare (level: Int, threads: Int): Long = getTopology().cacheShare(level, threads)
+
   def getISAs () : List[ISA] = {
     detect()
-    cpuISAs
+    emulatedUArch.map(_.getISAs()).getOrElse(cpuISAs)
   }
 
   def getJVMArch () : Option[ArchType] = {
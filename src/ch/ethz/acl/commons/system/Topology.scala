@@ -0,0 +1,154 @@
+package ch.ethz.acl.commons.system
+
+import java.io.File
+import java.util.Properties
+
+import org.apache.commons.io.FileUtils
+
+import scala.util.Try
+
+//
+// A data or unified cache, as seen by a single logical processor. sharedBy
+// is the number of logical processors sharing the cache.
+//
+case class CacheInfo (level: Int, kind: String, size: Long, lineSize: Int, ways: Int, sharedBy: Int)
+
+//
+// Topology of the local machine: the logical processors, the physical cores
+// and sockets they belong to, the NUMA nodes, and the data and unified
+// caches. Used to size the tiles and partitions of the kernels, see
+// LocalSystem.getTopology.
+//
+case class Topology (
+  logicalCPUs   : Int,
+  physicalCores : Int,
+  sockets       : Int,
+  numaNodes     : List[List[Int]],
+  caches        : List[CacheInfo]
+) {
+
+  def threadsPerCore: Int = Math.max(1, logicalCPUs / Math.max(1, physicalCores))
+
+  //
+  // The cache of the given level. Levels that can not be detected assume
+  // the typical sizes of Topology.defaultSizes.
+  //
+  def cache (level: Int): CacheInfo = caches.find(_.level == level) getOrElse {
+    val sharedBy = if (level < 3) threadsPerCore else logicalCPUs
+    CacheInfo(level, "Unified", Topology.defaultSizes.getOrElse(level, 0L), 64, 8, sharedBy)
+  }
+
+  //
+  // Bytes of the cache of the given level available to each of the given
+  // number of threads, when the threads are spread evenly over the machine
+  //
+  def cacheShare (level: Int, threads: Int): Long = {
+    val c = cache(level)
+    val instances = Math.max(1, logicalCPUs / Math.max(1, c.sharedBy))
+    Math.min(c.size, c.size * instances / Math.max(1, threads))
+  }
+
+  def store (p: Properties): Unit = {
+    p.setProperty("topology.cpus", logicalCPUs.toString)
+    p.setProperty("topology.cores", physicalCores.toString)
+    p.setProperty("topology.sockets", sockets.toString)
+    p.setProperty("topology.numa", numaNodes.map(_.mkString(",")).mkString(";"))
+    p.setProperty("topology.caches", caches.map(c =>
+      List(c.level, c.kind, c.size, c.lineSize, c.ways, c.sharedBy).mkString(":")
+    ).mkString(";"))
+  }
+
+  override def toString: String = {
+    val levels = caches.map(c => "L" + c.level + " " + (c.size / 1024) + "K/" + c.sharedBy).mkString(", ")
+    s"$logicalCPUs cpus, $physicalCores cores, $sockets sockets, ${numaNodes.size} numa nodes, caches: $levels"
+  }
+}
+
+object Topology {
+
+  // Typical sizes of the data caches, used when the caches can not be detected
+  val defaultSizes = Map(1 -> 32768L, 2 -> 262144L, 3 -> 8388608L)
+
+  private val sysfs = new File("/sys/devices/system")
+
+  private def read (file: File): String = FileUtils.readFileToString(file).trim
+
+  //
+  // Parses a sysfs list of logical processors, such as 0-3,8-11
+  //
+  private def cpuList (str: String): List[Int] = str.split(",").toList.map(_.trim).filter(_.nonEmpty).flatMap(r =>
+    r.split("-") match {
+      case Array(lo, hi) => (lo.toInt to hi.toInt).toList
+      case Array(cpu)    => List(cpu.toInt)
+    }
+  )
+
+  private def size (str: String): Long = str match {
+    case s if s.endsWith("K") => s.init.toLong * 1024L
+    case s if s.endsWith("M") => s.init.toLong * 1024L * 1024L
+    case s => s.toLong
+  }
+
+  private def numbered (dir: File, prefix: String): List[File] = Option(dir.listFiles()).toList.flatten.filter(f =>
+    f.isDirectory && f.getName.startsWith(prefix) && f.getName.drop(prefix.length).forall(_.isDigit) && f.getName.length > prefix.length
+  ).sortBy(_.getName.drop(prefix.length).toInt)
+
+  //
+  // Linux exposes the topology and the caches through sysfs
+  //
+  private def detectSysfs (): Option[Topology] = Try {
+    val cpus = numbered(new File(sysfs, "cpu"), "cpu").filter(cpu => new File(cpu, "topology").isDirectory)
+    val ids = cpus.map(cpu => (
+      read(new File(cpu, "topology/physical_package_id")).toInt,
+      read(new File(cpu, "topology/core_id")).toInt
+    ))
+    val caches = numbered(new File(cpus.head, "cache"), "index").map(index => {
+      def get (name: String) = read(new File(index, name))
+      CacheInfo(
+        level    = get("level").toInt,
+        kind     = get("type"),
+        size     = size(get("size")),
+        lineSize = Try(get("coherency_line_size").toInt).getOrElse(64),
+        ways     = Try(get("ways_of_associativity").toInt).getOrElse(0),
+        sharedBy = Try(cpuList(get("shared_cpu_list")).size).getOrElse(1)
+      )
+    }).filter(_.kind != "Instruction")
+    val nodes = numbered(new File(sysfs, "node"), "node").map(node => cpuList(read(new File(node, "cpulist"))))
+    Topology(
+      logicalCPUs   = cpus.size,
+      physicalCores = ids.distinct.size,
+      sockets       = ids.map(_._1).distinct.size,
+      numaNodes     = if (nodes.isEmpty) List(cpus.indices.toList) else nodes,
+      caches        = caches
+    )
+  }.toOption
+
+  //
+  // Other systems rely on the deterministic cache parameters of cpuid, in the
+  // format of CPUID.getCaches, and assume a single socket and NUMA node
+  //
+  private def detectCPUID (leaves: Array[Array[Int]]): Topology = {
+    val cpus = Runtime.getRuntime.availableProcessors()
+    val caches = leaves.toList.filter(_(1) != 2).map(l =>
+      CacheInfo(l(0), if (l(1) == 1) "Data" else "Unified", l(2).toLong, l(3), l(4), Math.min(l(5), cpus))
+    )
+    val smt = caches.find(_.level == 1).map(_.sharedBy).getOrElse(1)
+    Topology(cpus, Math.max(1, cpus / smt), 1, List((0 until cpus).toList), caches)
+  }
+
+  def detect (leaves: => Array[Array[Int]]): Topology = detectSysfs() getOrElse detectCPUID(leaves)
+
+  def load (p: Properties): Topology = {
+    def get (key: String) = Option(p.getProperty(key)).getOrElse(throw new IllegalArgumentException("Missing " + key))
+    Topology(
+      logicalCPUs   = get("topology.cpus").toInt,
+      physicalCores = get("topology.cores").toInt,
+      sockets       = get("topology.sockets").toInt,
+      numaNodes     = get("topology.numa").split(";").toList.filter(_.nonEmpty).map(cpuList),
+      caches        = get("topology.caches").split(";").toList.filter(_.nonEmpty).map(_.split(":") match {
+        case Array(level, kind, size, line, ways, shared) =>
+          CacheInfo(level.toInt, kind, size.toLong, line.toInt, ways.toInt, shared.toInt)
+      })
+    )
+  }
+}
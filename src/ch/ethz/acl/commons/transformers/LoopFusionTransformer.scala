@@ -0,0 +1,239 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+package ch.ethz.acl.commons.transformers
+
+import ch.ethz.acl.commons.cir.extensions.HeapArrayExp
+import ch.ethz.acl.commons.extensions.ForLoopExp
+
+import com.typesafe.config.ConfigFactory
+
+import scala.lms.common._
+import scala.reflect.SourceContext
+
+/**
+  * Loop fusion is configured in the settings.fusion section of ch.ethz.acl.settings.conf
+  */
+object LoopFusionTransformer {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  var enabled: Boolean = config.getBoolean("settings.fusion.enabled")
+}
+
+/**
+  * Fuses sequences of ForLoops of the same scope, having the same start, end and increment, into a single ForLoop.
+  * The bodies of the fused loops are executed one after the other in each iteration, such that a chain of
+  * element-wise operations and reductions makes a single pass over its arrays instead of one pass per operation.
+  *
+  * Loops are fused only when the fusion preserves all their dependencies:
+  *
+  * - a variable written by one of the loops is not used by the other one, i.e. reductions into distinct variables
+  *   fuse, while a loop consuming the result of a reduction does not;
+  * - when any of the loops writes an array, all the array accesses of both loops are pointwise, i.e. their offsets
+  *   are the loop index i, or i + c with 0 <= c < increment. Every array is assumed to alias any other array;
+  * - the loops do not both have global or simple effects, such as printing.
+  *
+  * Pure statements scheduled between two fusible loops, which can not depend on the first loop, are emitted before
+  * the fused loop. So are the allocations of variables whose initial value does not depend on the fused loops, such
+  * that the accumulator of a reduction declared between two loops does not end the sequence. All other statements end
+  * the sequence of fused loops.
+  */
+trait LoopFusionTransformer extends SubstitutionTransformer {
+
+  val IR: BaseFatExp with ForLoopExp with HeapArrayExp with PrimitiveOpsExp with NumericOpsExp with VariablesExp
+  import IR._
+
+  private case class LoopStm (sym: Sym[Any], loop: ForLoop[Any], summary: Summary)
+
+  private object LoopStm {
+    def unapply (stm: Stm): Option[LoopStm] = stm match {
+      case TP(s, Reflect(l: ForLoop[_], u, _)) => Some(LoopStm(s, l.asInstanceOf[ForLoop[Any]], u))
+      case TP(s, l: ForLoop[_])                => Some(LoopStm(s, l.asInstanceOf[ForLoop[Any]], Pure()))
+      case _ => None
+    }
+  }
+
+  private def isArray (e: Exp[Any]): Boolean = {
+    e.tp.erasure.isArray || classOf[HeapArray[_]].isAssignableFrom(e.tp.erasure)
+  }
+
+  private def isPure (stm: Stm): Boolean = stm match {
+    case TP(_, Reflect(_, _, _)) | TP(_, Reify(_, _, _)) => false
+    case TP(_, _) => true
+    case _ => false
+  }
+
+  /**
+    * Returns true if the statement can be emitted before the fused loop of the given group. The dependencies of a
+    * variable allocation on the previous effects are irrelevant, only its initial value must not depend on the group.
+    */
+  private def isHoistable (stm: Stm, group: List[LoopStm]): Boolean = {
+    def independent (e: Any) = !syms(e).exists(s => group.exists(_.sym == s))
+    stm match {
+      case TP(_, Reflect(NewVar(init), _, _)) => independent(init)
+      case TP(_, rhs) => isPure(stm) && independent(rhs)
+      case _ => false
+    }
+  }
+
+  /**
+    * Emits a statement before the fused loop. Variables are allocated anew, such that the allocation depends on the
+    * effects preceding the fused loop, rather than on the loops being fused.
+    */
+  private def hoist (stm: Stm): Unit = stm match {
+    case TP(s, Reflect(NewVar(init), _, _)) =>
+      register(s, var_new(apply(init))(init.tp.asInstanceOf[Typ[Any]], implicitly[SourceContext]).e)
+    case _ => traverseStm(stm)
+  }
+
+  /**
+    * All statements of a block, including the statements of its nested blocks
+    */
+  private def statements (block: Block[Any]): List[Stm] = {
+    var stms = List.empty[Stm]
+    focusBlock(block) {
+      focusExactScope(block) { levelScope =>
+        levelScope.foreach(stm => {
+          stms ::= stm
+          blocks(stm.rhs).foreach(b => stms :::= statements(b))
+        })
+      }
+    }
+    stms
+  }
+
+  private def isPointwise (loop: ForLoop[Any], offset: Exp[Any]): Boolean = (offset, loop.inc) match {
+    case (i, _) if i == loop.i => true
+    case (Def(IntPlus(i, Const(c: Int))), Const(inc: Int)) => i == loop.i && c >= 0 && c < inc
+    case (Def(NumericPlus(i, Const(c: Int))), Const(inc: Int)) => i == loop.i && c >= 0 && c < inc
+    case _ => false
+  }
+
+  /**
+    * Returns true if all accesses to arrays in the body of the loop are pointwise. An access is a node having an
+    * array operand, all of its Int operands must be pointwise offsets of the loop, and there must be at least one.
+    */
+  private def hasPointwiseAccesses (l: LoopStm, stms: List[Stm]): Boolean = stms.forall({
+    case TP(_, rhs) =>
+      val d = rhs match {
+        case Reflect(x, _, _) => x
+        case x => x
+      }
+      val operands = d.productIterator.collect({ case e: Exp[_] => e.asInstanceOf[Exp[Any]] }).toList
+      if (!operands.exists(isArray)) true else {
+        val offsets = operands.filter(_.tp.erasure == classOf[Int])
+        offsets.nonEmpty && offsets.forall(o => isPointwise(l.loop, o))
+      }
+    case _ => false
+  })
+
+  private def writes (l: LoopStm): List[Sym[Any]] = l.summary.mayWrite ++ l.summary.mstWrite
+
+  private def hasGlobalEffects (l: LoopStm): Boolean = l.summary.maySimple || l.summary.mayGlobal
+
+  private def fusible (a: LoopStm, aStms: List[Stm], b: LoopStm, bStms: List[Stm]): Boolean = {
+    val aUses = aStms.flatMap(stm => syms(stm.rhs)).toSet
+    val bUses = bStms.flatMap(stm => syms(stm.rhs)).toSet
+    val (aArrays, aVars) = writes(a).partition(isArray)
+    val (bArrays, bVars) = writes(b).partition(isArray)
+    (a.loop.start == b.loop.start) && (a.loop.end == b.loop.end) && (a.loop.inc == b.loop.inc) &&
+    !(hasGlobalEffects(a) && hasGlobalEffects(b)) &&
+    !aVars.exists(bUses.contains) && !bVars.exists(aUses.contains) &&
+    ((aArrays.isEmpty && bArrays.isEmpty) || (hasPointwiseAccesses(a, aStms) && hasPointwiseAccesses(b, bStms)))
+  }
+
+  /**
+    * Emits a single loop executing the bodies of all the given loops, in order
+    */
+  private def fuse (loops: List[LoopStm]): Unit = {
+    val head = loops.head.loop
+    implicit val mT: Typ[Any] = head.ma.asInstanceOf[Typ[Any]]
+    implicit val nT: Numeric[Any] = head.nu.asInstanceOf[Numeric[Any]]
+    val fused = forloop(apply(head.start), apply(head.end), fresh[Any], apply(head.inc), (i: Rep[Any]) => {
+      loops.foreach(l => {
+        register(l.loop.i, i)
+        reflectBlock(l.loop.body)
+      })
+      unit(())
+    })
+    loops.foreach(l => register(l.sym, fused))
+  }
+
+  override def traverseBlock[A] (block: Block[A]): Unit = {
+    focusBlock(block) {
+      focusExactScope(block) { levelScope =>
+        traverseScope(levelScope)
+      }
+    }
+  }
+
+  private def traverseScope (stms: List[Stm]): Unit = {
+    var rest = stms
+    while (rest.nonEmpty) {
+      rest.head match {
+        case LoopStm(l0) =>
+          var group   = List((l0, statements(l0.loop.body)))
+          var hoisted = List.empty[Stm]
+          var pending = List.empty[Stm]
+          var scan    = rest.tail
+          var open    = true
+          while (open && scan.nonEmpty) {
+            scan.head match {
+              case LoopStm(l) =>
+                val lStms = statements(l.loop.body)
+                if (group.forall({ case (g, gStms) => fusible(g, gStms, l, lStms) })) {
+                  group   = group :+ ((l, lStms))
+                  hoisted = hoisted ::: pending
+                  pending = Nil
+                  scan    = scan.tail
+                } else open = false
+              case stm if isHoistable(stm, group.map(_._1)) =>
+                pending = pending :+ stm
+                scan    = scan.tail
+              case _ => open = false
+            }
+          }
+          if (group.size == 1) {
+            traverseStm(rest.head)
+            rest = rest.tail
+          } else {
+            hoisted.foreach(hoist)
+            fuse(group.map(_._1))
+            rest = pending ::: scan
+          }
+        case stm =>
+          traverseStm(stm)
+          rest = rest.tail
+      }
+    }
+  }
+
+  /**
+    * Fuses the loops of a block, including the loops of its nested blocks
+    */
+  def fuseLoops[A] (block: Block[A]): Block[A] = transformBlock(block)(block.tp)
+}
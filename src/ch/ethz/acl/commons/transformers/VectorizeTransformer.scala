@@ -0,0 +1,305 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+package ch.ethz.acl.commons.transformers
+
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.compiler.ISA
+import ch.ethz.acl.commons.compiler.ISA.ISA
+import com.typesafe.config.ConfigFactory
+
+/**
+  * Vectorization is configured in the settings.vectorize section of ch.ethz.acl.settings.conf, and disabled by
+  * default, as it reorders Float reductions
+  */
+object VectorizeTransformer {
+
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+
+  var enabled: Boolean = config.getBoolean("settings.vectorize.enabled")
+}
+
+/**
+  * Vectorizes scalar ForLoops using AVX (Float) and AVX2 (Int) intrinsics. A loop is vectorized if it has an Int
+  * index and an increment of 1, and its body consists only of:
+  *
+  * - loads a(i) and stores a(i) = x of Array[Float] or Array[Int], at the index i of the loop;
+  * - element-wise +, -, * and / of Floats, and +, -, * of Ints, on loaded values and loop invariants;
+  * - sum reductions v = v + x, or v += x, into a variable v not otherwise used in the loop.
+  *
+  * The loop is rewritten into a loop processing 8 elements per iteration, followed by the original scalar loop
+  * processing the remaining elements. Reductions are accumulated in a vector and summed horizontally after the
+  * vectorized loop, which reorders the Float additions. As for LoopFusionTransformer, distinct arrays are assumed not
+  * to overlap.
+  */
+trait VectorizeTransformer extends SubstitutionTransformer {
+
+  val IR: IntrinsicsIR
+  import IR._
+
+  /**
+    * ISAs available to the transformed code. Float loops require AVX, Int loops require AVX2.
+    */
+  var isas: List[ISA] = Nil
+
+  private val width = 8
+
+  //
+  // A sum reduction v = sum + term, or v += term, where sum is absent in the latter case
+  //
+  private case class Reduction (v: Var[Any], term: Exp[Any], sum: Option[Exp[Any]], kind: Class[_])
+
+  private def supported (kind: Class[_]): Boolean = {
+    (kind == classOf[Float] && isas.contains(ISA.AVX)) || (kind == classOf[Int] && isas.contains(ISA.AVX2))
+  }
+
+  private def elementOf (a: Exp[Any]): Option[Class[_]] = {
+    if (a.tp.erasure.isArray) Some(a.tp.typeArguments.head.erasure) else None
+  }
+
+  private def strip (d: Any): Any = d match {
+    case Reflect(x, _, _) => x
+    case x => x
+  }
+
+  /**
+    * Element-wise binary operations, as (operator, lhs, rhs)
+    */
+  private object Binary {
+    def unapply (d: Any): Option[(Char, Exp[Any], Exp[Any])] = d match {
+      case FloatPlus    (a, b) => Some(('+', a, b))
+      case FloatMinus   (a, b) => Some(('-', a, b))
+      case FloatTimes   (a, b) => Some(('*', a, b))
+      case FloatDivide  (a, b) => Some(('/', a, b))
+      case IntPlus      (a, b) => Some(('+', a, b))
+      case IntMinus     (a, b) => Some(('-', a, b))
+      case IntTimes     (a, b) => Some(('*', a, b))
+      case NumericPlus  (a, b) => Some(('+', a, b))
+      case NumericMinus (a, b) => Some(('-', a, b))
+      case NumericTimes (a, b) => Some(('*', a, b))
+      case NumericDivide(a, b) => Some(('/', a, b))
+      case _ => None
+    }
+  }
+
+  private def bodyOf (block: Block[Any]): List[Stm] = {
+    var stms = List.empty[Stm]
+    focusBlock(block) {
+      focusExactScope(block) { levelScope =>
+        stms = levelScope
+      }
+    }
+    stms
+  }
+
+  /**
+    * Checks whether the body of the loop can be vectorized, and returns its reductions
+    */
+  private def analyze (l: ForLoop[Any], stms: List[Stm]): Option[List[Reduction]] = {
+    if (l.i.tp.erasure != classOf[Int] || l.inc != Const(1)) return None
+
+    val defined = stms.collect({ case TP(s, _) => s: Exp[Any] }).toSet
+    val uses = stms.collect({ case TP(_, d) => syms(strip(d)) }).flatten.groupBy(s => s: Exp[Any]).mapValues(_.size)
+    var kinds = Map.empty[Exp[Any], Class[_]]
+    var reads = Map.empty[Exp[Any], List[Sym[Any]]]
+    var terms = Map.empty[Exp[Any], List[(Exp[Any], Option[Exp[Any]])]]
+
+    def operand (e: Exp[Any], kind: Class[_]): Boolean = kinds.get(e) match {
+      case Some(k) => k == kind
+      case None => !defined.contains(e) && e != l.i && e.tp.erasure == kind
+    }
+
+    //
+    // The term added to the variable v by the assignment v = x, if x is r + term or term + r, for a read r of v
+    //
+    def termOf (v: Exp[Any], x: Exp[Any]): Option[Exp[Any]] = x match {
+      case Def(Binary('+', r, t)) if reads.getOrElse(v, Nil).contains(r) => Some(t)
+      case Def(Binary('+', t, r)) if reads.getOrElse(v, Nil).contains(r) => Some(t)
+      case _ => None
+    }
+
+    val vectorizable = stms.forall({
+      case TP(s, d) => strip(d) match {
+        case ArrayApply(a, i) if i == l.i && !defined.contains(a) && elementOf(a).exists(supported) =>
+          kinds += s -> elementOf(a).get
+          true
+        case ArrayUpdate(a, i, x) if i == l.i && !defined.contains(a) && elementOf(a).exists(supported) =>
+          operand(x, elementOf(a).get)
+        case Binary(op, x, y) if supported(s.tp.erasure) && !(op == '/' && s.tp.erasure == classOf[Int]) =>
+          kinds += s -> s.tp.erasure
+          operand(x, s.tp.erasure) && operand(y, s.tp.erasure)
+        case ReadVar(Variable(v)) if supported(s.tp.erasure) =>
+          kinds += s -> s.tp.erasure
+          reads += v -> (s :: reads.getOrElse(v, Nil))
+          true
+        case Assign(Variable(v), x) if supported(x.tp.erasure) =>
+          termOf(v, x) match {
+            case Some(t) =>
+              terms += v -> ((t, Some(x)) :: terms.getOrElse(v, Nil))
+              uses.getOrElse(x, 0) == 1 && operand(t, x.tp.erasure)
+            case None => false
+          }
+        case VarPlusEquals(Variable(v), x) if supported(x.tp.erasure) =>
+          terms += v -> ((x, None) :: terms.getOrElse(v, Nil))
+          operand(x, x.tp.erasure)
+        case Reify(_, _, _) => true
+        case _ => false
+      }
+      case _ => false
+    })
+
+    //
+    // Each variable is updated once, and its reads are only used by its update
+    //
+    val reductions = terms.toList
+    val valid = vectorizable && reads.keys.forall(terms.contains) && reductions.forall({ case (v, ts) =>
+      ts.size == 1 && reads.getOrElse(v, Nil).size <= 1 && reads.getOrElse(v, Nil).forall(r => uses.getOrElse(r, 0) == 1)
+    })
+    if (!valid) None else Some(reductions.map({ case (v, ts) =>
+      val (term, sum) = ts.head
+      Reduction(Variable(v.asInstanceOf[Exp[Variable[Any]]]), term, sum, term.tp.erasure)
+    }))
+  }
+
+  private def broadcast (e: Exp[Any], kind: Class[_]): Exp[Any] = {
+    if (kind == classOf[Float]) _mm256_set1_ps(e.asInstanceOf[Exp[Float]]) else _mm256_set1_epi32(e.asInstanceOf[Exp[Int]])
+  }
+
+  private def binary (op: Char, kind: Class[_], x: Exp[Any], y: Exp[Any]): Exp[Any] = if (kind == classOf[Float]) {
+    val (a, b) = (x.asInstanceOf[Exp[__m256]], y.asInstanceOf[Exp[__m256]])
+    op match {
+      case '+' => _mm256_add_ps(a, b)
+      case '-' => _mm256_sub_ps(a, b)
+      case '*' => _mm256_mul_ps(a, b)
+      case '/' => _mm256_div_ps(a, b)
+    }
+  } else {
+    val (a, b) = (x.asInstanceOf[Exp[__m256i]], y.asInstanceOf[Exp[__m256i]])
+    op match {
+      case '+' => _mm256_add_epi32(a, b)
+      case '-' => _mm256_sub_epi32(a, b)
+      case '*' => _mm256_mullo_epi32(a, b)
+    }
+  }
+
+  private def horizontalSum (acc: Exp[Any], kind: Class[_]): Exp[Any] = if (kind == classOf[Float]) {
+    val a = acc.asInstanceOf[Exp[__m256]]
+    val x128 = _mm_add_ps(_mm256_extractf128_ps(a, Const(1)), _mm256_castps256_ps128(a))
+    val x64  = _mm_hadd_ps(x128, x128)
+    _mm_cvtss_f32(_mm_hadd_ps(x64, x64))
+  } else {
+    val a = acc.asInstanceOf[Exp[__m256i]]
+    val x128 = _mm_add_epi32(_mm256_extractf128_si256(a, Const(1)), _mm256_castsi256_si128(a))
+    val x64  = _mm_hadd_epi32(x128, x128)
+    _mm_cvtsi128_si32(_mm_hadd_epi32(x64, x64))
+  }
+
+  private def vectorize (l: ForLoop[Any], stms: List[Stm], reductions: List[Reduction]): Exp[Unit] = {
+    val start = apply(l.start).asInstanceOf[Exp[Int]]
+    val end   = apply(l.end).asInstanceOf[Exp[Int]]
+    val n     = int_plus(start, int_times(int_divide(int_minus(end, start), Const(width)), Const(width)))
+    val accs  = reductions.map(r => r.v.e -> (if (r.kind == classOf[Float]) {
+      var_new(_mm256_setzero_ps()).asInstanceOf[Var[Any]]
+    } else {
+      var_new(_mm256_setzero_si256()).asInstanceOf[Var[Any]]
+    })).toMap
+
+    forloop(start, n, fresh[Int], Const(width), (j: Rep[Int]) => {
+      var vectors = Map.empty[Exp[Any], Exp[Any]]
+      def operand (e: Exp[Any], kind: Class[_]): Exp[Any] = vectors.getOrElse(e, broadcast(apply(e), kind))
+      def accumulate (v: Exp[Any], x: Exp[Any]): Unit = {
+        val r = reductions.find(_.v.e == v).get
+        if (r.kind == classOf[Float]) {
+          val acc = accs(v).asInstanceOf[Var[__m256]]
+          var_assign(acc, _mm256_add_ps(readVar(acc), operand(x, r.kind).asInstanceOf[Exp[__m256]]))
+        } else {
+          val acc = accs(v).asInstanceOf[Var[__m256i]]
+          var_assign(acc, _mm256_add_epi32(readVar(acc), operand(x, r.kind).asInstanceOf[Exp[__m256i]]))
+        }
+      }
+      stms.foreach({
+        case TP(s, d) => strip(d) match {
+          case ArrayApply(a, _) if elementOf(a).contains(classOf[Float]) =>
+            vectors += s -> _mm256_loadu_ps(apply(a).asInstanceOf[Exp[Array[Float]]], j)
+          case ArrayApply(a, _) =>
+            vectors += s -> _mm256_loadu_si256(apply(a).asInstanceOf[Exp[Array[Int]]], j)
+          case ArrayUpdate(a, _, x) if elementOf(a).contains(classOf[Float]) =>
+            _mm256_storeu_ps(apply(a).asInstanceOf[Exp[Array[Float]]], operand(x, classOf[Float]).asInstanceOf[Exp[__m256]], j)
+          case ArrayUpdate(a, _, x) =>
+            _mm256_storeu_si256(apply(a).asInstanceOf[Exp[Array[Int]]], operand(x, classOf[Int]).asInstanceOf[Exp[__m256i]], j)
+          case Assign(Variable(v), _) =>
+            accumulate(v, reductions.find(_.v.e == v).get.term)
+          case VarPlusEquals(Variable(v), x) =>
+            accumulate(v, x)
+          case ReadVar(_) | Reify(_, _, _) =>
+          case Binary(_, _, _) if reductions.exists(_.sum.contains(s)) =>
+            //
+            // The sums of the reductions are not needed, as their terms are accumulated directly
+            //
+          case Binary(op, x, y) =>
+            vectors += s -> binary(op, s.tp.erasure, operand(x, s.tp.erasure), operand(y, s.tp.erasure))
+        }
+      })
+      unit(())
+    })
+
+    reductions.foreach(r => {
+      val v = Variable(apply(r.v.e).asInstanceOf[Exp[Variable[Any]]])
+      if (r.kind == classOf[Float]) {
+        val vf = v.asInstanceOf[Var[Float]]
+        var_assign(vf, float_plus(readVar(vf), horizontalSum(readVar(accs(r.v.e)), r.kind).asInstanceOf[Exp[Float]]))
+      } else {
+        val vi = v.asInstanceOf[Var[Int]]
+        var_assign(vi, int_plus(readVar(vi), horizontalSum(readVar(accs(r.v.e)), r.kind).asInstanceOf[Exp[Int]]))
+      }
+    })
+
+    forloop(n, end, fresh[Int], Const(1), (k: Rep[Int]) => {
+      register(l.i, k)
+      reflectBlock(l.body)
+      unit(())
+    })
+  }
+
+  override def transformStm (stm: Stm): Exp[Any] = stm match {
+    case TP(_, Reflect(loop: ForLoop[_], _, _)) =>
+      val l = loop.asInstanceOf[ForLoop[Any]]
+      val stms = bodyOf(l.body)
+      analyze(l, stms) match {
+        case Some(reductions) => vectorize(l, stms, reductions)
+        case None => super.transformStm(stm)
+      }
+    case _ => super.transformStm(stm)
+  }
+
+  /**
+    * Vectorizes the loops of a block, including the loops of its nested blocks, for the given ISAs
+    */
+  def vectorizeLoops[A] (block: Block[A], targetISAs: List[ISA]): Block[A] = {
+    isas = targetISAs
+    transformBlock(block)(block.tp)
+  }
+}
@@ -171,7 +171,7 @@ trait CGenTypeIR extends CUnparser with GenTypeIR {
       "sizeof(" + remap(t.toTyp(IR)) + ")"
     }).mkString("," + System.getProperty("line.separator")) + "\n}"
     cApp.addStructure(CEnum(typeEnumName, definition))
-    cApp.addStructure(CDefinition("int size_of[]", mappings))
+    cApp.addStructure(CDefinition("static int size_of[]", mappings))
     super.emitGlobalNodes(block)
   }
 
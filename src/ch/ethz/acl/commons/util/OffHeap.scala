@@ -0,0 +1,123 @@
+/**
+  *      ___    ______ __       ______ ____   __  ___ __  ___ ____   _   __ _____
+  *     /   |  / ____// /      / ____// __ \ /  |/  //  |/  // __ \ / | / // ___/
+  *    / /| | / /    / /      / /    / / / // /|_/ // /|_/ // / / //  |/ / \__ \
+  *   / ___ |/ /___ / /___   / /___ / /_/ // /  / // /  / // /_/ // /|  / ___/ /
+  *  /_/  |_|\____//_____/   \____/ \____//_/  /_//_/  /_/ \____//_/ |_/ /____/
+  *
+  *  Advanced Computing Laboratory
+  *  Department of Computer Science
+  *  ETH Zurich, Switzerland
+  *
+  *  Copyright (C) 2017 Alen Stojanov (astojanov@inf.ethz.ch)
+  *
+  *  This program is free software: you can redistribute it and/or modify
+  *  it under the terms of the GNU General Public License as published by
+  *  the Free Software Foundation, either version 3 of the License, or
+  *  (at your option) any later version.
+  *
+  *  This program is distributed in the hope that it will be useful,
+  *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  *  GNU General Public License for more details.
+  *
+  *  You should have received a copy of the GNU General Public License
+  *  along with this program. If not, see http://www.gnu.org/licenses/.
+  */
+
+package ch.ethz.acl.commons.util
+
+import java.nio.{Buffer, ByteBuffer, ByteOrder}
+
+import org.bridj.Pointer
+
+/**
+  * OffHeap allocates aligned memory outside of the JVM heap. The memory is exposed as a direct ByteBuffer in native
+  * byte order, such that it can be passed to JNI functions having DirectBuffer bindings, or as a raw address to
+  * functions having Address bindings. In both cases the memory is accessed in place, without pinning or copying.
+  *
+  * The memory is released by the garbage collector, once the returned buffer is no longer reachable. When raw
+  * addresses are used, the buffer must be kept reachable for as long as the address is in use.
+  */
+object OffHeap {
+
+  val defaultAlignment = 64
+
+  /**
+    * Allocates an aligned direct buffer
+    *
+    * @param bytes      Size of the buffer in bytes
+    * @param alignment  Alignment of the first byte in the buffer, must be a power of 2
+    * @return           Direct ByteBuffer in native byte order
+    */
+  def allocate (bytes: Int, alignment: Int = defaultAlignment): ByteBuffer = {
+    require(alignment > 0 && (alignment & (alignment - 1)) == 0, "Alignment must be a power of 2: " + alignment)
+    val raw = ByteBuffer.allocateDirect(bytes + alignment - 1)
+    val misalignment = (address(raw) & (alignment - 1)).toInt
+    val offset = if (misalignment == 0) 0 else alignment - misalignment
+    raw.position(offset)
+    raw.limit(offset + bytes)
+    raw.slice().order(ByteOrder.nativeOrder())
+  }
+
+  def allocateFloats (n: Int, alignment: Int = defaultAlignment): ByteBuffer = allocate(n * 4, alignment)
+  def allocateShorts (n: Int, alignment: Int = defaultAlignment): ByteBuffer = allocate(n * 2, alignment)
+  def allocateBytes  (n: Int, alignment: Int = defaultAlignment): ByteBuffer = allocate(n    , alignment)
+
+  /**
+    * Copies a JVM array into a direct buffer, starting at the first element of the buffer
+    */
+  def copy (src: Array[Float], dst: ByteBuffer): ByteBuffer = { dst.asFloatBuffer().put(src); dst }
+  def copy (src: Array[Short], dst: ByteBuffer): ByteBuffer = { dst.asShortBuffer().put(src); dst }
+  def copy (src: Array[Byte] , dst: ByteBuffer): ByteBuffer = { dst.duplicate().put(src); dst }
+
+  /**
+    * Copies the content of a direct buffer, starting at the first element, into a JVM array
+    */
+  def copy (src: ByteBuffer, dst: Array[Float]): Array[Float] = { src.asFloatBuffer().get(dst); dst }
+  def copy (src: ByteBuffer, dst: Array[Short]): Array[Short] = { src.asShortBuffer().get(dst); dst }
+  def copy (src: ByteBuffer, dst: Array[Byte] ): Array[Byte]  = { src.duplicate().get(dst); dst }
+
+  /**
+    * Native address of the first element of a direct buffer
+    *
+    * @param buffer Direct buffer
+    * @return       The address, to be passed as long to Address bindings
+    */
+  def address (buffer: Buffer): Long = {
+    require(buffer.isDirect, "Only direct buffers have a native address")
+    Pointer.pointerToBuffer(buffer).getPeer
+  }
+}
+
+/**
+  * A float array allocated off-heap, whose first element is aligned to the given alignment. Aligned arrays let the
+  * kernels having DirectBuffer or Address bindings use aligned vector loads and stores from the first element, and
+  * skip the scalar prologue needed to reach an aligned address.
+  *
+  * @param length     Number of elements
+  * @param alignment  Alignment of the first element in bytes, must be a power of 2
+  */
+final class AlignedFloatArray (val length: Int, val alignment: Int = OffHeap.defaultAlignment) {
+
+  val buffer: ByteBuffer = OffHeap.allocateFloats(length, alignment)
+
+  private val floats = buffer.asFloatBuffer()
+
+  /**
+    * Native address of the first element, valid as long as this array is reachable
+    */
+  val address: Long = OffHeap.address(buffer)
+
+  def apply  (i: Int): Float = floats.get(i)
+  def update (i: Int, v: Float): Unit = floats.put(i, v)
+
+  def copyFrom (src: Array[Float]): AlignedFloatArray = { OffHeap.copy(src, buffer); this }
+  def copyTo   (dst: Array[Float]): Array[Float] = OffHeap.copy(buffer, dst)
+
+  def toArray: Array[Float] = copyTo(new Array[Float](length))
+}
+
+object AlignedFloatArray {
+  def apply (src: Array[Float]): AlignedFloatArray = new AlignedFloatArray(src.length).copyFrom(src)
+}
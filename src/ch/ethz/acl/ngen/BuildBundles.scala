@@ -0,0 +1,75 @@
+package ch.ethz.acl.ngen
+
+import java.io.File
+
+import ch.ethz.acl.commons.cir.{JavaBackend, KernelMetrics, TieredCompilation}
+import ch.ethz.acl.commons.compiler.{KernelBundles, UArch}
+import ch.ethz.acl.ngen.blas1._
+import ch.ethz.acl.ngen.gemm.NGemm
+import ch.ethz.acl.ngen.mmm.NMMM
+import ch.ethz.acl.ngen.multisaxpy.NMultiSaxpy
+import ch.ethz.acl.ngen.precison._
+import ch.ethz.acl.ngen.saxpy.NSaxpy
+
+//
+// Builds the kernel bundles packaged into the jar (see KernelBundles).
+// Without arguments, each target of settings.bundles is built by a
+// separate JVM, such that no staged kernel is shared among targets.
+// Given a micro-architecture, only the bundle of that target is built:
+//
+//   sbt "runMain ch.ethz.acl.ngen.BuildBundles"
+//   sbt "runMain ch.ethz.acl.ngen.BuildBundles skylake"
+//
+// The bundles are written to settings.bundles.directory, and end up in
+// the jar created by the next sbt package. Kernels are not autotuned
+// for the targets, and use their recorded or default variants.
+//
+object BuildBundles {
+
+  //
+  // Instantiates every kernel class, staging its native methods. The
+  // sizes are irrelevant, as they are arguments of the staged functions.
+  //
+  def kernels (): Unit = {
+    new NSaxpy
+    new NMultiSaxpy
+    new NMMM
+    new NGemm
+    new QVector4(128)
+    new QVector8(128)
+    new QVector16(128)
+    new QVector32(128)
+    new QMatrix4(1, 128)
+    new QMatrix8(1, 128)
+    new NBlas1Float
+    new NBlas1Double
+    new NBlas1Int
+    new NBlas1Short
+  }
+
+  def build (target: UArch.UArch): Unit = {
+    // Compile in the constructors, never fall back to Java kernels, and never instrument
+    TieredCompilation.enabled = false
+    JavaBackend.target = "jni"
+    KernelMetrics.enabled = false
+    val dir = KernelBundles.build(target)(kernels())
+    println("Bundle of " + target + " written to " + dir.getAbsolutePath)
+  }
+
+  def main (args: Array[String]): Unit = args match {
+    case Array(target) => UArch.fromString(target) match {
+      case UArch.UNKNOWN => sys.error("Unknown micro-architecture: " + target)
+      case uarch => build(uarch)
+    }
+    case _ =>
+      val java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"
+      val main = getClass.getName.stripSuffix("$")
+      KernelBundles.targets foreach { target =>
+        val name = UArch.value2MicroArchValue(target).convertToString()
+        val process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), main, name)
+        if (process.inheritIO().start().waitFor() != 0) {
+          sys.error("Building the bundle of " + name + " failed")
+        }
+      }
+  }
+}
@@ -0,0 +1,9 @@
+package ch.ethz.acl.ngen.blas1
+
+object Blas1 {
+  val nFloat  = new NBlas1Float
+  val nDouble = new NBlas1Double
+  val nInt    = new NBlas1Int
+  val nShort  = new NBlas1Short
+  val jBlas1  = new JBlas1
+}
@@ -0,0 +1,249 @@
+package ch.ethz.acl.ngen.blas1;
+
+//
+// JVM implementation of the BLAS-1 kernels of NBlas1, with the same
+// semantics: integer arithmetic wraps around, including the absolute
+// value of the smallest integer, and iamax returns -1 when n < 1.
+//
+public class JBlas1 {
+
+    // float
+
+    public void axpy(int n, float alpha, float[] x, float[] y) {
+        for (int i = 0; i < n; i += 1) {
+            y[i] = alpha * x[i] + y[i];
+        }
+    }
+
+    public void scal(int n, float alpha, float[] x) {
+        for (int i = 0; i < n; i += 1) {
+            x[i] = alpha * x[i];
+        }
+    }
+
+    public void copy(int n, float[] x, float[] y) {
+        System.arraycopy(x, 0, y, 0, n);
+    }
+
+    public void swap(int n, float[] x, float[] y) {
+        for (int i = 0; i < n; i += 1) {
+            float t = x[i];
+            x[i] = y[i];
+            y[i] = t;
+        }
+    }
+
+    public float dot(int n, float[] x, float[] y) {
+        float sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    public float asum(int n, float[] x) {
+        float sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += Math.abs(x[i]);
+        }
+        return sum;
+    }
+
+    public float nrm2(int n, float[] x) {
+        float sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += x[i] * x[i];
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    public int iamax(int n, float[] x) {
+        if (n < 1) return -1;
+        int index = 0;
+        float largest = Math.abs(x[0]);
+        for (int i = 1; i < n; i += 1) {
+            float a = Math.abs(x[i]);
+            if (a > largest) {
+                largest = a;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    // double
+
+    public void axpy(int n, double alpha, double[] x, double[] y) {
+        for (int i = 0; i < n; i += 1) {
+            y[i] = alpha * x[i] + y[i];
+        }
+    }
+
+    public void scal(int n, double alpha, double[] x) {
+        for (int i = 0; i < n; i += 1) {
+            x[i] = alpha * x[i];
+        }
+    }
+
+    public void copy(int n, double[] x, double[] y) {
+        System.arraycopy(x, 0, y, 0, n);
+    }
+
+    public void swap(int n, double[] x, double[] y) {
+        for (int i = 0; i < n; i += 1) {
+            double t = x[i];
+            x[i] = y[i];
+            y[i] = t;
+        }
+    }
+
+    public double dot(int n, double[] x, double[] y) {
+        double sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    public double asum(int n, double[] x) {
+        double sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += Math.abs(x[i]);
+        }
+        return sum;
+    }
+
+    public double nrm2(int n, double[] x) {
+        double sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += x[i] * x[i];
+        }
+        return Math.sqrt(sum);
+    }
+
+    public int iamax(int n, double[] x) {
+        if (n < 1) return -1;
+        int index = 0;
+        double largest = Math.abs(x[0]);
+        for (int i = 1; i < n; i += 1) {
+            double a = Math.abs(x[i]);
+            if (a > largest) {
+                largest = a;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    // int
+
+    public void axpy(int n, int alpha, int[] x, int[] y) {
+        for (int i = 0; i < n; i += 1) {
+            y[i] = alpha * x[i] + y[i];
+        }
+    }
+
+    public void scal(int n, int alpha, int[] x) {
+        for (int i = 0; i < n; i += 1) {
+            x[i] = alpha * x[i];
+        }
+    }
+
+    public void copy(int n, int[] x, int[] y) {
+        System.arraycopy(x, 0, y, 0, n);
+    }
+
+    public void swap(int n, int[] x, int[] y) {
+        for (int i = 0; i < n; i += 1) {
+            int t = x[i];
+            x[i] = y[i];
+            y[i] = t;
+        }
+    }
+
+    public int dot(int n, int[] x, int[] y) {
+        int sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    public int asum(int n, int[] x) {
+        int sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += Math.abs(x[i]);
+        }
+        return sum;
+    }
+
+    public int iamax(int n, int[] x) {
+        if (n < 1) return -1;
+        int index = 0;
+        int largest = Math.abs(x[0]);
+        for (int i = 1; i < n; i += 1) {
+            int a = Math.abs(x[i]);
+            if (a > largest) {
+                largest = a;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    // short
+
+    public void axpy(int n, short alpha, short[] x, short[] y) {
+        for (int i = 0; i < n; i += 1) {
+            y[i] = (short) (alpha * x[i] + y[i]);
+        }
+    }
+
+    public void scal(int n, short alpha, short[] x) {
+        for (int i = 0; i < n; i += 1) {
+            x[i] = (short) (alpha * x[i]);
+        }
+    }
+
+    public void copy(int n, short[] x, short[] y) {
+        System.arraycopy(x, 0, y, 0, n);
+    }
+
+    public void swap(int n, short[] x, short[] y) {
+        for (int i = 0; i < n; i += 1) {
+            short t = x[i];
+            x[i] = y[i];
+            y[i] = t;
+        }
+    }
+
+    public short dot(int n, short[] x, short[] y) {
+        short sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    public short asum(int n, short[] x) {
+        short sum = 0;
+        for (int i = 0; i < n; i += 1) {
+            sum += (short) Math.abs(x[i]);
+        }
+        return sum;
+    }
+
+    public int iamax(int n, short[] x) {
+        if (n < 1) return -1;
+        int index = 0;
+        short largest = (short) Math.abs(x[0]);
+        for (int i = 1; i < n; i += 1) {
+            short a = (short) Math.abs(x[i]);
+            if (a > largest) {
+                largest = a;
+                index = i;
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,209 @@
+package ch.ethz.acl.ngen.blas1
+
+import ch.ethz.acl.ngen.blas1.NBlas1.IR._
+import ch.ethz.acl.ngen.blas1.NBlas1.IR.ImplicitLift._
+
+//
+// The AVX2 operations on 256-bit registers of a primitive type T used by
+// the staged BLAS-1 kernels. Each register holds `count` elements of T.
+//
+// Tails are processed with masked loads and stores, which AVX2 only
+// provides for 32-bit and 64-bit lanes. The mask of r < count remaining
+// elements is built by comparing r against `maskLanes`, the index of the
+// element covered by each 32-bit lane. Shorts are masked in pairs, such
+// that an odd last element is processed by a scalar statement.
+//
+abstract class Lanes[T] {
+
+  type V
+
+  def tTyp: Typ[T]
+  def vTyp: Typ[V]
+  def num: Numeric[T]
+
+  private implicit def elemTyp: Typ[T] = tTyp
+  private implicit def elemNum: Numeric[T] = num
+
+  val count: Int
+  val pairs: Boolean = false
+  protected val maskLanes: List[Int]
+
+  def mask (r: Rep[Int]): Rep[__m256i] = {
+    val l = maskLanes
+    val n = if (pairs) r >> 1 else r
+    _mm256_cmpgt_epi32(_mm256_set1_epi32(n), _mm256_setr_epi32(l(0), l(1), l(2), l(3), l(4), l(5), l(6), l(7)))
+  }
+
+  def loadu     (a: Rep[Array[T]], i: Rep[Int]): Rep[V]
+  def storeu    (a: Rep[Array[T]], v: Rep[V], i: Rep[Int]): Rep[Unit]
+  def maskload  (a: Rep[Array[T]], m: Rep[__m256i], i: Rep[Int]): Rep[V]
+  def maskstore (a: Rep[Array[T]], m: Rep[__m256i], v: Rep[V], i: Rep[Int]): Rep[Unit]
+
+  def set1  (x: Rep[T]): Rep[V]
+  def zero  (): Rep[V]
+  def add   (a: Rep[V], b: Rep[V]): Rep[V]
+  def mul   (a: Rep[V], b: Rep[V]): Rep[V]
+  def abs   (a: Rep[V]): Rep[V]
+  def max   (a: Rep[V], b: Rep[V]): Rep[V]
+
+  // a * b + c, fused where the ISA allows it
+  def fmadd (a: Rep[V], b: Rep[V], c: Rep[V]): Rep[V] = add(mul(a, b), c)
+
+  // Horizontal sum and maximum of the elements of a register
+  def sum   (a: Rep[V]): Rep[T]
+  def hmax  (a: Rep[V]): Rep[T]
+
+  // Scalar absolute value, wrapping around for the smallest integer like the vector one
+  def absScalar (x: Rep[T]): Rep[T] = math_abs(x)
+}
+
+object FloatLanes extends Lanes[Float] {
+
+  type V = __m256
+
+  def tTyp = typ[Float]
+  def vTyp = typ[__m256]
+  def num  = implicitly[Numeric[Float]]
+
+  val count = 8
+  protected val maskLanes = List(0, 1, 2, 3, 4, 5, 6, 7)
+
+  def loadu     (a: Rep[Array[Float]], i: Rep[Int]) = _mm256_loadu_ps(a, i)
+  def storeu    (a: Rep[Array[Float]], v: Rep[__m256], i: Rep[Int]) = _mm256_storeu_ps(a, v, i)
+  def maskload  (a: Rep[Array[Float]], m: Rep[__m256i], i: Rep[Int]) = _mm256_maskload_ps(a, m, i)
+  def maskstore (a: Rep[Array[Float]], m: Rep[__m256i], v: Rep[__m256], i: Rep[Int]) = _mm256_maskstore_ps(a, m, v, i)
+
+  def set1  (x: Rep[Float]) = _mm256_set1_ps(x)
+  def zero  () = _mm256_setzero_ps()
+  def add   (a: Rep[__m256], b: Rep[__m256]) = _mm256_add_ps(a, b)
+  def mul   (a: Rep[__m256], b: Rep[__m256]) = _mm256_mul_ps(a, b)
+  def abs   (a: Rep[__m256]) = _mm256_andnot_ps(_mm256_set1_ps(-0.0f), a)
+  def max   (a: Rep[__m256], b: Rep[__m256]) = _mm256_max_ps(a, b)
+  override def fmadd (a: Rep[__m256], b: Rep[__m256], c: Rep[__m256]) = _mm256_fmadd_ps(a, b, c)
+
+  def sum (a: Rep[__m256]) = {
+    val x128 = _mm_add_ps(_mm256_extractf128_ps(a, 1), _mm256_castps256_ps128(a))
+    val x64  = _mm_hadd_ps(x128, x128)
+    _mm_cvtss_f32(_mm_hadd_ps(x64, x64))
+  }
+
+  def hmax (a: Rep[__m256]) = {
+    val x128 = _mm_max_ps(_mm256_extractf128_ps(a, 1), _mm256_castps256_ps128(a))
+    val x64  = _mm_max_ps(x128, _mm_movehl_ps(x128, x128))
+    _mm_cvtss_f32(_mm_max_ps(x64, _mm_permute_ps(x64, 1)))
+  }
+}
+
+object DoubleLanes extends Lanes[Double] {
+
+  type V = __m256d
+
+  def tTyp = typ[Double]
+  def vTyp = typ[__m256d]
+  def num  = implicitly[Numeric[Double]]
+
+  val count = 4
+  protected val maskLanes = List(0, 0, 1, 1, 2, 2, 3, 3)
+
+  def loadu     (a: Rep[Array[Double]], i: Rep[Int]) = _mm256_loadu_pd(a, i)
+  def storeu    (a: Rep[Array[Double]], v: Rep[__m256d], i: Rep[Int]) = _mm256_storeu_pd(a, v, i)
+  def maskload  (a: Rep[Array[Double]], m: Rep[__m256i], i: Rep[Int]) = _mm256_maskload_pd(a, m, i)
+  def maskstore (a: Rep[Array[Double]], m: Rep[__m256i], v: Rep[__m256d], i: Rep[Int]) = _mm256_maskstore_pd(a, m, v, i)
+
+  def set1  (x: Rep[Double]) = _mm256_set1_pd(x)
+  def zero  () = _mm256_setzero_pd()
+  def add   (a: Rep[__m256d], b: Rep[__m256d]) = _mm256_add_pd(a, b)
+  def mul   (a: Rep[__m256d], b: Rep[__m256d]) = _mm256_mul_pd(a, b)
+  def abs   (a: Rep[__m256d]) = _mm256_andnot_pd(_mm256_set1_pd(-0.0), a)
+  def max   (a: Rep[__m256d], b: Rep[__m256d]) = _mm256_max_pd(a, b)
+  override def fmadd (a: Rep[__m256d], b: Rep[__m256d], c: Rep[__m256d]) = _mm256_fmadd_pd(a, b, c)
+
+  def sum (a: Rep[__m256d]) = {
+    val x128 = _mm_add_pd(_mm256_extractf128_pd(a, 1), _mm256_castpd256_pd128(a))
+    _mm_cvtsd_f64(_mm_hadd_pd(x128, x128))
+  }
+
+  def hmax (a: Rep[__m256d]) = {
+    val x128 = _mm_max_pd(_mm256_extractf128_pd(a, 1), _mm256_castpd256_pd128(a))
+    _mm_cvtsd_f64(_mm_max_pd(x128, _mm_unpackhi_pd(x128, x128)))
+  }
+}
+
+object IntLanes extends Lanes[Int] {
+
+  type V = __m256i
+
+  def tTyp = typ[Int]
+  def vTyp = typ[__m256i]
+  def num  = implicitly[Numeric[Int]]
+
+  val count = 8
+  protected val maskLanes = List(0, 1, 2, 3, 4, 5, 6, 7)
+
+  def loadu     (a: Rep[Array[Int]], i: Rep[Int]) = _mm256_loadu_si256(a, i)
+  def storeu    (a: Rep[Array[Int]], v: Rep[__m256i], i: Rep[Int]) = _mm256_storeu_si256(a, v, i)
+  def maskload  (a: Rep[Array[Int]], m: Rep[__m256i], i: Rep[Int]) = _mm256_maskload_epi32(a, m, i)
+  def maskstore (a: Rep[Array[Int]], m: Rep[__m256i], v: Rep[__m256i], i: Rep[Int]) = _mm256_maskstore_epi32(a, m, v, i)
+
+  def set1  (x: Rep[Int]) = _mm256_set1_epi32(x)
+  def zero  () = _mm256_setzero_si256()
+  def add   (a: Rep[__m256i], b: Rep[__m256i]) = _mm256_add_epi32(a, b)
+  def mul   (a: Rep[__m256i], b: Rep[__m256i]) = _mm256_mullo_epi32(a, b)
+  def abs   (a: Rep[__m256i]) = _mm256_abs_epi32(a)
+  def max   (a: Rep[__m256i], b: Rep[__m256i]) = _mm256_max_epi32(a, b)
+
+  def sum (a: Rep[__m256i]) = {
+    val x128 = _mm_add_epi32(_mm256_extractf128_si256(a, 1), _mm256_castsi256_si128(a))
+    val x64  = _mm_hadd_epi32(x128, x128)
+    _mm_cvtsi128_si32(_mm_hadd_epi32(x64, x64))
+  }
+
+  def hmax (a: Rep[__m256i]) = {
+    val x128 = _mm_max_epi32(_mm256_extractf128_si256(a, 1), _mm256_castsi256_si128(a))
+    val x64  = _mm_max_epi32(x128, _mm_shuffle_epi32(x128, 0x4E))
+    _mm_cvtsi128_si32(_mm_max_epi32(x64, _mm_shuffle_epi32(x64, 0xB1)))
+  }
+}
+
+object ShortLanes extends Lanes[Short] {
+
+  type V = __m256i
+
+  def tTyp = typ[Short]
+  def vTyp = typ[__m256i]
+  def num  = implicitly[Numeric[Short]]
+
+  val count = 16
+  override val pairs = true
+  protected val maskLanes = List(0, 1, 2, 3, 4, 5, 6, 7)
+
+  // The masked loads and stores of 32-bit lanes, covering pairs of shorts
+  private def pairsOf (a: Rep[Array[Short]]) = a.asInstanceOf[Rep[Array[Int]]]
+
+  def loadu     (a: Rep[Array[Short]], i: Rep[Int]) = _mm256_loadu_si256(pairsOf(a), i)
+  def storeu    (a: Rep[Array[Short]], v: Rep[__m256i], i: Rep[Int]) = _mm256_storeu_si256(pairsOf(a), v, i)
+  def maskload  (a: Rep[Array[Short]], m: Rep[__m256i], i: Rep[Int]) = _mm256_maskload_epi32(pairsOf(a), m, i)
+  def maskstore (a: Rep[Array[Short]], m: Rep[__m256i], v: Rep[__m256i], i: Rep[Int]) = _mm256_maskstore_epi32(pairsOf(a), m, v, i)
+
+  def set1  (x: Rep[Short]) = _mm256_set1_epi16(x)
+  def zero  () = _mm256_setzero_si256()
+  def add   (a: Rep[__m256i], b: Rep[__m256i]) = _mm256_add_epi16(a, b)
+  def mul   (a: Rep[__m256i], b: Rep[__m256i]) = _mm256_mullo_epi16(a, b)
+  def abs   (a: Rep[__m256i]) = _mm256_abs_epi16(a)
+  def max   (a: Rep[__m256i], b: Rep[__m256i]) = _mm256_max_epi16(a, b)
+
+  //
+  // Pairs of shorts are summed into 32-bit lanes, the truncation of the
+  // 32-bit sum being the wrapped around 16-bit sum
+  //
+  def sum (a: Rep[__m256i]) = infix_cast[Short](IntLanes.sum(_mm256_madd_epi16(a, _mm256_set1_epi16(unit(1.toShort)))))
+
+  def hmax (a: Rep[__m256i]) = {
+    val x128 = _mm_max_epi16(_mm256_extractf128_si256(a, 1), _mm256_castsi256_si128(a))
+    val x64  = _mm_max_epi16(x128, _mm_shuffle_epi32(x128, 0x4E))
+    val x32  = _mm_max_epi16(x64, _mm_shuffle_epi32(x64, 0xB1))
+    infix_cast[Short](_mm_cvtsi128_si32(_mm_max_epi16(x32, _mm_srli_epi32(x32, 16))))
+  }
+
+  override def absScalar (x: Rep[Short]) = infix_cast[Short](math_abs(x))
+}
@@ -0,0 +1,199 @@
+package ch.ethz.acl.ngen.blas1
+
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+
+object NBlas1 {
+  val IR = new IntrinsicsIR
+}
+
+//
+// Staged BLAS-1 kernels on contiguous arrays of a primitive type T, using
+// AVX2 (and FMA for floating point types) through the operations of Lanes.
+// The main loops process four registers per iteration, reductions keeping
+// one accumulator per register to hide the latency of the additions. A
+// second loop processes one register per iteration, and the remaining
+// elements are processed at once with masked loads and stores.
+//
+// Integer kernels wrap around on overflow, like the JVM arithmetic of the
+// same type. Floating point reductions sum the elements in a different
+// order than a sequential loop, and nrm2 does not scale the elements.
+//
+abstract class NBlas1[T] (val L: Lanes[T]) {
+
+  import NBlas1.IR._
+
+  private implicit def elemTyp: Typ[T] = L.tTyp
+  private implicit def elemNum: Numeric[T] = L.num
+  private implicit def vecTyp: Typ[L.V] = L.vTyp
+
+  // Registers processed by each iteration of the main loops
+  val unroll = 4
+
+  protected def check (n: Int, lengths: Int*): Unit = {
+    require(n >= 0 && lengths.forall(n <= _), s"Invalid number of elements $n for arrays of length ${lengths.mkString(", ")}")
+  }
+
+  protected def mutable[A] (a: Rep[Array[A]]): Rep[Array[A]] = reflectMutableSym(a.asInstanceOf[Sym[Array[A]]])
+
+  //
+  // Iterates over the first n elements: full(i, u) processes the register
+  // at element i using accumulator u, masked(i, m) the last partial
+  // register at element i, and scalar(i) the odd last element of shorts.
+  //
+  protected def blocked (
+    n      : Rep[Int],
+    full   : (Rep[Int], Int) => Rep[Unit],
+    masked : (Rep[Int], Rep[__m256i]) => Rep[Unit],
+    scalar : Rep[Int] => Rep[Unit]
+  ): Rep[Unit] = { import ImplicitLift._
+    val shift = Integer.numberOfTrailingZeros(L.count)
+    val block = Integer.numberOfTrailingZeros(L.count * unroll)
+    val n0 = (n >> block) << block
+    val n1 = (n >> shift) << shift
+    forloop(0, n0, fresh[Int], L.count * unroll, (i: Rep[Int]) => {
+      (0 until unroll).foreach(u => full(i + u * L.count, u))
+    })
+    forloop(n0, n1, fresh[Int], L.count, (i: Rep[Int]) => {
+      full(i, 0)
+    })
+    if (n > n1) {
+      masked(n1, L.mask(n - n1))
+      if (L.pairs) {
+        val n2 = n1 + (((n - n1) >> 1) << 1)
+        if (n > n2) scalar(n - 1) else unit(())
+      }
+      unit(())
+    }
+  }
+
+  //
+  // Reduction of the first n elements: term(i, m) computes the terms of
+  // the register at element i, masked by m for the last partial register,
+  // combine accumulates registers, hfold reduces a register to a scalar,
+  // and fold accumulates the scalar term(i) of the odd last short.
+  //
+  protected def reduction (
+    n       : Rep[Int],
+    term    : (Rep[Int], Option[Rep[__m256i]]) => Rep[L.V],
+    combine : (Rep[L.V], Rep[L.V]) => Rep[L.V],
+    hfold   : Rep[L.V] => Rep[T],
+    fold    : (Rep[T], Rep[T]) => Rep[T],
+    scalar  : Rep[Int] => Rep[T]
+  ): Rep[T] = {
+    val acc  = List.fill(unroll)(var_new(L.zero()))
+    val tail = var_new(unit(L.num.zero))
+    blocked(n,
+      (i, u) => var_assign(acc(u), combine(readVar(acc(u)), term(i, None))),
+      (i, m) => var_assign(acc(0), combine(readVar(acc(0)), term(i, Some(m)))),
+      i      => var_assign(tail, fold(readVar(tail), scalar(i)))
+    )
+    val v = acc.map(a => readVar(a)).reduce(combine)
+    fold(hfold(v), readVar(tail))
+  }
+
+  private def loadTerms (x: Rep[Array[T]], i: Rep[Int], m: Option[Rep[__m256i]]): Rep[L.V] = m match {
+    case Some(mask) => L.maskload(x, mask, i)
+    case None       => L.loadu(x, i)
+  }
+
+  private def plus (a: Rep[T], b: Rep[T]): Rep[T] = numeric_plus(a, b)
+
+  // y = alpha * x + y
+  def axpy_staged (n: Rep[Int], alpha: Rep[T], x: Rep[Array[T]], y_imm: Rep[Array[T]]): Rep[Unit] = {
+    val y = mutable(y_imm)
+    val va = L.set1(alpha)
+    blocked(n,
+      (i, _) => L.storeu(y, L.fmadd(L.loadu(x, i), va, L.loadu(y, i)), i),
+      (i, m) => L.maskstore(y, m, L.fmadd(L.maskload(x, m, i), va, L.maskload(y, m, i)), i),
+      i      => array_update(y, i, numeric_plus(numeric_times(alpha, array_apply(x, i)), array_apply(y, i)))
+    )
+  }
+
+  // x = alpha * x
+  def scal_staged (n: Rep[Int], alpha: Rep[T], x_imm: Rep[Array[T]]): Rep[Unit] = {
+    val x = mutable(x_imm)
+    val va = L.set1(alpha)
+    blocked(n,
+      (i, _) => L.storeu(x, L.mul(L.loadu(x, i), va), i),
+      (i, m) => L.maskstore(x, m, L.mul(L.maskload(x, m, i), va), i),
+      i      => array_update(x, i, numeric_times(alpha, array_apply(x, i)))
+    )
+  }
+
+  // y = x
+  def copy_staged (n: Rep[Int], x: Rep[Array[T]], y_imm: Rep[Array[T]]): Rep[Unit] = {
+    val y = mutable(y_imm)
+    blocked(n,
+      (i, _) => L.storeu(y, L.loadu(x, i), i),
+      (i, m) => L.maskstore(y, m, L.maskload(x, m, i), i),
+      i      => array_update(y, i, array_apply(x, i))
+    )
+  }
+
+  // x, y = y, x
+  def swap_staged (n: Rep[Int], x_imm: Rep[Array[T]], y_imm: Rep[Array[T]]): Rep[Unit] = {
+    val x = mutable(x_imm)
+    val y = mutable(y_imm)
+    blocked(n,
+      (i, _) => { val vx = L.loadu(x, i); val vy = L.loadu(y, i); L.storeu(x, vy, i); L.storeu(y, vx, i) },
+      (i, m) => { val vx = L.maskload(x, m, i); val vy = L.maskload(y, m, i); L.maskstore(x, m, vy, i); L.maskstore(y, m, vx, i) },
+      i      => { val sx = array_apply(x, i); val sy = array_apply(y, i); array_update(x, i, sy); array_update(y, i, sx) }
+    )
+  }
+
+  // sum of x(i) * y(i)
+  def dot_staged (n: Rep[Int], x: Rep[Array[T]], y: Rep[Array[T]]): Rep[T] = reduction(n,
+    (i, m) => L.mul(loadTerms(x, i, m), loadTerms(y, i, m)), L.add, L.sum, plus,
+    i      => numeric_times(array_apply(x, i), array_apply(y, i))
+  )
+
+  // sum of |x(i)|
+  def asum_staged (n: Rep[Int], x: Rep[Array[T]]): Rep[T] = reduction(n,
+    (i, m) => L.abs(loadTerms(x, i, m)), L.add, L.sum, plus,
+    i      => L.absScalar(array_apply(x, i))
+  )
+
+  // sum of x(i) * x(i), the square of nrm2
+  protected def sumsq_staged (n: Rep[Int], x: Rep[Array[T]]): Rep[T] = reduction(n,
+    (i, m) => { val v = loadTerms(x, i, m); L.mul(v, v) }, L.add, L.sum, plus,
+    i      => numeric_times(array_apply(x, i), array_apply(x, i))
+  )
+
+  //
+  // Index of the first element of largest absolute value, or -1 if n < 1.
+  // The largest absolute value is reduced with vector maxima, and its first
+  // occurrence is then searched for from the start of x. Masked out lanes
+  // are 0, which is never larger than an absolute value, except for the
+  // wrapped around absolute value of the smallest integer: if no element
+  // matches, every element is the smallest integer and the index is 0.
+  //
+  def iamax_staged (n: Rep[Int], x: Rep[Array[T]]): Rep[Int] = { import ImplicitLift._
+    val largest = reduction(n,
+      (i, m) => L.abs(loadTerms(x, i, m)), L.max, L.hmax, (a, b) => math_max(a, b),
+      i      => L.absScalar(array_apply(x, i))
+    )
+    val index = var_new(unit(-1))
+    val i     = var_new(unit(0))
+    __whileDo(boolean_and(readVar(i) < n, readVar(index) < 0), {
+      if (boolean_equals(L.absScalar(array_apply(x, readVar(i))), largest)) {
+        var_assign(index, readVar(i))
+      }
+      var_assign(i, readVar(i) + 1)
+    })
+    if (boolean_and(n > 0, readVar(index) < 0)) unit(0) else readVar(index)
+  }
+}
+
+//
+// BLAS-1 over Float and Double, adding nrm2
+//
+abstract class NBlas1Fractional[T] (lanes: Lanes[T]) extends NBlas1[T](lanes) {
+
+  import NBlas1.IR._
+
+  private implicit def elemTyp: Typ[T] = L.tTyp
+  private implicit def elemFrac: Fractional[T] = L.num.asInstanceOf[Fractional[T]]
+
+  // Euclidean norm of x, without scaling
+  def nrm2_staged (n: Rep[Int], x: Rep[Array[T]]): Rep[T] = math_sqrt(sumsq_staged(n, x))
+}
@@ -0,0 +1,89 @@
+package ch.ethz.acl.ngen.blas1
+
+import com.github.dwickern.macros.NameOf._
+
+//
+// BLAS-1 kernels over arrays of Double, see NBlas1
+//
+class NBlas1Double extends NBlas1Fractional[Double](DoubleLanes) {
+
+  import NBlas1.IR._
+
+  // JVM implementation, used until the native library is loaded
+  private val jBlas1 = new JBlas1
+
+  def axpy (n: Int, alpha: Double, x: Array[Double], y: Array[Double]): Unit = {
+    check(n, x.length, y.length)
+    if (tier.isNative) {
+      val kernel = axpySpecialized(n)
+      if (kernel != 0) axpyDispatch(kernel, n, alpha, x, y) else axpyNative(n, alpha, x, y)
+    } else jBlas1.axpy(n, alpha, x, y)
+  }
+
+  def scal (n: Int, alpha: Double, x: Array[Double]): Unit = {
+    check(n, x.length)
+    if (tier.isNative) scalNative(n, alpha, x) else jBlas1.scal(n, alpha, x)
+  }
+
+  def copy (n: Int, x: Array[Double], y: Array[Double]): Unit = {
+    check(n, x.length, y.length)
+    if (tier.isNative) copyNative(n, x, y) else jBlas1.copy(n, x, y)
+  }
+
+  def swap (n: Int, x: Array[Double], y: Array[Double]): Unit = {
+    check(n, x.length, y.length)
+    if (tier.isNative) swapNative(n, x, y) else jBlas1.swap(n, x, y)
+  }
+
+  def dot (n: Int, x: Array[Double], y: Array[Double]): Double = {
+    check(n, x.length, y.length)
+    if (tier.isNative) {
+      val kernel = dotSpecialized(n)
+      if (kernel != 0) dotDispatch(kernel, n, x, y) else dotNative(n, x, y)
+    } else jBlas1.dot(n, x, y)
+  }
+
+  def asum (n: Int, x: Array[Double]): Double = {
+    check(n, x.length)
+    if (tier.isNative) asumNative(n, x) else jBlas1.asum(n, x)
+  }
+
+  def nrm2 (n: Int, x: Array[Double]): Double = {
+    check(n, x.length)
+    if (tier.isNative) nrm2Native(n, x) else jBlas1.nrm2(n, x)
+  }
+
+  def iamax (n: Int, x: Array[Double]): Int = {
+    check(n, x.length)
+    if (tier.isNative) iamaxNative(n, x) else jBlas1.iamax(n, x)
+  }
+
+  @native def axpyNative  (n: Int, alpha: Double, x: Array[Double], y: Array[Double]): Unit
+  @native def scalNative  (n: Int, alpha: Double, x: Array[Double]): Unit
+  @native def copyNative  (n: Int, x: Array[Double], y: Array[Double]): Unit
+  @native def swapNative  (n: Int, x: Array[Double], y: Array[Double]): Unit
+  @native def dotNative   (n: Int, x: Array[Double], y: Array[Double]): Double
+  @native def asumNative  (n: Int, x: Array[Double]): Double
+  @native def nrm2Native  (n: Int, x: Array[Double]): Double
+  @native def iamaxNative (n: Int, x: Array[Double]): Int
+
+  // Versions specialized for the hot sizes, see CIR.specialize
+  @native def axpyDispatch (kernel: Long, n: Int, alpha: Double, x: Array[Double], y: Array[Double]): Unit
+  @native def dotDispatch  (kernel: Long, n: Int, x: Array[Double], y: Array[Double]): Double
+
+  val axpySpecialized = specialize(axpy_staged _, this, nameOf(axpyNative _))
+  val dotSpecialized  = specialize(dot_staged  _, this, nameOf(dotNative  _))
+
+  val tier = tiered(this) {
+    compile(axpy_staged  _, this, nameOf(axpyNative  _))
+    compile(scal_staged  _, this, nameOf(scalNative  _))
+    compile(copy_staged  _, this, nameOf(copyNative  _))
+    compile(swap_staged  _, this, nameOf(swapNative  _))
+    compile(dot_staged   _, this, nameOf(dotNative   _))
+    compile(asum_staged  _, this, nameOf(asumNative  _))
+    compile(nrm2_staged  _, this, nameOf(nrm2Native  _))
+    compile(iamax_staged _, this, nameOf(iamaxNative _))
+    compileDispatch(axpy_staged _, this, nameOf(axpyDispatch _))
+    compileDispatch(dot_staged  _, this, nameOf(dotDispatch  _))
+  }
+}
@@ -0,0 +1,136 @@
+package ch.ethz.acl.ngen.blas1
+
+import ch.ethz.acl.commons.cir.JavaBackend
+import com.github.dwickern.macros.NameOf._
+
+//
+// Signatures of the Float kernels, implemented by the kernels compiled to Java
+//
+trait FloatAxpyKernel  { def apply (n: Int, alpha: Float, x: Array[Float], y: Array[Float]): Unit }
+trait FloatScalKernel  { def apply (n: Int, alpha: Float, x: Array[Float]): Unit }
+trait FloatPairKernel  { def apply (n: Int, x: Array[Float], y: Array[Float]): Unit }
+trait FloatDotKernel   { def apply (n: Int, x: Array[Float], y: Array[Float]): Float }
+trait FloatNormKernel  { def apply (n: Int, x: Array[Float]): Float }
+trait FloatIndexKernel { def apply (n: Int, x: Array[Float]): Int }
+
+//
+// BLAS-1 kernels over arrays of Float, see NBlas1
+//
+class NBlas1Float extends NBlas1Fractional[Float](FloatLanes) { self =>
+
+  import NBlas1.IR._
+
+  // JVM implementation, used until the native library is loaded
+  private val jBlas1 = new JBlas1
+
+  // Java Vector API implementation, replacing the native
+  // library on hosts without a C compiler (see JavaBackend)
+  private final class JavaBlas1 {
+    val axpy  = compileJava(axpy_staged  _, self, nameOf(axpyNative  _), classOf[FloatAxpyKernel]).function
+    val scal  = compileJava(scal_staged  _, self, nameOf(scalNative  _), classOf[FloatScalKernel]).function
+    val copy  = compileJava(copy_staged  _, self, nameOf(copyNative  _), classOf[FloatPairKernel]).function
+    val swap  = compileJava(swap_staged  _, self, nameOf(swapNative  _), classOf[FloatPairKernel]).function
+    val dot   = compileJava(dot_staged   _, self, nameOf(dotNative   _), classOf[FloatDotKernel]).function
+    val asum  = compileJava(asum_staged  _, self, nameOf(asumNative  _), classOf[FloatNormKernel]).function
+    val nrm2  = compileJava(nrm2_staged  _, self, nameOf(nrm2Native  _), classOf[FloatNormKernel]).function
+    val iamax = compileJava(iamax_staged _, self, nameOf(iamaxNative _), classOf[FloatIndexKernel]).function
+  }
+
+  @volatile private var vBlas1: JavaBlas1 = null
+
+  def axpy (n: Int, alpha: Float, x: Array[Float], y: Array[Float]): Unit = {
+    check(n, x.length, y.length)
+    if (!tier.isNative) jBlas1.axpy(n, alpha, x, y)
+    else if (vBlas1 ne null) vBlas1.axpy(n, alpha, x, y)
+    else {
+      val kernel = axpySpecialized(n)
+      if (kernel != 0) axpyDispatch(kernel, n, alpha, x, y) else axpyNative(n, alpha, x, y)
+    }
+  }
+
+  def scal (n: Int, alpha: Float, x: Array[Float]): Unit = {
+    check(n, x.length)
+    if (!tier.isNative) jBlas1.scal(n, alpha, x)
+    else if (vBlas1 ne null) vBlas1.scal(n, alpha, x)
+    else scalNative(n, alpha, x)
+  }
+
+  def copy (n: Int, x: Array[Float], y: Array[Float]): Unit = {
+    check(n, x.length, y.length)
+    if (!tier.isNative) jBlas1.copy(n, x, y)
+    else if (vBlas1 ne null) vBlas1.copy(n, x, y)
+    else copyNative(n, x, y)
+  }
+
+  def swap (n: Int, x: Array[Float], y: Array[Float]): Unit = {
+    check(n, x.length, y.length)
+    if (!tier.isNative) jBlas1.swap(n, x, y)
+    else if (vBlas1 ne null) vBlas1.swap(n, x, y)
+    else swapNative(n, x, y)
+  }
+
+  def dot (n: Int, x: Array[Float], y: Array[Float]): Float = {
+    check(n, x.length, y.length)
+    if (!tier.isNative) jBlas1.dot(n, x, y)
+    else if (vBlas1 ne null) vBlas1.dot(n, x, y)
+    else {
+      val kernel = dotSpecialized(n)
+      if (kernel != 0) dotDispatch(kernel, n, x, y) else dotNative(n, x, y)
+    }
+  }
+
+  def asum (n: Int, x: Array[Float]): Float = {
+    check(n, x.length)
+    if (!tier.isNative) jBlas1.asum(n, x)
+    else if (vBlas1 ne null) vBlas1.asum(n, x)
+    else asumNative(n, x)
+  }
+
+  def nrm2 (n: Int, x: Array[Float]): Float = {
+    check(n, x.length)
+    if (!tier.isNative) jBlas1.nrm2(n, x)
+    else if (vBlas1 ne null) vBlas1.nrm2(n, x)
+    else nrm2Native(n, x)
+  }
+
+  def iamax (n: Int, x: Array[Float]): Int = {
+    check(n, x.length)
+    if (!tier.isNative) jBlas1.iamax(n, x)
+    else if (vBlas1 ne null) vBlas1.iamax(n, x)
+    else iamaxNative(n, x)
+  }
+
+  @native def axpyNative  (n: Int, alpha: Float, x: Array[Float], y: Array[Float]): Unit
+  @native def scalNative  (n: Int, alpha: Float, x: Array[Float]): Unit
+  @native def copyNative  (n: Int, x: Array[Float], y: Array[Float]): Unit
+  @native def swapNative  (n: Int, x: Array[Float], y: Array[Float]): Unit
+  @native def dotNative   (n: Int, x: Array[Float], y: Array[Float]): Float
+  @native def asumNative  (n: Int, x: Array[Float]): Float
+  @native def nrm2Native  (n: Int, x: Array[Float]): Float
+  @native def iamaxNative (n: Int, x: Array[Float]): Int
+
+  // Versions specialized for the hot sizes, see CIR.specialize
+  @native def axpyDispatch (kernel: Long, n: Int, alpha: Float, x: Array[Float], y: Array[Float]): Unit
+  @native def dotDispatch  (kernel: Long, n: Int, x: Array[Float], y: Array[Float]): Float
+
+  val axpySpecialized = specialize(axpy_staged _, this, nameOf(axpyNative _))
+  val dotSpecialized  = specialize(dot_staged  _, this, nameOf(dotNative  _))
+
+  //
+  // Without a C compiler, the kernels are compiled to Java instead
+  //
+  val tier = tiered(this) {
+    if (JavaBackend.selected) vBlas1 = new JavaBlas1 else {
+      compile(axpy_staged  _, this, nameOf(axpyNative  _))
+      compile(scal_staged  _, this, nameOf(scalNative  _))
+      compile(copy_staged  _, this, nameOf(copyNative  _))
+      compile(swap_staged  _, this, nameOf(swapNative  _))
+      compile(dot_staged   _, this, nameOf(dotNative   _))
+      compile(asum_staged  _, this, nameOf(asumNative  _))
+      compile(nrm2_staged  _, this, nameOf(nrm2Native  _))
+      compile(iamax_staged _, this, nameOf(iamaxNative _))
+      compileDispatch(axpy_staged _, this, nameOf(axpyDispatch _))
+      compileDispatch(dot_staged  _, this, nameOf(dotDispatch  _))
+    }
+  }
+}
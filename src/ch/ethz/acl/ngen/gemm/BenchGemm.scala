@@ -0,0 +1,92 @@
+package ch.ethz.acl.ngen.gemm
+
+import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.commons.util.DebuggingConfig
+import org.scalameter.{Bench, CurveData}
+import org.scalameter.api._
+import org.scalameter.utils.Tree
+import org.scalameter.picklers.Implicits._
+
+class BenchGemm extends Bench.ForkedTime {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+  //
+  // Ignore LMS messages
+  //
+  DebuggingConfig.verbosity = 0
+  //
+  // Define rectangular test sizes: C is (size x 3/4 size), and the
+  // inner dimension is size / 2 + 13, such that all edges are exercised
+  //
+  val sizesGemm: Gen[Int] = Gen.enumeration("size")(32, 64, 128, 256, 384, 512, 640, 768, 896, 1024, 1536, 2048)
+
+  def dims (size: Int): (Int, Int, Int) = (size, size * 3 / 4, size / 2 + 13)
+  //
+  // Generate the arguments
+  //
+  val argsGemm: Gen[(Array[Float], Array[Float], Array[Float], Int, Int, Int)] = sizesGemm.map(size => {
+    val (m, n, k) = dims(size)
+    (genRandomFloatArray(m * k), genRandomFloatArray(k * n), new Array[Float](m * n), m, n, k)
+  })
+  //
+  // Measure the performance of the two implementations
+  //
+  performance of "GEMM" config (
+    exec.minWarmupRuns -> 20,
+    exec.maxWarmupRuns -> 20,
+    exec.independentSamples -> 1
+  ) in {
+    measure method "jGemm.sgemm (JVM implementation)" in {
+      using(argsGemm) in {
+        case (a, b, c, m, n, k) => Gemm.jGemm.sgemm(false, false, false, m, n, k, 1.0f, a, k, b, n, 0.0f, c, n)
+      }
+    }
+    measure method "nGemm.sgemm (LMS generated)" in {
+      using(argsGemm) in {
+        case (a, b, c, m, n, k) => Gemm.nGemm.sgemm(GemmLayout.RowMajor, false, false, m, n, k, 1.0f, a, k, b, n, 0.0f, c, n)
+      }
+    }
+  }
+  //
+  // Use median to aggregate the data
+  //
+  override def aggregator: Aggregator[Double] = Aggregator.median
+  //
+  // Report the results in Flops / Cycle
+  //
+  override def reporter: Reporter[Double] = new org.scalameter.Reporter[Double]
+  {
+    def report(result: CurveData[Double], persistor: Persistor) {
+      //
+      //  Output the name of the benchmark
+      //
+      println("====================================================")
+      println(s"Benchmarking ${result.context.scope}")
+      println("----------------------------------------------------")
+      println("   M x N x K          | Flops / Cycle")
+      println("----------------------------------------------------")
+      //
+      // Convert each measurements into Flops / Cycle
+      //
+      for (measurement <- result.measurements) {
+        val size: Int = measurement.params("size")
+        val (m, n, k) = dims(size)
+        val flops = 2.0 * m * n * k
+        val cycles = measurement.value * LocalSystem.getFreq()
+        println("%20s | %.10f".format(s"$m x $n x $k", flops / cycles))
+      }
+      println("====================================================")
+      println()
+    }
+    def report(result: Tree[CurveData[Double]], persistor: Persistor) = true
+  }
+  //
+  // Generate a random floating point array
+  //
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { rng.nextFloat * maximum }
+  }
+
+}
@@ -0,0 +1,6 @@
+package ch.ethz.acl.ngen.gemm
+
+object Gemm {
+  lazy val nGemm = new NGemm
+  lazy val jGemm = new JGemm
+}
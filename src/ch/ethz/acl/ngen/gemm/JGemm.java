@@ -0,0 +1,35 @@
+package ch.ethz.acl.ngen.gemm;
+
+public class JGemm {
+    //
+    // Reference implementation of the general matrix multiplication
+    //
+    //   C = alpha * op(A) * op(B) + beta * C
+    //
+    // where op(A) is m x k, op(B) is k x n and C is m x n. Matrices
+    // are stored in row-major or column-major order with leading
+    // dimensions lda, ldb and ldc, and op(X) is X or its transpose.
+    //
+    public void sgemm(boolean colMajor, boolean transA, boolean transB,
+                      int m, int n, int k, float alpha,
+                      float[] a, int lda, float[] b, int ldb,
+                      float beta, float[] c, int ldc) {
+        for (int i = 0; i < m; i += 1) {
+            for (int j = 0; j < n; j += 1) {
+                float sum = 0.0f;
+                for (int p = 0; p < k; p += 1) {
+                    sum += a[index(colMajor, transA, i, p, lda)] * b[index(colMajor, transB, p, j, ldb)];
+                }
+                int ij = index(colMajor, false, i, j, ldc);
+                c[ij] = beta == 0.0f ? alpha * sum : alpha * sum + beta * c[ij];
+            }
+        }
+    }
+    //
+    // Position of the element (row, col) of op(X) in the array storing X
+    //
+    private static int index(boolean colMajor, boolean trans, int row, int col, int ld) {
+        boolean rowWise = colMajor == trans;
+        return rowWise ? row * ld + col : col * ld + row;
+    }
+}
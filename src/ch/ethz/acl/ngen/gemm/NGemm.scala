@@ -0,0 +1,340 @@
+package ch.ethz.acl.ngen.gemm
+
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.extensions.Parallelism
+import ch.ethz.acl.commons.system.LocalSystem
+import com.github.dwickern.macros.NameOf._
+
+object GemmLayout extends Enumeration {
+  type GemmLayout = Value
+  val RowMajor = Value
+  val ColMajor = Value
+}
+
+import GemmLayout.GemmLayout
+
+//
+// General matrix multiplication C = alpha * op(A) * op(B) + beta * C,
+// following the structure of BLIS / GotoBLAS: panels of B and blocks of
+// A are packed into contiguous buffers sized to the caches of the host,
+// and a register blocked MR x NR micro-kernel computes each tile of C
+// using AVX2 + FMA.
+//
+class NGemm {
+
+  //
+  // JVM implementation, used until the native library is loaded
+  //
+  private val jGemm = new JGemm
+
+  //
+  // Register blocking of the micro-kernel: MR rows of C, and NR columns
+  // held in two AVX registers, i.e. 12 accumulators.
+  //
+  val MR = 6
+  val NR = 16
+
+  //
+  // Cache blocking, derived from the cache topology of the host: a KC x NR
+  // panel of B occupies half of the L1 share of each thread, a MC x KC
+  // block of A half of its L2 share, and the KC x NC panel of B half of its
+  // L3 share. Caches shared by hyper-threads or by the cores of a socket
+  // are split among the threads running on them. The blocking is passed to
+  // the native function, such that cached and bundled kernels use the one
+  // of the machine running them.
+  //
+  private def block (bytes: Long, lo: Int, hi: Int, multiple: Int): Int = {
+    val v = Math.max(lo, Math.min(hi, bytes)).toInt
+    Math.max(multiple, v - v % multiple)
+  }
+  val KC: Int = block(LocalSystem.getCacheShare(1, Parallelism.runtimeThreads) / (2 * NR * 4), 64, 512, 8)
+  val MC: Int = block(LocalSystem.getCacheShare(2, Parallelism.runtimeThreads) / (2 * KC * 4), MR, 1020, MR)
+  val NC: Int = block(LocalSystem.getCacheShare(3, Parallelism.runtimeThreads) / (2 * KC * 4), NR, 8192, NR)
+
+  /**
+    * Computes C = alpha * op(A) * op(B) + beta * C, where op(A) is m x k, op(B) is k x n and C is m x n. All
+    * matrices are stored in the given layout, with leading dimensions lda, ldb and ldc. When beta is 0, C is
+    * not read.
+    */
+  def sgemm (
+    layout : GemmLayout,
+    transA : Boolean,
+    transB : Boolean,
+    m      : Int,
+    n      : Int,
+    k      : Int,
+    alpha  : Float,
+    a      : Array[Float],
+    lda    : Int,
+    b      : Array[Float],
+    ldb    : Int,
+    beta   : Float,
+    c      : Array[Float],
+    ldc    : Int
+  ): Unit = {
+    require(m >= 0 && n >= 0 && k >= 0, "Negative matrix dimensions")
+    val colMajor = layout == GemmLayout.ColMajor
+    //
+    // Rows and columns of each stored matrix
+    //
+    def checkMatrix (name: String, x: Array[Float], rows: Int, cols: Int, ld: Int): Unit = {
+      val (outer, inner) = if (colMajor) (cols, rows) else (rows, cols)
+      require(ld >= Math.max(1, inner), s"Invalid leading dimension of $name: $ld")
+      require(outer == 0 || inner == 0 || x.length >= (outer - 1) * ld + inner, s"Matrix $name is too small")
+    }
+    checkMatrix("A", a, if (transA) k else m, if (transA) m else k, lda)
+    checkMatrix("B", b, if (transB) n else k, if (transB) k else n, ldb)
+    checkMatrix("C", c, m, n, ldc)
+
+    if (m == 0 || n == 0) return
+    if (k == 0 || alpha == 0.0f) {
+      //
+      // Only C is scaled by beta
+      //
+      for (i <- 0 until m; j <- 0 until n) {
+        val ij = if (colMajor) j * ldc + i else i * ldc + j
+        c(ij) = if (beta == 0.0f) 0.0f else beta * c(ij)
+      }
+    } else if (!tier.isNative) {
+      jGemm.sgemm(colMajor, transA, transB, m, n, k, alpha, a, lda, b, ldb, beta, c, ldc)
+    } else if (colMajor) {
+      //
+      // A column-major C is the row-major C^T = op(B)^T * op(A)^T
+      //
+      sgemmRowMajor(transB, transA, n, m, k, alpha, b, ldb, a, lda, beta, c, ldc)
+    } else {
+      sgemmRowMajor(transA, transB, m, n, k, alpha, a, lda, b, ldb, beta, c, ldc)
+    }
+  }
+
+  private def sgemmRowMajor (
+    transA : Boolean, transB : Boolean, m: Int, n: Int, k: Int, alpha: Float,
+    a: Array[Float], lda: Int, b: Array[Float], ldb: Int, beta: Float, c: Array[Float], ldc: Int
+  ): Unit = {
+    val dims = Array(if (transA) 1 else 0, if (transB) 1 else 0, m, n, k, lda, ldb, ldc, KC, MC, NC)
+    sgemmNative(dims, Array(alpha, beta), a, b, c)
+  }
+
+  //
+  // Row-major GEMM, with dims = (transA, transB, m, n, k, lda, ldb, ldc,
+  // KC, MC, NC) and scalars = (alpha, beta)
+  //
+  @native def sgemmNative (
+    dims    : Array[Int],
+    scalars : Array[Float],
+    a       : Array[Float],
+    b       : Array[Float],
+    c       : Array[Float]
+  ): Unit
+
+  val cIR = new IntrinsicsIR
+  import cIR._
+
+  //
+  // Packs the mc x kc block of alpha * op(A) at (ic, pc) into panels of MR
+  // rows. Each panel stores kc columns of MR consecutive elements, rows
+  // beyond mc are padded with zeros.
+  //
+  def packA (
+    ap     : Rep[HeapArray[Float]],
+    elem   : (Rep[Int], Rep[Int]) => Rep[Float],
+    alpha  : Rep[Float],
+    ic     : Rep[Int],
+    pc     : Rep[Int],
+    mc     : Rep[Int],
+    kc     : Rep[Int]
+  ): Rep[Unit] = { import ImplicitLift._
+    forloop(0, mc, fresh[Int], MR, (ir: Rep[Int]) => {
+      forloop(0, kc, fresh[Int], 1, (p: Rep[Int]) => {
+        (0 until MR).foreach(r => {
+          val v = if (mc > ir + r) alpha * elem(ic + ir + r, pc + p) else unit(0.0f)
+          heap_array_update(ap, ir * kc + p * MR + r, v)
+        })
+      })
+    })
+  }
+
+  //
+  // Packs the kc x nc panel of op(B) at (pc, jc) into panels of NR columns.
+  // Each panel stores kc rows of NR consecutive elements, columns beyond nc
+  // are padded with zeros. Full rows of a non-transposed B are copied with
+  // vector loads and stores.
+  //
+  def packB (
+    bp     : Rep[HeapArray[Float]],
+    elem   : (Rep[Int], Rep[Int]) => Rep[Float],
+    rowB   : Option[(Rep[Int], Rep[Int]) => Rep[Int]],
+    b      : Rep[Array[Float]],
+    pc     : Rep[Int],
+    jc     : Rep[Int],
+    kc     : Rep[Int],
+    nc     : Rep[Int]
+  ): Rep[Unit] = { import ImplicitLift._
+    forloop(0, nc, fresh[Int], NR, (jr: Rep[Int]) => {
+      forloop(0, kc, fresh[Int], 1, (p: Rep[Int]) => {
+        val dst = jr * kc + p * NR
+        def scalar (): Rep[Unit] = {
+          (0 until NR).foreach(col => {
+            val v = if (nc > jr + col) elem(pc + p, jc + jr + col) else unit(0.0f)
+            heap_array_update(bp, dst + col, v)
+          })
+          unit(())
+        }
+        rowB match {
+          case Some(offset) => if (nc >= jr + NR) {
+            val src = offset(pc + p, jc + jr)
+            _mm256_storeu_ps(bp, _mm256_loadu_ps(b, src), dst)
+            _mm256_storeu_ps(bp, _mm256_loadu_ps(b, src + 8), dst + 8)
+          } else scalar()
+          case None => scalar()
+        }
+      })
+    })
+  }
+
+  //
+  // Micro-kernel: computes the mr x nr tile of C at (ci, cj) from a packed
+  // panel of A at ao and a packed panel of B at bo. Complete tiles are
+  // updated with plain loads and stores, edge tiles with masked ones.
+  //
+  def kernel (
+    ap     : Rep[HeapArray[Float]],
+    ao     : Rep[Int],
+    bp     : Rep[HeapArray[Float]],
+    bo     : Rep[Int],
+    kc     : Rep[Int],
+    c      : Rep[Array[Float]],
+    ldc    : Rep[Int],
+    ci     : Rep[Int],
+    cj     : Rep[Int],
+    mr     : Rep[Int],
+    nr     : Rep[Int],
+    beta   : Rep[Float]
+  ): Rep[Unit] = { import ImplicitLift._
+
+    val acc = List.fill(MR, 2)(var_new(_mm256_setzero_ps()))
+
+    forloop(0, kc, fresh[Int], 1, (p: Rep[Int]) => {
+      val b0 = _mm256_loadu_ps(bp, bo + p * NR)
+      val b1 = _mm256_loadu_ps(bp, bo + p * NR + 8)
+      (0 until MR).foreach(r => {
+        val ar = _mm256_set1_ps(heap_array_apply(ap, ao + p * MR + r))
+        var_assign(acc(r)(0), _mm256_fmadd_ps(ar, b0, readVar(acc(r)(0))))
+        var_assign(acc(r)(1), _mm256_fmadd_ps(ar, b1, readVar(acc(r)(1))))
+      })
+    })
+
+    val vbeta = _mm256_set1_ps(beta)
+    val zero  = boolean_equals(beta, unit(0.0f))
+
+    def update (
+      load  : Rep[Int] => Rep[__m256],
+      store : (Rep[Int], Rep[__m256]) => Rep[Unit],
+      r     : Int,
+      h     : Int
+    ): Rep[Unit] = {
+      val idx = (ci + r) * ldc + cj + 8 * h
+      val res = readVar(acc(r)(h))
+      if (zero) store(idx, res) else store(idx, _mm256_fmadd_ps(vbeta, load(idx), res))
+    }
+
+    //
+    // mr <= MR and nr <= NR, the tile is complete if and only if the sums match
+    //
+    if (mr + nr >= MR + NR) {
+      for (r <- 0 until MR; h <- 0 until 2) update(
+        idx => _mm256_loadu_ps(c, idx),
+        (idx, v) => _mm256_storeu_ps(c, v, idx), r, h
+      )
+      unit(())
+    } else {
+      val lanes = _mm256_setr_epi32(0, 1, 2, 3, 4, 5, 6, 7)
+      val masks = (0 until 2).map(h => _mm256_cmpgt_epi32(_mm256_set1_epi32(nr - 8 * h), lanes))
+      for (r <- 0 until MR) {
+        if (mr > r) {
+          for (h <- 0 until 2) update(
+            idx => _mm256_maskload_ps(c, masks(h), idx),
+            (idx, v) => _mm256_maskstore_ps(c, masks(h), v, idx), r, h
+          )
+          unit(())
+        } else unit(())
+      }
+      unit(())
+    }
+  }
+
+  def sgemm_staged (
+    dims    : Rep[Array[Int]],
+    scalars : Rep[Array[Float]],
+    a       : Rep[Array[Float]],
+    b       : Rep[Array[Float]],
+    c_imm   : Rep[Array[Float]]
+  ): Rep[Unit] = { import ImplicitLift._
+
+    val c = reflectMutableSym(c_imm.asInstanceOf[Sym[Array[Float]]])
+
+    val transA = dims(0) > 0
+    val transB = dims(1) > 0
+    val m      = dims(2)
+    val n      = dims(3)
+    val k      = dims(4)
+    val lda    = dims(5)
+    val ldb    = dims(6)
+    val ldc    = dims(7)
+    val kcb    = dims(8)
+    val mcb    = dims(9)
+    val ncb    = dims(10)
+    val alpha  = scalars(0)
+    val beta   = scalars(1)
+
+    //
+    // Columns of C are distributed across the threads, each thread packing
+    // its own panels of A and B
+    //
+    parallel_chunks(0, n, NR, 4 * NR, (tid, lo, hi) => {
+
+      val ap = heap_array_new[Float]()
+      val bp = heap_array_new[Float]()
+      heap_array_alloc[Float, Float](ap, (mcb + MR) * kcb)
+      heap_array_alloc[Float, Float](bp, kcb * (Math.min(hi - lo, ncb) + NR))
+
+      forloop(lo, hi, fresh[Int], ncb, (jc: Rep[Int]) => {
+        val nc = Math.min(jc + ncb, hi) - jc
+        forloop(0, k, fresh[Int], kcb, (pc: Rep[Int]) => {
+          val kc = Math.min(pc + kcb, k) - pc
+          //
+          // Pack the panel of B, the panels following the first one accumulate into C
+          //
+          if (transB) {
+            packB(bp, (p, j) => b(j * ldb + p), None, b, pc, jc, kc, nc)
+          } else {
+            packB(bp, (p, j) => b(p * ldb + j), Some((p: Rep[Int], j: Rep[Int]) => p * ldb + j), b, pc, jc, kc, nc)
+          }
+          val betaPanel = if (pc > 0) unit(1.0f) else beta
+          forloop(0, m, fresh[Int], mcb, (ic: Rep[Int]) => {
+            val mc = Math.min(ic + mcb, m) - ic
+            if (transA) {
+              packA(ap, (i, p) => a(p * lda + i), alpha, ic, pc, mc, kc)
+            } else {
+              packA(ap, (i, p) => a(i * lda + p), alpha, ic, pc, mc, kc)
+            }
+            forloop(0, nc, fresh[Int], NR, (jr: Rep[Int]) => {
+              val nr = Math.min(jr + NR, nc) - jr
+              forloop(0, mc, fresh[Int], MR, (ir: Rep[Int]) => {
+                val mr = Math.min(ir + MR, mc) - ir
+                kernel(ap, ir * kc, bp, jr * kc, kc, c, ldc, ic + ir, jc + jr, mr, nr, betaPanel)
+              })
+            })
+          })
+        })
+      })
+
+      heap_array_free(ap)
+      heap_array_free(bp)
+    })
+  }
+
+  val tier = tiered(this) {
+    compile(sgemm_staged _, this, nameOf(sgemmNative _))
+  }
+}
@@ -1,17 +1,71 @@
 package ch.ethz.acl.ngen.mmm
 
-import ch.ethz.acl.commons.cir.IntrinsicsIR
+import java.nio.ByteBuffer
+
+import ch.ethz.acl.commons.cir.{IntrinsicsIR, JavaBackend, JavaKernel, TuningSpace, TuningVariant}
+import ch.ethz.acl.commons.util.OffHeap
 import com.github.dwickern.macros.NameOf._
 
+//
+// Signature of MMM, implemented by the kernel compiled to Java
+//
+trait MMMKernel {
+  def apply (a: Array[Float], b: Array[Float], c: Array[Float], n: Int): Unit
+}
+
 class NMMM { self =>
 
-  @native def blocked (
+  //
+  // JVM implementation, used until the native library is loaded
+  //
+  private val jMMM = new JMMM
+
+  //
+  // Java Vector API implementation, replacing the native
+  // library on hosts without a C compiler (see JavaBackend)
+  //
+  @volatile private var vMMM: JavaKernel[MMMKernel] = null
+
+  def blocked (a: Array[Float], b: Array[Float], c: Array[Float], n: Int): Unit = {
+    if (!tier.isNative) jMMM.blocked(a, b, c, n)
+    else if (vMMM ne null) vMMM.function(a, b, c, n)
+    else blockedNative(a, b, c, n)
+  }
+
+  //
+  // Same as blocked, operating in place on off-heap matrices
+  // allocated with OffHeap.allocateFloats. There is no JVM
+  // implementation, therefore it waits for the native library.
+  // The Java kernel has no access to the buffers in place, and
+  // operates on copies of the matrices instead.
+  //
+  def blockedDirect (a: ByteBuffer, b: ByteBuffer, c: ByteBuffer, n: Int): Unit = {
+    val bytes = 4L * n * n
+    require(n >= 0 && List(a, b, c).forall(_.capacity >= bytes),
+      s"Buffers of ${ List(a, b, c).map(_.capacity).mkString(", ") } bytes are too small for $n x $n matrices")
+    if (!(tier.isNative || tier.await())) {
+      throw new UnsupportedOperationException("Native MMM is not available", tier.getFailure.orNull)
+    } else if (vMMM ne null) {
+      val (ja, jb, jc) = (new Array[Float](n * n), new Array[Float](n * n), new Array[Float](n * n))
+      vMMM.function(OffHeap.copy(a, ja), OffHeap.copy(b, jb), OffHeap.copy(c, jc), n)
+      OffHeap.copy(jc, c)
+    } else blockedDirectNative(a, b, c, n)
+  }
+
+  @native def blockedNative (
     a: Array[Float],
     b: Array[Float],
     c: Array[Float],
     n: Int
   ): Unit
 
+  @native def blockedDirectNative (
+    a: ByteBuffer,
+    b: ByteBuffer,
+    c: ByteBuffer,
+    n: Int
+  ): Unit
+
   val cIR = new IntrinsicsIR
   import cIR._
 
@@ -37,7 +91,12 @@ class NMMM { self =>
     zip.map({ case (a, b) => f(a, b, 0x31) })
   }
 
-  def staged_mmm_blocked (
+  //
+  // Blocked MMM, with 8x8 blocks of B transposed in registers. The
+  // rows of C handled by a thread are optionally tiled, as given by
+  // the tuning variant (0 stands for no tiling).
+  //
+  def staged_mmm_blocked (variant: TuningVariant) (
     a     : Rep[Array[Float]],
     b     : Rep[Array[Float]],
     c_imm : Rep[Array[Float]],
@@ -47,40 +106,72 @@ class NMMM { self =>
     import ImplicitLift._
     val c_sym = c_imm.asInstanceOf[Sym[Array[Float]]]
     val c = reflectMutableSym(c_sym)
+    val tile = variant("tile")
 
-    forloop(0, n, fresh[Int], 8, (kk: Exp[Int]) => {
-      forloop(0, n, fresh[Int], 8, (jj: Exp[Int]) => {
-        //
-        // Retrieve the current block of B and transpose it
-        //
-        val blockB = transpose((0 to 7).map { i =>
-            _mm256_loadu_ps(b, (kk + i) * n + jj)
-        })
-        //
-        // Multiply all the vectors of a of the corresponding
-        // block column with the running block and store the
-        // result
-        //
-        loop(n, (i: Exp[Int]) => {
-          val rowA  = _mm256_loadu_ps(a, i * n + kk)
-          val mulAB = transpose(
-            blockB.map(_mm256_mul_ps(rowA, _))
-          )
-          def f(l: Seq[Exp[__m256]]): Exp[__m256] =
-            l.size match {
-              case 1 => l.head
-              case s =>
-                val lhs = f(l.take(s/2))
-                val rhs = f(l.drop(s/2))
-                _mm256_add_ps(lhs, rhs)
-          }
-          val rowC = _mm256_loadu_ps(c, i * n + jj)
-          val accC = _mm256_add_ps(f(mulAB), rowC)
-          _mm256_storeu_ps(c, accC, i * n + jj)
+    def rows (lo: Rep[Int], hi: Rep[Int]): Rep[Unit] = {
+      forloop(0, n, fresh[Int], 8, (kk: Exp[Int]) => {
+        forloop(0, n, fresh[Int], 8, (jj: Exp[Int]) => {
+          //
+          // Retrieve the current block of B and transpose it
+          //
+          val blockB = transpose((0 to 7).map { i =>
+              _mm256_loadu_ps(b, (kk + i) * n + jj)
+          })
+          //
+          // Multiply all the vectors of a of the corresponding
+          // block column with the running block and store the
+          // result
+          //
+          forloop(lo, hi, fresh[Int], 1, (i: Exp[Int]) => {
+            val rowA  = _mm256_loadu_ps(a, i * n + kk)
+            val mulAB = transpose(
+              blockB.map(_mm256_mul_ps(rowA, _))
+            )
+            def f(l: Seq[Exp[__m256]]): Exp[__m256] =
+              l.size match {
+                case 1 => l.head
+                case s =>
+                  val lhs = f(l.take(s/2))
+                  val rhs = f(l.drop(s/2))
+                  _mm256_add_ps(lhs, rhs)
+            }
+            val rowC = _mm256_loadu_ps(c, i * n + jj)
+            val accC = _mm256_add_ps(f(mulAB), rowC)
+            _mm256_storeu_ps(c, accC, i * n + jj)
+          })
         })
       })
+    }
+
+    //
+    // Rows of C are distributed across the threads, such that
+    // each thread updates a disjoint block of rows.
+    //
+    parallel_chunks(0, n, 1, 8, (tid, lo, hi) => {
+      tile match {
+        case 0 => rows(lo, hi)
+        case _ => forloop(lo, hi, fresh[Int], tile, (ii: Exp[Int]) => {
+          rows(ii, Math.min(ii + tile, hi))
+        })
+      }
     })
   }
 
-  compile(staged_mmm_blocked _, this, nameOf(blocked _))
+  //
+  // Without a C compiler, the function is compiled to Java instead,
+  // using the default tiling
+  //
+  val space = TuningSpace(List("tile" -> List(0, 64, 128, 256)))
+  val tier = tiered(this) {
+    if (JavaBackend.selected) {
+      vMMM = compileJava(staged_mmm_blocked(space.default) _, this, nameOf(blockedNative _), classOf[MMMKernel])
+    } else {
+      val variant = autotune(staged_mmm_blocked _, this, nameOf(blockedNative _), space, {
+        val n = 256
+        val rng = new scala.util.Random(7919)
+        Seq(Array.fill(n * n)(rng.nextFloat), Array.fill(n * n)(rng.nextFloat), new Array[Float](n * n), n)
+      })
+      compile(staged_mmm_blocked(variant) _, this, nameOf(blockedDirectNative _))
+    }
+  }
 }
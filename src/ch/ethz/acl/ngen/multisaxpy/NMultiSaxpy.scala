@@ -1,14 +1,19 @@
 package ch.ethz.acl.ngen.multisaxpy
 
-import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.cir.{AVX512IntrinsicsIR, JavaBackend, JavaKernel}
 import ch.ethz.acl.commons.compiler.ISA
-import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.commons.compiler.ISA.ISA
+import ch.ethz.acl.ngen.saxpy.SaxpyKernel
 import com.github.dwickern.macros.NameOf._
 
 class NMultiSaxpy {
 
+  def apply (a: Array[Float], b: Array[Float], scalar: Float, n: Int): Unit = {
+    if (vSaxpy ne null) vSaxpy.function(a, b, scalar, n) else applyNative(a, b, scalar, n)
+  }
+
   // Step 1: Placeholder for the SAXPY native function
-  @native def apply (
+  @native def applyNative (
     a      : Array[Float],
     b      : Array[Float],
     scalar : Float,
@@ -16,22 +21,41 @@ class NMultiSaxpy {
   ): Unit
 
   // Step 2: DSL instance of the intrinsics
-  val cIR = new IntrinsicsIR
+  val cIR = new AVX512IntrinsicsIR
   import cIR._
 
+  def saxpy_AVX512 (
+    a      : Rep[Array[Float]],
+    b      : Rep[Array[Float]],
+    scalar : Rep[Float],
+    n      : Rep[Int]
+  ): Unit = { import ImplicitLift._
+    val n0 = (n >> 4) << 4
+    val vec_s = _mm512_set1_ps(scalar)
+    forloop(0, n0, fresh[Int], 16, (i : Rep[Int]) => {
+      val vec_a = _mm512_loadu_ps(a, i)
+      val vec_b = _mm512_loadu_ps(b, i)
+      val res = _mm512_fmadd_ps(vec_b, vec_s, vec_a)
+      _mm512_storeu_ps(a, res, i)
+    })
+    forloop(n0, n, fresh[Int], 1, (i : Rep[Int]) => {
+      a(i) = a(i) + b(i) * scalar
+    })
+  }
 
   def saxpy_AVX (
     a      : Rep[Array[Float]],
     b      : Rep[Array[Float]],
     scalar : Rep[Float],
-    n      : Rep[Int]
+    n      : Rep[Int],
+    fma    : Boolean
   ): Unit = { import ImplicitLift._
     val n0 = (n >> 3) << 3
     val vec_s = _mm256_set1_ps(scalar)
     forloop(0, n0, fresh[Int], 8, (i : Rep[Int]) => {
       val vec_a = _mm256_loadu_ps(a, i)
       val vec_b = _mm256_loadu_ps(b, i)
-      val res = if (LocalSystem.getISAs().contains(ISA.FMA)) {
+      val res = if (fma) {
         _mm256_fmadd_ps(vec_b, vec_s, vec_a)
       } else {
           val mul_ab = _mm256_mul_ps(vec_b, vec_s)
@@ -55,12 +79,8 @@ class NMultiSaxpy {
     forloop(0, n0, fresh[Int], 4, (i : Rep[Int]) => {
       val vec_a = _mm_loadu_ps(a, i)
       val vec_b = _mm_loadu_ps(b, i)
-      val res = if (LocalSystem.getISAs().contains(ISA.FMA)) {
-        _mm_fmadd_ps(vec_b, vec_s, vec_a)
-      } else {
-        val mul_ab = _mm_mul_ps(vec_b, vec_s)
-        _mm_add_ps(mul_ab, vec_a)
-      }
+      val mul_ab = _mm_mul_ps(vec_b, vec_s)
+      val res = _mm_add_ps(mul_ab, vec_a)
       _mm_storeu_ps(a, res, i)
     })
     forloop(n0, n, fresh[Int], 1, (i : Rep[Int]) => {
@@ -80,8 +100,8 @@ class NMultiSaxpy {
   }
 
 
-  // Step 3: Staged SAXPY function using AVX + FMA
-  def saxpy_staged(
+  // Step 3: Staged SAXPY function, one version per ISA tier
+  def saxpy_staged(isa: ISA)(
     a_imm  : Rep[Array[Float]],
     b      : Rep[Array[Float]],
     scalar : Rep[Float],
@@ -90,17 +110,24 @@ class NMultiSaxpy {
     // make array `a` mutable
     val a_sym = a_imm.asInstanceOf[Sym[Array[Float]]]
     val a = reflectMutableSym(a_sym)
-    val systemISAs = LocalSystem.getISAs()
-    if (systemISAs.contains(ISA.AVX)) {
-      saxpy_AVX(a, b, scalar, n)
-    } else if (systemISAs.contains(ISA.SSE)) {
-      saxpy_SSE(a, b, scalar, n)
-    } else {
-      saxpy_scalar(a, b, scalar, n)
+    isa match {
+      case ISA.AVX512 => saxpy_AVX512(a, b, scalar, n)
+      case ISA.AVX2   => saxpy_AVX(a, b, scalar, n, true)
+      case ISA.AVX    => saxpy_AVX(a, b, scalar, n, false)
+      case ISA.SSE42  => saxpy_SSE(a, b, scalar, n)
+      case _          => saxpy_scalar(a, b, scalar, n)
     }
   }
 
-  // Step 4: generate the daxpy function,
-  // compile it and link it to the JVM
-  compile(saxpy_staged _, this, nameOf(apply _))
+  // Step 4: generate all versions of the saxpy function,
+  // compile them into a single library, dispatching on the
+  // executing CPU, and link it to the JVM. Without a C compiler,
+  // the AVX2 version is compiled to Java instead (see JavaBackend),
+  // the Vector API picking the instructions of the executing CPU.
+  private val vSaxpy: JavaKernel[SaxpyKernel] = if (!JavaBackend.selected) null else {
+    compileJava(saxpy_staged(ISA.AVX2) _, this, nameOf(applyNative _), classOf[SaxpyKernel])
+  }
+  if (vSaxpy eq null) compileUnit(this) {
+    compileMultiVersion(saxpy_staged _, this, nameOf(applyNative _), List(ISA.AVX512, ISA.AVX2, ISA.AVX, ISA.SSE42))
+  }
 }
@@ -7,8 +7,19 @@ abstract class JVector {
     protected int size_pad;
 
     protected float findAbsMax(float [] v) {
-        float result = Math.abs(v[0]);
-        for (int i = 1; i < size; i += 1) {
+        return findAbsMax(v, size);
+    }
+
+    protected static float findAbsMax(float [] v, int n) {
+        return findAbsMax(v, 0, n);
+    }
+
+    //
+    // Absolute maximum of the n elements of v starting at off
+    //
+    protected static float findAbsMax(float [] v, int off, int n) {
+        float result = 0.0f;
+        for (int i = off; i < off + n; i += 1) {
             float tmp = Math.abs(v[i]);
             if (tmp > result) {
                 result = tmp;
@@ -113,5 +113,49 @@ public class JVector4 extends JVector
 
         return (acc1 + acc2) * this.scale * other.scale;
     }
+
+    //
+    // Quantizes the n elements of v starting at voff into r starting
+    // at the byte roff, such as a row of a QMatrix4, and returns the
+    // scale. Each value is a sign bit followed by 3 bits of base, and
+    // the first value of each pair goes into the upper 4 bits of its
+    // byte, as in QVector4. An odd last value is paired with a zero.
+    //
+    public static float quantize (float [] v, int voff, byte [] r, int roff, int n)
+    {
+        float max = findAbsMax(v, voff, n);
+        float s = 7.0f / max;
+        for (int i = 0; i < n; i += 2) {
+            int hi = nibble(v[voff + i], s);
+            int lo = i + 1 < n ? nibble(v[voff + i + 1], s) : 0;
+            r[roff + (i >> 1)] = (byte) ((hi << 4) | lo);
+        }
+        return max / 7.0f;
+    }
+
+    private static int nibble (float x, float s)
+    {
+        float rnd = (float) Math.random();
+        int base = (int) Math.floor(Math.abs(x) * s + rnd);
+        return (x < 0 ? 8 : 0) | base;
+    }
+
+    //
+    // Dot-product of the n_pad values of u and v starting at the bytes
+    // uoff and voff, such as the rows of a QMatrix4.
+    //
+    public static float dot (byte [] u, int uoff, byte [] v, int voff, float su, float sv, int n_pad)
+    {
+        int sum = 0;
+        for (int i = 0; i < (n_pad >> 1); i += 1) {
+            int qu = u[uoff + i];
+            int qv = v[voff + i];
+            int sign = (qu ^ qv) & 0x88;
+            int hi = ((qu >> 4) & 7) * ((qv >> 4) & 7);
+            int lo = (qu & 7) * (qv & 7);
+            sum += ((sign & 0x80) != 0 ? -hi : hi) + ((sign & 0x08) != 0 ? -lo : lo);
+        }
+        return sum * su * sv;
+    }
 }
 
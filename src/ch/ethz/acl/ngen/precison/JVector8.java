@@ -18,13 +18,31 @@ public class JVector8 extends JVector
     public void quantize (float [] v)
     {
         values = new byte[size];
-        float max = findAbsMax(v);
+        scale = quantize(v, values, size);
+    }
+
+    //
+    // Quantizes the first n elements of v into r, and returns
+    // the scale of the quantized vector.
+    //
+    public static float quantize (float [] v, byte [] r, int n)
+    {
+        return quantize(v, 0, r, 0, n);
+    }
+
+    //
+    // Quantizes the n elements of v starting at voff into r starting
+    // at roff, such as a row of a QMatrix8, and returns the scale.
+    //
+    public static float quantize (float [] v, int voff, byte [] r, int roff, int n)
+    {
+        float max = findAbsMax(v, voff, n);
         float s = 127.0f / max;
-        for (int i = 0; i < size; i += 1) {
+        for (int i = 0; i < n; i += 1) {
             float rnd = (float) Math.random();
-            values[i] = (byte) Math.floor(s * v[i] + rnd);
+            r[roff + i] = (byte) Math.floor(s * v[voff + i] + rnd);
         }
-        scale = max / 127.0f;
+        return max / 127.0f;
     }
 
     //
@@ -46,21 +64,36 @@ public class JVector8 extends JVector
     // minimize the number of casts performed.
     //
     public float dot(JVector8 other) {
+        return dot(values, other.values, scale, other.scale, size);
+    }
+
+    //
+    // Optimized dot-product of the first n elements of two
+    // quantized vectors u and v, with scales su and sv.
+    //
+    public static float dot(byte [] u, byte [] v, float su, float sv, int n) {
+        return dot(u, 0, v, 0, su, sv, n);
+    }
+
+    //
+    // Dot-product of the n elements of u and v starting at uoff
+    // and voff, such as the rows of a QMatrix8.
+    //
+    public static float dot(byte [] u, int uoff, byte [] v, int voff, float su, float sv, int n) {
         float result = 0;
-        int n0 = size;
-        int n1 = (size >> 6) << 6;
+        int n0 = n;
+        int n1 = (n >> 6) << 6;
         for (int i = 0; i < n1; i += 64) {
             int sum = 0;
             for (int j = 0; j < 64; j += 1) {
                 int idx = i + j;
-                sum += values[idx] * other.values[idx];
+                sum += u[uoff + idx] * v[voff + idx];
             }
             result += sum;
         }
         for (int i = n1; i < n0; i += 1) {
-            result += values[i] * other.values[i];
+            result += u[uoff + i] * v[voff + i];
         }
-        return result * scale * other.scale;
+        return result * su * sv;
     }
 }
-
@@ -0,0 +1,97 @@
+package ch.ethz.acl.ngen.precison
+
+object QMatrix {
+
+  def apply(bits: Int, rows: Int, cols: Int): QMatrix = bits match {
+    case 8 => new QMatrix8 (rows, cols)
+    case 4 => new QMatrix4 (rows, cols)
+  }
+
+}
+
+//
+// A row-major matrix of quantized values, where each row is quantized
+// independently and has its own scale. Rows are padded the same way as
+// the quantized vectors of the same precision, such that a row and a
+// vector of the same size are stored identically.
+//
+abstract class QMatrix (val bits: Int, val rows: Int, val cols: Int) extends QStaging {
+
+  import QVector.IR._
+
+  val cols_pad: Int
+
+  val scale: Array[Float] = Array.fill(rows)(1f)
+
+  //
+  // Number of rows that share each loaded block of the activations
+  //
+  val RB = 4
+
+  //
+  // Number of bytes in a row of k (padded) quantized values
+  //
+  def row_bytes (k: Rep[Int]): Rep[Int]
+
+  //
+  // Unscaled dot products of the rows of w starting at the byte offsets woff,
+  // with the row of x starting at the byte offset xoff, each of k values.
+  //
+  def dot_rows (
+    w    : Rep[Array[Byte]],
+    x    : Rep[Array[Byte]],
+    woff : List[Rep[Int]],
+    xoff : Rep[Int],
+    k    : Rep[Int]
+  ): List[Rep[Float]]
+
+  //
+  // Computes y(j * m + i) = sw(i) * sx(j) * dot(w(i), x(j)) for the m rows
+  // of w and the b rows of x, with dims = (m, b, k) and k being the padded
+  // number of columns. The rows of w are distributed across threads, and
+  // each thread walks over the rows of x, processing RB rows of w at a time.
+  // A GEMV is the case b = 1.
+  //
+  def gemm_staged (
+    w     : Rep[Array[Byte]],
+    sw    : Rep[Array[Float]],
+    x     : Rep[Array[Byte]],
+    sx    : Rep[Array[Float]],
+    y_imm : Rep[Array[Float]],
+    dims  : Rep[Array[Int]]
+  ): Rep[Unit] = {
+
+    import QVector.IR.ImplicitLift._
+    val y = reflectMutableSym(y_imm.asInstanceOf[Sym[Array[Float]]])
+
+    val m      = dims(0)
+    val b      = dims(1)
+    val k      = dims(2)
+    val stride = row_bytes(k)
+
+    parallel_chunks(0, m, RB, 16, (tid, lo, hi) => {
+
+      val hi1 = lo + ((hi - lo) / RB) * RB
+
+      forloop(0, b, fresh[Int], 1, (j: Rep[Int]) => {
+
+        val xoff = j * stride
+        val yoff = j * m
+
+        forloop(lo, hi1, fresh[Int], RB, (i: Rep[Int]) => {
+          val woff = List.tabulate(RB)(r => (i + r) * stride)
+          dot_rows(w, x, woff, xoff, k).zipWithIndex.foreach { case (d, r) =>
+            y(yoff + i + r) = d * sw(i + r) * sx(j)
+          }
+        })
+
+        forloop(hi1, hi, fresh[Int], 1, (i: Rep[Int]) => {
+          val d = dot_rows(w, x, List(i * stride), xoff, k).head
+          y(yoff + i) = d * sw(i) * sx(j)
+        })
+      })
+    })
+  }
+
+  def quantize (input : Array[Float]): Unit
+}
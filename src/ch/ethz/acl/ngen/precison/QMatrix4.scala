@@ -0,0 +1,178 @@
+package ch.ethz.acl.ngen.precison
+
+import ch.ethz.acl.passera.unsigned.UByte
+import com.github.dwickern.macros.NameOf._
+
+class QMatrix4 (r: Int, c: Int) extends QMatrix(4, r, c) {
+
+  import QVector.IR._
+
+  val cols_pad: Int = cols % 128 match {
+    case 0 => cols
+    case _ => cols + 128 - (cols % 128);
+  }
+
+  val values = new Array[Byte](rows * cols_pad / 2)
+
+  def row_bytes (k: Rep[Int]): Rep[Int] = {
+    import QVector.IR.ImplicitLift._
+    k >> 1
+  }
+
+  def dot_rows (
+    w_short : Rep[Array[Byte]],
+    x_short : Rep[Array[Byte]],
+    woff    : List[Rep[Int]],
+    xoff    : Rep[Int],
+    k       : Rep[Int]
+  ): List[Rep[Float]] = {
+
+    import QVector.IR.ImplicitLift._
+
+    val w  = w_short.asInstanceOf[Exp[Array[__m256i]]]
+    val x  = x_short.asInstanceOf[Exp[Array[__m256i]]]
+
+    val base_mask_hi = _mm256_set1_epi8(0x70.toByte)
+    val base_mask_lo = _mm256_set1_epi8(0x07.toByte)
+    val base_mask    = _mm256_set1_epi8(0x77.toByte)
+    val one_16bit    = _mm256_set1_epi16(1.toShort)
+
+    val acc = woff.map(_ => var_new(_mm256_setzero_ps()))
+
+    forloop(0, k, fresh[Int], 128, (idx: Rep[Int]) =>
+    {
+      val i0 = idx >> 1
+      val i1 = i0 + 32
+      //
+      // Load 128 packed activations, and unpack their bases once per block.
+      // Only the signs, and the bases of the matrix rows, depend on the row.
+      //
+      val xq_packed_8bit_1  = _mm256_loadu_si256(x, xoff + i0)
+      val xq_packed_8bit_2  = _mm256_loadu_si256(x, xoff + i1)
+      val xq_base_8bit_hi_1 = _mm256_srli_epi16(_mm256_and_si256(xq_packed_8bit_1, base_mask_hi), 4)
+      val xq_base_8bit_hi_2 = _mm256_srli_epi16(_mm256_and_si256(xq_packed_8bit_2, base_mask_hi), 4)
+      val xq_base_8bit_lo_1 = _mm256_and_si256(xq_packed_8bit_1, base_mask_lo)
+      val xq_base_8bit_lo_2 = _mm256_and_si256(xq_packed_8bit_2, base_mask_lo)
+
+      woff.zip(acc).foreach { case (off, a) =>
+        val wq_packed_8bit_1 = _mm256_loadu_si256(w, off + i0)
+        val wq_packed_8bit_2 = _mm256_loadu_si256(w, off + i1)
+        //
+        // The sign of each product is the XOR of the sign bits, see QVector4
+        //
+        val q_sign_packed_xor_1 = _mm256_xor_si256(xq_packed_8bit_1, wq_packed_8bit_1)
+        val q_sign_packed_xor_2 = _mm256_xor_si256(xq_packed_8bit_2, wq_packed_8bit_2)
+        val q_sign_hi_1         = _mm256_or_si256(q_sign_packed_xor_1, base_mask)
+        val q_sign_hi_2         = _mm256_or_si256(q_sign_packed_xor_2, base_mask)
+        val q_sign_lo_1         = _mm256_slli_epi16(q_sign_hi_1, 4)
+        val q_sign_lo_2         = _mm256_slli_epi16(q_sign_hi_2, 4)
+
+        val wq_base_8bit_hi_1 = _mm256_srli_epi16(_mm256_and_si256(wq_packed_8bit_1, base_mask_hi), 4)
+        val wq_base_8bit_hi_2 = _mm256_srli_epi16(_mm256_and_si256(wq_packed_8bit_2, base_mask_hi), 4)
+        val wq_base_8bit_lo_1 = _mm256_and_si256(wq_packed_8bit_1, base_mask_lo)
+        val wq_base_8bit_lo_2 = _mm256_and_si256(wq_packed_8bit_2, base_mask_lo)
+
+        val wq_8bit_hi_1 = _mm256_sign_epi8(wq_base_8bit_hi_1, q_sign_hi_1)
+        val wq_8bit_hi_2 = _mm256_sign_epi8(wq_base_8bit_hi_2, q_sign_hi_2)
+        val wq_8bit_lo_1 = _mm256_sign_epi8(wq_base_8bit_lo_1, q_sign_lo_1)
+        val wq_8bit_lo_2 = _mm256_sign_epi8(wq_base_8bit_lo_2, q_sign_lo_2)
+
+        val q_16bit_hi_1 = _mm256_maddubs_epi16(xq_base_8bit_hi_1, wq_8bit_hi_1)
+        val q_16bit_hi_2 = _mm256_maddubs_epi16(xq_base_8bit_hi_2, wq_8bit_hi_2)
+        val q_16bit_lo_1 = _mm256_maddubs_epi16(xq_base_8bit_lo_1, wq_8bit_lo_1)
+        val q_16bit_lo_2 = _mm256_maddubs_epi16(xq_base_8bit_lo_2, wq_8bit_lo_2)
+
+        val q_16bit_1 = _mm256_add_epi16(q_16bit_hi_1, q_16bit_lo_1)
+        val q_16bit_2 = _mm256_add_epi16(q_16bit_hi_2, q_16bit_lo_2)
+        val q_16bit   = _mm256_add_epi16(q_16bit_1, q_16bit_2)
+
+        val q_32bit = _mm256_madd_epi16(q_16bit, one_16bit)
+        var_assign(a, _mm256_add_ps(readVar(a), _mm256_cvtepi32_ps(q_32bit)))
+      }
+    })
+
+    acc.map(a => reduce_sum(readVar(a)))
+  }
+
+  //
+  // Quantizes each of the m rows of the row-major matrix u with n columns,
+  // into the rows of r padded to n_pad values, with dims = (m, n, n_pad, seed),
+  // and stores the scale of each row in s. The random numbers of each row are
+  // drawn from a stream of its own, making a seeded quantization reproducible
+  // regardless of the number of threads.
+  //
+  def quantize_staged (
+    u     : Rep[Array[Float]],
+    r_imm : Rep[Array[UByte]],
+    s_imm : Rep[Array[Float]],
+    dims  : Rep[Array[Int]]
+  ): Rep[Unit] = {
+
+    import QVector.IR.ImplicitLift._
+    val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[UByte]]])
+    val s = reflectMutableSym(s_imm.asInstanceOf[Sym[Array[Float]]])
+
+    val m     = dims(0)
+    val n     = dims(1)
+    val n_pad = dims(2)
+    val seed  = random_seed(dims(3))
+
+    parallel_chunks(0, m, 1, 16, (tid, lo, hi) => {
+      forloop(lo, hi, fresh[Int], 1, (i: Rep[Int]) => {
+        val uoff = i * n
+        val max  = abs_max(u, uoff, uoff + n)
+        QVector4.quantize_row(u, r, uoff, i * (n_pad >> 1), n, max, seed, i)
+        s(i) = max / 7.0f
+      })
+    })
+  }
+
+  //
+  // Computes y(i) = dot(row(i), x) for all the rows of the matrix
+  //
+  def gemv (x: QVector4, y: Array[Float]): Unit = {
+    assert(x.size == cols && y.length >= rows)
+    gemm(x.values, Array(x.scale), 1, y)
+  }
+
+  //
+  // Computes y(j * rows + i) = dot(row(i), x.row(j)), i.e. the product of x
+  // with the transpose of this matrix, stored in row-major order
+  //
+  def gemm (x: QMatrix4, y: Array[Float]): Unit = {
+    assert(x.cols == cols && y.length >= rows * x.rows)
+    gemm(x.values, x.scale, x.rows, y)
+  }
+
+  //
+  // Until the native library is loaded, the rows are multiplied
+  // with the dot products of JVector4, on the same quantized format
+  //
+  private def gemm (x: Array[Byte], sx: Array[Float], b: Int, y: Array[Float]): Unit = {
+    if (tier.isNative) {
+      gemmNative(values, scale, x, sx, y, Array(rows, b, cols_pad))
+    } else for (j <- 0 until b; i <- 0 until rows) {
+      y(j * rows + i) = JVector4.dot(values, i * cols_pad / 2, x, j * cols_pad / 2, scale(i), sx(j), cols_pad)
+    }
+  }
+
+  def quantize (input : Array[Float]) : Unit = quantize(input, QVector.seed)
+
+  def quantize (input : Array[Float], seed: Int) : Unit = {
+    assert(input.length >= rows * cols)
+    if (tier.isNative) {
+      quantizeNative(input, values, scale, Array(rows, cols, cols_pad, seed))
+    } else for (i <- 0 until rows) {
+      scale(i) = JVector4.quantize(input, i * cols, values, i * cols_pad / 2, cols)
+    }
+  }
+
+  @native def gemmNative     (w: Array[Byte], sw: Array[Float], x: Array[Byte], sx: Array[Float], y: Array[Float], dims: Array[Int]): Unit
+  @native def quantizeNative (u: Array[Float], r: Array[Byte], s: Array[Float], dims: Array[Int]): Unit
+
+  val tier = tiered(this) {
+    compile(quantize_staged _, this, nameOf(quantizeNative _))
+    compile(gemm_staged     _, this, nameOf(gemmNative _))
+  }
+
+}
@@ -0,0 +1,137 @@
+package ch.ethz.acl.ngen.precison
+
+import com.github.dwickern.macros.NameOf._
+
+class QMatrix8 (r: Int, c: Int) extends QMatrix(8, r, c) {
+
+  import QVector.IR._
+
+  val cols_pad: Int = cols % 32 match {
+    case 0 => cols
+    case _ => cols + 32 - (cols % 32);
+  }
+
+  val values = new Array[Byte](rows * cols_pad)
+
+  def row_bytes (k: Rep[Int]): Rep[Int] = k
+
+  def dot_rows (
+    w_short : Rep[Array[Byte]],
+    x_short : Rep[Array[Byte]],
+    woff    : List[Rep[Int]],
+    xoff    : Rep[Int],
+    k       : Rep[Int]
+  ): List[Rep[Float]] = {
+
+    import QVector.IR.ImplicitLift._
+
+    val w  = w_short.asInstanceOf[Exp[Array[__m256i]]]
+    val x  = x_short.asInstanceOf[Exp[Array[__m256i]]]
+
+    val ymm_ones_16bit = _mm256_set1_epi16(1.toShort)
+
+    val acc = woff.map(_ => var_new(_mm256_setzero_ps()))
+
+    forloop(0, k, fresh[Int], 32, (i: Rep[Int]) =>
+    {
+      //
+      // The activations are loaded, and their absolute value taken, once
+      // per block. Only the signs depend on the row of the matrix.
+      //
+      val qx     = _mm256_loadu_si256(x, xoff + i)
+      val qx_abs = _mm256_abs_epi8(qx)
+      woff.zip(acc).foreach { case (off, a) =>
+        val qw     = _mm256_loadu_si256(w, off + i)
+        val qw_sgn = _mm256_sign_epi8(qw, qx)
+        val ymm1   = _mm256_maddubs_epi16(qx_abs, qw_sgn)
+        val ymm2   = _mm256_madd_epi16(ymm1, ymm_ones_16bit)
+        val ymm3   = _mm256_cvtepi32_ps(ymm2)
+        var_assign(a, _mm256_add_ps(readVar(a), ymm3))
+      }
+    })
+
+    acc.map(a => reduce_sum(readVar(a)))
+  }
+
+  //
+  // Quantizes each of the m rows of the row-major matrix u with n columns,
+  // into the rows of r padded to n_pad values, with dims = (m, n, n_pad, seed),
+  // and stores the scale of each row in s. The random numbers of each row are
+  // drawn from a stream of its own, making a seeded quantization reproducible
+  // regardless of the number of threads.
+  //
+  def quantize_staged (
+    u     : Rep[Array[Float]],
+    r_imm : Rep[Array[Byte]],
+    s_imm : Rep[Array[Float]],
+    dims  : Rep[Array[Int]]
+  ): Rep[Unit] = {
+
+    import QVector.IR.ImplicitLift._
+    val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[Byte]]])
+    val s = reflectMutableSym(s_imm.asInstanceOf[Sym[Array[Float]]])
+
+    val m     = dims(0)
+    val n     = dims(1)
+    val n_pad = dims(2)
+    val seed  = random_seed(dims(3))
+
+    parallel_chunks(0, m, 1, 16, (tid, lo, hi) => {
+      forloop(lo, hi, fresh[Int], 1, (i: Rep[Int]) => {
+        val uoff = i * n
+        val max  = abs_max(u, uoff, uoff + n)
+        QVector8.quantize_row(u, r, uoff, i * n_pad, n, max, seed, i)
+        s(i) = max / 127.0f
+      })
+    })
+  }
+
+  //
+  // Computes y(i) = dot(row(i), x) for all the rows of the matrix
+  //
+  def gemv (x: QVector8, y: Array[Float]): Unit = {
+    assert(x.size == cols && y.length >= rows)
+    gemm(x.values, Array(x.scale), 1, y)
+  }
+
+  //
+  // Computes y(j * rows + i) = dot(row(i), x.row(j)), i.e. the product of x
+  // with the transpose of this matrix, stored in row-major order
+  //
+  def gemm (x: QMatrix8, y: Array[Float]): Unit = {
+    assert(x.cols == cols && y.length >= rows * x.rows)
+    gemm(x.values, x.scale, x.rows, y)
+  }
+
+  //
+  // Until the native library is loaded, the rows are multiplied
+  // with the dot products of JVector8, on the same quantized format
+  //
+  private def gemm (x: Array[Byte], sx: Array[Float], b: Int, y: Array[Float]): Unit = {
+    if (tier.isNative) {
+      gemmNative(values, scale, x, sx, y, Array(rows, b, cols_pad))
+    } else for (j <- 0 until b; i <- 0 until rows) {
+      y(j * rows + i) = JVector8.dot(values, i * cols_pad, x, j * cols_pad, scale(i), sx(j), cols)
+    }
+  }
+
+  def quantize (input : Array[Float]) : Unit = quantize(input, QVector.seed)
+
+  def quantize (input : Array[Float], seed: Int) : Unit = {
+    assert(input.length >= rows * cols)
+    if (tier.isNative) {
+      quantizeNative(input, values, scale, Array(rows, cols, cols_pad, seed))
+    } else for (i <- 0 until rows) {
+      scale(i) = JVector8.quantize(input, i * cols, values, i * cols_pad, cols)
+    }
+  }
+
+  @native def gemmNative     (w: Array[Byte], sw: Array[Float], x: Array[Byte], sx: Array[Float], y: Array[Float], dims: Array[Int]): Unit
+  @native def quantizeNative (u: Array[Float], r: Array[Byte], s: Array[Float], dims: Array[Int]): Unit
+
+  val tier = tiered(this) {
+    compile(quantize_staged _, this, nameOf(quantizeNative _))
+    compile(gemm_staged     _, this, nameOf(gemmNative _))
+  }
+
+}
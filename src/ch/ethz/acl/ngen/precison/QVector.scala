@@ -1,18 +1,54 @@
 package ch.ethz.acl.ngen.precison
 
 import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.extensions.Parallelism
 import ch.ethz.acl.passera.unsigned.UInt
+import com.typesafe.config.ConfigFactory
+
+//
+// Source of the random numbers used by the stochastic rounding
+//
+object Rounding extends Enumeration {
+  type Rounding = Value
+  val RDRAND   = Value
+  val XorShift = Value
+}
+
+import Rounding.Rounding
 
 object QVector {
   val IR = new IntrinsicsIR
 
+  private val config = ConfigFactory.load("ch.ethz.acl.settings")
+  //
+  // Stochastic rounding used by the staged quantization, fixed at staging time
+  //
+  var rounding: Rounding = config.getString("settings.quantize.rounding").toLowerCase match {
+    case "rdrand" => Rounding.RDRAND
+    case _        => Rounding.XorShift
+  }
+  //
+  // Default seed of the quantization, 0 stands for a RDSEED generated seed
+  //
+  var seed: Int = config.getInt("settings.quantize.seed")
+  //
+  // Number of elements of a vector quantized with a single stream of the
+  // xorshift generator
+  //
+  val stream_block = 1024
+
   def apply(bits: Int, size: Int): QVector = bits match {
+    case 4  => new QVector4  (size)
+    case 8  => new QVector8  (size)
     case 16 => new QVector16 (size)
   }
 
 }
 
-abstract class QVector (val bits: Int, val size: Int) {
+//
+// Staged building blocks shared by the quantized vectors and matrices
+//
+trait QStaging {
 
   import QVector.IR._
 
@@ -32,16 +68,160 @@ abstract class QVector (val bits: Int, val size: Int) {
     f_rnd * (1.0f / 4294967296.0f)
   }
 
+  //
+  // Use RDSEED CPU feature to generate a seed for a pseudo-random generator
+  //
+  def random_seed_RDSEED () : Rep[Int] =
+  {
+    import QVector.IR.ImplicitLift._
+
+    val i_rnd = NewArray[UInt](1)
+    var ret = 0
+    __whileDo(boolean_equals(readVar(ret), Const(0)), {
+      ret = _rdseed32_step(i_rnd, 0)
+    })
+    infix_cast[Int](i_rnd(0))
+  }
+
+  //
+  // The given seed, or a RDSEED generated one when the seed is 0
+  //
+  def random_seed (seed: Rep[Int]) : Rep[Int] =
+  {
+    import QVector.IR.ImplicitLift._
+    if (boolean_equals(seed, unit(0))) random_seed_RDSEED() else seed
+  }
+
+  //
+  // Splits the n0 elements of a vector into blocks of QVector.stream_block
+  // elements, distributed across threads, and calls f with the bounds of each
+  // block and its index, which is the stream of its random numbers. Neither
+  // the blocks nor their streams depend on the number of threads, and thus
+  // a fixed seed gives the same quantized values for any number of threads.
+  //
+  def stream_blocks (n0: Rep[Int], f: (Rep[Int], Rep[Int], Rep[Int]) => Rep[Unit]): Rep[Unit] =
+  {
+    import QVector.IR.ImplicitLift._
+
+    val block = QVector.stream_block
+    parallel_chunks(0, n0, block, Parallelism.grain, (tid, lo, hi) => {
+      forloop(lo, hi, fresh[Int], block, (i: Rep[Int]) => {
+        f(i, Math.min(i + block, hi), i / block)
+      })
+    })
+  }
+
+  //
+  // Creates ways independent xorshift32 generators, each running 8 streams,
+  // one in each of its lanes. The streams are derived from the seed and the
+  // stream number, such that blocks or rows using different stream numbers
+  // draw different random numbers, while a fixed seed gives reproducible ones.
+  //
+  def xorshift_new (seed: Rep[Int], stream: Rep[Int], ways: Int): List[Var[__m256i]] =
+  {
+    import QVector.IR.ImplicitLift._
+
+    val lanes = _mm256_setr_epi32(
+      0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+      0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    )
+    val state = List.tabulate(ways) { w =>
+      val s0 = _mm256_xor_si256(_mm256_set1_epi32(seed), _mm256_set1_epi32((stream * ways + w) * 0x9E3779B9))
+      val s1 = _mm256_mullo_epi32(_mm256_add_epi32(s0, lanes), _mm256_set1_epi32(0x2545F491))
+      //
+      // The state of xorshift must not be zero
+      //
+      var_new(_mm256_or_si256(s1, _mm256_set1_epi32(1)))
+    }
+    //
+    // Discard the first numbers, which are correlated with the seed
+    //
+    for (_ <- 0 until 4; g <- state) xorshift_next(g)
+    state
+  }
+
+  //
+  // Advances the generator and returns 8 random floats in [0, 1)
+  //
+  def xorshift_next (state: Var[__m256i]): Rep[__m256] =
+  {
+    import QVector.IR.ImplicitLift._
+
+    val x0 = readVar(state)
+    val x1 = _mm256_xor_si256(x0, _mm256_slli_epi32(x0, 13))
+    val x2 = _mm256_xor_si256(x1, _mm256_srli_epi32(x1, 17))
+    val x3 = _mm256_xor_si256(x2, _mm256_slli_epi32(x2, 5))
+    var_assign(state, x3)
+    //
+    // Use the upper 24 bits, which convert exactly to float
+    //
+    val bits = _mm256_srli_epi32(x3, 8)
+    _mm256_mul_ps(_mm256_cvtepi32_ps(bits), _mm256_set1_ps(1.0f / 16777216.0f))
+  }
+
+  //
+  // Mask selecting the lanes k, k + 1, ..., k + 7 that are smaller than n
+  //
+  def tail_mask (n: Rep[Int], k: Int): Rep[__m256i] =
+  {
+    import QVector.IR.ImplicitLift._
+    val idx = _mm256_setr_epi32(k, k + 1, k + 2, k + 3, k + 4, k + 5, k + 6, k + 7)
+    _mm256_cmpgt_epi32(_mm256_set1_epi32(n), idx)
+  }
+
+  //
+  // Sign extends 32 8-bit values to 4 vectors of 8 floats each
+  //
+  def cvtepi8_ps (q: Rep[__m256i]): List[Rep[__m256]] =
+  {
+    import QVector.IR.ImplicitLift._
+    val lo = _mm256_castsi256_si128(q)
+    val hi = _mm256_extracti128_si256(q, 1)
+    List(lo, _mm_srli_si128(lo, 8), hi, _mm_srli_si128(hi, 8)).map { x =>
+      _mm256_cvtepi32_ps(_mm256_cvtepi8_epi32(x))
+    }
+  }
+
+  //
+  // Packs 4 vectors of 8 32-bit integers into 32 8-bit integers with
+  // signed saturation, preserving the order of the elements
+  //
+  def packs_epi32_epi8 (q: List[Rep[__m256i]]): Rep[__m256i] =
+  {
+    import QVector.IR.ImplicitLift._
+    val q16_1 = _mm256_packs_epi32(q(0), q(1))
+    val q16_2 = _mm256_packs_epi32(q(2), q(3))
+    val q8    = _mm256_packs_epi16(q16_1, q16_2)
+    //
+    // The packs instructions work within 128-bit lanes, restore the order
+    //
+    _mm256_permutevar8x32_epi32(q8, _mm256_setr_epi32(0, 4, 1, 5, 2, 6, 3, 7))
+  }
+
   //
   // For a given array, take the absolute value of each element
-  // and return the maximum element.
+  // and return the maximum element. Chunks of the array are
+  // processed in parallel, and the partial maximums combined.
   //
   def abs_max (v: Rep[Array[Float]], n0: Rep[Int]): Rep[Float] =
+  {
+    import QVector.IR.ImplicitLift._
+    val zero = unit(0.0f)
+    parallel_reduce[Float](0, n0, 32, Parallelism.grain, zero,
+      (lo, hi) => abs_max(v, lo, hi),
+      (a, b) => Math.max(a, b)
+    )
+  }
+
+  //
+  // Absolute maximum of the elements in the range [n, n0)
+  //
+  def abs_max (v: Rep[Array[Float]], n: Rep[Int], n0: Rep[Int]): Rep[Float] =
   {
     import QVector.IR.ImplicitLift._
 
     val first_bit_zero_32 = _mm256_castsi256_ps(_mm256_set1_epi32  (0x7FFFFFFF))
-    val n1 = (n0 >> 5) << 5
+    val n1 = n + (((n0 - n) >> 5) << 5)
 
     //
     // Initialize accumulators
@@ -53,7 +233,7 @@ abstract class QVector (val bits: Int, val size: Int) {
     //
     // Perform the main loop
     //
-    forloop(0, n1, fresh[Int], 32, (i: Rep[Int]) =>
+    forloop(n, n1, fresh[Int], 32, (i: Rep[Int]) =>
     {
       val v1 = _mm256_loadu_ps(v, i + 0)
       val v2 = _mm256_loadu_ps(v, i + 8)
@@ -101,6 +281,88 @@ abstract class QVector (val bits: Int, val size: Int) {
     readVar(absMax)
   }
 
+  //
+  // Inserts (i, score) into the list of the k best candidates starting at
+  // base, kept in decreasing order of their scores
+  //
+  def topk_insert (
+    ix    : Rep[HeapArray[Int]],
+    sc    : Rep[HeapArray[Float]],
+    base  : Rep[Int],
+    k     : Rep[Int],
+    i     : Rep[Int],
+    score : Rep[Float]
+  ): Rep[Unit] =
+  {
+    import QVector.IR.ImplicitLift._
+
+    if (score > heap_array_apply(sc, base + k - 1)) {
+      //
+      // The list is sorted, so the position is the number of better candidates
+      //
+      var pos = 0
+      forloop(0, k, fresh[Int], 1, (j: Rep[Int]) => {
+        if (heap_array_apply(sc, base + j) >= score) pos += 1
+      })
+      val p = readVar(pos)
+      forloop(0, k - 1 - p, fresh[Int], 1, (j: Rep[Int]) => {
+        val dst = base + k - 1 - j
+        heap_array_update(sc, dst, heap_array_apply(sc, dst - 1))
+        heap_array_update(ix, dst, heap_array_apply(ix, dst - 1))
+      })
+      heap_array_update(sc, base + p, score)
+      heap_array_update(ix, base + p, i)
+    }
+  }
+
+  //
+  // Scores the n candidates with score(i), and stores the indices and the
+  // scores of the k best candidates in idx and scores, in decreasing order
+  // of the scores. Missing candidates, when n < k, have the index -1. Each
+  // thread keeps the best candidates of its chunk, and the per-thread lists
+  // are merged once all the threads have finished.
+  //
+  def topk_scan (
+    n      : Rep[Int],
+    k      : Rep[Int],
+    score  : Rep[Int] => Rep[Float],
+    idx    : Rep[Array[Int]],
+    scores : Rep[Array[Float]]
+  ): Rep[Unit] =
+  {
+    import QVector.IR.ImplicitLift._
+
+    val threads = parallel_threads()
+
+    val ix = heap_array_new[Int]()
+    val sc = heap_array_new[Float]()
+    heap_array_alloc[Int, Int](ix, k * threads)
+    heap_array_alloc[Float, Float](sc, k * threads)
+
+    forloop(0, k * threads, fresh[Int], 1, (j: Rep[Int]) => {
+      heap_array_update(ix, j, unit(-1))
+      heap_array_update(sc, j, unit(-Float.MaxValue))
+    })
+
+    parallel_chunks(0, n, 1, 64, (tid, lo, hi) => {
+      forloop(lo, hi, fresh[Int], 1, (i: Rep[Int]) => {
+        topk_insert(ix, sc, tid * k, k, i, score(i))
+      })
+    })
+
+    forloop(k, k * threads, fresh[Int], 1, (j: Rep[Int]) => {
+      topk_insert(ix, sc, 0, k, heap_array_apply(ix, j), heap_array_apply(sc, j))
+    })
+
+    forloop(0, k, fresh[Int], 1, (j: Rep[Int]) => {
+      idx(j)    = heap_array_apply(ix, j)
+      scores(j) = heap_array_apply(sc, j)
+    })
+
+    heap_array_free(ix)
+    heap_array_free(sc)
+  }
+
   //
   // Performs horizontal sum i.e. reduction
   //
@@ -114,6 +376,9 @@ abstract class QVector (val bits: Int, val size: Int) {
     _mm_cvtss_f32(x32)
   }
 
+}
+
+abstract class QVector (val bits: Int, val size: Int) extends QStaging {
 
   val size_pad: Int
 
@@ -190,16 +190,34 @@ class QVector16 (s: Int) extends QVector(16, s) {
 
   def dot(other: QVector16) : Float = {
     assert(other.size == size)
-    dotNative(this.values, other.values, size_pad)
+    val kernel = dotSpecialized(size_pad)
+    if (kernel != 0) dotDispatch(kernel, this.values, other.values, size_pad)
+    else dotNative(this.values, other.values, size_pad)
   }
+  //
+  // Dot product with a quantized vector of the same size stored off-heap at
+  // the given address, such as a record of a memory-mapped QVectorFile
+  //
+  def dot(address: Long) : Float = dotMappedNative(this.values, address, size_pad)
+
   def quantize (input  : Array[Float]) : Unit = quantizeNative(input, values, size)
   def restore  (output : Array[Float]) : Unit = restoreNative (values, output, size)
 
   @native def dotNative      (u: Array[Short], r: Array[Short], n0: Int): Float
+  @native def dotMappedNative(u: Array[Short], v: Long        , n0: Int): Float
   @native def quantizeNative (u: Array[Float], r: Array[Short], n0: Int): Unit
   @native def restoreNative  (u: Array[Short], r: Array[Float], n0: Int): Unit
 
-  compile(quantize_staged _, this, nameOf(quantizeNative _))
-  compile(restore_staged  _, this, nameOf(restoreNative  _))
-  compile(dot_staged      _, this, nameOf(dotNative  _))
+  // Versions of dot specialized for the hot sizes n0, see CIR.specialize
+  @native def dotDispatch    (kernel: Long, u: Array[Short], r: Array[Short], n0: Int): Float
+
+  val dotSpecialized = specialize(dot_staged _, this, nameOf(dotNative _), 2)
+
+  compileUnit(this) {
+    compile(quantize_staged _, this, nameOf(quantizeNative _))
+    compile(restore_staged  _, this, nameOf(restoreNative  _))
+    compile(dot_staged      _, this, nameOf(dotNative  _))
+    compile(dot_staged      _, this, nameOf(dotMappedNative _))
+    compileDispatch(dot_staged _, this, nameOf(dotDispatch _))
+  }
 }
@@ -1,5 +1,6 @@
 package ch.ethz.acl.ngen.precison
 
+import ch.ethz.acl.commons.cir.{TuningSpace, TuningVariant}
 import com.github.dwickern.macros.NameOf._
 
 
@@ -9,40 +10,36 @@ class QVector32(s: Int) extends QVector(32, s) {
   val values = new Array[Float](size)
   val size_pad = size
 
-  def dot_staged(u: Rep[Array[Float]], v: Rep[Array[Float]], n0: Rep[Int]): Rep[Float] = {
+  def dot_staged(variant: TuningVariant)(u: Rep[Array[Float]], v: Rep[Array[Float]], n0: Rep[Int]): Rep[Float] = {
 
     import QVector.IR.ImplicitLift._
-    val n1 = (n0 >> 5) << 5
 
-    var acc1 = _mm256_setzero_ps()
-    var acc2 = _mm256_setzero_ps()
-    var acc3 = _mm256_setzero_ps()
-    var acc4 = _mm256_setzero_ps()
+    val accs   = variant("acc")
+    val stride = 8 * accs
 
-    forloop(0, n1, fresh[Int], 32, (i: Rep[Int]) =>
+    val n1 = (n0 / stride) * stride
+
+    val acc = List.fill(accs)(var_new(_mm256_setzero_ps()))
+
+    forloop(0, n1, fresh[Int], stride, (i: Rep[Int]) =>
     {
-      val v1 = _mm256_loadu_ps(v, i + 0)
-      val v2 = _mm256_loadu_ps(v, i + 8)
-      val v3 = _mm256_loadu_ps(v, i + 16)
-      val v4 = _mm256_loadu_ps(v, i + 24)
-
-      val u1 = _mm256_loadu_ps(u, i + 0)
-      val u2 = _mm256_loadu_ps(u, i + 8)
-      val u3 = _mm256_loadu_ps(u, i + 16)
-      val u4 = _mm256_loadu_ps(u, i + 24)
-
-      acc1 = _mm256_fmadd_ps(v1, u1, acc1)
-      acc2 = _mm256_fmadd_ps(v2, u2, acc2)
-      acc3 = _mm256_fmadd_ps(v3, u3, acc3)
-      acc4 = _mm256_fmadd_ps(v4, u4, acc4)
+      acc.zipWithIndex.foreach { case (a, k) =>
+        val vk = _mm256_loadu_ps(v, i + 8 * k)
+        val uk = _mm256_loadu_ps(u, i + 8 * k)
+        var_assign(a, _mm256_fmadd_ps(vk, uk, readVar(a)))
+      }
     })
 
-    // add the accumulators
-    val tmp1 = _mm256_add_ps(acc1, acc2)
-    val tmp2 = _mm256_add_ps(acc3, acc4)
-    val tmp3 = _mm256_add_ps(tmp1, tmp2)
+    // add the accumulators pairwise
+    def sum (xs: List[Rep[__m256]]): Rep[__m256] = xs match {
+      case x :: Nil => x
+      case _ => sum(xs.grouped(2).map {
+        case List(a, b) => _mm256_add_ps(a, b)
+        case List(a)    => a
+      }.toList)
+    }
 
-    var result = reduce_sum(tmp3)
+    var result = reduce_sum(sum(acc.map(a => readVar(a))))
 
     forloop(n1, n0, fresh[Int], 1, (i: Rep[Int]) => {
       result += u(i) * v(i)
@@ -59,7 +56,13 @@ class QVector32(s: Int) extends QVector(32, s) {
   def restore  (output : Array[Float]) : Unit = values.copyToArray(output)
 
   @native def dotNative      (u: Array[Float], r: Array[Float], n0: Int): Float
-  compile(dot_staged      _, this, nameOf(dotNative  _))
+  val space   = TuningSpace(List("acc" -> List(4, 1, 2, 8)))
+  compileUnit(this) {
+    autotune(dot_staged _, this, nameOf(dotNative _), space, {
+      val n = 65536
+      Seq(Array.fill(n)(1.0f), Array.fill(n)(1.0f), n)
+    })
+  }
 
 
   def print(): Unit = {
@@ -1,5 +1,8 @@
 package ch.ethz.acl.ngen.precison
 
+import java.nio.ByteBuffer
+
+import ch.ethz.acl.commons.extensions.Parallelism
 import ch.ethz.acl.passera.unsigned.{UByte, UInt}
 import com.github.dwickern.macros.NameOf.nameOf
 
@@ -25,6 +28,196 @@ class QVector4(s: Int) extends QVector(4, s) {
 
     import QVector.IR.ImplicitLift._
 
+    val sum = QVector4.dot_range(u_short, v_short, 0, 0, n0)
+
+    sum * su * sv
+  }
+
+  def quantize_staged (u: Rep[Array[Float]], r_imm: Rep[Array[UByte]], n0: Rep[Int], seed: Rep[Int]): Rep[Float] = {
+
+    import QVector.IR.ImplicitLift._
+    val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[UByte]]])
+
+    val absMax = abs_max(u, n0)
+    val rs     = random_seed(seed)
+
+    stream_blocks(n0, (lo, hi, stream) => {
+      QVector4.quantize_row(u, r, lo, lo >> 1, hi - lo, absMax, rs, stream)
+    })
+
+    absMax / 7.0f
+  }
+
+  def restore_staged (u_short: Rep[Array[Byte]], r_imm: Rep[Array[Float]], s: Rep[Float], n0: Rep[Int]): Rep[Unit] =
+  {
+    import QVector.IR.ImplicitLift._
+    val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[Float]]])
+    val u = u_short.asInstanceOf[Exp[Array[__m256i]]]
+
+    val base_mask = _mm256_set1_epi8(0x07.toByte)
+    val sign_mask = _mm256_set1_epi8(0x08.toByte)
+    val nibble    = _mm256_set1_epi8(0x0F.toByte)
+    val ymm_scale = _mm256_set1_ps(s)
+
+    //
+    // Unpacks 64 quantized values into 8 vectors of 8 restored values
+    //
+    def unpack (i0: Rep[Int]): List[Rep[__m256]] = {
+      val packed = _mm256_loadu_si256(u, i0)
+      val q_hi   = _mm256_and_si256(_mm256_srli_epi16(packed, 4), nibble)
+      val q_lo   = _mm256_and_si256(packed, nibble)
+      //
+      // Interleave the pairs, and restore the order across the 128-bit lanes
+      //
+      val q_1    = _mm256_unpacklo_epi8(q_hi, q_lo)
+      val q_2    = _mm256_unpackhi_epi8(q_hi, q_lo)
+      val q_ab   = List(_mm256_permute2x128_si256(q_1, q_2, 0x20), _mm256_permute2x128_si256(q_1, q_2, 0x31))
+      q_ab.flatMap { q =>
+        val base = _mm256_and_si256(q, base_mask)
+        val neg  = _mm256_cmpeq_epi8(_mm256_and_si256(q, sign_mask), sign_mask)
+        cvtepi8_ps(_mm256_sub_epi8(_mm256_xor_si256(base, neg), neg))
+      }.map(f => _mm256_mul_ps(f, ymm_scale))
+    }
+
+    parallel_chunks(0, n0, 128, Parallelism.grain, (tid, lo, hi) => {
+
+      val n1 = lo + (((hi - lo) >> 6) << 6)
+
+      forloop(lo, n1, fresh[Int], 64, (i: Rep[Int]) => {
+        unpack(i >> 1).zipWithIndex.foreach { case (f, k) =>
+          _mm256_storeu_ps(r, f, i + 8 * k)
+        }
+      })
+
+      if (n1 < hi) {
+        val rem = hi - n1
+        unpack(n1 >> 1).zipWithIndex.foreach { case (f, k) =>
+          _mm256_maskstore_ps(r, tail_mask(rem, 8 * k), f, n1 + 8 * k)
+        }
+        unit(())
+      }
+    })
+  }
+
+  //
+  // Scores each of the n vectors of x, with dims = (n, k, stride, scale stride,
+  // n0), against the query q of n0 padded elements. The i-th vector starts at
+  // the byte offset i * stride in x, and its scale is s(i * scale stride). The
+  // k best candidates are returned in idx and score, without the scale of q.
+  //
+  def topk_staged (
+    q         : Rep[Array[Byte]],
+    x         : Rep[Array[Byte]],
+    s         : Rep[Array[Float]],
+    dims      : Rep[Array[Int]],
+    idx_imm   : Rep[Array[Int]],
+    score_imm : Rep[Array[Float]]
+  ): Rep[Unit] = {
+
+    import QVector.IR.ImplicitLift._
+    val idx   = reflectMutableSym(idx_imm.asInstanceOf[Sym[Array[Int]]])
+    val score = reflectMutableSym(score_imm.asInstanceOf[Sym[Array[Float]]])
+
+    val n       = dims(0)
+    val k       = dims(1)
+    val stride  = dims(2)
+    val sstride = dims(3)
+    val n0      = dims(4)
+
+    topk_scan(n, k, i => QVector4.dot_range(q, x, i * stride, 0, n0) * s(i * sstride), idx, score)
+  }
+
+  def dot(other: QVector4) : Float = {
+    assert(other.size == size)
+    dotNative(this.values, other.values, this.scale, other.scale, size_pad)
+  }
+
+  //
+  // Dot product with a quantized vector of the same size stored off-heap at
+  // the given address, such as a record of a memory-mapped QVectorFile
+  //
+  def dot(address: Long, scale: Float) : Float = {
+    dotMappedNative(this.values, address, this.scale, scale, size_pad)
+  }
+
+  //
+  // The k vectors of m with the largest dot products with this vector, as
+  // (row, score) pairs in decreasing order of the scores. The whole scan
+  // is a single native call.
+  //
+  def topk(m: QMatrix4, k: Int) : Array[(Long, Float)] = {
+    assert(m.cols == size && k > 0)
+    topkScan(k, (idx, score) => topkNative(values, m.values, m.scale, Array(m.rows, k, m.cols_pad / 2, 1, size_pad), idx, score))
+  }
+
+  //
+  // The k vectors of a memory-mapped file with the largest dot products with
+  // this vector, scanning each mapped segment in place with a single native call
+  //
+  def topk(file: QVectorFile, k: Int) : Array[(Long, Float)] = {
+    assert(file.bits == bits && file.size == size && k > 0)
+    val record = QVectorFile.recordBytes(bits, file.size_pad)
+    file.blocks.flatMap { case (first, n, records, payloads) =>
+      val dims = Array(n, k, record, record / 4, size_pad)
+      topkScan(k, (idx, score) => topkMappedNative(values, payloads, records, dims, idx, score))
+        .map { case (i, s) => (first + i, s) }
+    }.sortBy(-_._2).take(k).toArray
+  }
+
+  private def topkScan(k: Int, scan: (Array[Int], Array[Float]) => Unit) : Array[(Long, Float)] = {
+    val idx   = new Array[Int](k)
+    val score = new Array[Float](k)
+    scan(idx, score)
+    idx.zip(score).takeWhile(_._1 >= 0).map { case (i, s) => (i.toLong, s * scale) }
+  }
+
+  def quantize (input  : Array[Float]) : Unit = quantize(input, QVector.seed)
+
+  //
+  // Quantizes with the given seed of the stochastic rounding, where 0
+  // stands for a RDSEED generated seed
+  //
+  def quantize (input  : Array[Float], seed: Int) : Unit = {
+    scale = quantizeNative(input, values, size, seed)
+  }
+  def restore  (output : Array[Float]) : Unit = restoreNative (values, output, scale, size)
+
+  @native def dotNative      (u: Array[Byte] , r: Array[Byte] , su_ss: Float, sv_ss: Float, n0: Int): Float
+  @native def dotMappedNative(u: Array[Byte] , v: Long        , su_ss: Float, sv_ss: Float, n0: Int): Float
+  @native def topkNative      (q: Array[Byte], x: Array[Byte], s: Array[Float], dims: Array[Int], idx: Array[Int], score: Array[Float]): Unit
+  @native def topkMappedNative(q: Array[Byte], x: ByteBuffer , s: ByteBuffer  , dims: Array[Int], idx: Array[Int], score: Array[Float]): Unit
+  @native def quantizeNative (u: Array[Float], r: Array[Byte] , n0: Int, seed: Int): Float
+  @native def restoreNative  (u: Array[Byte] , r: Array[Float], s: Float, n0: Int): Unit
+
+  compileUnit(this) {
+    compile(quantize_staged _, this, nameOf(quantizeNative _))
+    compile(restore_staged  _, this, nameOf(restoreNative  _))
+    compile(dot_staged      _, this, nameOf(dotNative  _))
+    compile(dot_staged      _, this, nameOf(dotMappedNative _))
+    compile(topk_staged     _, this, nameOf(topkNative _))
+    compile(topk_staged     _, this, nameOf(topkMappedNative _))
+  }
+
+}
+
+object QVector4 extends QStaging {
+
+  import QVector.IR._
+
+  //
+  // Unscaled dot product of the elements [lo, hi) of u, with the elements
+  // [lo, hi) of v starting at the byte offset voff
+  //
+  def dot_range (
+    u_short : Rep[Array[Byte]],
+    v_short : Rep[Array[Byte]],
+    voff    : Rep[Int],
+    lo      : Rep[Int],
+    hi      : Rep[Int]
+  ): Rep[Float] = {
+
+    import QVector.IR.ImplicitLift._
+
     val u  = u_short.asInstanceOf[Exp[Array[__m256i]]]
     val v  = v_short.asInstanceOf[Exp[Array[__m256i]]]
 
@@ -35,7 +228,7 @@ class QVector4(s: Int) extends QVector(4, s) {
 
     var acc                 = _mm256_setzero_ps();
 
-    forloop(0, n0, fresh[Int], 128, (idx: Rep[Int]) =>
+    forloop(lo, hi, fresh[Int], 128, (idx: Rep[Int]) =>
     {
       val i0 = idx >> 1
       val i1 = i0 + 32
@@ -46,8 +239,8 @@ class QVector4(s: Int) extends QVector(4, s) {
       //
       val uq_packed_8bit_1  = _mm256_loadu_si256(u, i0)
       val uq_packed_8bit_2  = _mm256_loadu_si256(u, i1)
-      val vq_packed_8bit_1  = _mm256_loadu_si256(v, i0)
-      val vq_packed_8bit_2  = _mm256_loadu_si256(v, i1)
+      val vq_packed_8bit_1  = _mm256_loadu_si256(v, voff + i0)
+      val vq_packed_8bit_2  = _mm256_loadu_si256(v, voff + i1)
       //
       // The sign bits have corresponding places, so we can use that. The signs are
       // either 1 or 0, 1 being negative, and 0 being positive. Since the dot represents
@@ -109,7 +302,7 @@ class QVector4(s: Int) extends QVector(4, s) {
       acc = _mm256_add_ps(acc, q_ps);
     })
 
-    reduce_sum(acc) * su * sv
+    reduce_sum(acc)
   }
 
   def indicator (x: Rep[Float]): Rep[UByte] = {
@@ -118,97 +311,154 @@ class QVector4(s: Int) extends QVector(4, s) {
     infix_cast[UByte](cond)
   }
 
-    def quantize_staged (u: Rep[Array[Float]], r_imm: Rep[Array[UByte]], n0: Rep[Int]): Rep[Float] = {
-
-      import QVector.IR.ImplicitLift._
-      val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[UByte]]])
+  //
+  // Quantizes the n0 elements of u starting at uoff into pairs of 4-bit values,
+  // stored in r starting at byte roff, given the absolute maximum of these
+  // elements. Shared by QVector4 and the rows of QMatrix4. With xorshift
+  // rounding, the random numbers are drawn from the given stream of the
+  // generator, and 64 elements are rounded and packed at a time. Elements
+  // past n0 are read as zeros, so a partial block fills the rest of its 32
+  // bytes with zeros, i.e. with padding.
+  //
+  def quantize_row (
+    u      : Rep[Array[Float]],
+    r      : Rep[Array[UByte]],
+    uoff   : Rep[Int],
+    roff   : Rep[Int],
+    n0     : Rep[Int],
+    absMax : Rep[Float],
+    seed   : Rep[Int],
+    stream : Rep[Int]
+  ): Rep[Unit] = QVector.rounding match {
+    case Rounding.RDRAND   => quantize_row_RDRAND  (u, r, uoff, roff, n0, absMax)
+    case Rounding.XorShift => quantize_row_xorshift(u, r, uoff, roff, n0, absMax, seed, stream)
+  }
 
-      val hazy_first_bit_zero_32 = infix_cast[UInt](0x7FFFFFEF)
-      val hazy_first_bit_one_32 = infix_cast[UInt](1) << UInt(31)
+  def quantize_row_xorshift (
+    u      : Rep[Array[Float]],
+    r      : Rep[Array[UByte]],
+    uoff   : Rep[Int],
+    roff   : Rep[Int],
+    n0     : Rep[Int],
+    absMax : Rep[Float],
+    seed   : Rep[Int],
+    stream : Rep[Int]
+  ): Rep[Unit] = {
 
-      val absMax = abs_max(u, n0)
-      val scaled_rcp_max = 7.0f / absMax
+    import QVector.IR.ImplicitLift._
 
-      val n1 = (n0 >> 1) << 1
+    val rq  = r.asInstanceOf[Exp[Array[__m256i]]]
+    val rng = xorshift_new(seed, stream, 4)
+
+    val ymm_scale = _mm256_set1_ps(7.0f / absMax)
+    val abs_mask  = _mm256_castsi256_ps(_mm256_set1_epi32(0x7FFFFFFF))
+    val sign_bit  = _mm256_set1_epi32(0x08)
+    val nibble_hi = _mm256_set1_epi16(0x00F0.toShort)
+
+    //
+    // Rounds 8 vectors of 8 elements, into 4-bit values made of a sign
+    // bit followed by 3 bits of base, and packs them in pairs
+    //
+    def round (x: List[Rep[__m256]]): Rep[__m256i] = {
+      val q = x.zipWithIndex.map { case (xk, k) =>
+        val x_abs = _mm256_and_ps(xk, abs_mask)
+        val base  = _mm256_cvtps_epi32(_mm256_floor_ps(_mm256_fmadd_ps(x_abs, ymm_scale, xorshift_next(rng(k % 4)))))
+        val sign  = _mm256_and_si256(_mm256_srli_epi32(_mm256_castps_si256(xk), 28), sign_bit)
+        _mm256_or_si256(base, sign)
+      }
+      //
+      // One byte per value, then each 16-bit word holds a pair, the first
+      // value of the pair goes into the upper 4 bits of the packed byte
+      //
+      val pairs = List(packs_epi32_epi8(q.take(4)), packs_epi32_epi8(q.drop(4))).map { b =>
+        _mm256_or_si256(_mm256_and_si256(_mm256_slli_epi16(b, 4), nibble_hi), _mm256_srli_epi16(b, 8))
+      }
+      _mm256_permute4x64_epi64(_mm256_packus_epi16(pairs(0), pairs(1)), 0xD8)
+    }
 
-      forloop(0, n1, fresh[Int], 2, (i: Rep[Int]) =>
-      {
-        val val1 = u(i + 0)
-        val val2 = u(i + 1)
+    val n1 = (n0 >> 6) << 6
 
-        val signbit1 = infix_cast[UByte]( (hazy_first_bit_one_32 & reinterpret_cast[UInt](val1)) >> UInt(24) )
-        val signbit2 = infix_cast[UByte]( (hazy_first_bit_one_32 & reinterpret_cast[UInt](val2)) >> UInt(28) )
+    forloop(0, n1, fresh[Int], 64, (i: Rep[Int]) => {
+      val x = List.tabulate(8)(k => _mm256_loadu_ps(u, uoff + i + 8 * k))
+      _mm256_storeu_si256(rq, round(x), roff + (i >> 1))
+    })
 
-        val signmask = signbit1 | signbit2
+    if (n1 < n0) {
+      val rem = n0 - n1
+      val x = List.tabulate(8)(k => _mm256_maskload_ps(u, tail_mask(rem, 8 * k), uoff + n1 + 8 * k))
+      _mm256_storeu_si256(rq, round(x), roff + (n1 >> 1))
+    }
+  }
 
-        val u_value_abs1 = hazy_first_bit_zero_32 & reinterpret_cast[UInt](val1)
-        val u_value_abs2 = hazy_first_bit_zero_32 & reinterpret_cast[UInt](val2)
+  def quantize_row_RDRAND (
+    u      : Rep[Array[Float]],
+    r      : Rep[Array[UByte]],
+    uoff   : Rep[Int],
+    roff   : Rep[Int],
+    n0     : Rep[Int],
+    absMax : Rep[Float]
+  ): Rep[Unit] = {
 
-        val value_abs1 = reinterpret_cast[Float](u_value_abs1)
-        val value_abs2 = reinterpret_cast[Float](u_value_abs2)
+    import QVector.IR.ImplicitLift._
 
-        val projected_value1 = value_abs1 * scaled_rcp_max
-        val projected_value2 = value_abs2 * scaled_rcp_max
+    val hazy_first_bit_zero_32 = infix_cast[UInt](0x7FFFFFEF)
+    val hazy_first_bit_one_32 = infix_cast[UInt](1) << UInt(31)
 
-        val L1 = Math.floor (projected_value1)
-        val L2 = Math.floor (projected_value2)
+    val scaled_rcp_max = 7.0f / absMax
 
-        val probability1 = projected_value1 - L1
-        val probability2 = projected_value2 - L2
+    val n1 = (n0 >> 1) << 1
 
-        val ind1 = indicator(probability1)
-        val ind2 = indicator(probability2)
+    forloop(0, n1, fresh[Int], 2, (i: Rep[Int]) =>
+    {
+      val val1 = u(uoff + i + 0)
+      val val2 = u(uoff + i + 1)
 
-        val qval1 = ind1 + infix_cast[UByte](L1)
-        val qval2 = ind2 + infix_cast[UByte](L2)
+      val signbit1 = infix_cast[UByte]( (hazy_first_bit_one_32 & reinterpret_cast[UInt](val1)) >> UInt(24) )
+      val signbit2 = infix_cast[UByte]( (hazy_first_bit_one_32 & reinterpret_cast[UInt](val2)) >> UInt(28) )
 
-        r(i >> 1) = ((qval1 << UByte(4)) | qval2) | signmask
-      })
+      val signmask = signbit1 | signbit2
 
-      if (n0 % 2 > 0)
-      {
-        val val1 = u(n1)
+      val u_value_abs1 = hazy_first_bit_zero_32 & reinterpret_cast[UInt](val1)
+      val u_value_abs2 = hazy_first_bit_zero_32 & reinterpret_cast[UInt](val2)
 
-        val signbit1 = infix_cast[UByte]( (hazy_first_bit_one_32 & reinterpret_cast[UInt](val1)) >> UInt(24) )
-        val signmask = signbit1
+      val value_abs1 = reinterpret_cast[Float](u_value_abs1)
+      val value_abs2 = reinterpret_cast[Float](u_value_abs2)
 
-        val u_value_abs1 = hazy_first_bit_zero_32 & reinterpret_cast[UInt](val1)
-        val value_abs1 = reinterpret_cast[Float](u_value_abs1)
-        val projected_value1 = value_abs1 * scaled_rcp_max
+      val projected_value1 = value_abs1 * scaled_rcp_max
+      val projected_value2 = value_abs2 * scaled_rcp_max
 
-        val L1 = Math.floor (projected_value1)
-        val probability1 = projected_value1 - L1
-        val ind1 = indicator(probability1)
-        val qval1 = ind1 + infix_cast[UByte](L1)
+      val L1 = Math.floor (projected_value1)
+      val L2 = Math.floor (projected_value2)
 
-        r(n1 >> 1) = ((qval1 << UByte(4)) | UByte(0)) | signmask
-      }
+      val probability1 = projected_value1 - L1
+      val probability2 = projected_value2 - L2
 
-      absMax / 7.0f
-    }
+      val ind1 = indicator(probability1)
+      val ind2 = indicator(probability2)
 
+      val qval1 = ind1 + infix_cast[UByte](L1)
+      val qval2 = ind2 + infix_cast[UByte](L2)
 
-  def restore_staged (u: Rep[Array[Byte]], r_imm: Rep[Array[Float]], n0: Rep[Int]): Rep[Unit] =
-  {
-    // no implementation required for now
-  }
+      r(roff + (i >> 1)) = ((qval1 << UByte(4)) | qval2) | signmask
+    })
 
-  def dot(other: QVector4) : Float = {
-    assert(other.size == size)
-    dotNative(this.values, other.values, this.scale, other.scale, size_pad)
-  }
+    if (n0 % 2 > 0)
+    {
+      val val1 = u(uoff + n1)
 
-  def quantize (input  : Array[Float]) : Unit = {
-    scale = quantizeNative(input, values, size)
-  }
-  def restore  (output : Array[Float]) : Unit = restoreNative (values, output, size)
+      val signbit1 = infix_cast[UByte]( (hazy_first_bit_one_32 & reinterpret_cast[UInt](val1)) >> UInt(24) )
+      val signmask = signbit1
 
-  @native def dotNative      (u: Array[Byte] , r: Array[Byte] , su_ss: Float, sv_ss: Float, n0: Int): Float
-  @native def quantizeNative (u: Array[Float], r: Array[Byte] , n0: Int): Float
-  @native def restoreNative  (u: Array[Byte] , r: Array[Float], n0: Int): Unit
+      val u_value_abs1 = hazy_first_bit_zero_32 & reinterpret_cast[UInt](val1)
+      val value_abs1 = reinterpret_cast[Float](u_value_abs1)
+      val projected_value1 = value_abs1 * scaled_rcp_max
 
-  compile(quantize_staged _, this, nameOf(quantizeNative _))
-  compile(restore_staged  _, this, nameOf(restoreNative  _))
-  compile(dot_staged      _, this, nameOf(dotNative  _))
+      val L1 = Math.floor (projected_value1)
+      val probability1 = projected_value1 - L1
+      val ind1 = indicator(probability1)
+      val qval1 = ind1 + infix_cast[UByte](L1)
 
+      r(roff + (n1 >> 1)) = ((qval1 << UByte(4)) | UByte(0)) | signmask
+    }
+  }
 }
@@ -1,5 +1,8 @@
 package ch.ethz.acl.ngen.precison
 
+import java.nio.ByteBuffer
+
+import ch.ethz.acl.commons.extensions.Parallelism
 import ch.ethz.acl.passera.unsigned.{UByte, UInt}
 import com.github.dwickern.macros.NameOf._
 
@@ -29,63 +32,177 @@ class QVector8 (s: Int) extends QVector(8, s){
 
     import QVector.IR.ImplicitLift._
 
-    val u  = u_short.asInstanceOf[Exp[Array[__m256i]]]
-    val v  = v_short.asInstanceOf[Exp[Array[__m256i]]]
-
-    val ymm_ones_16bit = _mm256_set1_epi16(1.toShort)
-    var ymm_sum        = _mm256_setzero_ps()
+    val sum = QVector8.dot_range(u_short, v_short, 0, 0, n0)
 
-    forloop(0, n0, fresh[Int], 32, (i: Rep[Int]) => // 1 cache line per 5 cycle throughput. Looks OK
-    {
-      val qu = _mm256_loadu_si256(u, i)
-      val qv = _mm256_loadu_si256(v, i)
-      val qv_sgn = _mm256_sign_epi8(qv, qu)               // 1-latency 0.5-throughput
-      val qu_abs = _mm256_abs_epi8(qu);                   // 1-latency
-      val ymm1 = _mm256_maddubs_epi16(qu_abs, qv_sgn);    // 5-latency 1-throughput
-      val ymm2 = _mm256_madd_epi16(ymm1, ymm_ones_16bit); // 5-latency 1-throughput
-      val ymm3 = _mm256_cvtepi32_ps(ymm2);                // 3-latency 1-throughput
-      ymm_sum = _mm256_add_ps(ymm_sum, ymm3);             // 3-latency 1-throughput
-    })
-
-    reduce_sum(ymm_sum) * su_ss * sv_ss
+    sum * su_ss * sv_ss
   }
 
-  def quantize_staged (u: Rep[Array[Float]], r_imm: Rep[Array[Byte]], n0: Rep[Int]): Rep[Float] = {
+  def quantize_staged (u: Rep[Array[Float]], r_imm: Rep[Array[Byte]], n0: Rep[Int], seed: Rep[Int]): Rep[Float] = {
 
     import QVector.IR.ImplicitLift._
     val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[Byte]]])
 
     val max = abs_max(u, n0)
-    val s = 127.0f / max
-    forloop(0, n0, fresh[Int], 1, (i: Rep[Int]) => {
-       val rnd = random_float_RDRAND()
-      r(i) = infix_cast[Byte](Math.floor(s * u(i) + rnd))
+    val rs  = random_seed(seed)
+
+    stream_blocks(n0, (lo, hi, stream) => {
+      QVector8.quantize_row(u, r, lo, lo, hi - lo, max, rs, stream)
     })
+
     max / 127.0f
   }
 
-  def restore_staged (u: Rep[Array[Byte]], r_imm: Rep[Array[Float]], n0: Rep[Int]): Rep[Unit] =
+  def restore_staged (u_short: Rep[Array[Byte]], r_imm: Rep[Array[Float]], s: Rep[Float], n0: Rep[Int]): Rep[Unit] =
   {
-    // no implementation provided
+    import QVector.IR.ImplicitLift._
+    val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[Float]]])
+    val u = u_short.asInstanceOf[Exp[Array[__m256i]]]
+
+    val ymm_scale = _mm256_set1_ps(s)
+
+    parallel_chunks(0, n0, 32, Parallelism.grain, (tid, lo, hi) => {
+
+      val n1 = lo + (((hi - lo) >> 5) << 5)
+
+      forloop(lo, n1, fresh[Int], 32, (i: Rep[Int]) => {
+        cvtepi8_ps(_mm256_loadu_si256(u, i)).zipWithIndex.foreach { case (f, k) =>
+          _mm256_storeu_ps(r, _mm256_mul_ps(f, ymm_scale), i + 8 * k)
+        }
+      })
+      //
+      // The padding of the quantized values can be read, but only the
+      // first n0 restored values are stored
+      //
+      if (n1 < hi) {
+        val rem = hi - n1
+        cvtepi8_ps(_mm256_loadu_si256(u, n1)).zipWithIndex.foreach { case (f, k) =>
+          _mm256_maskstore_ps(r, tail_mask(rem, 8 * k), _mm256_mul_ps(f, ymm_scale), n1 + 8 * k)
+        }
+        unit(())
+      }
+    })
   }
 
- def dot(other: QVector8) : Float = {
+  //
+  // Scores each of the n vectors of x, with dims = (n, k, stride, scale stride,
+  // n0), against the query q of n0 padded elements. The i-th vector starts at
+  // the byte offset i * stride in x, and its scale is s(i * scale stride). The
+  // k best candidates are returned in idx and score, without the scale of q.
+  //
+  def topk_staged (
+    q         : Rep[Array[Byte]],
+    x         : Rep[Array[Byte]],
+    s         : Rep[Array[Float]],
+    dims      : Rep[Array[Int]],
+    idx_imm   : Rep[Array[Int]],
+    score_imm : Rep[Array[Float]]
+  ): Rep[Unit] = {
+
+    import QVector.IR.ImplicitLift._
+    val idx   = reflectMutableSym(idx_imm.asInstanceOf[Sym[Array[Int]]])
+    val score = reflectMutableSym(score_imm.asInstanceOf[Sym[Array[Float]]])
+
+    val n       = dims(0)
+    val k       = dims(1)
+    val stride  = dims(2)
+    val sstride = dims(3)
+    val n0      = dims(4)
+
+    topk_scan(n, k, i => QVector8.dot_range(q, x, i * stride, 0, n0) * s(i * sstride), idx, score)
+  }
+
+  //
+  // Until the native library is loaded, the JVM implementation of
+  // JVector8 is used. Both operate on the same quantized format.
+  //
+  def dot(other: QVector8) : Float = {
     assert(other.size == size)
-    dotNative(this.values, other.values, this.scale, other.scale, size_pad)
+    if (tier.isNative) {
+      val kernel = dotSpecialized(size_pad)
+      if (kernel != 0) dotDispatch(kernel, this.values, other.values, this.scale, other.scale, size_pad)
+      else dotNative(this.values, other.values, this.scale, other.scale, size_pad)
+    } else {
+      JVector8.dot(this.values, other.values, this.scale, other.scale, size)
+    }
   }
 
-  def quantize (input  : Array[Float]) : Unit = {
-    scale = quantizeNative(input, values, size)
+  //
+  // Dot product with a quantized vector of the same size stored off-heap at
+  // the given address, such as a record of a memory-mapped QVectorFile
+  //
+  def dot(address: Long, scale: Float) : Float = {
+    if (tier.isNative || tier.await()) {
+      dotMappedNative(this.values, address, this.scale, scale, size_pad)
+    } else throw new UnsupportedOperationException("Native kernels of QVector8 failed to compile", tier.getFailure.orNull)
+  }
+
+  //
+  // The k vectors of m with the largest dot products with this vector, as
+  // (row, score) pairs in decreasing order of the scores. The whole scan
+  // is a single native call.
+  //
+  def topk(m: QMatrix8, k: Int) : Array[(Long, Float)] = {
+    assert(m.cols == size && k > 0)
+    topkScan(k, (idx, score) => topkNative(values, m.values, m.scale, Array(m.rows, k, m.cols_pad, 1, size_pad), idx, score))
+  }
+
+  //
+  // The k vectors of a memory-mapped file with the largest dot products with
+  // this vector, scanning each mapped segment in place with a single native call
+  //
+  def topk(file: QVectorFile, k: Int) : Array[(Long, Float)] = {
+    assert(file.bits == bits && file.size == size && k > 0)
+    val record = QVectorFile.recordBytes(bits, file.size_pad)
+    file.blocks.flatMap { case (first, n, records, payloads) =>
+      val dims = Array(n, k, record, record / 4, size_pad)
+      topkScan(k, (idx, score) => topkMappedNative(values, payloads, records, dims, idx, score))
+        .map { case (i, s) => (first + i, s) }
+    }.sortBy(-_._2).take(k).toArray
+  }
+
+  private def topkScan(k: Int, scan: (Array[Int], Array[Float]) => Unit) : Array[(Long, Float)] = {
+    val idx   = new Array[Int](k)
+    val score = new Array[Float](k)
+    if (tier.isNative || tier.await()) {
+      scan(idx, score)
+    } else throw new UnsupportedOperationException("Native kernels of QVector8 failed to compile", tier.getFailure.orNull)
+    idx.zip(score).takeWhile(_._1 >= 0).map { case (i, s) => (i.toLong, s * scale) }
+  }
+
+  def quantize (input  : Array[Float]) : Unit = quantize(input, QVector.seed)
+
+  //
+  // Quantizes with the given seed of the stochastic rounding, where 0
+  // stands for a RDSEED generated seed
+  //
+  def quantize (input  : Array[Float], seed: Int) : Unit = {
+    scale = if (tier.isNative) quantizeNative(input, values, size, seed) else JVector8.quantize(input, values, size)
+  }
+  def restore  (output : Array[Float]) : Unit = if (tier.isNative) restoreNative (values, output, scale, size) else {
+    for (i <- 0 until size) output(i) = values(i) * scale
   }
-  def restore  (output : Array[Float]) : Unit = restoreNative (values, output, size)
 
   @native def dotNative      (u: Array[Byte] , r: Array[Byte] , su_ss: Float, sv_ss: Float, n0: Int): Float
-  @native def quantizeNative (u: Array[Float], r: Array[Byte] , n0: Int): Float
-  @native def restoreNative  (u: Array[Byte] , r: Array[Float], n0: Int): Unit
+  @native def dotMappedNative(u: Array[Byte] , v: Long        , su_ss: Float, sv_ss: Float, n0: Int): Float
+  @native def topkNative      (q: Array[Byte], x: Array[Byte], s: Array[Float], dims: Array[Int], idx: Array[Int], score: Array[Float]): Unit
+  @native def topkMappedNative(q: Array[Byte], x: ByteBuffer , s: ByteBuffer  , dims: Array[Int], idx: Array[Int], score: Array[Float]): Unit
+  @native def quantizeNative (u: Array[Float], r: Array[Byte] , n0: Int, seed: Int): Float
+  @native def restoreNative  (u: Array[Byte] , r: Array[Float], s: Float, n0: Int): Unit
+
+  // Versions of dot specialized for the hot sizes n0, see CIR.specialize
+  @native def dotDispatch    (kernel: Long, u: Array[Byte], r: Array[Byte], su_ss: Float, sv_ss: Float, n0: Int): Float
 
-  compile(quantize_staged _, this, nameOf(quantizeNative _))
-  compile(restore_staged  _, this, nameOf(restoreNative  _))
-  compile(dot_staged      _, this, nameOf(dotNative  _))
+  val dotSpecialized = specialize(dot_staged _, this, nameOf(dotNative _), 4)
+
+  val tier = tiered(this) {
+    compile(quantize_staged _, this, nameOf(quantizeNative _))
+    compile(restore_staged  _, this, nameOf(restoreNative  _))
+    compile(dot_staged      _, this, nameOf(dotNative  _))
+    compile(dot_staged      _, this, nameOf(dotMappedNative _))
+    compile(topk_staged     _, this, nameOf(topkNative _))
+    compile(topk_staged     _, this, nameOf(topkMappedNative _))
+    compileDispatch(dot_staged _, this, nameOf(dotDispatch _))
+  }
 
 
   def print (): Unit = {
@@ -94,3 +211,97 @@ class QVector8 (s: Int) extends QVector(8, s){
     }
   }
 }
+
+object QVector8 extends QStaging {
+
+  import QVector.IR._
+
+  //
+  // Unscaled dot product of the elements [lo, hi) of u, with the elements
+  // [voff + lo, voff + hi) of v
+  //
+  def dot_range (
+    u_short : Rep[Array[Byte]],
+    v_short : Rep[Array[Byte]],
+    voff    : Rep[Int],
+    lo      : Rep[Int],
+    hi      : Rep[Int]
+  ): Rep[Float] = {
+
+    import QVector.IR.ImplicitLift._
+
+    val u  = u_short.asInstanceOf[Exp[Array[__m256i]]]
+    val v  = v_short.asInstanceOf[Exp[Array[__m256i]]]
+
+    val ymm_ones_16bit = _mm256_set1_epi16(1.toShort)
+
+    var ymm_sum = _mm256_setzero_ps()
+
+    forloop(lo, hi, fresh[Int], 32, (i: Rep[Int]) => // 1 cache line per 5 cycle throughput. Looks OK
+    {
+      val qu = _mm256_loadu_si256(u, i)
+      val qv = _mm256_loadu_si256(v, voff + i)
+      val qv_sgn = _mm256_sign_epi8(qv, qu)               // 1-latency 0.5-throughput
+      val qu_abs = _mm256_abs_epi8(qu);                   // 1-latency
+      val ymm1 = _mm256_maddubs_epi16(qu_abs, qv_sgn);    // 5-latency 1-throughput
+      val ymm2 = _mm256_madd_epi16(ymm1, ymm_ones_16bit); // 5-latency 1-throughput
+      val ymm3 = _mm256_cvtepi32_ps(ymm2);                // 3-latency 1-throughput
+      ymm_sum = _mm256_add_ps(ymm_sum, ymm3);             // 3-latency 1-throughput
+    })
+
+    reduce_sum(ymm_sum)
+  }
+
+  //
+  // Quantizes the n elements of u starting at uoff into r starting at roff,
+  // given the absolute maximum of these elements. Shared by QVector8 and the
+  // rows of QMatrix8. With xorshift rounding, the random numbers are drawn
+  // from the given stream of the generator, and 32 elements are rounded and
+  // packed at a time. Elements past n are read as zeros, so a partial block
+  // fills the rest of its 32 bytes with zeros, i.e. with padding.
+  //
+  def quantize_row (
+    u      : Rep[Array[Float]],
+    r      : Rep[Array[Byte]],
+    uoff   : Rep[Int],
+    roff   : Rep[Int],
+    n      : Rep[Int],
+    max    : Rep[Float],
+    seed   : Rep[Int],
+    stream : Rep[Int]
+  ): Rep[Unit] = {
+
+    import QVector.IR.ImplicitLift._
+
+    val s = 127.0f / max
+
+    QVector.rounding match {
+      case Rounding.RDRAND =>
+        forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => {
+          val rnd = random_float_RDRAND()
+          r(roff + i) = infix_cast[Byte](Math.floor(s * u(uoff + i) + rnd))
+        })
+      case Rounding.XorShift =>
+        val rq  = r.asInstanceOf[Exp[Array[__m256i]]]
+        val rng = xorshift_new(seed, stream, 4)
+        val ymm_scale = _mm256_set1_ps(s)
+
+        def round (x: List[Rep[__m256]]): Rep[__m256i] = packs_epi32_epi8(x.zip(rng).map { case (xk, g) =>
+          _mm256_cvtps_epi32(_mm256_floor_ps(_mm256_fmadd_ps(xk, ymm_scale, xorshift_next(g))))
+        })
+
+        val n1 = (n >> 5) << 5
+
+        forloop(0, n1, fresh[Int], 32, (i: Rep[Int]) => {
+          val x = List.tabulate(4)(k => _mm256_loadu_ps(u, uoff + i + 8 * k))
+          _mm256_storeu_si256(rq, round(x), roff + i)
+        })
+
+        if (n1 < n) {
+          val rem = n - n1
+          val x = List.tabulate(4)(k => _mm256_maskload_ps(u, tail_mask(rem, 8 * k), uoff + n1 + 8 * k))
+          _mm256_storeu_si256(rq, round(x), roff + n1)
+        }
+    }
+  }
+}
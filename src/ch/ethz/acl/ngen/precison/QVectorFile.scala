@@ -0,0 +1,232 @@
+package ch.ethz.acl.ngen.precison
+
+import java.io.{Closeable, IOException}
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.file.{Path, StandardOpenOption}
+import java.nio.{ByteBuffer, ByteOrder, MappedByteBuffer}
+
+import ch.ethz.acl.commons.util.OffHeap
+
+//
+// On-disk format of a collection of quantized vectors of the same precision
+// and size. The file starts with a header of 64 bytes:
+//
+//   0  magic     8 bytes, "NGENQVEC"
+//   8  version   int
+//  12  bits      int, 4, 8 or 16
+//  16  size      int, number of elements of each vector
+//  20  size_pad  int, padded number of elements of each vector
+//  24  count     long, number of vectors
+//
+// followed by count records. Each record has a 32-byte header holding the
+// scale of the vector as a float, followed by the size_pad quantized values
+// in the layout of the values of QVector4, QVector8 or QVector16. All the
+// data is little endian, and every payload starts at a 32-byte boundary.
+//
+object QVectorFile {
+
+  val magic        : Long = 0x434556514E45474EL // "NGENQVEC"
+  val version      : Int  = 1
+  val headerBytes  : Int  = 64
+  val recordHeader : Int  = 32
+  val order        : ByteOrder = ByteOrder.LITTLE_ENDIAN
+
+  //
+  // Largest number of bytes mapped by a single buffer
+  //
+  val segmentBytes : Long = 1L << 30
+
+  def payloadBytes (bits: Int, size_pad: Int): Int = size_pad * bits / 8
+  def recordBytes  (bits: Int, size_pad: Int): Int = recordHeader + payloadBytes(bits, size_pad)
+
+  def create (path: Path, bits: Int, size: Int): QVectorWriter = new QVectorWriter(path, bits, size)
+
+  //
+  // Maps an existing file in read-only mode
+  //
+  def open (path: Path): QVectorFile = {
+    val channel = FileChannel.open(path, StandardOpenOption.READ)
+    try {
+      val header = ByteBuffer.allocate(headerBytes).order(order)
+      while (header.hasRemaining && channel.read(header) >= 0) {}
+      header.flip()
+      if (header.remaining < headerBytes || header.getLong(0) != magic) {
+        throw new IOException("Not a quantized vector file: " + path)
+      }
+      if (header.getInt(8) != version) {
+        throw new IOException("Unsupported version " + header.getInt(8) + " of quantized vector file: " + path)
+      }
+      val bits     = header.getInt(12)
+      val size     = header.getInt(16)
+      val size_pad = header.getInt(20)
+      val count    = header.getLong(24)
+      val record   = recordBytes(bits, size_pad)
+      if (channel.size < headerBytes + count * record) {
+        throw new IOException("Truncated quantized vector file: " + path)
+      }
+      //
+      // Each segment maps a whole number of records
+      //
+      val perSegment = Math.max(1L, segmentBytes / record)
+      val segments = (0L until count by perSegment).map { first =>
+        val records = Math.min(perSegment, count - first)
+        channel.map(MapMode.READ_ONLY, headerBytes + first * record, records * record).order(order).asInstanceOf[MappedByteBuffer]
+      }.toArray
+      new QVectorFile(path, bits, size, size_pad, count, perSegment, segments)
+    } finally {
+      //
+      // Mapped buffers remain valid once the channel is closed
+      //
+      channel.close()
+    }
+  }
+}
+
+//
+// Streaming writer of a QVectorFile. Float inputs are quantized one vector
+// at a time, such that arbitrarily large inputs can be written chunk by chunk.
+//
+class QVectorWriter (val path: Path, val bits: Int, val size: Int) extends Closeable {
+
+  import QVectorFile._
+
+  private val vector  = QVector(bits, size)
+  private val input   = new Array[Float](size)
+  private val record  = ByteBuffer.allocate(recordBytes(bits, vector.size_pad)).order(order)
+  private val channel = FileChannel.open(path,
+    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+  )
+
+  var count: Long = 0
+
+  writeHeader()
+  channel.position(headerBytes)
+
+  //
+  // Quantizes and appends each of the chunk.length / size vectors stored
+  // contiguously in chunk
+  //
+  def write (chunk: Array[Float]): Unit = {
+    require(chunk.length % size == 0, s"Chunk of ${chunk.length} elements does not hold vectors of size $size")
+    for (offset <- 0 until chunk.length by size) {
+      System.arraycopy(chunk, offset, input, 0, size)
+      vector.quantize(input)
+      write(vector)
+    }
+  }
+
+  //
+  // Appends a vector that is already quantized
+  //
+  def write (v: QVector): Unit = {
+    require(v.bits == bits && v.size == size, s"Expected a $bits-bit vector of size $size")
+    record.clear()
+    v match {
+      case q: QVector4  => record.putFloat(0, q.scale); record.position(recordHeader); record.put(q.values)
+      case q: QVector8  => record.putFloat(0, q.scale); record.position(recordHeader); record.put(q.values)
+      case q: QVector16 => record.putFloat(0, 1f); record.position(recordHeader); record.asShortBuffer().put(q.values)
+    }
+    record.position(0)
+    while (record.hasRemaining) channel.write(record)
+    count += 1
+  }
+
+  private def writeHeader (): Unit = {
+    val header = ByteBuffer.allocate(headerBytes).order(order)
+    header.putLong(0, magic)
+    header.putInt(8, version)
+    header.putInt(12, bits)
+    header.putInt(16, size)
+    header.putInt(20, vector.size_pad)
+    header.putLong(24, count)
+    while (header.hasRemaining) channel.write(header, header.position())
+  }
+
+  def close (): Unit = {
+    writeHeader()
+    channel.close()
+  }
+}
+
+//
+// A read-only QVectorFile, memory-mapped in segments. The dot products run
+// directly on the mapped pages, using the dotMappedNative kernels.
+//
+class QVectorFile private[precison] (
+  val path       : Path,
+  val bits       : Int,
+  val size       : Int,
+  val size_pad   : Int,
+  val count      : Long,
+  perSegment     : Long,
+  segments       : Array[MappedByteBuffer]
+) {
+
+  import QVectorFile._
+
+  private val record    = recordBytes(bits, size_pad)
+  private val addresses = segments.map(s => OffHeap.address(s))
+
+  private def segment (i: Long): Int = (i / perSegment).toInt
+  private def offset  (i: Long): Int = ((i % perSegment) * record).toInt
+
+  private def checkIndex (i: Long): Unit = {
+    if (i < 0 || i >= count) throw new IndexOutOfBoundsException(s"Vector $i of $count")
+  }
+
+  def scale (i: Long): Float = {
+    checkIndex(i)
+    segments(segment(i)).getFloat(offset(i))
+  }
+
+  //
+  // Native address of the quantized values of the i-th vector. The address
+  // is valid as long as this QVectorFile is reachable.
+  //
+  def address (i: Long): Long = {
+    checkIndex(i)
+    addresses(segment(i)) + offset(i) + recordHeader
+  }
+
+  //
+  // The mapped segments, as (index of the first vector, number of vectors,
+  // records, payloads), each holding contiguous records. The records start
+  // with the scale of the first vector, and the payloads with its values.
+  // Both are views of the mapped segment, which stays mapped as long as a
+  // native call holds either of them.
+  //
+  def blocks: Seq[(Long, Int, ByteBuffer, ByteBuffer)] = segments.indices.map { b =>
+    val first = b * perSegment
+    val payloads = segments(b).duplicate()
+    payloads.position(recordHeader)
+    (first, Math.min(perSegment, count - first).toInt, segments(b), payloads.slice())
+  }
+
+  //
+  // Dot product of the i-th vector with a vector of the same precision and size
+  //
+  def dot (i: Long, v: QVector): Float = {
+    require(v.bits == bits && v.size == size, s"Expected a $bits-bit vector of size $size")
+    v match {
+      case q: QVector4  => q.dot(address(i), scale(i))
+      case q: QVector8  => q.dot(address(i), scale(i))
+      case q: QVector16 => q.dot(address(i))
+    }
+  }
+
+  //
+  // Copies the i-th vector to the heap
+  //
+  def load (i: Long): QVector = {
+    val v = QVector(bits, size)
+    val payload = segments(segment(i)).duplicate().order(order)
+    payload.position(offset(i) + recordHeader)
+    v match {
+      case q: QVector4  => payload.get(q.values); q.scale = scale(i)
+      case q: QVector8  => payload.get(q.values); q.scale = scale(i)
+      case q: QVector16 => payload.asShortBuffer().get(q.values)
+    }
+    v
+  }
+}
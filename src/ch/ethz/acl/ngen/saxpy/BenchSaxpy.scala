@@ -25,6 +25,17 @@ class BenchSaxpy extends Bench.ForkedTime {
   val scalaArguments: Gen[(Array[Float], Array[Float], Float, Int)] =
     sizePow2.map(size => (genRandomFloatArray(size), genRandomFloatArray(size), rng.nextFloat, size))
   //
+  // Split the arrays in batches of 64 floats, processed in a single native call
+  //
+  val batch = 64
+  val batchArguments: Gen[(Array[Float], Array[Float], Array[Int], Array[Float], Array[Int], Int)] =
+    scalaArguments.map({ case (a, b, scalar, size) =>
+      val count   = (size + batch - 1) / batch
+      val offsets = Array.tabulate(count)(i => i * batch)
+      val ns      = Array.tabulate(count)(i => Math.min(batch, size - i * batch))
+      (a, b, offsets, Array.fill(count)(scalar), ns, count)
+    })
+  //
   // Measure the performance of the two implementations
   //
   performance of "SAXPY" config (
@@ -43,6 +54,11 @@ class BenchSaxpy extends Bench.ForkedTime {
         case (a, b, scalar, size) => Saxpy.nSaxpy(a, b, scalar, size)
       }
     }
+    measure method "nSaxpy batched (LMS generated, 64 floats per call)" in {
+      using(batchArguments) in {
+        case (a, b, offsets, scalars, ns, count) => Saxpy.nSaxpy.applyBatch(a, offsets, b, offsets, scalars, ns, count)
+      }
+    }
   }
   //
   // Use median to aggregate the data
@@ -1,24 +1,89 @@
 package ch.ethz.acl.ngen.saxpy
 
-import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.cir.{IntrinsicsIR, JavaBackend, JavaKernel, TuningSpace, TuningVariant}
+import ch.ethz.acl.commons.extensions.Parallelism
 import com.github.dwickern.macros.NameOf._
 
+//
+// Signature of SAXPY, implemented by the kernel compiled to Java
+//
+trait SaxpyKernel {
+  def apply (a: Array[Float], b: Array[Float], scalar: Float, n: Int): Unit
+}
+
 class NSaxpy {
 
+  // JVM implementation, used until the native library is loaded
+  private val jSaxpy = new JSaxpy
+
+  // Java Vector API implementation, replacing the native
+  // library on hosts without a C compiler (see JavaBackend)
+  @volatile private var vSaxpy: JavaKernel[SaxpyKernel] = null
+
+  def apply (a: Array[Float], b: Array[Float], scalar: Float, n: Int): Unit = {
+    if (!tier.isNative) jSaxpy.apply(a, b, scalar, n)
+    else if (vSaxpy ne null) vSaxpy.function(a, b, scalar, n)
+    else applyNative(a, b, scalar, n)
+  }
+
+  def applyBatch (
+    a        : Array[Float],
+    aOffsets : Array[Int],
+    b        : Array[Float],
+    bOffsets : Array[Int],
+    scalars  : Array[Float],
+    ns       : Array[Int],
+    count    : Int
+  ): Unit = {
+    // the native function pins the arrays and does not check any bounds
+    require(count >= 0 && List(aOffsets.length, bOffsets.length, scalars.length, ns.length).forall(count <= _),
+      s"Invalid count $count of batched calls")
+    for (k <- 0 until count) {
+      require(ns(k) >= 0 && aOffsets(k) >= 0 && bOffsets(k) >= 0 &&
+        aOffsets(k).toLong + ns(k) <= a.length && bOffsets(k).toLong + ns(k) <= b.length,
+        s"Call $k of the batch is out of bounds")
+    }
+    if (tier.isNative && (vSaxpy eq null)) {
+      applyBatchNative(a, aOffsets, b, bOffsets, scalars, ns, count)
+    } else {
+      for (k <- 0 until count; i <- 0 until ns(k)) {
+        a(aOffsets(k) + i) += b(bOffsets(k) + i) * scalars(k)
+      }
+    }
+  }
+
   // Step 1: Placeholder for the SAXPY native function
-  @native def apply (
+  @native def applyNative (
     a      : Array[Float],
     b      : Array[Float],
     scalar : Float,
     n      : Int
   ): Unit
 
+  // Batched SAXPY: performs count SAXPY calls in a single native call,
+  // the i-th call operating on a[aOffsets(i)] and b[bOffsets(i)]
+  @native def applyBatchNative (
+    a        : Array[Float],
+    aOffsets : Array[Int],
+    b        : Array[Float],
+    bOffsets : Array[Int],
+    scalars  : Array[Float],
+    ns       : Array[Int],
+    count    : Int
+  ): Unit
+
   // Step 2: DSL instance of the intrinsics
   val cIR = new IntrinsicsIR
   import cIR._
 
-  // Step 3: Staged SAXPY function using AVX + FMA
-  def saxpy_staged(
+  // Step 3: Staged SAXPY function using AVX + FMA, with
+  // the main loop unrolled as given by the tuning variant.
+  // Each chunk peels scalar iterations until `a` is 32-byte
+  // aligned, such that `a` is read and written with aligned
+  // vector loads and stores. Arrays larger than the last level
+  // cache are written with non-temporal stores, to avoid the
+  // read-for-ownership of each cache line of `a`.
+  def saxpy_staged(variant: TuningVariant)(
     a_imm  : Rep[Array[Float]],
     b      : Rep[Array[Float]],
     scalar : Rep[Float],
@@ -27,21 +92,68 @@ class NSaxpy {
     // make array `a` mutable
     val a_sym = a_imm.asInstanceOf[Sym[Array[Float]]]
     val a = reflectMutableSym(a_sym)
-    // start with the computation
-    val n0 = (n >> 3) << 3
+    // unrolling of the main loop
+    val unroll = variant("unroll")
+    val shift  = Integer.numberOfTrailingZeros(8 * unroll)
+    // number of elements above which `a` is streamed
+    val streamed = stream_threshold(4)
+    // start with the computation, each thread
+    // processing a contiguous chunk of the arrays
     val vec_s = _mm256_set1_ps(scalar)
-    forloop(0, n0, fresh[Int], 8, (i : Rep[Int]) => {
-      val vec_a = _mm256_loadu_ps(a, i)
-      val vec_b = _mm256_loadu_ps(b, i)
-      val res = _mm256_fmadd_ps(vec_b, vec_s, vec_a)
-      _mm256_storeu_ps(a, res, i)
-    })
-    forloop(n0, n, fresh[Int], 1, (i : Rep[Int]) => {
-      a(i) = a(i) + b(i) * scalar
+    parallel_chunks(0, n, 8 * unroll, Parallelism.grain, (tid, lo, hi) => {
+      val m  = lo + Math.min(align_peel(a, lo, 32), hi - lo)
+      val n0 = m  + (((hi - m ) >> shift) << shift)
+      val n1 = n0 + (((hi - n0) >> 3) << 3)
+      def vectorLoops(stream: Boolean) = {
+        def store(v: Rep[__m256], i: Rep[Int]) = if (stream) {
+          _mm256_stream_ps(a, v, i)
+        } else {
+          _mm256_store_ps(a, v, i)
+        }
+        forloop(m, n0, fresh[Int], 8 * unroll, (i : Rep[Int]) => {
+          (0 until unroll).foreach(u => {
+            val vec_a = _mm256_load_ps(a, i + u * 8)
+            val vec_b = _mm256_loadu_ps(b, i + u * 8)
+            store(_mm256_fmadd_ps(vec_b, vec_s, vec_a), i + u * 8)
+          })
+        })
+        forloop(n0, n1, fresh[Int], 8, (i : Rep[Int]) => {
+          val vec_a = _mm256_load_ps(a, i)
+          val vec_b = _mm256_loadu_ps(b, i)
+          store(_mm256_fmadd_ps(vec_b, vec_s, vec_a), i)
+        })
+      }
+      forloop(lo, m, fresh[Int], 1, (i : Rep[Int]) => {
+        a(i) = a(i) + b(i) * scalar
+      })
+      if (n > streamed) {
+        vectorLoops(true)
+        // order the non-temporal stores before any later store
+        _mm_sfence()
+      } else {
+        vectorLoops(false)
+      }
+      forloop(n1, hi, fresh[Int], 1, (i : Rep[Int]) => {
+        a(i) = a(i) + b(i) * scalar
+      })
     })
   }
 
-  // Step 4: generate the daxpy function,
-  // compile it and link it to the JVM
-  compile(saxpy_staged _, this, nameOf(apply _))
-}
\ No newline at end of file
+  // Step 4: select the fastest unrolling on this machine,
+  // generate the saxpy function, compile it and link it to the JVM,
+  // in the background if tiered execution is enabled. Without a
+  // C compiler, the function is compiled to Java instead, and the
+  // batched calls stay on the JVM.
+  val space = TuningSpace(List("unroll" -> List(1, 2, 4)))
+  val tier = tiered(this) {
+    if (JavaBackend.selected) {
+      vSaxpy = compileJava(saxpy_staged(space.default) _, this, nameOf(applyNative _), classOf[SaxpyKernel])
+    } else {
+      val variant = autotune(saxpy_staged _, this, nameOf(applyNative _), space, {
+        val n = 32768
+        Seq(Array.fill(n)(1.0f), Array.fill(n)(2.0f), 0.5f, n)
+      })
+      compileBatch(saxpy_staged(variant) _, this, nameOf(applyBatchNative _))
+    }
+  }
+}
@@ -0,0 +1,3 @@
+package cgo
+import ch.ethz.acl.ngen.gemm.BenchGemm
+object TestGemm extends BenchGemm
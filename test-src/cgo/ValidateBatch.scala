@@ -0,0 +1,117 @@
+package cgo
+
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.ngen.saxpy.NSaxpy
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+//
+// Batched dot product, storing the result of each call
+//
+class BatchedDot {
+
+  @native def dot (a: Array[Float], aOffsets: Array[Int], b: Array[Float], bOffsets: Array[Int], ns: Array[Int], count: Int, results: Array[Float]): Unit
+
+  val cIR = new IntrinsicsIR
+  import cIR._
+
+  def dot_staged (a: Rep[Array[Float]], b: Rep[Array[Float]], n: Rep[Int]): Rep[Float] = { import ImplicitLift._
+    val sum = var_new(unit(0.0f))
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { var_assign(sum, readVar(sum) + a(i) * b(i)) })
+    readVar(sum)
+  }
+
+  compileUnit(this) {
+    compileBatch(dot_staged _, this, nameOf(dot _))
+  }
+}
+
+class ValidateBatch extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  //
+  // Calls of mixed lengths, including empty ones, at non-zero offsets of
+  // each array. The calls on b overlap, while the calls on a do not.
+  //
+  val ns = Array(0, 1, 7, 8, 9, 64, 100, 1000, 3, 4099)
+  val aOffsets = ns.scanLeft(5)((offset, n) => offset + n + 3).init
+  val bOffsets = ns.indices.map(k => 11 + 13 * k).toArray
+  val size = aOffsets.last + ns.last + 5
+
+  describe("ValidateBatch.scala") {
+
+    val saxpy = new NSaxpy
+    assert(saxpy.tier.await())
+
+    it("matches the JVM for a batch of SAXPY calls at non-zero offsets") {
+      val a = genRandomFloatArray(size)
+      val b = genRandomFloatArray(size)
+      val scalars = Array.fill(ns.length)(rng.nextFloat)
+      val expected = a.clone()
+      for (k <- ns.indices; i <- 0 until ns(k)) {
+        expected(aOffsets(k) + i) += b(bOffsets(k) + i) * scalars(k)
+      }
+      saxpy.applyBatch(a, aOffsets, b, bOffsets, scalars, ns, ns.length)
+      assert(a.zip(expected).forall({ case (x, y) => Math.abs(x - y) <= 1e-5f * Math.max(1f, Math.abs(y)) }))
+    }
+
+    it("executes only the first count calls of a batch") {
+      val a = genRandomFloatArray(size)
+      val b = genRandomFloatArray(size)
+      val scalars = Array.fill(ns.length)(rng.nextFloat)
+      val expected = a.clone()
+      for (k <- 0 until 4; i <- 0 until ns(k)) {
+        expected(aOffsets(k) + i) += b(bOffsets(k) + i) * scalars(k)
+      }
+      saxpy.applyBatch(a, aOffsets, b, bOffsets, scalars, ns, 4)
+      assert(a.zip(expected).forall({ case (x, y) => Math.abs(x - y) <= 1e-5f * Math.max(1f, Math.abs(y)) }))
+    }
+
+    it("rejects a count larger than the batch") {
+      val (a, b) = (genRandomFloatArray(size), genRandomFloatArray(size))
+      val scalars = Array.fill(ns.length)(rng.nextFloat)
+      intercept[IllegalArgumentException] {
+        saxpy.applyBatch(a, aOffsets, b, bOffsets, scalars, ns, ns.length + 1)
+      }
+      intercept[IllegalArgumentException] {
+        saxpy.applyBatch(a, aOffsets, b, bOffsets, scalars.init, ns, ns.length)
+      }
+    }
+
+    it("rejects calls beyond the end of the arrays") {
+      val (a, b) = (genRandomFloatArray(size), genRandomFloatArray(size))
+      val scalars = Array.fill(ns.length)(rng.nextFloat)
+      val expected = a.clone()
+      intercept[IllegalArgumentException] {
+        saxpy.applyBatch(a, aOffsets, b, bOffsets, scalars, ns.updated(ns.length - 1, ns.last + 6), ns.length)
+      }
+      intercept[IllegalArgumentException] {
+        saxpy.applyBatch(a, aOffsets, b, bOffsets.updated(0, -1), scalars, ns, ns.length)
+      }
+      intercept[IllegalArgumentException] {
+        saxpy.applyBatch(a, aOffsets, b.take(bOffsets.last + ns.last - 1), bOffsets, scalars, ns, ns.length)
+      }
+      assert(a.sameElements(expected))
+    }
+
+    val kernel = new BatchedDot
+
+    it("stores the result of each call of a batch") {
+      val a = genRandomFloatArray(size)
+      val b = genRandomFloatArray(size)
+      val results = Array.fill(ns.length)(Float.NaN)
+      kernel.dot(a, aOffsets, b, bOffsets, ns, ns.length, results)
+      for (k <- ns.indices) {
+        val expected = (0 until ns(k)).map(i => a(aOffsets(k) + i).toDouble * b(bOffsets(k) + i)).sum
+        assert(Math.abs(results(k) - expected) <= 1e-4 * (ns(k) + 1), s"call $k of ${ns(k)} elements")
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package cgo
+
+import ch.ethz.acl.commons.cir.Specialization
+import ch.ethz.acl.ngen.blas1.Blas1
+import org.scalatest.FunSpec
+
+class ValidateBlas1 extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+  //
+  // The precision of the floating point equality
+  //
+  val precision = 0.001
+
+  //
+  // Sizes covering empty arrays, partial registers, odd numbers of shorts,
+  // and the main loops of every type
+  //
+  val sizes = List(0, 1, 2, 3, 7, 8, 9, 15, 16, 17, 31, 33, 64, 100, 1027)
+
+  def checkEqual(x1: Double, x2: Double): Boolean = (x1 - x2).abs <= precision * Math.max(1.0, x1.abs)
+
+  def checkArraysEqual(x1: Array[Double], x2: Array[Double]): Boolean = x1.zip(x2).forall { case (a, b) => checkEqual(a, b) }
+
+  describe("ValidateBlas1.scala") {
+
+    val j = Blas1.jBlas1
+
+    it("validates the Float kernels") {
+      val b = Blas1.nFloat
+      assert(b.tier.await())
+      for (n <- sizes) {
+        val x = Array.fill(n + 3)(rng.nextFloat - 0.5F)
+        val y = Array.fill(n + 3)(rng.nextFloat - 0.5F)
+        val (x1, y1, x2, y2) = (x.clone, y.clone, x.clone, y.clone)
+        b.axpy(n, 1.5F, x1, y1); j.axpy(n, 1.5F, x2, y2)
+        assert(checkArraysEqual(y1.map(_.toDouble), y2.map(_.toDouble)))
+        b.scal(n, -0.5F, x1); j.scal(n, -0.5F, x2)
+        assert(checkArraysEqual(x1.map(_.toDouble), x2.map(_.toDouble)))
+        b.swap(n, x1, y1); j.swap(n, x2, y2)
+        assert(x1.sameElements(x2) && y1.sameElements(y2))
+        b.copy(n, x, x1); j.copy(n, x, x2)
+        assert(x1.sameElements(x2))
+        assert(checkEqual(b.dot(n, x, y), j.dot(n, x, y)))
+        assert(checkEqual(b.asum(n, x), j.asum(n, x)))
+        assert(checkEqual(b.nrm2(n, x), j.nrm2(n, x)))
+        assert(b.iamax(n, x) == j.iamax(n, x))
+      }
+    }
+
+    it("validates the Float kernels specialized for their size") {
+      val b = Blas1.nFloat
+      assert(b.tier.await())
+      val (enabled, threshold, cacheSize) = (Specialization.enabled, Specialization.threshold, Specialization.cacheSize)
+      Specialization.enabled   = true
+      Specialization.threshold = 2
+      Specialization.cacheSize = 2
+      //
+      // Calls the kernels until the size is promoted, and waits for its versions
+      //
+      def hot (n: Int): Unit = {
+        for (_ <- 0 until Specialization.threshold) {
+          val x = Array.fill(n)(rng.nextFloat - 0.5F)
+          val y = Array.fill(n)(rng.nextFloat - 0.5F)
+          val (y1, y2) = (y.clone, y.clone)
+          assert(checkEqual(b.dot(n, x, y), j.dot(n, x, y)))
+          b.axpy(n, 1.5F, x, y1); j.axpy(n, 1.5F, x, y2)
+          assert(checkArraysEqual(y1.map(_.toDouble), y2.map(_.toDouble)))
+        }
+        assert(b.dotSpecialized.await(n) && b.axpySpecialized.await(n))
+      }
+      try {
+        hot(128)
+        assert(b.dotSpecialized.values == Seq(128))
+        hot(384)
+        assert(b.dotSpecialized.values.toSet == Set(128, 384))
+        //
+        // A third hot size in a cache of two versions evicts the oldest one
+        //
+        hot(771)
+        assert(b.dotSpecialized.values.toSet == Set(384, 771))
+        assert(b.axpySpecialized.values.toSet == Set(384, 771))
+        //
+        // The evicted version is installed again without being recompiled
+        //
+        hot(128)
+        assert(b.dotSpecialized.values.toSet == Set(128, 771))
+        for (n <- List(128, 384, 771)) {
+          val x = Array.fill(n)(rng.nextFloat - 0.5F)
+          val y = Array.fill(n)(rng.nextFloat - 0.5F)
+          assert(checkEqual(b.dot(n, x, y), j.dot(n, x, y)))
+        }
+      } finally {
+        Specialization.enabled   = enabled
+        Specialization.threshold = threshold
+        Specialization.cacheSize = cacheSize
+      }
+    }
+
+    it("validates the Double kernels") {
+      val b = Blas1.nDouble
+      assert(b.tier.await())
+      for (n <- sizes) {
+        val x = Array.fill(n + 3)(rng.nextDouble - 0.5)
+        val y = Array.fill(n + 3)(rng.nextDouble - 0.5)
+        val (x1, y1, x2, y2) = (x.clone, y.clone, x.clone, y.clone)
+        b.axpy(n, 1.5, x1, y1); j.axpy(n, 1.5, x2, y2)
+        assert(checkArraysEqual(y1, y2))
+        b.scal(n, -0.5, x1); j.scal(n, -0.5, x2)
+        assert(checkArraysEqual(x1, x2))
+        b.swap(n, x1, y1); j.swap(n, x2, y2)
+        assert(x1.sameElements(x2) && y1.sameElements(y2))
+        b.copy(n, x, x1); j.copy(n, x, x2)
+        assert(x1.sameElements(x2))
+        assert(checkEqual(b.dot(n, x, y), j.dot(n, x, y)))
+        assert(checkEqual(b.asum(n, x), j.asum(n, x)))
+        assert(checkEqual(b.nrm2(n, x), j.nrm2(n, x)))
+        assert(b.iamax(n, x) == j.iamax(n, x))
+      }
+    }
+
+    it("validates the Int kernels") {
+      val b = Blas1.nInt
+      assert(b.tier.await())
+      for (n <- sizes) {
+        val x = Array.fill(n + 3)(rng.nextInt)
+        val y = Array.fill(n + 3)(rng.nextInt)
+        val (x1, y1, x2, y2) = (x.clone, y.clone, x.clone, y.clone)
+        b.axpy(n, 3, x1, y1); j.axpy(n, 3, x2, y2)
+        b.scal(n, -7, x1); j.scal(n, -7, x2)
+        b.swap(n, x1, y1); j.swap(n, x2, y2)
+        assert(x1.sameElements(x2) && y1.sameElements(y2))
+        b.copy(n, x, x1); j.copy(n, x, x2)
+        assert(x1.sameElements(x2))
+        assert(b.dot(n, x, y) == j.dot(n, x, y))
+        assert(b.asum(n, x) == j.asum(n, x))
+        assert(b.iamax(n, x) == j.iamax(n, x))
+      }
+    }
+
+    it("validates the Short kernels") {
+      val b = Blas1.nShort
+      assert(b.tier.await())
+      for (n <- sizes) {
+        val x = Array.fill(n + 3)(rng.nextInt.toShort)
+        val y = Array.fill(n + 3)(rng.nextInt.toShort)
+        val (x1, y1, x2, y2) = (x.clone, y.clone, x.clone, y.clone)
+        b.axpy(n, 3.toShort, x1, y1); j.axpy(n, 3.toShort, x2, y2)
+        b.scal(n, (-7).toShort, x1); j.scal(n, (-7).toShort, x2)
+        b.swap(n, x1, y1); j.swap(n, x2, y2)
+        assert(x1.sameElements(x2) && y1.sameElements(y2))
+        b.copy(n, x, x1); j.copy(n, x, x2)
+        assert(x1.sameElements(x2))
+        assert(b.dot(n, x, y) == j.dot(n, x, y))
+        assert(b.asum(n, x) == j.asum(n, x))
+        assert(b.iamax(n, x) == j.iamax(n, x))
+      }
+    }
+  }
+}
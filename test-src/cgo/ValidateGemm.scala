@@ -0,0 +1,62 @@
+package cgo
+
+import ch.ethz.acl.ngen.gemm.{Gemm, GemmLayout}
+import org.scalatest.FunSpec
+
+class ValidateGemm extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+  //
+  // The precision of the float equality
+  //
+  val precision = 0.01F
+
+  //
+  // Generate a random floating point array
+  //
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { rng.nextFloat * maximum }
+  }
+
+  //
+  // Checks the element-wise equality of two matrices
+  //
+  def checkMatricesEqual(expectedMatrix: Array[Float], observedMatrix: Array[Float]): Boolean = {
+    expectedMatrix.zip(observedMatrix).map{case (x1, x2) => (x1 - x2).abs <= precision * Math.max(1.0F, x1.abs)}.reduce(_ && _)
+  }
+
+  describe("ValidateGemm.scala") {
+
+    assert(Gemm.nGemm.tier.await())
+
+    //
+    // Sizes covering complete tiles, edges in all dimensions, and
+    // multiple cache blocks of K
+    //
+    val sizes = List((64, 64, 64), (37, 53, 29), (1, 17, 5), (130, 97, 700))
+
+    for ((m, n, k) <- sizes; layout <- GemmLayout.values; transA <- List(false, true); transB <- List(false, true); beta <- List(0.0F, 0.5F)) {
+      it(s"computes $m x $n x $k, $layout, transA = $transA, transB = $transB, beta = $beta") {
+        val colMajor = layout == GemmLayout.ColMajor
+        //
+        // Leading dimensions are padded, to check the strided accesses
+        //
+        def ld (rows: Int, cols: Int, trans: Boolean): Int = (if (colMajor != trans) rows else cols) + 3
+        val lda = ld(m, k, transA)
+        val ldb = ld(k, n, transB)
+        val ldc = ld(m, n, false)
+        val a = genRandomFloatArray(lda * Math.max(m, k))
+        val b = genRandomFloatArray(ldb * Math.max(k, n))
+        val c = genRandomFloatArray(ldc * Math.max(m, n))
+
+        val expected = c.clone()
+        val observed = c.clone()
+        Gemm.jGemm.sgemm(colMajor, transA, transB, m, n, k, 1.5F, a, lda, b, ldb, beta, expected, ldc)
+        Gemm.nGemm.sgemm(layout, transA, transB, m, n, k, 1.5F, a, lda, b, ldb, beta, observed, ldc)
+        assert(checkMatricesEqual(expected, observed))
+      }
+    }
+  }
+}
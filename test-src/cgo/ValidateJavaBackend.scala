@@ -0,0 +1,112 @@
+package cgo
+
+import ch.ethz.acl.commons.cir.TuningSpace
+import ch.ethz.acl.commons.compiler.CompileJava
+import ch.ethz.acl.ngen.blas1.{Blas1, FloatAxpyKernel, FloatDotKernel, JBlas1, NBlas1}
+import ch.ethz.acl.ngen.mmm.{JMMM, MMMKernel, NMMM}
+import ch.ethz.acl.ngen.saxpy.{JSaxpy, NSaxpy, SaxpyKernel}
+import org.scalatest.FunSpec
+
+class ValidateJavaBackend extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  def checkEqual(x: Float, y: Float): Boolean = Math.abs(x - y) <= 1e-3f * Math.max(1f, Math.abs(y))
+
+  describe("ValidateJavaBackend.scala") {
+
+    val saxpy = new NSaxpy
+    import saxpy.cIR._
+
+    it("maps the AVX and FMA intrinsics of SAXPY to the Vector API") {
+      val (a, b, s, n) = (fresh[Array[Float]], fresh[Array[Float]], fresh[Float], fresh[Int])
+      val block = reifyEffects(saxpy.saxpy_staged(saxpy.space.default)(a, b, s, n))
+      val code = javaCodegen.generateJavaClass(List(a, b, s, n), optimize(block, Nil), "SaxpyJava")
+      assert(code.contains("FloatVector.fromArray(F256"))
+      assert(code.contains(".fma("))
+      assert(!code.contains("_mm"))
+    }
+
+    it("implements the interface of the kernel with a typed method") {
+      val (a, b, s, n) = (fresh[Array[Float]], fresh[Array[Float]], fresh[Float], fresh[Int])
+      val block = reifyEffects(saxpy.saxpy_staged(saxpy.space.default)(a, b, s, n))
+      val code = javaCodegen.generateJavaClass(List(a, b, s, n), optimize(block, Nil), "SaxpyJava", Some(classOf[SaxpyKernel]))
+      assert(code.contains("implements " + classOf[SaxpyKernel].getCanonicalName))
+      assert(code.contains("public void apply (float[] "))
+    }
+
+    if (CompileJava.isAvailable) {
+      val kernel = compileJava(saxpy.saxpy_staged(saxpy.space.default) _, saxpy, "applyJavaValidation", classOf[SaxpyKernel])
+      for (n <- List(0, 1, 17, 1000, 100003)) {
+        it(s"matches the JVM implementation for n = $n") {
+          val a = genRandomFloatArray(n)
+          val b = genRandomFloatArray(n)
+          val expected = a.clone()
+          new JSaxpy().apply(expected, b, 0.5f, n)
+          kernel.function(a, b, 0.5f, n)
+          assert(a.zip(expected).forall({ case (x, y) => Math.abs(x - y) <= 1e-5f * Math.max(1f, Math.abs(y)) }))
+        }
+      }
+    }
+
+    val mmm = new NMMM
+
+    it("maps the shuffles of the transposes of MMM to constant rearranges") {
+      import mmm.cIR._
+      val (a, b, c, n) = (fresh[Array[Float]], fresh[Array[Float]], fresh[Array[Float]], fresh[Int])
+      val block = reifyEffects(mmm.staged_mmm_blocked(mmm.space.default)(a, b, c, n))
+      val code = javaCodegen.generateJavaClass(List(a, b, c, n), optimize(block, Nil), "MMMJava")
+      assert(code.contains("VectorShuffle.fromValues(F256"))
+      assert(!code.contains("_mm"))
+    }
+
+    it("maps the masked tails and the horizontal sums of BLAS-1 to the Vector API") {
+      import NBlas1.IR._
+      val (n, x, y) = (fresh[Int], fresh[Array[Float]], fresh[Array[Float]])
+      val block = reifyEffects(Blas1.nFloat.dot_staged(n, x, y))
+      val code = javaCodegen.generateJavaClass(List(n, x, y), optimize(block, Nil), "DotJava")
+      assert(code.contains(".cast(F256)"))
+      assert(code.contains("VectorShuffle.fromValues(F128"))
+      assert(!code.contains("_mm"))
+    }
+
+    if (CompileJava.isAvailable) {
+      val kernel = {
+        import mmm.cIR._
+        compileJava(mmm.staged_mmm_blocked(mmm.space.default) _, mmm, "blockedJavaValidation", classOf[MMMKernel])
+      }
+      it("matches the JVM implementation of MMM for n = 64") {
+        val n = 64
+        val (a, b) = (genRandomFloatArray(n * n), genRandomFloatArray(n * n))
+        val (c, expected) = (new Array[Float](n * n), new Array[Float](n * n))
+        new JMMM().blocked(a, b, expected, n)
+        kernel.function(a, b, c, n)
+        assert(c.zip(expected).forall({ case (x, y) => checkEqual(x, y) }))
+      }
+
+      val (dot, axpy) = {
+        import NBlas1.IR._
+        val b = Blas1.nFloat
+        (compileJava(b.dot_staged  _, b, "dotJavaValidation" , classOf[FloatDotKernel]).function,
+         compileJava(b.axpy_staged _, b, "axpyJavaValidation", classOf[FloatAxpyKernel]).function)
+      }
+      for (n <- List(0, 1, 13, 1003)) {
+        it(s"matches the JVM implementation of the Float dot and axpy for n = $n") {
+          val (x, y) = (genRandomFloatArray(n), genRandomFloatArray(n))
+          val j = new JBlas1
+          assert(checkEqual(dot(n, x, y), j.dot(n, x, y)))
+          val (y1, y2) = (y.clone, y.clone)
+          axpy(n, 1.5f, x, y1)
+          j.axpy(n, 1.5f, x, y2)
+          assert(y1.zip(y2).forall({ case (u, v) => checkEqual(u, v) }))
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package cgo
+
+import java.io.{PrintWriter, StringWriter}
+
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.transformers.LoopFusionTransformer
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+//
+// Two SAXPY loops followed by a sum over the result, each
+// staged as a separate loop over the same range
+//
+class FusedChain {
+
+  @native def chain (a: Array[Float], b: Array[Float], c: Array[Float], s: Float, n: Int): Float
+
+  val cIR = new IntrinsicsIR
+  import cIR._
+
+  def chain_staged (
+    a_imm : Rep[Array[Float]],
+    b     : Rep[Array[Float]],
+    c     : Rep[Array[Float]],
+    s     : Rep[Float],
+    n     : Rep[Int]
+  ): Rep[Float] = { import ImplicitLift._
+    val a = reflectMutableSym(a_imm.asInstanceOf[Sym[Array[Float]]])
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { a(i) = a(i) + b(i) * s })
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { a(i) = a(i) + c(i) * s })
+    val sum = var_new(unit(0.0f))
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { var_assign(sum, readVar(sum) + a(i)) })
+    readVar(sum)
+  }
+
+  def generate (): String = {
+    val (a, b, c) = (fresh[Array[Float]], fresh[Array[Float]], fresh[Array[Float]])
+    val (s, n) = (fresh[Float], fresh[Int])
+    val block = reifyEffects(chain_staged(a, b, c, s, n))
+    val out = new StringWriter()
+    //
+    // No ISAs are given, such that the fused loop is not vectorized
+    //
+    fused(emitBlock(List(a, b, c, s, n), optimize(block, Nil), new PrintWriter(out)))
+    out.toString
+  }
+
+  //
+  // Fusion is disabled by default, enable it for the staging of this chain only
+  //
+  private def fused[T] (body: => T): T = {
+    val enabled = LoopFusionTransformer.enabled
+    LoopFusionTransformer.enabled = true
+    try body finally LoopFusionTransformer.enabled = enabled
+  }
+
+  fused(compileUnit(this) {
+    compile(chain_staged _, this, nameOf(chain _))
+  })
+}
+
+class ValidateLoopFusion extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  describe("ValidateLoopFusion.scala") {
+
+    val fused = new FusedChain
+
+    it("fuses the loops of the chain into a single loop") {
+      assert("for\\(".r.findAllIn(fused.generate()).size == 1)
+    }
+
+    for (n <- List(0, 1, 17, 1000, 100003)) {
+      it(s"computes the fused chain of $n elements") {
+        val (a, b, c) = (genRandomFloatArray(n), genRandomFloatArray(n), genRandomFloatArray(n))
+        val s = rng.nextFloat
+        val expected = a.indices.map(i => a(i) + b(i) * s + c(i) * s).toArray
+        val observed = fused.chain(a, b, c, s, n)
+        assert(a.zip(expected).forall { case (x1, x2) => (x1 - x2).abs <= 0.0001F })
+        //
+        // The sum is accumulated in float, allow for rounding errors growing with n
+        //
+        assert((expected.map(_.toDouble).sum - observed).abs <= 0.0001 * (n + 1))
+      }
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package cgo
 
+import java.nio.ByteBuffer
+
+import ch.ethz.acl.commons.util.OffHeap
 import ch.ethz.acl.ngen.mmm.MMM
 import org.scalatest.FunSpec
 
@@ -39,9 +42,33 @@ class ValidateMMM extends FunSpec {
 
     MMM.jMMM.baseline(a, b, result, n)
     MMM.jMMM.blocked(a, b, resultBlocked, n)
+    assert(MMM.nMMM.tier.await())
     MMM.nMMM.blocked(a, b, resultNative, n)
 
+    val aDirect = OffHeap.copy(a, OffHeap.allocateFloats(nSquare))
+    val bDirect = OffHeap.copy(b, OffHeap.allocateFloats(nSquare))
+    val cDirect = OffHeap.allocateFloats(nSquare)
+    MMM.nMMM.blockedDirect(aDirect, bDirect, cDirect, n)
+    val resultDirect = OffHeap.copy(cDirect, Array.fill(nSquare){0.0F})
+
     assert(checkMatricesEqual(result, resultBlocked))
     assert(checkMatricesEqual(result, resultNative))
+    assert(checkMatricesEqual(result, resultDirect))
+
+    it("rejects a buffer that is not direct") {
+      val heap = ByteBuffer.allocate(4 * 64)
+      intercept[IllegalArgumentException] {
+        MMM.nMMM.blockedDirect(aDirect, heap, cDirect, 8)
+      }
+    }
+
+    it("rejects a buffer that is too small for the matrices") {
+      val short = OffHeap.allocateFloats(nSquare - 1)
+      for ((x, y, z) <- List((short, bDirect, cDirect), (aDirect, short, cDirect), (aDirect, bDirect, short))) {
+        intercept[IllegalArgumentException] {
+          MMM.nMMM.blockedDirect(x, y, z, n)
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,70 @@
+package cgo
+
+import ch.ethz.acl.commons.cir.{IntrinsicsIR, KernelMetrics}
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+//
+// Sum of an array, compiled with instrumentation regardless of the settings
+//
+class InstrumentedSum {
+
+  @native def sum (a: Array[Float], n: Int): Float
+
+  val cIR = new IntrinsicsIR
+  import cIR._
+
+  def sum_staged (a: Rep[Array[Float]], n: Rep[Int]): Rep[Float] = { import ImplicitLift._
+    val sum = var_new(unit(0.0f))
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { var_assign(sum, readVar(sum) + a(i)) })
+    readVar(sum)
+  }
+
+  private val instrumented = KernelMetrics.enabled
+  KernelMetrics.enabled = true
+  try {
+    compileUnit(this) {
+      compile(sum_staged _, this, nameOf(sum _))
+    }
+  } finally {
+    KernelMetrics.enabled = instrumented
+  }
+}
+
+class ValidateMetrics extends FunSpec {
+
+  describe("ValidateMetrics.scala") {
+
+    val kernel = new InstrumentedSum
+
+    val name = classOf[InstrumentedSum].getName.replace('.', '_') + "_sum"
+    val sizes = List(10, 1000, 500)
+
+    it("records the calls of an instrumented kernel into its counters") {
+      val counters = KernelMetrics.get(name).get
+      counters.reset()
+      val a = Array.fill(1000)(1.0f)
+      for (n <- sizes) {
+        assert(kernel.sum(a, n) == n.toFloat)
+      }
+      assert(counters.calls == 3)
+      assert(counters.elements == sizes.sum)
+      assert(counters.bytes == sizes.sum * 4)
+      assert(counters.cycles > 0)
+      assert(counters.maxCycles > 0 && counters.maxCycles <= counters.cycles)
+    }
+
+    it("counts the bytes per element declared for a kernel") {
+      val counters = KernelMetrics.get(name).get
+      counters.reset()
+      val a = Array.fill(1000)(1.0f)
+      KernelMetrics.setTraffic(name, 8)
+      try {
+        for (n <- sizes) kernel.sum(a, n)
+        assert(counters.bytes == sizes.sum * 8)
+      } finally {
+        counters.bytesPerElement = Double.NaN
+      }
+    }
+  }
+}
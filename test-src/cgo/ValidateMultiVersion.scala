@@ -0,0 +1,109 @@
+package cgo
+
+import ch.ethz.acl.commons.cir.JavaBackend
+import ch.ethz.acl.commons.cir.codegen.MultiVersion
+import ch.ethz.acl.commons.compiler.ISA
+import ch.ethz.acl.commons.compiler.ISA.ISA
+import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.ngen.multisaxpy.NMultiSaxpy
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+//
+// The SAXPY versions of NMultiSaxpy, compiled into a multi-versioned kernel for
+// each tier. Each kernel holds the version of its tier and the scalar version,
+// and writes the index in MultiVersion.tiers of the version it runs to tier(0).
+//
+class DispatchedSaxpy {
+
+  @native def saxpyScalar (a: Array[Float], b: Array[Float], s: Float, n: Int, tier: Array[Int]): Unit
+  @native def saxpySSE42  (a: Array[Float], b: Array[Float], s: Float, n: Int, tier: Array[Int]): Unit
+  @native def saxpyAVX    (a: Array[Float], b: Array[Float], s: Float, n: Int, tier: Array[Int]): Unit
+  @native def saxpyAVX2   (a: Array[Float], b: Array[Float], s: Float, n: Int, tier: Array[Int]): Unit
+  @native def saxpyAVX512 (a: Array[Float], b: Array[Float], s: Float, n: Int, tier: Array[Int]): Unit
+  @native def saxpyAll    (a: Array[Float], b: Array[Float], s: Float, n: Int, tier: Array[Int]): Unit
+
+  val saxpy = new NMultiSaxpy
+  import saxpy.cIR._
+
+  def saxpy_staged (isa: ISA)(a: Rep[Array[Float]], b: Rep[Array[Float]], s: Rep[Float], n: Rep[Int], tier_imm: Rep[Array[Int]]): Rep[Unit] = { import ImplicitLift._
+    val tier = reflectMutableSym(tier_imm.asInstanceOf[Sym[Array[Int]]])
+    tier(0) = MultiVersion.tiers.indexOf(isa)
+    saxpy.saxpy_staged(isa)(a, b, s, n)
+  }
+
+  //
+  // Kernel holding the version of the given tier, next to the scalar one
+  //
+  def kernel (isa: ISA): (Array[Float], Array[Float], Float, Int, Array[Int]) => Unit = isa match {
+    case ISA.SSE42  => saxpySSE42
+    case ISA.AVX    => saxpyAVX
+    case ISA.AVX2   => saxpyAVX2
+    case ISA.AVX512 => saxpyAVX512
+    case _          => saxpyScalar
+  }
+
+  compileUnit(this) {
+    compileMultiVersion(saxpy_staged _, this, nameOf(saxpyScalar _), Nil)
+    compileMultiVersion(saxpy_staged _, this, nameOf(saxpySSE42  _), List(ISA.SSE42))
+    compileMultiVersion(saxpy_staged _, this, nameOf(saxpyAVX    _), List(ISA.AVX))
+    compileMultiVersion(saxpy_staged _, this, nameOf(saxpyAVX2   _), List(ISA.AVX2))
+    compileMultiVersion(saxpy_staged _, this, nameOf(saxpyAVX512 _), List(ISA.AVX512))
+    compileMultiVersion(saxpy_staged _, this, nameOf(saxpyAll    _), MultiVersion.tiers)
+  }
+}
+
+class ValidateMultiVersion extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+
+  //
+  // FMA rounds once, the other versions twice
+  //
+  val precision = 1e-5F
+
+  //
+  // Whether the executing CPU reports all the ISAs of the version of a tier.
+  // The dispatcher checks the AVX-512 subsets separately, and might run the
+  // scalar version of a CPU reporting AVX-512.
+  //
+  def supported (isa: ISA): Boolean = MultiVersion.isas(isa).forall(LocalSystem.getISAs().contains)
+
+  def runs (kernel: (Array[Float], Array[Float], Float, Int, Array[Int]) => Unit, n: Int): ISA = {
+    val (a, b, s) = (Array.fill(n)(rng.nextFloat), Array.fill(n)(rng.nextFloat), rng.nextFloat)
+    val expected = a.zip(b).map { case (x, y) => x + y * s }
+    val tier = Array(-1)
+    kernel(a, b, s, n, tier)
+    assert(expected.zip(a).forall { case (x, y) => (x - y).abs <= precision * Math.max(1.0F, x.abs) })
+    assert(MultiVersion.tiers.isDefinedAt(tier(0)))
+    MultiVersion.tiers(tier(0))
+  }
+
+  describe("ValidateMultiVersion.scala") {
+
+    //
+    // The Java backend does not compile multi-versioned kernels
+    //
+    if (!JavaBackend.selected) {
+
+      val kernels = new DispatchedSaxpy
+
+      for (isa <- MultiVersion.tiers; n <- List(1, 13, 1000)) {
+        it(s"dispatches the $isa kernel of $n elements to a supported version computing the JVM results") {
+          val selected = runs(kernels.kernel(isa), n)
+          assert(selected == isa || selected == ISA.None)
+          assert(supported(selected))
+          if (isa != ISA.AVX512) assert((selected == isa) == supported(isa))
+        }
+      }
+
+      it("dispatches the kernel of all tiers to the most specific supported version") {
+        val selected = runs(kernels.saxpyAll, 1000)
+        assert(supported(selected))
+        assert(MultiVersion.tiers.takeWhile(_ != selected).filter(_ != ISA.AVX512).forall(isa => !supported(isa)))
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package cgo
+
+import ch.ethz.acl.ngen.precison.{JVector4, JVector8, QMatrix4, QMatrix8, QVector8}
+import org.scalatest.FunSpec
+
+class ValidateQMatrix extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+  //
+  // The precision of the float equality
+  //
+  val precision = 0.001F
+
+  //
+  // Generate a random floating point array
+  //
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  //
+  // Checks the element-wise equality of two arrays
+  //
+  def checkArraysEqual(expected: Array[Float], observed: Array[Float]): Boolean = {
+    expected.zip(observed).map{case (x1, x2) => (x1 - x2).abs <= precision * Math.max(1.0F, x1.abs)}.reduce(_ && _)
+  }
+
+  //
+  // Unpacks a row of 4-bit values, stored as a sign bit followed by 3 bits of base
+  //
+  def unpack4(values: Array[Byte], offset: Int, n: Int): Array[Byte] = Array.tabulate(n) { i =>
+    val packed = values(offset + i / 2)
+    val nibble = if (i % 2 == 0) (packed >> 4) & 0x0F else packed & 0x0F
+    val base   = (nibble & 0x07).toByte
+    if ((nibble & 0x08) != 0) (-base).toByte else base
+  }
+
+  val sizes = List((1, 32), (4, 64), (7, 100), (37, 300), (130, 1000))
+
+  describe("ValidateQMatrix.scala") {
+
+    for ((rows, cols) <- sizes) {
+
+      it(s"computes the 8-bit GEMV of $rows x $cols") {
+        val w = new QMatrix8(rows, cols)
+        val x = new QVector8(cols)
+        w.quantize(genRandomFloatArray(rows * cols))
+        x.quantize(genRandomFloatArray(cols))
+
+        val observed = new Array[Float](rows)
+        w.gemv(x, observed)
+        val expected = Array.tabulate(rows) { i =>
+          val row = w.values.slice(i * w.cols_pad, (i + 1) * w.cols_pad)
+          JVector8.dot(row, x.values, w.scale(i), x.scale, cols)
+        }
+        assert(checkArraysEqual(expected, observed))
+      }
+
+      it(s"computes the 8-bit GEMM of $rows x $cols with a batch of 5") {
+        val w = new QMatrix8(rows, cols)
+        val x = new QMatrix8(5, cols)
+        w.quantize(genRandomFloatArray(rows * cols))
+        x.quantize(genRandomFloatArray(5 * cols))
+
+        val observed = new Array[Float](5 * rows)
+        w.gemm(x, observed)
+        val expected = Array.tabulate(5 * rows) { idx =>
+          val (j, i) = (idx / rows, idx % rows)
+          val wRow = w.values.slice(i * w.cols_pad, (i + 1) * w.cols_pad)
+          val xRow = x.values.slice(j * x.cols_pad, (j + 1) * x.cols_pad)
+          JVector8.dot(wRow, xRow, w.scale(i), x.scale(j), cols)
+        }
+        assert(checkArraysEqual(expected, observed))
+      }
+
+      it(s"computes the 4-bit GEMM of $rows x $cols with a batch of 3") {
+        val w = new QMatrix4(rows, cols)
+        val x = new QMatrix4(3, cols)
+        w.quantize(genRandomFloatArray(rows * cols))
+        x.quantize(genRandomFloatArray(3 * cols))
+
+        val observed = new Array[Float](3 * rows)
+        w.gemm(x, observed)
+        val expected = Array.tabulate(3 * rows) { idx =>
+          val (j, i) = (idx / rows, idx % rows)
+          val wRow = unpack4(w.values, i * w.cols_pad / 2, cols)
+          val xRow = unpack4(x.values, j * x.cols_pad / 2, cols)
+          JVector8.dot(wRow, xRow, w.scale(i), x.scale(j), cols)
+        }
+        assert(checkArraysEqual(expected, observed))
+      }
+
+      it(s"computes the 4-bit GEMM of $rows x $cols with rows quantized and multiplied on the JVM") {
+        val w = new QMatrix4(rows, cols)
+        val x = new QMatrix4(3, cols)
+        val input = genRandomFloatArray(rows * cols)
+        for (i <- 0 until rows) {
+          w.scale(i) = JVector4.quantize(input, i * cols, w.values, i * w.cols_pad / 2, cols)
+          val restored = unpack4(w.values, i * w.cols_pad / 2, cols).map(_ * w.scale(i))
+          assert((0 until cols).forall(k => (restored(k) - input(i * cols + k)).abs <= w.scale(i) * 1.001F))
+        }
+        x.quantize(genRandomFloatArray(3 * cols))
+
+        val observed = new Array[Float](3 * rows)
+        w.gemm(x, observed)
+        val expected = Array.tabulate(3 * rows) { idx =>
+          val (j, i) = (idx / rows, idx % rows)
+          JVector4.dot(w.values, i * w.cols_pad / 2, x.values, j * x.cols_pad / 2, w.scale(i), x.scale(j), w.cols_pad)
+        }
+        assert(checkArraysEqual(expected, observed))
+      }
+    }
+  }
+}
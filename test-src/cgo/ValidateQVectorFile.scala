@@ -0,0 +1,62 @@
+package cgo
+
+import java.nio.file.Files
+
+import ch.ethz.acl.ngen.precison._
+import org.scalatest.FunSpec
+
+class ValidateQVectorFile extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+  //
+  // The precision of the float equality
+  //
+  val precision = 0.001F
+
+  //
+  // Generate a random floating point array
+  //
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  def checkFloatsEqual(x1: Float, x2: Float): Boolean = (x1 - x2).abs <= precision * Math.max(1.0F, x1.abs)
+
+  describe("ValidateQVectorFile.scala") {
+
+    for (bits <- List(4, 8, 16); size <- List(1, 100, 1000)) {
+      it(s"writes and maps $bits-bit vectors of size $size") {
+        val count = 37
+        val path = Files.createTempFile("ngen", ".qvec")
+        try {
+          //
+          // Write the vectors in chunks of different sizes
+          //
+          val writer = QVectorFile.create(path, bits, size)
+          writer.write(genRandomFloatArray(size * 5))
+          writer.write(genRandomFloatArray(size * 32))
+          writer.close()
+
+          val file  = QVectorFile.open(path)
+          val query = QVector(bits, size)
+          query.quantize(genRandomFloatArray(size))
+
+          assert(file.count == count && file.bits == bits && file.size == size)
+          for (i <- 0L until count) {
+            val loaded = file.load(i)
+            val expected = (query, loaded) match {
+              case (q: QVector4 , l: QVector4 ) => q.dot(l)
+              case (q: QVector8 , l: QVector8 ) => q.dot(l)
+              case (q: QVector16, l: QVector16) => q.dot(l)
+            }
+            assert(checkFloatsEqual(expected, file.dot(i, query)))
+          }
+        } finally {
+          Files.deleteIfExists(path)
+        }
+      }
+    }
+  }
+}
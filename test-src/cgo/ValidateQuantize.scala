@@ -0,0 +1,158 @@
+package cgo
+
+import ch.ethz.acl.commons.cir.Specialization
+import ch.ethz.acl.commons.extensions.Parallelism
+import ch.ethz.acl.ngen.precison.{QVector, QVector16, QVector4, QVector8, Rounding}
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+//
+// The quantization kernels of QVector8 and QVector4, staged with the given threads setting
+//
+object StagedQuantize {
+  def stage (inst: AnyRef, threads: Int, quantize8: String, quantize4: String): Unit = {
+    import QVector.IR._
+    val previous = Parallelism.threads
+    Parallelism.threads = threads
+    try {
+      compileUnit(inst) {
+        compile(new QVector8(1).quantize_staged _, inst, quantize8)
+        compile(new QVector4(1).quantize_staged _, inst, quantize4)
+      }
+    } finally {
+      Parallelism.threads = previous
+    }
+  }
+}
+
+class SerialQuantize {
+  @native def quantize8 (u: Array[Float], r: Array[Byte], n0: Int, seed: Int): Float
+  @native def quantize4 (u: Array[Float], r: Array[Byte], n0: Int, seed: Int): Float
+  StagedQuantize.stage(this, 1, nameOf(quantize8 _), nameOf(quantize4 _))
+}
+
+//
+// Uses all the threads of OpenMP at runtime
+//
+class ParallelQuantize {
+  @native def quantize8 (u: Array[Float], r: Array[Byte], n0: Int, seed: Int): Float
+  @native def quantize4 (u: Array[Float], r: Array[Byte], n0: Int, seed: Int): Float
+  StagedQuantize.stage(this, 0, nameOf(quantize8 _), nameOf(quantize4 _))
+}
+
+class ValidateQuantize extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+
+  //
+  // Generate a random floating point array
+  //
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  //
+  // Stochastic rounding moves each element by less than one quantization step
+  //
+  def checkRestored(input: Array[Float], restored: Array[Float], scale: Float): Boolean = {
+    input.zip(restored).map{case (x1, x2) => (x1 - x2).abs <= scale * 1.001F}.reduce(_ && _)
+  }
+
+  val sizes = List(1, 31, 64, 100, 1000, 100003)
+
+  describe("ValidateQuantize.scala") {
+
+    assert(new QVector8(1).tier.await())
+
+    for (n <- sizes) {
+
+      it(s"quantizes and restores $n elements in 8-bit") {
+        val input = genRandomFloatArray(n)
+        val (q1, q2) = (new QVector8(n), new QVector8(n))
+        q1.quantize(input, 42)
+        q2.quantize(input, 42)
+        if (QVector.rounding == Rounding.XorShift) {
+          assert(q1.values.sameElements(q2.values))
+        }
+        assert(q1.values.drop(n).forall(_ == 0))
+
+        val restored = new Array[Float](n)
+        q1.restore(restored)
+        assert(checkRestored(input, restored, q1.scale))
+      }
+
+      it(s"quantizes and restores $n elements in 4-bit") {
+        val input = genRandomFloatArray(n)
+        val (q1, q2) = (new QVector4(n), new QVector4(n))
+        q1.quantize(input, 42)
+        q2.quantize(input, 42)
+        if (QVector.rounding == Rounding.XorShift) {
+          assert(q1.values.sameElements(q2.values))
+        }
+
+        val restored = new Array[Float](n)
+        q1.restore(restored)
+        assert(checkRestored(input, restored, q1.scale))
+      }
+    }
+
+    it("computes the dot products of 128, 384 and 768 elements with the versions specialized for their size") {
+      val (enabled, threshold) = (Specialization.enabled, Specialization.threshold)
+      Specialization.enabled   = true
+      Specialization.threshold = 2
+      try {
+        for (n <- List(128, 384, 768)) {
+          val (x, y) = (genRandomFloatArray(n), genRandomFloatArray(n))
+          val (u8, v8) = (new QVector8(n), new QVector8(n))
+          val (u16, v16) = (new QVector16(n), new QVector16(n))
+          u8.quantize(x, 42); v8.quantize(y, 42)
+          u16.quantize(x); v16.quantize(y)
+          val generic8  = u8.dotNative(u8.values, v8.values, u8.scale, v8.scale, u8.size_pad)
+          val generic16 = u16.dotNative(u16.values, v16.values, u16.size_pad)
+          //
+          // Calls the kernels until the size is promoted, and waits for its versions
+          //
+          for (_ <- 0 until Specialization.threshold) {
+            u8.dot(v8); u16.dot(v16)
+          }
+          assert(u8.dotSpecialized.await(u8.size_pad) && u16.dotSpecialized.await(u16.size_pad))
+          assert(u8.dotSpecialized(u8.size_pad) != 0 && u16.dotSpecialized(u16.size_pad) != 0)
+          assert((u8.dot(v8) - generic8).abs <= generic8.abs * 1e-5F + 1e-5F)
+          assert((u16.dot(v16) - generic16).abs <= generic16.abs * 1e-5F + 1e-5F)
+        }
+      } finally {
+        Specialization.enabled   = enabled
+        Specialization.threshold = threshold
+      }
+    }
+
+    if (QVector.rounding == Rounding.XorShift) {
+
+      val serial   = new SerialQuantize
+      val parallel = new ParallelQuantize
+      //
+      // Large enough for every thread of the machine to get a chunk
+      //
+      val threads = Runtime.getRuntime.availableProcessors()
+      val n = threads * Parallelism.grain + 1000
+
+      it(s"quantizes $n elements in 8-bit to the same values with 1 and $threads threads") {
+        val input = genRandomFloatArray(n)
+        val size = new QVector8(n).size_pad
+        val (values1, valuesN) = (new Array[Byte](size), new Array[Byte](size))
+        assert(serial.quantize8(input, values1, n, 42) == parallel.quantize8(input, valuesN, n, 42))
+        assert(values1.sameElements(valuesN))
+      }
+
+      it(s"quantizes $n elements in 4-bit to the same values with 1 and $threads threads") {
+        val input = genRandomFloatArray(n)
+        val size = new QVector4(n).values.length
+        val (values1, valuesN) = (new Array[Byte](size), new Array[Byte](size))
+        assert(serial.quantize4(input, values1, n, 42) == parallel.quantize4(input, valuesN, n, 42))
+        assert(values1.sameElements(valuesN))
+      }
+    }
+  }
+}
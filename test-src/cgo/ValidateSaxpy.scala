@@ -0,0 +1,113 @@
+package cgo
+
+import ch.ethz.acl.commons.cir.TuningVariant
+import ch.ethz.acl.commons.cir.extensions.Streaming
+import ch.ethz.acl.ngen.saxpy.NSaxpy
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+//
+// The batched SAXPY of NSaxpy for each unrolling, staged with a streaming
+// threshold of 4 KB, such that calls of more than 1024 elements use the
+// non-temporal stores
+//
+class StreamedSaxpy {
+
+  @native def unroll1 (a: Array[Float], aOffsets: Array[Int], b: Array[Float], bOffsets: Array[Int], scalars: Array[Float], ns: Array[Int], count: Int): Unit
+  @native def unroll2 (a: Array[Float], aOffsets: Array[Int], b: Array[Float], bOffsets: Array[Int], scalars: Array[Float], ns: Array[Int], count: Int): Unit
+  @native def unroll4 (a: Array[Float], aOffsets: Array[Int], b: Array[Float], bOffsets: Array[Int], scalars: Array[Float], ns: Array[Int], count: Int): Unit
+
+  val streamed = 1024
+
+  private val saxpy = new NSaxpy
+  import saxpy.cIR._
+
+  private def variant (unroll: Int) = TuningVariant(Map("unroll" -> unroll))
+
+  private val threshold = Streaming.threshold
+  Streaming.threshold = streamed * 4
+  try {
+    compileUnit(this) {
+      compileBatch(saxpy.saxpy_staged(variant(1)) _, this, nameOf(unroll1 _))
+      compileBatch(saxpy.saxpy_staged(variant(2)) _, this, nameOf(unroll2 _))
+      compileBatch(saxpy.saxpy_staged(variant(4)) _, this, nameOf(unroll4 _))
+    }
+  } finally {
+    Streaming.threshold = threshold
+  }
+}
+
+class ValidateSaxpy extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  //
+  // The FMA of the kernels rounds once, the JVM rounds the product and the sum
+  //
+  def checkEquals(actual: Array[Float], expected: Array[Float]): Boolean = {
+    actual.length == expected.length && actual.zip(expected).forall({ case (x, y) =>
+      Math.abs(x - y) <= 1e-5f * Math.max(1f, Math.abs(y))
+    })
+  }
+
+  //
+  // JVM reference of a batch of SAXPY calls at the given offsets
+  //
+  def reference(a: Array[Float], aOffsets: Array[Int], b: Array[Float], bOffsets: Array[Int], scalars: Array[Float], ns: Array[Int]): Unit = {
+    for (k <- ns.indices; i <- 0 until ns(k)) {
+      a(aOffsets(k) + i) += b(bOffsets(k) + i) * scalars(k)
+    }
+  }
+
+  describe("ValidateSaxpy.scala") {
+
+    val kernels = new StreamedSaxpy
+    val variants = List(
+      1 -> (kernels.unroll1 _),
+      2 -> (kernels.unroll2 _),
+      4 -> (kernels.unroll4 _)
+    )
+    //
+    // Sizes shorter than the alignment peel of up to 7 elements, around the
+    // vector and unrolled loops, and below and above the streaming threshold
+    //
+    val sizes = List(0, 1, 3, 7, 8, 31, 33, 100, kernels.streamed - 1, kernels.streamed, kernels.streamed + 1, 5000, 100003)
+
+    for ((unroll, kernel) <- variants; n <- sizes) {
+      it(s"matches the JVM for n = $n at every misaligned offset, unrolled $unroll times") {
+        for (offset <- 0 until 8) {
+          //
+          // The elements around the updated range must be left untouched
+          //
+          val a = genRandomFloatArray(offset + n + 16)
+          val b = genRandomFloatArray(offset + n + 16)
+          val (aOffsets, bOffsets) = (Array(offset), Array((offset * 3 + 1) % 8))
+          val (scalars, ns) = (Array(rng.nextFloat), Array(n))
+          val expected = a.clone()
+          reference(expected, aOffsets, b, bOffsets, scalars, ns)
+          kernel(a, aOffsets, b, bOffsets, scalars, ns, 1)
+          assert(checkEquals(a, expected), s"offset $offset")
+        }
+      }
+    }
+
+    val saxpy = new NSaxpy
+    assert(saxpy.tier.await())
+
+    for (n <- List(0, 1, 7, 8, 9, 1000, 100003)) {
+      it(s"computes saxpy of $n elements through the selected variant") {
+        val (a, b) = (genRandomFloatArray(n), genRandomFloatArray(n))
+        val expected = a.clone()
+        reference(expected, Array(0), b, Array(0), Array(0.5f), Array(n))
+        saxpy(a, b, 0.5f, n)
+        assert(checkEquals(a, expected))
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package cgo
+
+import ch.ethz.acl.commons.analysis.{Bottleneck, KernelEstimate, OpClass, PortModel, ThroughputModel}
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.compiler.UArch
+import ch.ethz.acl.commons.compiler.UArch.UArch
+import org.scalatest.FunSpec
+
+//
+// Dot product of two arrays whose size is a multiple of 8 * unroll, with one
+// AVX accumulator per unrolled step, as in QVector32
+//
+class StagedDot {
+
+  val cIR = new IntrinsicsIR
+  import cIR._
+
+  def dot_staged (unroll: Int)(u: Rep[Array[Float]], v: Rep[Array[Float]], r_imm: Rep[Array[Float]], n: Rep[Int]): Rep[Unit] = { import ImplicitLift._
+    val r = reflectMutableSym(r_imm.asInstanceOf[Sym[Array[Float]]])
+    val acc = List.fill(unroll)(var_new(_mm256_setzero_ps()))
+    forloop(0, n, fresh[Int], 8 * unroll, (i: Rep[Int]) => {
+      acc.zipWithIndex.foreach { case (a, k) =>
+        val j = if (k == 0) i else i + 8 * k
+        var_assign(a, _mm256_fmadd_ps(_mm256_loadu_ps(u, j), _mm256_loadu_ps(v, j), readVar(a)))
+      }
+    })
+    _mm256_storeu_ps(r, acc.map(a => readVar(a)).reduce((x, y) => _mm256_add_ps(x, y)), 0)
+  }
+
+  def estimate (unroll: Int, uarch: UArch): KernelEstimate = staging {
+    val (u, v, r, n) = (fresh[Array[Float]], fresh[Array[Float]], fresh[Array[Float]], fresh[Int])
+    cIR.estimate(reifyEffects(dot_staged(unroll)(u, v, r, n)), uarch)
+  }
+}
+
+class ValidateThroughputModel extends FunSpec {
+
+  //
+  // Estimates with the memory bandwidth given in bytes per cycle
+  //
+  def withBandwidth[T] (bandwidth: Double)(body: => T): T = {
+    val previous = ThroughputModel.bandwidth
+    ThroughputModel.bandwidth = bandwidth
+    try body finally ThroughputModel.bandwidth = previous
+  }
+
+  describe("ValidateThroughputModel.scala") {
+
+    val dot = new StagedDot
+    val unrolls = List(1, 4, 8)
+
+    it("maps the operations of the Haswell loop to its ports") {
+      val haswell = PortModel(UArch.Haswell)
+      assert(haswell.name == "Haswell" && haswell.ports == 8)
+      assert(haswell.cost(OpClass.Load, 32).portList == List(2, 3))
+      assert(haswell.cost(OpClass.Store, 32).portList == List(4))
+      assert(haswell.cost(OpClass.Fma, 32).portList == List(0, 1))
+      assert(haswell.cost(OpClass.Fma, 32).latency == 5)
+      assert(PortModel(UArch.Skylake).cost(OpClass.Fma, 64).portList == List(0, 5))
+    }
+
+    //
+    // Per iteration: 2 loads and 1 FMA per accumulator, an index addition per
+    // accumulator after the first, and the increment and branch of the loop
+    //
+    for (unroll <- unrolls) {
+      it(s"counts the operations of the dot product unrolled $unroll times") {
+        val loop = withBandwidth(Double.PositiveInfinity)(dot.estimate(unroll, UArch.Haswell)).loops
+        assert(loop.size == 1)
+        assert(loop.head.increment == Some(8 * unroll))
+        assert(loop.head.uops == Map(OpClass.Load -> 2 * unroll, OpClass.Fma -> unroll, OpClass.ScalarAlu -> unroll, OpClass.Branch -> 1))
+        assert(loop.head.bytes == 64 * unroll)
+      }
+    }
+
+    it("bounds the dot product by its FMA latency with 1 and 4 accumulators, and by its loads with 8") {
+      withBandwidth(Double.PositiveInfinity) {
+        for (unroll <- List(1, 4)) {
+          val loop = dot.estimate(unroll, UArch.Haswell).loops.head
+          assert(loop.bottleneck == Bottleneck.Latency)
+          assert(loop.latencyCycles == 5.0 && loop.cycles == 5.0)
+          assert(loop.portCycles == unroll.toDouble)
+          assert(loop.criticalPorts == List(2, 3))
+        }
+        val loop = dot.estimate(8, UArch.Haswell).loops.head
+        assert(loop.bottleneck == Bottleneck.Ports)
+        assert(loop.portCycles == 8.0 && loop.cycles == 8.0)
+        assert(loop.criticalPorts == List(2, 3))
+      }
+    }
+
+    it("bounds the dot product by the bandwidth when streaming from memory") {
+      val loop = withBandwidth(8)(dot.estimate(8, UArch.Haswell)).loops.head
+      assert(loop.bottleneck == Bottleneck.Bandwidth)
+      assert(loop.memoryCycles == 512 / 8.0)
+    }
+
+    it("ranks the unrollings of the dot product the same way on every estimate") {
+      withBandwidth(Double.PositiveInfinity) {
+        def ranking (uarch: UArch): List[Int] = unrolls.sortBy(u => dot.estimate(u, uarch).cyclesPerElement)
+        assert(ranking(UArch.Haswell) == List(8, 4, 1))
+        assert(ranking(UArch.Haswell) == ranking(UArch.Haswell))
+        assert(ranking(UArch.Broadwell) == List(8, 4, 1))
+        assert(unrolls.forall(u => dot.estimate(u, UArch.Haswell).cycles == dot.estimate(u, UArch.Haswell).cycles))
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package cgo
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Callable, CountDownLatch, Executors}
+
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+object CountedKernel {
+  val IR = new IntrinsicsIR
+  //
+  // Number of times the kernel class has been staged and compiled
+  //
+  val compilations = new AtomicInteger(0)
+}
+
+//
+// Scales an array, counting its compilations
+//
+class CountedKernel {
+
+  import CountedKernel.IR._
+
+  @native def scale (a: Array[Float], s: Float, n: Int): Unit
+
+  def scale_staged (a_imm: Rep[Array[Float]], s: Rep[Float], n: Rep[Int]): Rep[Unit] = { import ImplicitLift._
+    val a = reflectMutableSym(a_imm.asInstanceOf[Sym[Array[Float]]])
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { a(i) = a(i) * s })
+  }
+
+  val tier = tiered(this) {
+    CountedKernel.compilations.incrementAndGet()
+    compile(scale_staged _, this, nameOf(scale _))
+  }
+}
+
+class ValidateTiered extends FunSpec {
+
+  describe("ValidateTiered.scala") {
+
+    it("compiles a kernel class once when constructed from several threads") {
+      val threads = Math.max(4, Runtime.getRuntime.availableProcessors())
+      val start = new CountDownLatch(1)
+      val pool = Executors.newFixedThreadPool(threads)
+      val kernels = try {
+        val futures = (0 until threads).map(_ => pool.submit(new Callable[CountedKernel] {
+          def call (): CountedKernel = { start.await(); new CountedKernel }
+        }))
+        start.countDown()
+        futures.map(_.get)
+      } finally pool.shutdown()
+
+      assert(kernels.forall(_.tier eq kernels.head.tier))
+      assert(kernels.forall(_.tier.await()))
+      assert(new CountedKernel().tier eq kernels.head.tier)
+      assert(CountedKernel.compilations.get == 1)
+
+      for (kernel <- kernels) {
+        val a = Array.tabulate(10)(_.toFloat)
+        kernel.scale(a, 2.0f, 10)
+        assert(a.sameElements(Array.tabulate(10)(i => 2.0f * i)))
+      }
+    }
+  }
+}
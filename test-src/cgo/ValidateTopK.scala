@@ -0,0 +1,72 @@
+package cgo
+
+import java.nio.file.Files
+
+import ch.ethz.acl.ngen.precison._
+import org.scalatest.FunSpec
+
+class ValidateTopK extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+  //
+  // The precision of the float equality
+  //
+  val precision = 0.001F
+
+  //
+  // Generate a random floating point array
+  //
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  //
+  // Ties may be ordered differently, so only the scores are compared
+  //
+  def checkScoresEqual(expected: Seq[Float], observed: Seq[Float]): Boolean = {
+    expected.length == observed.length &&
+      expected.zip(observed).forall { case (x1, x2) => (x1 - x2).abs <= precision * Math.max(1.0F, x1.abs) }
+  }
+
+  describe("ValidateTopK.scala") {
+
+    for ((rows, cols, k) <- List((1, 32, 1), (10, 100, 20), (1000, 300, 10), (5000, 64, 100))) {
+
+      it(s"finds the top $k of $rows vectors of size $cols in a QMatrix8") {
+        val m = new QMatrix8(rows, cols)
+        val q = new QVector8(cols)
+        m.quantize(genRandomFloatArray(rows * cols))
+        q.quantize(genRandomFloatArray(cols))
+
+        val expected = (0 until rows).map { i =>
+          JVector8.dot(q.values, m.values.slice(i * m.cols_pad, (i + 1) * m.cols_pad), q.scale, m.scale(i), cols)
+        }.sortBy(-_).take(k)
+        val observed = q.topk(m, k)
+        assert(checkScoresEqual(expected, observed.map(_._2)))
+        assert(observed.forall { case (i, s) => i >= 0 && i < rows })
+      }
+
+      it(s"finds the top $k of $rows mapped 4-bit vectors of size $cols") {
+        val path = Files.createTempFile("ngen", ".qvec")
+        try {
+          val writer = QVectorFile.create(path, 4, cols)
+          writer.write(genRandomFloatArray(rows * cols))
+          writer.close()
+
+          val file = QVectorFile.open(path)
+          val q = new QVector4(cols)
+          q.quantize(genRandomFloatArray(cols))
+
+          val expected = (0L until rows).map(i => file.dot(i, q)).sortBy(-_).take(k)
+          val observed = q.topk(file, k)
+          assert(checkScoresEqual(expected, observed.map(_._2)))
+          assert(observed.forall { case (i, s) => (file.dot(i, q) - s).abs <= precision * Math.max(1.0F, s.abs) })
+        } finally {
+          Files.deleteIfExists(path)
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package cgo
+
+import java.io.{PrintWriter, StringWriter}
+
+import ch.ethz.acl.commons.cir.IntrinsicsIR
+import ch.ethz.acl.commons.compiler.ISA
+import ch.ethz.acl.commons.system.LocalSystem
+import ch.ethz.acl.commons.transformers.VectorizeTransformer
+import com.github.dwickern.macros.NameOf._
+import org.scalatest.FunSpec
+
+//
+// Scalar loops over Float and Int arrays, written without intrinsics
+//
+class ScalarKernels {
+
+  @native def saxpy (a: Array[Float], b: Array[Float], s: Float, n: Int): Unit
+  @native def dot   (a: Array[Float], b: Array[Float], n: Int): Float
+  @native def iaxpy (a: Array[Int], b: Array[Int], s: Int, n: Int): Int
+
+  val cIR = new IntrinsicsIR
+  import cIR._
+
+  def saxpy_staged (a_imm: Rep[Array[Float]], b: Rep[Array[Float]], s: Rep[Float], n: Rep[Int]): Rep[Unit] = {
+    import ImplicitLift._
+    val a = reflectMutableSym(a_imm.asInstanceOf[Sym[Array[Float]]])
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { a(i) = a(i) + b(i) * s })
+  }
+
+  def dot_staged (a: Rep[Array[Float]], b: Rep[Array[Float]], n: Rep[Int]): Rep[Float] = {
+    import ImplicitLift._
+    val sum = var_new(unit(0.0f))
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => { var_assign(sum, readVar(sum) + a(i) * b(i)) })
+    readVar(sum)
+  }
+
+  def iaxpy_staged (a_imm: Rep[Array[Int]], b: Rep[Array[Int]], s: Rep[Int], n: Rep[Int]): Rep[Int] = {
+    import ImplicitLift._
+    val a = reflectMutableSym(a_imm.asInstanceOf[Sym[Array[Int]]])
+    val sum = var_new(unit(0))
+    forloop(0, n, fresh[Int], 1, (i: Rep[Int]) => {
+      val x = a(i) + b(i) * s
+      a(i) = x
+      var_assign(sum, readVar(sum) + x)
+    })
+    readVar(sum)
+  }
+
+  def generateDot (): String = {
+    val (a, b, n) = (fresh[Array[Float]], fresh[Array[Float]], fresh[Int])
+    val block = reifyEffects(dot_staged(a, b, n))
+    val out = new StringWriter()
+    vectorized(emitBlock(List(a, b, n), optimize(block, List(ISA.AVX, ISA.AVX2)), new PrintWriter(out)))
+    out.toString
+  }
+
+  //
+  // Vectorization is disabled by default, enable it for the staging of these kernels only
+  //
+  private def vectorized[T] (body: => T): T = {
+    val enabled = VectorizeTransformer.enabled
+    VectorizeTransformer.enabled = true
+    try body finally VectorizeTransformer.enabled = enabled
+  }
+
+  vectorized(compileUnit(this) {
+    compile(saxpy_staged _, this, nameOf(saxpy _))
+    compile(dot_staged   _, this, nameOf(dot _))
+    compile(iaxpy_staged _, this, nameOf(iaxpy _))
+  })
+}
+
+class ValidateVectorize extends FunSpec {
+  //
+  // Random Number Generator
+  //
+  lazy val rng = new scala.util.Random(7919)
+
+  def genRandomFloatArray(n: Int, maximum: Float = 3.0F): Array[Float] = {
+    Array.fill(n) { (rng.nextFloat - 0.5F) * maximum }
+  }
+
+  describe("ValidateVectorize.scala") {
+
+    val kernels = new ScalarKernels
+
+    it("vectorizes the dot product into AVX intrinsics with a scalar tail") {
+      val code = kernels.generateDot()
+      assert(code.contains("_mm256_mul_ps") && code.contains("_mm256_add_ps"))
+      assert("for\\(".r.findAllIn(code).size == 2)
+    }
+
+    if (!LocalSystem.getISAs().contains(ISA.AVX2)) {
+      info("AVX2 is not available, the loops are compiled as scalar code")
+    }
+
+    //
+    // Every length of the scalar tail, 1 to 7, alone and after the vectorized loop
+    //
+    val tails = (1 to 7).flatMap(t => List(t, 64 + t)).toList
+
+    for (n <- (List(0, 8, 1000, 100003) ++ tails).sorted) {
+
+      it(s"computes saxpy of $n elements") {
+        val (a, b) = (genRandomFloatArray(n), genRandomFloatArray(n))
+        val s = rng.nextFloat
+        val expected = a.indices.map(i => a(i) + b(i) * s).toArray
+        kernels.saxpy(a, b, s, n)
+        assert(a.zip(expected).forall { case (x1, x2) => (x1 - x2).abs <= 0.0001F })
+      }
+
+      it(s"computes the dot product of $n elements") {
+        val (a, b) = (genRandomFloatArray(n), genRandomFloatArray(n))
+        val expected = a.indices.map(i => a(i).toDouble * b(i)).sum
+        //
+        // The vectorized reduction reorders the additions
+        //
+        assert((kernels.dot(a, b, n) - expected).abs <= 0.0001 * (n + 1))
+      }
+
+      it(s"computes the integer axpy and its sum of $n elements") {
+        val (a, b) = (Array.fill(n)(rng.nextInt(1000)), Array.fill(n)(rng.nextInt(1000)))
+        val s = rng.nextInt(10)
+        val expected = a.indices.map(i => a(i) + b(i) * s).toArray
+        assert(kernels.iaxpy(a, b, s, n) == expected.sum)
+        assert(a.sameElements(expected))
+      }
+    }
+  }
+}